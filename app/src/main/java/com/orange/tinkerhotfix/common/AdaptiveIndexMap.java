@@ -0,0 +1,227 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.orange.tinkerhotfix.common;
+
+import com.orange.tinkerhotfix.party.TableOfContents;
+
+import java.util.BitSet;
+
+/**
+ * A {@link SparseIndexMap} which keeps string, type, proto, field and method ids in flat
+ * arrays indexed by the id itself.
+ *
+ * Id keys are dense and bounded by the id section sizes, so a lookup is a single array
+ * access and mapping ids in any order never shifts anything. Offsets and ids outside of
+ * the given bounds are still kept in the sparse maps of the super class.
+ */
+public class AdaptiveIndexMap extends SparseIndexMap {
+    private final DenseIds stringIds;
+    private final DenseIds typeIds;
+    private final DenseIds protoIds;
+    private final DenseIds fieldIds;
+    private final DenseIds methodIds;
+
+    public AdaptiveIndexMap(int stringIdCount, int typeIdCount, int protoIdCount, int fieldIdCount, int methodIdCount) {
+        this.stringIds = new DenseIds(stringIdCount);
+        this.typeIds = new DenseIds(typeIdCount);
+        this.protoIds = new DenseIds(protoIdCount);
+        this.fieldIds = new DenseIds(fieldIdCount);
+        this.methodIds = new DenseIds(methodIdCount);
+    }
+
+    /**
+     * Creates a map whose dense key range covers the ids of every given dex.
+     */
+    public static AdaptiveIndexMap forIdsOf(TableOfContents... tocs) {
+        int stringIdCount = 0;
+        int typeIdCount = 0;
+        int protoIdCount = 0;
+        int fieldIdCount = 0;
+        int methodIdCount = 0;
+        for (TableOfContents toc : tocs) {
+            stringIdCount = Math.max(stringIdCount, toc.stringIds.size);
+            typeIdCount = Math.max(typeIdCount, toc.typeIds.size);
+            protoIdCount = Math.max(protoIdCount, toc.protoIds.size);
+            fieldIdCount = Math.max(fieldIdCount, toc.fieldIds.size);
+            methodIdCount = Math.max(methodIdCount, toc.methodIds.size);
+        }
+        return new AdaptiveIndexMap(stringIdCount, typeIdCount, protoIdCount, fieldIdCount, methodIdCount);
+    }
+
+    @Override
+    public boolean isIdentityFor(int kinds) {
+        return ((kinds & KIND_STRING_IDS) == 0 || stringIds.isEmpty())
+                && ((kinds & KIND_TYPE_IDS) == 0 || typeIds.isEmpty())
+                && ((kinds & KIND_PROTO_IDS) == 0 || protoIds.isEmpty())
+                && ((kinds & KIND_FIELD_IDS) == 0 || fieldIds.isEmpty())
+                && ((kinds & KIND_METHOD_IDS) == 0 || methodIds.isEmpty())
+                && super.isIdentityFor(kinds);
+    }
+
+    @Override
+    public void mapStringIds(int oldIndex, int newIndex) {
+        if (!stringIds.map(oldIndex, newIndex)) {
+            super.mapStringIds(oldIndex, newIndex);
+        }
+    }
+
+    @Override
+    public void markStringIdDeleted(int index) {
+        if (!stringIds.markDeleted(index)) {
+            super.markStringIdDeleted(index);
+        }
+    }
+
+    @Override
+    public void mapTypeIds(int oldIndex, int newIndex) {
+        if (!typeIds.map(oldIndex, newIndex)) {
+            super.mapTypeIds(oldIndex, newIndex);
+        }
+    }
+
+    @Override
+    public void markTypeIdDeleted(int index) {
+        if (!typeIds.markDeleted(index)) {
+            super.markTypeIdDeleted(index);
+        }
+    }
+
+    @Override
+    public void mapProtoIds(int oldIndex, int newIndex) {
+        if (!protoIds.map(oldIndex, newIndex)) {
+            super.mapProtoIds(oldIndex, newIndex);
+        }
+    }
+
+    @Override
+    public void markProtoIdDeleted(int index) {
+        if (!protoIds.markDeleted(index)) {
+            super.markProtoIdDeleted(index);
+        }
+    }
+
+    @Override
+    public void mapFieldIds(int oldIndex, int newIndex) {
+        if (!fieldIds.map(oldIndex, newIndex)) {
+            super.mapFieldIds(oldIndex, newIndex);
+        }
+    }
+
+    @Override
+    public void markFieldIdDeleted(int index) {
+        if (!fieldIds.markDeleted(index)) {
+            super.markFieldIdDeleted(index);
+        }
+    }
+
+    @Override
+    public void mapMethodIds(int oldIndex, int newIndex) {
+        if (!methodIds.map(oldIndex, newIndex)) {
+            super.mapMethodIds(oldIndex, newIndex);
+        }
+    }
+
+    @Override
+    public void markMethodIdDeleted(int index) {
+        if (!methodIds.markDeleted(index)) {
+            super.markMethodIdDeleted(index);
+        }
+    }
+
+    @Override
+    public int adjustStringIndex(int stringIndex) {
+        return stringIds.covers(stringIndex) ? stringIds.adjust(stringIndex) : super.adjustStringIndex(stringIndex);
+    }
+
+    @Override
+    public int adjustTypeIdIndex(int typeIdIndex) {
+        return typeIds.covers(typeIdIndex) ? typeIds.adjust(typeIdIndex) : super.adjustTypeIdIndex(typeIdIndex);
+    }
+
+    @Override
+    public int adjustProtoIdIndex(int protoIndex) {
+        return protoIds.covers(protoIndex) ? protoIds.adjust(protoIndex) : super.adjustProtoIdIndex(protoIndex);
+    }
+
+    @Override
+    public int adjustFieldIdIndex(int fieldIndex) {
+        return fieldIds.covers(fieldIndex) ? fieldIds.adjust(fieldIndex) : super.adjustFieldIdIndex(fieldIndex);
+    }
+
+    @Override
+    public int adjustMethodIdIndex(int methodIndex) {
+        return methodIds.covers(methodIndex) ? methodIds.adjust(methodIndex) : super.adjustMethodIdIndex(methodIndex);
+    }
+
+    /**
+     * Mappings and deletions of the ids in [0, capacity). Storage is allocated on first write
+     * since most maps never touch most id kinds.
+     */
+    private static final class DenseIds {
+        private final int capacity;
+        private int[] mappedIds;
+        private BitSet mappedFlags;
+        private BitSet deletedFlags;
+
+        DenseIds(int capacity) {
+            this.capacity = capacity;
+        }
+
+        boolean covers(int index) {
+            return index >= 0 && index < capacity;
+        }
+
+        boolean isEmpty() {
+            return mappedFlags == null && deletedFlags == null;
+        }
+
+        boolean map(int oldIndex, int newIndex) {
+            if (!covers(oldIndex)) {
+                return false;
+            }
+            if (mappedIds == null) {
+                mappedIds = new int[capacity];
+                mappedFlags = new BitSet(capacity);
+            }
+            mappedIds[oldIndex] = newIndex;
+            mappedFlags.set(oldIndex);
+            return true;
+        }
+
+        boolean markDeleted(int index) {
+            if (index < 0) {
+                return true;
+            }
+            if (index >= capacity) {
+                return false;
+            }
+            if (deletedFlags == null) {
+                deletedFlags = new BitSet(capacity);
+            }
+            deletedFlags.set(index);
+            return true;
+        }
+
+        int adjust(int index) {
+            if (mappedFlags != null && mappedFlags.get(index)) {
+                return mappedIds[index];
+            }
+            return (deletedFlags != null && deletedFlags.get(index) ? -1 : index);
+        }
+    }
+}
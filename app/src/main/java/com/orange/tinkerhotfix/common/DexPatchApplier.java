@@ -66,7 +66,8 @@ import java.util.Arrays;
  */
 public class DexPatchApplier {
     private final Dex oldDex;
-    private final Dex patchedDex;
+    private final int patchedDexSize;
+    private Dex patchedDex;
 
     private final DexPatchFile patchFile;
 
@@ -89,7 +90,7 @@ public class DexPatchApplier {
     private DexSectionPatchAlgorithm<AnnotationsDirectory> annotationsDirectorySectionPatchAlg;
 
     public DexPatchApplier(File oldDexIn, File patchFileIn) throws IOException {
-        this(new Dex(oldDexIn), new DexPatchFile(patchFileIn));
+        this(Dex.mapFrom(oldDexIn), new DexPatchFile(patchFileIn));
     }
 
     public DexPatchApplier(InputStream oldDexIn, InputStream patchFileIn) throws IOException {
@@ -102,11 +103,38 @@ public class DexPatchApplier {
     ) {
         this.oldDex = oldDexIn;
         this.patchFile = patchFileIn;
-        this.patchedDex = new Dex(patchFileIn.getPatchedDexSize());
-        this.oldToPatchedIndexMap = new SparseIndexMap();
+        this.patchedDexSize = patchFileIn.getPatchedDexSize();
+        this.oldToPatchedIndexMap = AdaptiveIndexMap.forIdsOf(oldDexIn.getTableOfContents());
     }
 
     public void executeAndSaveTo(OutputStream out) throws IOException {
+        this.patchedDex = new Dex(this.patchedDexSize);
+        applyPatch();
+        this.patchedDex.writeTo(out);
+    }
+
+    public void executeAndSaveTo(File file) throws IOException {
+        OutputStream os = null;
+        try {
+            os = new BufferedOutputStream(new FileOutputStream(file));
+            executeAndSaveTo(os);
+        } finally {
+            IOHelper.closeQuietly(os);
+        }
+    }
+
+    /**
+     * Like {@link #executeAndSaveTo(File)}, but patched sections are written to a writable
+     * mapping of {@code file} directly instead of a patched dex in heap, which saves a whole
+     * copy of patched dex in heap.
+     */
+    public void executeAndStreamTo(File file) throws IOException {
+        this.patchedDex = Dex.createMapped(file, this.patchedDexSize);
+        applyPatch();
+        this.patchedDex.flush();
+    }
+
+    private void applyPatch() throws IOException {
         // Before executing, we should check if this patch can be applied to
         // old dex we passed in.
         byte[] oldDexSign = this.oldDex.computeSignature(false);
@@ -247,18 +275,5 @@ public class DexPatchApplier {
         patchedToc.writeMap(mapListOut);
 
         this.patchedDex.writeHashes();
-
-        // Finally, write patched dex to file.
-        this.patchedDex.writeTo(out);
-    }
-
-    public void executeAndSaveTo(File file) throws IOException {
-        OutputStream os = null;
-        try {
-            os = new BufferedOutputStream(new FileOutputStream(file));
-            executeAndSaveTo(os);
-        } finally {
-            IOHelper.closeQuietly(os);
-        }
     }
 }
@@ -17,12 +17,12 @@
 package com.orange.tinkerhotfix.common;
 
 
+import com.orange.tinkerhotfix.dx.instruction.DecodedInstructions;
 import com.orange.tinkerhotfix.dx.instruction.InstructionCodec;
 import com.orange.tinkerhotfix.dx.instruction.InstructionPromoter;
-import com.orange.tinkerhotfix.dx.instruction.InstructionReader;
-import com.orange.tinkerhotfix.dx.instruction.InstructionVisitor;
+import com.orange.tinkerhotfix.dx.instruction.InstructionTable;
 import com.orange.tinkerhotfix.dx.instruction.InstructionWriter;
-import com.orange.tinkerhotfix.dx.instruction.ShortArrayCodeInput;
+import com.orange.tinkerhotfix.dx.instruction.Opcodes;
 import com.orange.tinkerhotfix.dx.instruction.ShortArrayCodeOutput;
 import com.orange.tinkerhotfix.party.DexException;
 
@@ -39,91 +39,123 @@ public final class InstructionTransformer {
     }
 
     public short[] transform(short[] encodedInstructions) throws DexException {
+        short[] result = transformInPlace(encodedInstructions);
+        if (result != null) {
+            return result;
+        }
+        return transformWithPromoter(encodedInstructions);
+    }
+
+    /**
+     * Rewrites index operands of string, type, field and method refs directly in code units
+     * without decoding and encoding other instructions again.
+     *
+     * Returns {@code encodedInstructions} itself if no index is changed, otherwise a copy of it
+     * with changed indices patched. Returns null if some const-string must be promoted to
+     * const-string/jumbo or something cannot be skipped safely, in which case the whole method
+     * should be transformed by {@link #transformWithPromoter(short[])}.
+     */
+    private short[] transformInPlace(short[] encodedInstructions) {
+        final int length = encodedInstructions.length;
+        short[] result = encodedInstructions;
+        int address = 0;
+        while (address < length) {
+            final int opcodeUnit = encodedInstructions[address] & 0xffff;
+            final int opcode = Opcodes.extractOpcodeFromUnit(opcodeUnit);
+            final int format = InstructionTable.getFormat(opcode);
+            final int width = InstructionTable.getWidth(encodedInstructions, address);
+            if (width <= 0 || address + width > length) {
+                return null;
+            }
+            switch (format) {
+                case InstructionCodec.INSN_FORMAT_21C:
+                case InstructionCodec.INSN_FORMAT_22C:
+                case InstructionCodec.INSN_FORMAT_35C:
+                case InstructionCodec.INSN_FORMAT_3RC: {
+                    if (format == InstructionCodec.INSN_FORMAT_35C && InstructionCodec.nibble3(opcodeUnit) > 5) {
+                        // Let the promoter path report the bogus register count.
+                        return null;
+                    }
+                    final int index = encodedInstructions[address + 1] & 0xffff;
+                    final int mappedIndex = transformIndexIfNeeded(index, InstructionTable.getIndexType(opcode));
+                    if (mappedIndex != index) {
+                        if (opcode == Opcodes.CONST_STRING && mappedIndex > 0xFFFF) {
+                            return null;
+                        }
+                        if (result == encodedInstructions) {
+                            result = encodedInstructions.clone();
+                        }
+                        result[address + 1] = (short) mappedIndex;
+                    }
+                    break;
+                }
+                case InstructionCodec.INSN_FORMAT_31C: {
+                    final int index = (encodedInstructions[address + 1] & 0xffff) | (encodedInstructions[address + 2] << 16);
+                    final int mappedIndex = transformIndexIfNeeded(index, InstructionTable.getIndexType(opcode));
+                    if (mappedIndex != index) {
+                        if (result == encodedInstructions) {
+                            result = encodedInstructions.clone();
+                        }
+                        result[address + 1] = InstructionCodec.unit0(mappedIndex);
+                        result[address + 2] = InstructionCodec.unit1(mappedIndex);
+                    }
+                    break;
+                }
+                default: {
+                    break;
+                }
+            }
+            address += width;
+        }
+        return result;
+    }
+
+    private short[] transformWithPromoter(short[] encodedInstructions) throws DexException {
         ShortArrayCodeOutput out = new ShortArrayCodeOutput(encodedInstructions.length);
         InstructionPromoter ipmo = new InstructionPromoter();
         InstructionWriter iw = new InstructionWriter(out, ipmo);
-        InstructionReader ir = new InstructionReader(new ShortArrayCodeInput(encodedInstructions));
+        DecodedInstructions decodedInsns = new DecodedInstructions();
 
         try {
-            // First visit, we collect mappings from original target address to promoted target address.
-            ir.accept(new InstructionTransformVisitor(ipmo));
-
-            // Then do the real transformation work.
-            ir.accept(new InstructionTransformVisitor(iw));
+            decodedInsns.decode(encodedInstructions);
         } catch (EOFException e) {
             throw new DexException(e);
         }
 
-        return out.getArray();
-    }
-
-    private final class InstructionTransformVisitor extends InstructionVisitor {
-        InstructionTransformVisitor(InstructionVisitor iv) {
-            super(iv);
-        }
-
-        @Override
-        public void visitZeroRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal) {
-            int mappedIndex = transformIndexIfNeeded(index, indexType);
-            super.visitZeroRegisterInsn(currentAddress, opcode, mappedIndex, indexType, target, literal);
-        }
-
-        @Override
-        public void visitOneRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a) {
-            int mappedIndex = transformIndexIfNeeded(index, indexType);
-            super.visitOneRegisterInsn(currentAddress, opcode, mappedIndex, indexType, target, literal, a);
-        }
-
-        @Override
-        public void visitTwoRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a, int b) {
-            int mappedIndex = transformIndexIfNeeded(index, indexType);
-            super.visitTwoRegisterInsn(currentAddress, opcode, mappedIndex, indexType, target, literal, a, b);
-        }
-
-        @Override
-        public void visitThreeRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a, int b, int c) {
-            int mappedIndex = transformIndexIfNeeded(index, indexType);
-            super.visitThreeRegisterInsn(currentAddress, opcode, mappedIndex, indexType, target, literal, a, b, c);
+        for (int slot = 0; slot < decodedInsns.size(); ++slot) {
+            int index = decodedInsns.getIndex(slot);
+            int mappedIndex = transformIndexIfNeeded(index, decodedInsns.getIndexType(slot));
+            if (mappedIndex != index) {
+                decodedInsns.setIndex(slot, mappedIndex);
+            }
         }
 
-        @Override
-        public void visitFourRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a, int b, int c, int d) {
-            int mappedIndex = transformIndexIfNeeded(index, indexType);
-            super.visitFourRegisterInsn(currentAddress, opcode, mappedIndex, indexType, target, literal, a, b, c, d);
-        }
+        // First pass, we collect mappings from original target address to promoted target address.
+        ipmo.visitDecodedInstructions(decodedInsns);
 
-        @Override
-        public void visitFiveRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a, int b, int c, int d, int e) {
-            int mappedIndex = transformIndexIfNeeded(index, indexType);
-            super.visitFiveRegisterInsn(currentAddress, opcode, mappedIndex, indexType, target, literal, a, b, c, d, e);
-        }
+        // Then do the real transformation work.
+        decodedInsns.accept(iw);
 
-        @Override
-        public void visitRegisterRangeInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a, int registerCount) {
-            int mappedIndex = transformIndexIfNeeded(index, indexType);
-            super.visitRegisterRangeInsn(currentAddress, opcode, mappedIndex, indexType, target, literal, a, registerCount);
-        }
+        return out.getArray();
+    }
 
-        private int transformIndexIfNeeded(int index, int indexType) {
-            switch (indexType) {
-                case InstructionCodec.INDEX_TYPE_STRING_REF: {
-                    return indexMap.adjustStringIndex(index);
-                }
-                case InstructionCodec.INDEX_TYPE_TYPE_REF: {
-                    return indexMap.adjustTypeIdIndex(index);
-                }
-                case InstructionCodec.INDEX_TYPE_FIELD_REF: {
-                    return indexMap.adjustFieldIdIndex(index);
-                }
-                case InstructionCodec.INDEX_TYPE_METHOD_REF: {
-                    return indexMap.adjustMethodIdIndex(index);
-                }
-                default: {
-                    return index;
-                }
+    private int transformIndexIfNeeded(int index, int indexType) {
+        switch (indexType) {
+            case InstructionCodec.INDEX_TYPE_STRING_REF: {
+                return indexMap.adjustStringIndex(index);
+            }
+            case InstructionCodec.INDEX_TYPE_TYPE_REF: {
+                return indexMap.adjustTypeIdIndex(index);
+            }
+            case InstructionCodec.INDEX_TYPE_FIELD_REF: {
+                return indexMap.adjustFieldIdIndex(index);
+            }
+            case InstructionCodec.INDEX_TYPE_METHOD_REF: {
+                return indexMap.adjustMethodIdIndex(index);
+            }
+            default: {
+                return index;
             }
         }
-
     }
 }
-
@@ -57,6 +57,55 @@ public class SparseIndexMap extends AbstractIndexMap {
     private final SparseBoolArray deletedDebugInfoItemOffsets = new SparseBoolArray();
     private final SparseBoolArray deletedCodeOffsets = new SparseBoolArray();
 
+    public static final int KIND_STRING_IDS = 1;
+    public static final int KIND_TYPE_IDS = 1 << 1;
+    public static final int KIND_PROTO_IDS = 1 << 2;
+    public static final int KIND_FIELD_IDS = 1 << 3;
+    public static final int KIND_METHOD_IDS = 1 << 4;
+    public static final int KIND_TYPE_LIST_OFFSETS = 1 << 5;
+    public static final int KIND_ANNOTATION_OFFSETS = 1 << 6;
+    public static final int KIND_ANNOTATION_SET_OFFSETS = 1 << 7;
+    public static final int KIND_ANNOTATION_SET_REF_LIST_OFFSETS = 1 << 8;
+    public static final int KIND_ANNOTATIONS_DIRECTORY_OFFSETS = 1 << 9;
+    public static final int KIND_STATIC_VALUES_OFFSETS = 1 << 10;
+    public static final int KIND_CLASS_DATA_OFFSETS = 1 << 11;
+    public static final int KIND_DEBUG_INFO_ITEM_OFFSETS = 1 << 12;
+    public static final int KIND_CODE_OFFSETS = 1 << 13;
+    public static final int ALL_KINDS = (1 << 14) - 1;
+
+    /**
+     * Returns true if this map neither maps nor deletes any index or offset, so that every
+     * adjust method returns what it is given.
+     */
+    public boolean isIdentity() {
+        return isIdentityFor(ALL_KINDS);
+    }
+
+    /**
+     * Returns true if this map neither maps nor deletes any index or offset of the
+     * given {@code KIND_*} kinds.
+     */
+    public boolean isIdentityFor(int kinds) {
+        return isEmpty(kinds, KIND_STRING_IDS, stringIdsMap, deletedStringIds)
+                && isEmpty(kinds, KIND_TYPE_IDS, typeIdsMap, deletedTypeIds)
+                && isEmpty(kinds, KIND_PROTO_IDS, protoIdsMap, deletedProtoIds)
+                && isEmpty(kinds, KIND_FIELD_IDS, fieldIdsMap, deletedFieldIds)
+                && isEmpty(kinds, KIND_METHOD_IDS, methodIdsMap, deletedMethodIds)
+                && isEmpty(kinds, KIND_TYPE_LIST_OFFSETS, typeListOffsetsMap, deletedTypeListOffsets)
+                && isEmpty(kinds, KIND_ANNOTATION_OFFSETS, annotationOffsetsMap, deletedAnnotationOffsets)
+                && isEmpty(kinds, KIND_ANNOTATION_SET_OFFSETS, annotationSetOffsetsMap, deletedAnnotationSetOffsets)
+                && isEmpty(kinds, KIND_ANNOTATION_SET_REF_LIST_OFFSETS, annotationSetRefListOffsetsMap, deletedAnnotationSetRefListOffsets)
+                && isEmpty(kinds, KIND_ANNOTATIONS_DIRECTORY_OFFSETS, annotationsDirectoryOffsetsMap, deletedAnnotationsDirectoryOffsets)
+                && isEmpty(kinds, KIND_STATIC_VALUES_OFFSETS, staticValuesOffsetsMap, deletedStaticValuesOffsets)
+                && isEmpty(kinds, KIND_CLASS_DATA_OFFSETS, classDataOffsetsMap, deletedClassDataOffsets)
+                && isEmpty(kinds, KIND_DEBUG_INFO_ITEM_OFFSETS, debugInfoItemOffsetsMap, deletedDebugInfoItemOffsets)
+                && isEmpty(kinds, KIND_CODE_OFFSETS, codeOffsetsMap, deletedCodeOffsets);
+    }
+
+    private static boolean isEmpty(int kinds, int kind, SparseIntArray map, SparseBoolArray deleted) {
+        return (kinds & kind) == 0 || (map.size() == 0 && deleted.size() == 0);
+    }
+
     public void mapStringIds(int oldIndex, int newIndex) {
         stringIdsMap.put(oldIndex, newIndex);
     }
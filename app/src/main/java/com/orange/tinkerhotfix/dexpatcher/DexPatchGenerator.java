@@ -16,6 +16,7 @@
 
 package com.orange.tinkerhotfix.dexpatcher;
 
+import com.orange.tinkerhotfix.common.AdaptiveIndexMap;
 import com.orange.tinkerhotfix.common.DexPatcherLogger;
 import com.orange.tinkerhotfix.common.SparseIndexMap;
 import com.orange.tinkerhotfix.dexpatcher.algorithms.diff.AnnotationSectionDiffAlgorithm;
@@ -34,6 +35,7 @@ import com.orange.tinkerhotfix.dexpatcher.algorithms.diff.StaticValueSectionDiff
 import com.orange.tinkerhotfix.dexpatcher.algorithms.diff.StringDataSectionDiffAlgorithm;
 import com.orange.tinkerhotfix.dexpatcher.algorithms.diff.TypeIdSectionDiffAlgorithm;
 import com.orange.tinkerhotfix.dexpatcher.algorithms.diff.TypeListSectionDiffAlgorithm;
+import com.orange.tinkerhotfix.dexpatcher.util.DiffTaskScheduler;
 import com.orange.tinkerhotfix.dexpatcher.util.PatternUtils;
 import com.orange.tinkerhotfix.party.Annotation;
 import com.orange.tinkerhotfix.party.AnnotationSet;
@@ -50,6 +52,7 @@ import com.orange.tinkerhotfix.party.MethodId;
 import com.orange.tinkerhotfix.party.ProtoId;
 import com.orange.tinkerhotfix.party.SizeOf;
 import com.orange.tinkerhotfix.party.StringData;
+import com.orange.tinkerhotfix.party.TableOfContents;
 import com.orange.tinkerhotfix.party.TypeList;
 import com.orange.tinkerhotfix.party.io.DexDataBuffer;
 import com.orange.tinkerhotfix.patch.util.IOHelper;
@@ -67,6 +70,7 @@ import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 import java.util.regex.Pattern;
 
 
@@ -95,6 +99,7 @@ public class DexPatchGenerator {
     private DexSectionDiffAlgorithm<EncodedValue> encodedArraySectionDiffAlg;
     private DexSectionDiffAlgorithm<AnnotationsDirectory> annotationsDirectorySectionDiffAlg;
     private Set<String> additionalRemovingClassPatternSet;
+    private ForkJoinPool sectionDiffPool = null;
     private int patchedHeaderOffset = 0;
     private int patchedStringIdsOffset = 0;
     private int patchedTypeIdsOffset = 0;
@@ -116,14 +121,14 @@ public class DexPatchGenerator {
     private int patchedDexSize = 0;
 
     public DexPatchGenerator(File oldDexFile, File newDexFile) throws IOException {
-        this(new Dex(oldDexFile), new Dex(newDexFile));
+        this(Dex.mapFrom(oldDexFile), Dex.mapFrom(newDexFile));
     }
 
     /**
      * Notice: you should close inputstream manually.
      */
     public DexPatchGenerator(File oldDexFile, InputStream newDexStream) throws IOException {
-        this(new Dex(oldDexFile), new Dex(newDexStream));
+        this(Dex.mapFrom(oldDexFile), new Dex(newDexStream));
     }
 
     /**
@@ -137,10 +142,12 @@ public class DexPatchGenerator {
         this.oldDex = oldDex;
         this.newDex = newDex;
 
-        SparseIndexMap oldToNewIndexMap = new SparseIndexMap();
-        SparseIndexMap oldToPatchedIndexMap = new SparseIndexMap();
-        SparseIndexMap newToPatchedIndexMap = new SparseIndexMap();
-        SparseIndexMap selfIndexMapForSkip = new SparseIndexMap();
+        TableOfContents oldToc = oldDex.getTableOfContents();
+        TableOfContents newToc = newDex.getTableOfContents();
+        SparseIndexMap oldToNewIndexMap = AdaptiveIndexMap.forIdsOf(oldToc);
+        SparseIndexMap oldToPatchedIndexMap = AdaptiveIndexMap.forIdsOf(oldToc);
+        SparseIndexMap newToPatchedIndexMap = AdaptiveIndexMap.forIdsOf(newToc);
+        SparseIndexMap selfIndexMapForSkip = AdaptiveIndexMap.forIdsOf(oldToc, newToc);
 
         additionalRemovingClassPatternSet = new HashSet<>();
 
@@ -273,6 +280,14 @@ public class DexPatchGenerator {
         this.logger.setLoggerImpl(logger);
     }
 
+    /**
+     * Set a pool to diff independent sections concurrently, or null to diff them one by one.
+     * Generated patch is the same either way.
+     */
+    public void setSectionDiffPool(ForkJoinPool pool) {
+        this.sectionDiffPool = pool;
+    }
+
     public void executeAndSaveTo(File file) throws IOException {
         OutputStream os = null;
         try {
@@ -341,158 +356,113 @@ public class DexPatchGenerator {
 
         this.patchedHeaderOffset = 0;
 
-        // The diff works on each sections obey such procedure:
-        //  1. Execute diff algorithms to calculate indices of items we need to add, del and replace.
-        //  2. Execute patch algorithm simulation to calculate indices and offsets mappings that is
-        //  necessary to next section's diff works.
-
-        // Immediately do the patch simulation so that we can know:
-        //  1. Indices and offsets mapping between old dex and patched dex.
-        //  2. Indices and offsets mapping between new dex and patched dex.
-        // These information will be used to do next diff works.
+        // Offsets of id sections and stringData section only depend on item counts
+        // in newDex, so we can work them out before any diff work is done.
         this.patchedStringIdsOffset = patchedHeaderOffset + patchedheaderSize;
         if (this.oldDex.getTableOfContents().stringIds.isElementFourByteAligned) {
             this.patchedStringIdsOffset
                     = SizeOf.roundToTimesOfFour(this.patchedStringIdsOffset);
         }
-        this.stringDataSectionDiffAlg.execute();
         this.patchedStringDataItemsOffset = patchedheaderSize + patchedIdSectionSize;
         if (this.oldDex.getTableOfContents().stringDatas.isElementFourByteAligned) {
             this.patchedStringDataItemsOffset
                     = SizeOf.roundToTimesOfFour(this.patchedStringDataItemsOffset);
         }
-        this.stringDataSectionDiffAlg.simulatePatchOperation(this.patchedStringDataItemsOffset);
-
-        this.typeIdSectionDiffAlg.execute();
         this.patchedTypeIdsOffset = this.patchedStringIdsOffset + patchedStringIdsSize;
         if (this.oldDex.getTableOfContents().typeIds.isElementFourByteAligned) {
             this.patchedTypeIdsOffset
                     = SizeOf.roundToTimesOfFour(this.patchedTypeIdsOffset);
         }
-        this.typeIdSectionDiffAlg.simulatePatchOperation(this.patchedTypeIdsOffset);
-
-        this.typeListSectionDiffAlg.execute();
-        this.patchedTypeListsOffset
-                = patchedheaderSize
-                + patchedIdSectionSize
-                + this.stringDataSectionDiffAlg.getPatchedSectionSize();
-        if (this.oldDex.getTableOfContents().typeLists.isElementFourByteAligned) {
-            this.patchedTypeListsOffset
-                    = SizeOf.roundToTimesOfFour(this.patchedTypeListsOffset);
-        }
-        this.typeListSectionDiffAlg.simulatePatchOperation(this.patchedTypeListsOffset);
-
-        this.protoIdSectionDiffAlg.execute();
         this.patchedProtoIdsOffset = this.patchedTypeIdsOffset + patchedTypeIdsSize;
         if (this.oldDex.getTableOfContents().protoIds.isElementFourByteAligned) {
             this.patchedProtoIdsOffset = SizeOf.roundToTimesOfFour(this.patchedProtoIdsOffset);
         }
-        this.protoIdSectionDiffAlg.simulatePatchOperation(this.patchedProtoIdsOffset);
-
-        this.fieldIdSectionDiffAlg.execute();
         this.patchedFieldIdsOffset = this.patchedProtoIdsOffset + patchedProtoIdsSize;
         if (this.oldDex.getTableOfContents().fieldIds.isElementFourByteAligned) {
             this.patchedFieldIdsOffset = SizeOf.roundToTimesOfFour(this.patchedFieldIdsOffset);
         }
-        this.fieldIdSectionDiffAlg.simulatePatchOperation(this.patchedFieldIdsOffset);
-
-        this.methodIdSectionDiffAlg.execute();
         this.patchedMethodIdsOffset = this.patchedFieldIdsOffset + patchedFieldIdsSize;
         if (this.oldDex.getTableOfContents().methodIds.isElementFourByteAligned) {
             this.patchedMethodIdsOffset = SizeOf.roundToTimesOfFour(this.patchedMethodIdsOffset);
         }
-        this.methodIdSectionDiffAlg.simulatePatchOperation(this.patchedMethodIdsOffset);
-
-        this.annotationSectionDiffAlg.execute();
-        this.patchedAnnotationItemsOffset
-                = this.patchedTypeListsOffset
-                + this.typeListSectionDiffAlg.getPatchedSectionSize();
-        if (this.oldDex.getTableOfContents().annotations.isElementFourByteAligned) {
-            this.patchedAnnotationItemsOffset
-                    = SizeOf.roundToTimesOfFour(this.patchedAnnotationItemsOffset);
-        }
-        this.annotationSectionDiffAlg.simulatePatchOperation(this.patchedAnnotationItemsOffset);
-
-        this.annotationSetSectionDiffAlg.execute();
-        this.patchedAnnotationSetItemsOffset
-                = this.patchedAnnotationItemsOffset
-                + this.annotationSectionDiffAlg.getPatchedSectionSize();
-        if (this.oldDex.getTableOfContents().annotationSets.isElementFourByteAligned) {
-            this.patchedAnnotationSetItemsOffset
-                    = SizeOf.roundToTimesOfFour(this.patchedAnnotationSetItemsOffset);
+        this.patchedClassDefsOffset = this.patchedMethodIdsOffset + patchedMethodIdsSize;
+        if (this.oldDex.getTableOfContents().classDefs.isElementFourByteAligned) {
+            this.patchedClassDefsOffset = SizeOf.roundToTimesOfFour(this.patchedClassDefsOffset);
         }
-        this.annotationSetSectionDiffAlg.simulatePatchOperation(
-                this.patchedAnnotationSetItemsOffset
-        );
 
-        this.annotationSetRefListSectionDiffAlg.execute();
-        this.patchedAnnotationSetRefListItemsOffset
-                = this.patchedAnnotationSetItemsOffset
-                + this.annotationSetSectionDiffAlg.getPatchedSectionSize();
-        if (this.oldDex.getTableOfContents().annotationSetRefLists.isElementFourByteAligned) {
-            this.patchedAnnotationSetRefListItemsOffset
-                    = SizeOf.roundToTimesOfFour(this.patchedAnnotationSetRefListItemsOffset);
-        }
-        this.annotationSetRefListSectionDiffAlg.simulatePatchOperation(
-                this.patchedAnnotationSetRefListItemsOffset
-        );
+        // The diff works on each sections obey such procedure:
+        //  1. Execute diff algorithms to calculate indices of items we need to add, del and replace.
+        //  2. Execute patch algorithm simulation to calculate indices and offsets mappings that is
+        //  necessary to next section's diff works.
 
-        this.annotationsDirectorySectionDiffAlg.execute();
-        this.patchedAnnotationsDirectoryItemsOffset
-                = this.patchedAnnotationSetRefListItemsOffset
-                + this.annotationSetRefListSectionDiffAlg.getPatchedSectionSize();
-        if (this.oldDex.getTableOfContents().annotationsDirectories.isElementFourByteAligned) {
-            this.patchedAnnotationsDirectoryItemsOffset
-                    = SizeOf.roundToTimesOfFour(this.patchedAnnotationsDirectoryItemsOffset);
-        }
-        this.annotationsDirectorySectionDiffAlg.simulatePatchOperation(
-                this.patchedAnnotationsDirectoryItemsOffset
-        );
+        // Immediately do the patch simulation so that we can know:
+        //  1. Indices and offsets mapping between old dex and patched dex.
+        //  2. Indices and offsets mapping between new dex and patched dex.
+        // These information will be used to do next diff works.
 
-        this.debugInfoSectionDiffAlg.execute();
-        this.patchedDebugInfoItemsOffset
-                = this.patchedAnnotationsDirectoryItemsOffset
-                + this.annotationsDirectorySectionDiffAlg.getPatchedSectionSize();
-        if (this.oldDex.getTableOfContents().debugInfos.isElementFourByteAligned) {
-            this.patchedDebugInfoItemsOffset
-                    = SizeOf.roundToTimesOfFour(this.patchedDebugInfoItemsOffset);
-        }
-        this.debugInfoSectionDiffAlg.simulatePatchOperation(this.patchedDebugInfoItemsOffset);
-
-        this.codeSectionDiffAlg.execute();
-        this.patchedCodeItemsOffset
-                = this.patchedDebugInfoItemsOffset
-                + this.debugInfoSectionDiffAlg.getPatchedSectionSize();
-        if (this.oldDex.getTableOfContents().codes.isElementFourByteAligned) {
-            this.patchedCodeItemsOffset = SizeOf.roundToTimesOfFour(this.patchedCodeItemsOffset);
-        }
-        this.codeSectionDiffAlg.simulatePatchOperation(this.patchedCodeItemsOffset);
-
-        this.classDataSectionDiffAlg.execute();
-        this.patchedClassDataItemsOffset
-                = this.patchedCodeItemsOffset
-                + this.codeSectionDiffAlg.getPatchedSectionSize();
-        if (this.oldDex.getTableOfContents().classDatas.isElementFourByteAligned) {
-            this.patchedClassDataItemsOffset
-                    = SizeOf.roundToTimesOfFour(this.patchedClassDataItemsOffset);
-        }
-        this.classDataSectionDiffAlg.simulatePatchOperation(this.patchedClassDataItemsOffset);
-
-        this.encodedArraySectionDiffAlg.execute();
-        this.patchedEncodedArrayItemsOffset
-                = this.patchedClassDataItemsOffset
-                + this.classDataSectionDiffAlg.getPatchedSectionSize();
-        if (this.oldDex.getTableOfContents().encodedArrays.isElementFourByteAligned) {
-            this.patchedEncodedArrayItemsOffset
-                    = SizeOf.roundToTimesOfFour(this.patchedEncodedArrayItemsOffset);
+        // So a section's diff work depends on simulations of sections its items refer to,
+        // and a data section's simulation depends on the simulation of data section laid
+        // before it, which decides its base offset. Tasks below are added in the same order
+        // as the serial procedure, sections without dependencies between each other can be
+        // diffed at the same time when a pool is set.
+        DiffTaskScheduler scheduler = new DiffTaskScheduler();
+        TableOfContents oldToc = this.oldDex.getTableOfContents();
+
+        SectionDiffTasks stringData = addIdSectionTasks(scheduler, "stringData",
+                this.stringDataSectionDiffAlg, this.patchedStringDataItemsOffset);
+        SectionDiffTasks typeIds = addIdSectionTasks(scheduler, "typeIds",
+                this.typeIdSectionDiffAlg, this.patchedTypeIdsOffset, stringData);
+        SectionDiffTasks typeLists = addDataSectionTasks(scheduler, "typeLists",
+                this.typeListSectionDiffAlg, oldToc.typeLists, stringData, typeIds);
+        SectionDiffTasks protoIds = addIdSectionTasks(scheduler, "protoIds",
+                this.protoIdSectionDiffAlg, this.patchedProtoIdsOffset, stringData, typeIds, typeLists);
+        SectionDiffTasks fieldIds = addIdSectionTasks(scheduler, "fieldIds",
+                this.fieldIdSectionDiffAlg, this.patchedFieldIdsOffset, stringData, typeIds);
+        SectionDiffTasks methodIds = addIdSectionTasks(scheduler, "methodIds",
+                this.methodIdSectionDiffAlg, this.patchedMethodIdsOffset, stringData, typeIds, protoIds);
+        SectionDiffTasks annotations = addDataSectionTasks(scheduler, "annotations",
+                this.annotationSectionDiffAlg, oldToc.annotations, typeLists,
+                stringData, typeIds, fieldIds, methodIds);
+        SectionDiffTasks annotationSets = addDataSectionTasks(scheduler, "annotationSets",
+                this.annotationSetSectionDiffAlg, oldToc.annotationSets, annotations, annotations);
+        SectionDiffTasks annotationSetRefLists = addDataSectionTasks(scheduler, "annotationSetRefLists",
+                this.annotationSetRefListSectionDiffAlg, oldToc.annotationSetRefLists, annotationSets,
+                annotationSets);
+        SectionDiffTasks annotationsDirectories = addDataSectionTasks(scheduler, "annotationsDirectories",
+                this.annotationsDirectorySectionDiffAlg, oldToc.annotationsDirectories, annotationSetRefLists,
+                annotationSets, annotationSetRefLists, fieldIds, methodIds);
+        SectionDiffTasks debugInfos = addDataSectionTasks(scheduler, "debugInfos",
+                this.debugInfoSectionDiffAlg, oldToc.debugInfos, annotationsDirectories,
+                stringData, typeIds);
+        SectionDiffTasks codes = addDataSectionTasks(scheduler, "codes",
+                this.codeSectionDiffAlg, oldToc.codes, debugInfos,
+                stringData, typeIds, protoIds, fieldIds, methodIds, debugInfos);
+        SectionDiffTasks classDatas = addDataSectionTasks(scheduler, "classDatas",
+                this.classDataSectionDiffAlg, oldToc.classDatas, codes,
+                fieldIds, methodIds, codes);
+        SectionDiffTasks encodedArrays = addDataSectionTasks(scheduler, "encodedArrays",
+                this.encodedArraySectionDiffAlg, oldToc.encodedArrays, classDatas,
+                stringData, typeIds, protoIds, fieldIds, methodIds);
+        // Nothing depends on classDefs, so it is never simulated.
+        scheduler.addTask(createExecuteTask(this.classDefSectionDiffAlg, "classDefs"))
+                .dependsOn(simulateTasksOf(stringData, typeIds, typeLists,
+                        annotationsDirectories, classDatas, encodedArrays));
+
+        if (this.sectionDiffPool != null) {
+            scheduler.execute(this.sectionDiffPool);
+        } else {
+            scheduler.executeSerially();
         }
-        this.encodedArraySectionDiffAlg.simulatePatchOperation(this.patchedEncodedArrayItemsOffset);
 
-        this.classDefSectionDiffAlg.execute();
-        this.patchedClassDefsOffset = this.patchedMethodIdsOffset + patchedMethodIdsSize;
-        if (this.oldDex.getTableOfContents().classDefs.isElementFourByteAligned) {
-            this.patchedClassDefsOffset = SizeOf.roundToTimesOfFour(this.patchedClassDefsOffset);
-        }
+        this.patchedTypeListsOffset = typeLists.patchedOffset;
+        this.patchedAnnotationItemsOffset = annotations.patchedOffset;
+        this.patchedAnnotationSetItemsOffset = annotationSets.patchedOffset;
+        this.patchedAnnotationSetRefListItemsOffset = annotationSetRefLists.patchedOffset;
+        this.patchedAnnotationsDirectoryItemsOffset = annotationsDirectories.patchedOffset;
+        this.patchedDebugInfoItemsOffset = debugInfos.patchedOffset;
+        this.patchedCodeItemsOffset = codes.patchedOffset;
+        this.patchedClassDataItemsOffset = classDatas.patchedOffset;
+        this.patchedEncodedArrayItemsOffset = encodedArrays.patchedOffset;
 
         // Calculate any values we still know nothing about them.
         this.patchedMapListOffset
@@ -511,6 +481,89 @@ public class DexPatchGenerator {
         writeResultToStream(out);
     }
 
+    /**
+     * Execute and simulate tasks of one section, and the offset its simulation works out.
+     */
+    private static final class SectionDiffTasks {
+        final DexSectionDiffAlgorithm<?> diffAlg;
+        DiffTaskScheduler.Task simulateTask;
+        int patchedOffset;
+
+        SectionDiffTasks(DexSectionDiffAlgorithm<?> diffAlg, int patchedOffset) {
+            this.diffAlg = diffAlg;
+            this.patchedOffset = patchedOffset;
+        }
+    }
+
+    /**
+     * Adds tasks of a section whose patched offset is already known.
+     */
+    private static SectionDiffTasks addIdSectionTasks(
+            DiffTaskScheduler scheduler, String sectionName,
+            DexSectionDiffAlgorithm<?> diffAlg, int patchedOffset, SectionDiffTasks... referredSections
+    ) {
+        final SectionDiffTasks section = new SectionDiffTasks(diffAlg, patchedOffset);
+        DiffTaskScheduler.Task executeTask = scheduler.addTask(createExecuteTask(diffAlg, sectionName))
+                .dependsOn(simulateTasksOf(referredSections));
+        section.simulateTask = scheduler.addTask(
+                new DiffTaskScheduler.Task(sectionName + ".simulate") {
+                    @Override
+                    protected void run() {
+                        section.diffAlg.simulatePatchOperation(section.patchedOffset);
+                    }
+                }
+        ).dependsOn(executeTask);
+        return section;
+    }
+
+    /**
+     * Adds tasks of a data section, which is laid right after {@code previousSection}
+     * in patched dex, so its simulation also waits for the one of {@code previousSection}.
+     */
+    private static SectionDiffTasks addDataSectionTasks(
+            DiffTaskScheduler scheduler, String sectionName, DexSectionDiffAlgorithm<?> diffAlg,
+            final TableOfContents.Section oldTocSection, final SectionDiffTasks previousSection,
+            SectionDiffTasks... referredSections
+    ) {
+        final SectionDiffTasks section = new SectionDiffTasks(diffAlg, 0);
+        DiffTaskScheduler.Task executeTask = scheduler.addTask(createExecuteTask(diffAlg, sectionName))
+                .dependsOn(simulateTasksOf(referredSections));
+        section.simulateTask = scheduler.addTask(
+                new DiffTaskScheduler.Task(sectionName + ".simulate") {
+                    @Override
+                    protected void run() {
+                        section.patchedOffset
+                                = previousSection.patchedOffset
+                                + previousSection.diffAlg.getPatchedSectionSize();
+                        if (oldTocSection.isElementFourByteAligned) {
+                            section.patchedOffset = SizeOf.roundToTimesOfFour(section.patchedOffset);
+                        }
+                        section.diffAlg.simulatePatchOperation(section.patchedOffset);
+                    }
+                }
+        ).dependsOn(executeTask, previousSection.simulateTask);
+        return section;
+    }
+
+    private static DiffTaskScheduler.Task[] simulateTasksOf(SectionDiffTasks... sections) {
+        DiffTaskScheduler.Task[] result = new DiffTaskScheduler.Task[sections.length];
+        for (int i = 0; i < sections.length; ++i) {
+            result[i] = sections[i].simulateTask;
+        }
+        return result;
+    }
+
+    private static DiffTaskScheduler.Task createExecuteTask(
+            final DexSectionDiffAlgorithm<?> diffAlg, String sectionName
+    ) {
+        return new DiffTaskScheduler.Task(sectionName + ".execute") {
+            @Override
+            protected void run() {
+                diffAlg.execute();
+            }
+        };
+    }
+
     private void writeResultToStream(OutputStream os) throws IOException {
         DexDataBuffer buffer = new DexDataBuffer();
         buffer.write(DexPatchFile.MAGIC);
@@ -37,6 +37,12 @@ public class AnnotationSectionDiffAlgorithm extends DexSectionDiffAlgorithm<Anno
         return dex.getTableOfContents().annotations;
     }
 
+    @Override
+    protected int getReferencedIndexKinds() {
+        return SparseIndexMap.KIND_STRING_IDS | SparseIndexMap.KIND_TYPE_IDS
+                | SparseIndexMap.KIND_FIELD_IDS | SparseIndexMap.KIND_METHOD_IDS;
+    }
+
     @Override
     protected Annotation nextItem(DexDataBuffer section) {
         return section.readAnnotation();
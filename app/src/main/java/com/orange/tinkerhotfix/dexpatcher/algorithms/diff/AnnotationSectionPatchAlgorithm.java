@@ -29,21 +29,13 @@ import com.orange.tinkerhotfix.struct.DexPatchFile;
  * Created by tangyinsheng on 2016/7/4.
  */
 public class AnnotationSectionPatchAlgorithm extends DexSectionPatchAlgorithm<Annotation> {
-    private TableOfContents.Section patchedAnnotationTocSec = null;
-    private Dex.Section patchedAnnotationSec = null;
-
     public AnnotationSectionPatchAlgorithm(
             DexPatchFile patchFile,
             Dex oldDex,
             Dex patchedDex,
             SparseIndexMap oldToPatchedIndexMap
     ) {
-        super(patchFile, oldDex, oldToPatchedIndexMap);
-
-        if (patchedDex != null) {
-            this.patchedAnnotationTocSec = patchedDex.getTableOfContents().annotations;
-            this.patchedAnnotationSec = patchedDex.openSection(this.patchedAnnotationTocSec);
-        }
+        super(patchFile, oldDex, patchedDex, patchedDex.getTableOfContents().annotations, oldToPatchedIndexMap);
     }
 
     @Override
@@ -68,8 +60,8 @@ public class AnnotationSectionPatchAlgorithm extends DexSectionPatchAlgorithm<An
 
     @Override
     protected int writePatchedItem(Annotation patchedItem) {
-        ++this.patchedAnnotationTocSec.size;
-        return this.patchedAnnotationSec.writeAnnotation(patchedItem);
+        ++this.patchedTocSec.size;
+        return this.patchedSection.writeAnnotation(patchedItem);
     }
 
     @Override
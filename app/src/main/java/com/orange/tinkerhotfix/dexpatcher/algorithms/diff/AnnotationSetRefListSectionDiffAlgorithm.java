@@ -37,6 +37,11 @@ public class AnnotationSetRefListSectionDiffAlgorithm extends DexSectionDiffAlgo
         return dex.getTableOfContents().annotationSetRefLists;
     }
 
+    @Override
+    protected int getReferencedIndexKinds() {
+        return SparseIndexMap.KIND_ANNOTATION_SET_OFFSETS;
+    }
+
     @Override
     protected AnnotationSetRefList nextItem(DexDataBuffer section) {
         return section.readAnnotationSetRefList();
@@ -28,23 +28,13 @@ import com.orange.tinkerhotfix.struct.DexPatchFile;
  * Created by tangyinsheng on 2016/7/4.
  */
 public class AnnotationSetRefListSectionPatchAlgorithm extends DexSectionPatchAlgorithm<AnnotationSetRefList> {
-    private TableOfContents.Section patchedAnnotationSetRefListTocSec = null;
-    private Dex.Section patchedAnnotationSetRefListSec = null;
-
     public AnnotationSetRefListSectionPatchAlgorithm(
             DexPatchFile patchFile,
             Dex oldDex,
             Dex patchedDex,
             SparseIndexMap oldToPatchedIndexMap
     ) {
-        super(patchFile, oldDex, oldToPatchedIndexMap);
-
-        if (patchedDex != null) {
-            this.patchedAnnotationSetRefListTocSec
-                    = patchedDex.getTableOfContents().annotationSetRefLists;
-            this.patchedAnnotationSetRefListSec
-                    = patchedDex.openSection(this.patchedAnnotationSetRefListTocSec);
-        }
+        super(patchFile, oldDex, patchedDex, patchedDex.getTableOfContents().annotationSetRefLists, oldToPatchedIndexMap);
     }
 
     @Override
@@ -69,8 +59,8 @@ public class AnnotationSetRefListSectionPatchAlgorithm extends DexSectionPatchAl
 
     @Override
     protected int writePatchedItem(AnnotationSetRefList patchedItem) {
-        ++this.patchedAnnotationSetRefListTocSec.size;
-        return this.patchedAnnotationSetRefListSec.writeAnnotationSetRefList(patchedItem);
+        ++this.patchedTocSec.size;
+        return this.patchedSection.writeAnnotationSetRefList(patchedItem);
     }
 
     @Override
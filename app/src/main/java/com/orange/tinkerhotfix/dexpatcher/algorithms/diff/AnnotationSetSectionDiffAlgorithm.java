@@ -37,6 +37,11 @@ public class AnnotationSetSectionDiffAlgorithm extends DexSectionDiffAlgorithm<A
         return dex.getTableOfContents().annotationSets;
     }
 
+    @Override
+    protected int getReferencedIndexKinds() {
+        return SparseIndexMap.KIND_ANNOTATION_OFFSETS;
+    }
+
     @Override
     protected AnnotationSet nextItem(DexDataBuffer section) {
         return section.readAnnotationSet();
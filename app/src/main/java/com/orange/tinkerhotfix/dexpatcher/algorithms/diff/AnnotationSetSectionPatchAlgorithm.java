@@ -29,20 +29,13 @@ import com.orange.tinkerhotfix.struct.DexPatchFile;
  * Created by tangyinsheng on 2016/7/4.
  */
 public class AnnotationSetSectionPatchAlgorithm extends DexSectionPatchAlgorithm<AnnotationSet> {
-    private TableOfContents.Section patchedAnnotationSetTocSec = null;
-    private Dex.Section patchedAnnotationSetSec = null;
-
     public AnnotationSetSectionPatchAlgorithm(
             DexPatchFile patchFile,
             Dex oldDex,
             Dex patchedDex,
             SparseIndexMap oldToPatchedIndexMap
     ) {
-        super(patchFile, oldDex, oldToPatchedIndexMap);
-        if (patchedDex != null) {
-            this.patchedAnnotationSetTocSec = patchedDex.getTableOfContents().annotationSets;
-            this.patchedAnnotationSetSec = patchedDex.openSection(this.patchedAnnotationSetTocSec);
-        }
+        super(patchFile, oldDex, patchedDex, patchedDex.getTableOfContents().annotationSets, oldToPatchedIndexMap);
     }
 
     @Override
@@ -67,8 +60,8 @@ public class AnnotationSetSectionPatchAlgorithm extends DexSectionPatchAlgorithm
 
     @Override
     protected int writePatchedItem(AnnotationSet patchedItem) {
-        ++this.patchedAnnotationSetTocSec.size;
-        return this.patchedAnnotationSetSec.writeAnnotationSet(patchedItem);
+        ++this.patchedTocSec.size;
+        return this.patchedSection.writeAnnotationSet(patchedItem);
     }
 
     @Override
@@ -37,6 +37,12 @@ public class AnnotationsDirectorySectionDiffAlgorithm extends DexSectionDiffAlgo
         return dex.getTableOfContents().annotationsDirectories;
     }
 
+    @Override
+    protected int getReferencedIndexKinds() {
+        return SparseIndexMap.KIND_ANNOTATION_SET_OFFSETS | SparseIndexMap.KIND_ANNOTATION_SET_REF_LIST_OFFSETS
+                | SparseIndexMap.KIND_FIELD_IDS | SparseIndexMap.KIND_METHOD_IDS;
+    }
+
     @Override
     protected AnnotationsDirectory nextItem(DexDataBuffer section) {
         return section.readAnnotationsDirectory();
@@ -29,21 +29,13 @@ import com.orange.tinkerhotfix.struct.DexPatchFile;
  * Created by tangyinsheng on 2016/7/4.
  */
 public class AnnotationsDirectorySectionPatchAlgorithm extends DexSectionPatchAlgorithm<AnnotationsDirectory> {
-    private TableOfContents.Section patchedAnnotationsDirectoryTocSec = null;
-    private Dex.Section patchedAnnotationsDirectorySec = null;
-
     public AnnotationsDirectorySectionPatchAlgorithm(
             DexPatchFile patchFile,
             Dex oldDex,
             Dex patchedDex,
             SparseIndexMap oldToPatchedIndexMap
     ) {
-        super(patchFile, oldDex, oldToPatchedIndexMap);
-
-        if (patchedDex != null) {
-            this.patchedAnnotationsDirectoryTocSec = patchedDex.getTableOfContents().annotationsDirectories;
-            this.patchedAnnotationsDirectorySec = patchedDex.openSection(this.patchedAnnotationsDirectoryTocSec);
-        }
+        super(patchFile, oldDex, patchedDex, patchedDex.getTableOfContents().annotationsDirectories, oldToPatchedIndexMap);
     }
 
     @Override
@@ -68,8 +60,8 @@ public class AnnotationsDirectorySectionPatchAlgorithm extends DexSectionPatchAl
 
     @Override
     protected int writePatchedItem(AnnotationsDirectory patchedItem) {
-        ++this.patchedAnnotationsDirectoryTocSec.size;
-        return this.patchedAnnotationsDirectorySec.writeAnnotationsDirectory(patchedItem);
+        ++this.patchedTocSec.size;
+        return this.patchedSection.writeAnnotationsDirectory(patchedItem);
     }
 
     @Override
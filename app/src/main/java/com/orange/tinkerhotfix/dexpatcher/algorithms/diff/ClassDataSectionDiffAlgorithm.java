@@ -53,6 +53,11 @@ public class ClassDataSectionDiffAlgorithm extends DexSectionDiffAlgorithm<Class
         return dex.getTableOfContents().classDatas;
     }
 
+    @Override
+    protected int getReferencedIndexKinds() {
+        return SparseIndexMap.KIND_FIELD_IDS | SparseIndexMap.KIND_METHOD_IDS | SparseIndexMap.KIND_CODE_OFFSETS;
+    }
+
     @Override
     protected ClassData nextItem(DexDataBuffer section) {
         return section.readClassData();
@@ -68,6 +73,16 @@ public class ClassDataSectionDiffAlgorithm extends DexSectionDiffAlgorithm<Class
         return indexMap.adjust(item);
     }
 
+    @Override
+    protected boolean hasItemFingerprint() {
+        return true;
+    }
+
+    @Override
+    protected long getItemFingerprint(ClassData item) {
+        return item.fingerprint();
+    }
+
     @Override
     public int getPatchedSectionSize() {
         // assume each uleb128 field's length may be inflate by 2 bytes.
@@ -79,6 +94,11 @@ public class ClassDataSectionDiffAlgorithm extends DexSectionDiffAlgorithm<Class
         return this.offsetOfClassDataToRemoveSet.contains(newItem.off);
     }
 
+    @Override
+    protected boolean hasItemsToSkipInNewDex() {
+        return !this.offsetOfClassDataToRemoveSet.isEmpty();
+    }
+
     @Override
     protected void updateIndexOrOffset(SparseIndexMap sparseIndexMap, int oldIndex, int oldOffset, int newIndex, int newOffset) {
         if (oldOffset != newOffset) {
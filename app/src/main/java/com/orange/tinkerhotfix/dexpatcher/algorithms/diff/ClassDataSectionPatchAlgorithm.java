@@ -29,21 +29,13 @@ import com.orange.tinkerhotfix.struct.DexPatchFile;
  * Created by tangyinsheng on 2016/7/4.
  */
 public class ClassDataSectionPatchAlgorithm extends DexSectionPatchAlgorithm<ClassData> {
-    private TableOfContents.Section patchedClassDataTocSec = null;
-    private Dex.Section patchedClassDataSec = null;
-
     public ClassDataSectionPatchAlgorithm(
             DexPatchFile patchFile,
             Dex oldDex,
             Dex patchedDex,
             SparseIndexMap oldToPatchedIndexMap
     ) {
-        super(patchFile, oldDex, oldToPatchedIndexMap);
-
-        if (patchedDex != null) {
-            this.patchedClassDataTocSec = patchedDex.getTableOfContents().classDatas;
-            this.patchedClassDataSec = patchedDex.openSection(this.patchedClassDataTocSec);
-        }
+        super(patchFile, oldDex, patchedDex, patchedDex.getTableOfContents().classDatas, oldToPatchedIndexMap);
     }
 
     @Override
@@ -68,8 +60,8 @@ public class ClassDataSectionPatchAlgorithm extends DexSectionPatchAlgorithm<Cla
 
     @Override
     protected int writePatchedItem(ClassData patchedItem) {
-        ++this.patchedClassDataTocSec.size;
-        return this.patchedClassDataSec.writeClassData(patchedItem);
+        ++this.patchedTocSec.size;
+        return this.patchedSection.writeClassData(patchedItem);
     }
 
     @Override
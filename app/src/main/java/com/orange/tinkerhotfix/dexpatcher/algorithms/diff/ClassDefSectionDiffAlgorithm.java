@@ -53,6 +53,13 @@ public class ClassDefSectionDiffAlgorithm extends DexSectionDiffAlgorithm<ClassD
         return dex.getTableOfContents().classDefs;
     }
 
+    @Override
+    protected int getReferencedIndexKinds() {
+        return SparseIndexMap.KIND_STRING_IDS | SparseIndexMap.KIND_TYPE_IDS | SparseIndexMap.KIND_TYPE_LIST_OFFSETS
+                | SparseIndexMap.KIND_ANNOTATIONS_DIRECTORY_OFFSETS | SparseIndexMap.KIND_CLASS_DATA_OFFSETS
+                | SparseIndexMap.KIND_STATIC_VALUES_OFFSETS;
+    }
+
     @Override
     protected ClassDef nextItem(DexDataBuffer section) {
         return section.readClassDef();
@@ -63,6 +70,11 @@ public class ClassDefSectionDiffAlgorithm extends DexSectionDiffAlgorithm<ClassD
         return this.typeIdOfClassDefToRemoveSet.contains(newItem.typeIndex);
     }
 
+    @Override
+    protected boolean hasItemsToSkipInNewDex() {
+        return !this.typeIdOfClassDefToRemoveSet.isEmpty();
+    }
+
     @Override
     protected int getItemSize(ClassDef item) {
         return SizeOf.CLASS_DEF_ITEM;
@@ -29,21 +29,13 @@ import com.orange.tinkerhotfix.struct.DexPatchFile;
  * Created by tangyinsheng on 2016/7/4.
  */
 public class ClassDefSectionPatchAlgorithm extends DexSectionPatchAlgorithm<ClassDef> {
-    private TableOfContents.Section patchedClassDefTocSec = null;
-    private Dex.Section patchedClassDefSec = null;
-
     public ClassDefSectionPatchAlgorithm(
             DexPatchFile patchFile,
             Dex oldDex,
             Dex patchedDex,
             SparseIndexMap oldToPatchedIndexMap
     ) {
-        super(patchFile, oldDex, oldToPatchedIndexMap);
-
-        if (patchedDex != null) {
-            this.patchedClassDefTocSec = patchedDex.getTableOfContents().classDefs;
-            this.patchedClassDefSec = patchedDex.openSection(this.patchedClassDefTocSec);
-        }
+        super(patchFile, oldDex, patchedDex, patchedDex.getTableOfContents().classDefs, oldToPatchedIndexMap);
     }
 
     @Override
@@ -69,7 +61,7 @@ public class ClassDefSectionPatchAlgorithm extends DexSectionPatchAlgorithm<Clas
 
     @Override
     protected int writePatchedItem(ClassDef patchedItem) {
-        ++this.patchedClassDefTocSec.size;
-        return this.patchedClassDefSec.writeClassDef(patchedItem);
+        ++this.patchedTocSec.size;
+        return this.patchedSection.writeClassDef(patchedItem);
     }
 }
@@ -37,6 +37,12 @@ public class CodeSectionDiffAlgorithm extends DexSectionDiffAlgorithm<Code> {
         return dex.getTableOfContents().codes;
     }
 
+    @Override
+    protected int getReferencedIndexKinds() {
+        return SparseIndexMap.KIND_STRING_IDS | SparseIndexMap.KIND_TYPE_IDS | SparseIndexMap.KIND_FIELD_IDS
+                | SparseIndexMap.KIND_METHOD_IDS | SparseIndexMap.KIND_DEBUG_INFO_ITEM_OFFSETS;
+    }
+
     @Override
     protected Code nextItem(DexDataBuffer section) {
         return section.readCode();
@@ -52,6 +58,16 @@ public class CodeSectionDiffAlgorithm extends DexSectionDiffAlgorithm<Code> {
         return indexMap.adjust(item);
     }
 
+    @Override
+    protected boolean hasItemFingerprint() {
+        return true;
+    }
+
+    @Override
+    protected long getItemFingerprint(Code item) {
+        return item.fingerprint();
+    }
+
     @Override
     protected void updateIndexOrOffset(SparseIndexMap sparseIndexMap, int oldIndex, int oldOffset, int newIndex, int newOffset) {
         if (oldOffset != newOffset) {
@@ -29,21 +29,13 @@ import com.orange.tinkerhotfix.struct.DexPatchFile;
  * Created by tangyinsheng on 2016/7/4.
  */
 public class CodeSectionPatchAlgorithm extends DexSectionPatchAlgorithm<Code> {
-    private TableOfContents.Section patchedCodeTocSec = null;
-    private Dex.Section patchedCodeSec = null;
-
     public CodeSectionPatchAlgorithm(
             DexPatchFile patchFile,
             Dex oldDex,
             Dex patchedDex,
             SparseIndexMap oldToPatchedIndexMap
     ) {
-        super(patchFile, oldDex, oldToPatchedIndexMap);
-
-        if (patchedDex != null) {
-            this.patchedCodeTocSec = patchedDex.getTableOfContents().codes;
-            this.patchedCodeSec = patchedDex.openSection(this.patchedCodeTocSec);
-        }
+        super(patchFile, oldDex, patchedDex, patchedDex.getTableOfContents().codes, oldToPatchedIndexMap);
     }
 
     @Override
@@ -68,8 +60,8 @@ public class CodeSectionPatchAlgorithm extends DexSectionPatchAlgorithm<Code> {
 
     @Override
     protected int writePatchedItem(Code patchedItem) {
-        ++this.patchedCodeTocSec.size;
-        return this.patchedCodeSec.writeCode(patchedItem);
+        ++this.patchedTocSec.size;
+        return this.patchedSection.writeCode(patchedItem);
     }
 
     @Override
@@ -37,6 +37,11 @@ public class DebugInfoItemSectionDiffAlgorithm extends DexSectionDiffAlgorithm<D
         return dex.getTableOfContents().debugInfos;
     }
 
+    @Override
+    protected int getReferencedIndexKinds() {
+        return SparseIndexMap.KIND_STRING_IDS | SparseIndexMap.KIND_TYPE_IDS;
+    }
+
     @Override
     protected DebugInfoItem nextItem(DexDataBuffer section) {
         return section.readDebugInfoItem();
@@ -52,6 +57,16 @@ public class DebugInfoItemSectionDiffAlgorithm extends DexSectionDiffAlgorithm<D
         return indexMap.adjust(item);
     }
 
+    @Override
+    protected boolean hasItemFingerprint() {
+        return true;
+    }
+
+    @Override
+    protected long getItemFingerprint(DebugInfoItem item) {
+        return item.fingerprint();
+    }
+
     @Override
     protected void updateIndexOrOffset(SparseIndexMap sparseIndexMap, int oldIndex, int oldOffset, int newIndex, int newOffset) {
         if (oldOffset != newOffset) {
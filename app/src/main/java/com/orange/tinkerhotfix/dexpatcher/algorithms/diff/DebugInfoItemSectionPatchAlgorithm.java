@@ -28,21 +28,13 @@ import com.orange.tinkerhotfix.struct.DexPatchFile;
  * Created by tangyinsheng on 2016/7/4.
  */
 public class DebugInfoItemSectionPatchAlgorithm extends DexSectionPatchAlgorithm<DebugInfoItem> {
-    private TableOfContents.Section patchedDebugInfoItemTocSec = null;
-    private Dex.Section patchedDebugInfoItemSec = null;
-
     public DebugInfoItemSectionPatchAlgorithm(
             DexPatchFile patchFile,
             Dex oldDex,
             Dex patchedDex,
             SparseIndexMap oldToPatchedIndexMap
     ) {
-        super(patchFile, oldDex, oldToPatchedIndexMap);
-
-        if (patchedDex != null) {
-            this.patchedDebugInfoItemTocSec = patchedDex.getTableOfContents().debugInfos;
-            this.patchedDebugInfoItemSec = patchedDex.openSection(this.patchedDebugInfoItemTocSec);
-        }
+        super(patchFile, oldDex, patchedDex, patchedDex.getTableOfContents().debugInfos, oldToPatchedIndexMap);
     }
 
     @Override
@@ -67,8 +59,8 @@ public class DebugInfoItemSectionPatchAlgorithm extends DexSectionPatchAlgorithm
 
     @Override
     protected int writePatchedItem(DebugInfoItem patchedItem) {
-        ++this.patchedDebugInfoItemTocSec.size;
-        return this.patchedDebugInfoItemSec.writeDebugInfoItem(patchedItem);
+        ++this.patchedTocSec.size;
+        return this.patchedSection.writeDebugInfoItem(patchedItem);
     }
 
     @Override
@@ -24,22 +24,22 @@ import com.orange.tinkerhotfix.party.TableOfContents;
 import com.orange.tinkerhotfix.party.io.DexDataBuffer;
 import com.orange.tinkerhotfix.party.util.CompareUtils;
 import com.orange.tinkerhotfix.struct.PatchOperation;
+import com.orange.tinkerhotfix.util.IntIntHashMap;
+import com.orange.tinkerhotfix.util.IntObjectHashMap;
 
-import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 
 /**
  * Created by tangyinsheng on 2016/6/29.
  */
 public abstract class DexSectionDiffAlgorithm<T extends Comparable<T>> {
-    private static final AbstractMap.SimpleEntry[] EMPTY_ENTRY_ARRAY = new AbstractMap.SimpleEntry[0];
+    private static final Comparable<?>[] EMPTY_ITEM_ARRAY = new Comparable<?>[0];
+    private static final int NEARLY_SORTED_DESCENT_RATIO = 16;
     protected final Dex oldDex;
     protected final Dex newDex;
     /**
@@ -62,18 +62,12 @@ public abstract class DexSectionDiffAlgorithm<T extends Comparable<T>> {
      */
     private final SparseIndexMap selfIndexMapForSkip;
     private final List<PatchOperation<T>> patchOperationList;
-    private final Map<Integer, PatchOperation<T>> indexToDelOperationMap = new HashMap<>();
-    private final Map<Integer, PatchOperation<T>> indexToAddOperationMap = new HashMap<>();
-    private final Map<Integer, PatchOperation<T>> indexToReplaceOperationMap = new HashMap<>();
-    private final Map<Integer, Integer> oldIndexToNewIndexMap = new HashMap<>();
-    private final Map<Integer, Integer> oldOffsetToNewOffsetMap = new HashMap<>();
+    private final IntObjectHashMap<PatchOperation<T>> indexToDelOperationMap = new IntObjectHashMap<>();
+    private final IntObjectHashMap<PatchOperation<T>> indexToAddOperationMap = new IntObjectHashMap<>();
+    private final IntObjectHashMap<PatchOperation<T>> indexToReplaceOperationMap = new IntObjectHashMap<>();
+    private final IntIntHashMap oldIndexToNewIndexMap = new IntIntHashMap();
+    private final IntIntHashMap oldOffsetToNewOffsetMap = new IntIntHashMap();
     private int patchedSectionSize;
-    private Comparator<AbstractMap.SimpleEntry<Integer, T>> comparatorForItemDiff = new Comparator<AbstractMap.SimpleEntry<Integer, T>>() {
-        @Override
-        public int compare(AbstractMap.SimpleEntry<Integer, T> o1, AbstractMap.SimpleEntry<Integer, T> o2) {
-            return o1.getValue().compareTo(o2.getValue());
-        }
-    };
     private Comparator<PatchOperation<T>> comparatorForPatchOperationOpt = new Comparator<PatchOperation<T>>() {
         @Override
         public int compare(PatchOperation<T> o1, PatchOperation<T> o2) {
@@ -111,9 +105,16 @@ public abstract class DexSectionDiffAlgorithm<T extends Comparable<T>> {
             return CompareUtils.sCompare(o1OrderId, o2OrderId);
         }
     };
-    private AbstractMap.SimpleEntry<Integer, T>[] adjustedOldIndexedItemsWithOrigOrder = null;
+    /**
+     * Adjusted items of old dex, item at position i is the one with index i in old dex.
+     */
+    private T[] adjustedOldItemsWithOrigOrder = null;
     private int oldItemCount = 0;
     private int newItemCount = 0;
+    /**
+     * True if this section is the same in old dex and new dex, see {@link #isSectionUnchanged()}.
+     */
+    private boolean isSectionUnchanged = false;
 
     public DexSectionDiffAlgorithm(
             Dex oldDex,
@@ -170,6 +171,35 @@ public abstract class DexSectionDiffAlgorithm<T extends Comparable<T>> {
         return false;
     }
 
+    /**
+     * Get the {@code SparseIndexMap.KIND_*} kinds of index and offset referenced by items of
+     * this section.
+     */
+    protected abstract int getReferencedIndexKinds();
+
+    /**
+     * Indicate if any item of this section may be skipped in new dex by {@link #shouldSkipInNewDex}.
+     */
+    protected boolean hasItemsToSkipInNewDex() {
+        return false;
+    }
+
+    /**
+     * Indicate if items of this section provide {@link #getItemFingerprint}. Sections whose
+     * {@code compareTo} walks whole arrays should return true.
+     */
+    protected boolean hasItemFingerprint() {
+        return false;
+    }
+
+    /**
+     * Get a 64-bit fingerprint of {@code item}. Items that are equal by {@code compareTo}
+     * must have the same fingerprint.
+     */
+    protected long getItemFingerprint(T item) {
+        return 0;
+    }
+
     /**
      * Update index or offset mapping in {@code sparseIndexMap}.
      */
@@ -208,20 +238,23 @@ public abstract class DexSectionDiffAlgorithm<T extends Comparable<T>> {
         }
     }
 
-    @SuppressWarnings("unchecked,NewApi")
-    private AbstractMap.SimpleEntry<Integer, T>[] collectSectionItems(Dex dex, boolean isOldDex) {
+    /**
+     * Collect adjusted items in section of {@code dex}. Since items are
+     * collected in order, position of an item in result array is its index.
+     */
+    private T[] collectSectionItems(Dex dex, boolean isOldDex) {
         TableOfContents.Section tocSec = getTocSection(dex);
         if (!tocSec.exists()) {
-            return EMPTY_ENTRY_ARRAY;
+            return newItemArray(0);
         }
         Dex.Section dexSec = dex.openSection(tocSec);
         int itemCount = tocSec.size;
-        List<AbstractMap.SimpleEntry<Integer, T>> result = new ArrayList<>(itemCount);
+        T[] result = newItemArray(itemCount);
+        int resultCount = 0;
         if (isOldDex) {
             for (int i = 0; i < itemCount; ++i) {
                 T nextItem = nextItem(dexSec);
-                T adjustedItem = adjustItem(oldToPatchedIndexMap, nextItem);
-                result.add(new AbstractMap.SimpleEntry<>(i, adjustedItem));
+                result[resultCount++] = adjustItem(oldToPatchedIndexMap, nextItem);
             }
         } else {
             int i = 0;
@@ -241,31 +274,145 @@ public abstract class DexSectionDiffAlgorithm<T extends Comparable<T>> {
                 }
                 if (nextItem != null) {
                     int offsetAfterSkip = getItemOffsetOrIndex(indexAfterSkip, nextItem);
-                    T adjustedItem = adjustItem(newToPatchedIndexMap, adjustItem(selfIndexMapForSkip, nextItem));
-                    int currentOutIndex = result.size();
-                    result.add(new AbstractMap.SimpleEntry<>(currentOutIndex, adjustedItem));
+                    result[resultCount++] = adjustItem(newToPatchedIndexMap, adjustItem(selfIndexMapForSkip, nextItem));
                     updateIndexOrOffset(selfIndexMapForSkip, indexBeforeSkip, offsetBeforeSkip, indexAfterSkip, offsetAfterSkip);
                 }
                 i = indexAfterSkip;
                 ++i;
             }
         }
-        return result.toArray(new AbstractMap.SimpleEntry[0]);
+        return (resultCount == itemCount ? result : Arrays.copyOf(result, resultCount));
+    }
+
+    @SuppressWarnings("unchecked")
+    private T[] newItemArray(int length) {
+        return (T[]) (length == 0 ? EMPTY_ITEM_ARRAY : new Comparable<?>[length]);
+    }
+
+    /**
+     * Returns fingerprints of {@code items}.
+     */
+    private long[] collectItemFingerprints(T[] items) {
+        long[] result = new long[items.length];
+        for (int i = 0; i < items.length; ++i) {
+            result[i] = getItemFingerprint(items[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Check if at most one in {@link #NEARLY_SORTED_DESCENT_RATIO} adjacent pairs of {@code items}
+     * is out of order. Sorting such items by {@code compareTo} is almost linear, so ordering them
+     * by fingerprint would only make it slower.
+     */
+    private boolean isNearlySorted(T[] items) {
+        int maxDescentCount = items.length / NEARLY_SORTED_DESCENT_RATIO;
+        int descentCount = 0;
+        for (int i = 1; i < items.length; ++i) {
+            if (items[i - 1].compareTo(items[i]) > 0 && ++descentCount > maxDescentCount) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compare item {@code indexA} of {@code itemsA} with item {@code indexB} of {@code itemsB}.
+     *
+     * If fingerprints are given, items are ordered by fingerprint first and {@code compareTo}
+     * only breaks ties. Equal items always share a fingerprint, so this is still a total order
+     * that keeps equal items together, which is all the diff below relies on.
+     */
+    private static <T extends Comparable<T>> int compareItems(
+            T[] itemsA, long[] fingerprintsA, int indexA, T[] itemsB, long[] fingerprintsB, int indexB
+    ) {
+        if (fingerprintsA != null) {
+            int res = CompareUtils.sCompare(fingerprintsA[indexA], fingerprintsB[indexB]);
+            if (res != 0) {
+                return res;
+            }
+        }
+        return itemsA[indexA].compareTo(itemsB[indexB]);
+    }
+
+    /**
+     * Returns indices of {@code items} sorted by {@link #compareItems}. Items that are equal keep
+     * their original order, so the result is the same as a stable sort on items.
+     *
+     * Indices are sorted with a bottom-up merge sort directly instead of sorting
+     * boxed (index, item) pairs.
+     */
+    private int[] sortIndicesByItem(T[] items, long[] fingerprints) {
+        int count = items.length;
+        int[] indices = new int[count];
+        for (int i = 0; i < count; ++i) {
+            indices[i] = i;
+        }
+        int[] buffer = null;
+        for (int width = 1; width < count; width <<= 1) {
+            for (int lo = 0; lo < count - width; lo += (width << 1)) {
+                int mid = lo + width;
+                int hi = Math.min(mid + width, count);
+                // Runs are already in order, which is common since items in dex are sorted.
+                if (compareItems(items, fingerprints, indices[mid - 1], items, fingerprints, indices[mid]) <= 0) {
+                    continue;
+                }
+                if (buffer == null) {
+                    buffer = new int[count];
+                }
+                System.arraycopy(indices, lo, buffer, lo, hi - lo);
+                int left = lo;
+                int right = mid;
+                int out = lo;
+                while (left < mid && right < hi) {
+                    if (compareItems(items, fingerprints, buffer[right], items, fingerprints, buffer[left]) < 0) {
+                        indices[out++] = buffer[right++];
+                    } else {
+                        indices[out++] = buffer[left++];
+                    }
+                }
+                while (left < mid) {
+                    indices[out++] = buffer[left++];
+                }
+                while (right < hi) {
+                    indices[out++] = buffer[right++];
+                }
+            }
+        }
+        return indices;
     }
 
     public void execute() {
         this.patchOperationList.clear();
+        this.indexToDelOperationMap.clear();
+        this.indexToAddOperationMap.clear();
+        this.indexToReplaceOperationMap.clear();
+        this.oldIndexToNewIndexMap.clear();
+        this.oldOffsetToNewOffsetMap.clear();
+
+        this.isSectionUnchanged = isSectionUnchanged();
+        if (this.isSectionUnchanged) {
+            // Every item is kept at the same index, nothing needs to be collected or compared.
+            this.adjustedOldItemsWithOrigOrder = null;
+            this.oldItemCount = getTocSection(this.oldDex).size;
+            this.newItemCount = this.oldItemCount;
+            return;
+        }
 
-        this.adjustedOldIndexedItemsWithOrigOrder = collectSectionItems(this.oldDex, true);
-        this.oldItemCount = this.adjustedOldIndexedItemsWithOrigOrder.length;
-
-        AbstractMap.SimpleEntry<Integer, T>[] adjustedOldIndexedItems = new AbstractMap.SimpleEntry[this.oldItemCount];
-        System.arraycopy(this.adjustedOldIndexedItemsWithOrigOrder, 0, adjustedOldIndexedItems, 0, this.oldItemCount);
-        Arrays.sort(adjustedOldIndexedItems, this.comparatorForItemDiff);
+        T[] adjustedOldItems = collectSectionItems(this.oldDex, true);
+        this.adjustedOldItemsWithOrigOrder = adjustedOldItems;
+        this.oldItemCount = adjustedOldItems.length;
+        // Fingerprints are used for both old and new items or for neither of them.
+        long[] oldFingerprints = null;
+        if (hasItemFingerprint() && !isNearlySorted(adjustedOldItems)) {
+            oldFingerprints = collectItemFingerprints(adjustedOldItems);
+        }
+        int[] sortedOldIndices = sortIndicesByItem(adjustedOldItems, oldFingerprints);
 
-        AbstractMap.SimpleEntry<Integer, T>[] adjustedNewIndexedItems = collectSectionItems(this.newDex, false);
-        this.newItemCount = adjustedNewIndexedItems.length;
-        Arrays.sort(adjustedNewIndexedItems, this.comparatorForItemDiff);
+        T[] adjustedNewItems = collectSectionItems(this.newDex, false);
+        this.newItemCount = adjustedNewItems.length;
+        long[] newFingerprints = (oldFingerprints != null ? collectItemFingerprints(adjustedNewItems) : null);
+        int[] sortedNewIndices = sortIndicesByItem(adjustedNewItems, newFingerprints);
 
         int oldCursor = 0;
         int newCursor = 0;
@@ -273,38 +420,38 @@ public abstract class DexSectionDiffAlgorithm<T extends Comparable<T>> {
             if (oldCursor >= this.oldItemCount) {
                 // rest item are all newItem.
                 while (newCursor < this.newItemCount) {
-                    AbstractMap.SimpleEntry<Integer, T> newIndexedItem = adjustedNewIndexedItems[newCursor++];
-                    this.patchOperationList.add(new PatchOperation<>(PatchOperation.OP_ADD, newIndexedItem.getKey(), newIndexedItem.getValue()));
+                    int newIndex = sortedNewIndices[newCursor++];
+                    this.patchOperationList.add(new PatchOperation<>(PatchOperation.OP_ADD, newIndex, adjustedNewItems[newIndex]));
                 }
             } else
             if (newCursor >= newItemCount) {
                 // rest item are all oldItem.
                 while (oldCursor < oldItemCount) {
-                    AbstractMap.SimpleEntry<Integer, T> oldIndexedItem = adjustedOldIndexedItems[oldCursor++];
-                    int deletedIndex = oldIndexedItem.getKey();
-                    int deletedOffset = getItemOffsetOrIndex(deletedIndex, oldIndexedItem.getValue());
+                    int deletedIndex = sortedOldIndices[oldCursor++];
+                    int deletedOffset = getItemOffsetOrIndex(deletedIndex, adjustedOldItems[deletedIndex]);
                     this.patchOperationList.add(new PatchOperation<T>(PatchOperation.OP_DEL, deletedIndex));
                     markDeletedIndexOrOffset(this.oldToPatchedIndexMap, deletedIndex, deletedOffset);
                 }
             } else {
-                AbstractMap.SimpleEntry<Integer, T> oldIndexedItem = adjustedOldIndexedItems[oldCursor];
-                AbstractMap.SimpleEntry<Integer, T> newIndexedItem = adjustedNewIndexedItems[newCursor];
-                int cmpRes = oldIndexedItem.getValue().compareTo(newIndexedItem.getValue());
+                int oldIndex = sortedOldIndices[oldCursor];
+                int newIndex = sortedNewIndices[newCursor];
+                T oldItem = adjustedOldItems[oldIndex];
+                T newItem = adjustedNewItems[newIndex];
+                int cmpRes = compareItems(
+                        adjustedOldItems, oldFingerprints, oldIndex, adjustedNewItems, newFingerprints, newIndex
+                );
                 if (cmpRes < 0) {
-                    int deletedIndex = oldIndexedItem.getKey();
-                    int deletedOffset = getItemOffsetOrIndex(deletedIndex, oldIndexedItem.getValue());
-                    this.patchOperationList.add(new PatchOperation<T>(PatchOperation.OP_DEL, deletedIndex));
-                    markDeletedIndexOrOffset(this.oldToPatchedIndexMap, deletedIndex, deletedOffset);
+                    int deletedOffset = getItemOffsetOrIndex(oldIndex, oldItem);
+                    this.patchOperationList.add(new PatchOperation<T>(PatchOperation.OP_DEL, oldIndex));
+                    markDeletedIndexOrOffset(this.oldToPatchedIndexMap, oldIndex, deletedOffset);
                     ++oldCursor;
                 } else
                 if (cmpRes > 0) {
-                    this.patchOperationList.add(new PatchOperation<>(PatchOperation.OP_ADD, newIndexedItem.getKey(), newIndexedItem.getValue()));
+                    this.patchOperationList.add(new PatchOperation<>(PatchOperation.OP_ADD, newIndex, newItem));
                     ++newCursor;
                 } else {
-                    int oldIndex = oldIndexedItem.getKey();
-                    int newIndex = newIndexedItem.getKey();
-                    int oldOffset = getItemOffsetOrIndex(oldIndexedItem.getKey(), oldIndexedItem.getValue());
-                    int newOffset = getItemOffsetOrIndex(newIndexedItem.getKey(), newIndexedItem.getValue());
+                    int oldOffset = getItemOffsetOrIndex(oldIndex, oldItem);
+                    int newOffset = getItemOffsetOrIndex(newIndex, newItem);
 
                     if (oldIndex != newIndex) {
                         this.oldIndexToNewIndexMap.put(oldIndex, newIndex);
@@ -370,31 +517,80 @@ public abstract class DexSectionDiffAlgorithm<T extends Comparable<T>> {
         }
     }
 
+    /**
+     * A section is unchanged if its bytes in old dex and new dex are the same and none of the
+     * index maps would adjust any index or offset its items reference, which means the diff result must be an empty
+     * operation list with every item kept at its index.
+     */
+    private boolean isSectionUnchanged() {
+        TableOfContents.Section oldTocSec = getTocSection(this.oldDex);
+        TableOfContents.Section newTocSec = getTocSection(this.newDex);
+        if (!oldTocSec.exists() || !newTocSec.exists()) {
+            return false;
+        }
+        if (oldTocSec.size != newTocSec.size || oldTocSec.byteCount != newTocSec.byteCount) {
+            return false;
+        }
+        if (hasItemsToSkipInNewDex()) {
+            return false;
+        }
+        // Only the referenced kinds are checked, the scheduler runs this section after
+        // the sections producing them, while other kinds may still be mapped concurrently.
+        int referencedKinds = getReferencedIndexKinds();
+        if (!this.oldToPatchedIndexMap.isIdentityFor(referencedKinds)
+                || !this.newToPatchedIndexMap.isIdentityFor(referencedKinds)
+                || !this.selfIndexMapForSkip.isIdentityFor(referencedKinds)) {
+            return false;
+        }
+        return this.oldDex.openSection(oldTocSec).contentEquals(
+                oldTocSec.off, this.newDex.openSection(newTocSec), newTocSec.off, oldTocSec.byteCount
+        );
+    }
+
+    /**
+     * Same as {@link #simulatePatchOperation(int)} on an unchanged section, old items are
+     * read only for their offsets and sizes.
+     */
+    private void simulateUnchangedSection(int baseOffset) {
+        TableOfContents.Section oldTocSec = getTocSection(this.oldDex);
+        boolean isNeedToMakeAlign = oldTocSec.isElementFourByteAligned;
+        int newSectionOffsetDelta = getTocSection(this.newDex).off - oldTocSec.off;
+        Dex.Section oldSection = this.oldDex.openSection(oldTocSec);
+        int patchedOffset = baseOffset;
+        for (int index = 0; index < this.oldItemCount; ++index) {
+            if (isNeedToMakeAlign) {
+                patchedOffset = SizeOf.roundToTimesOfFour(patchedOffset);
+            }
+
+            T oldItem = nextItem(oldSection);
+            int oldOffset = getItemOffsetOrIndex(index, oldItem);
+            int newOffset = (oldItem instanceof TableOfContents.Section.Item
+                    ? oldOffset + newSectionOffsetDelta : oldOffset);
+
+            updateIndexOrOffset(this.oldToPatchedIndexMap, index, oldOffset, index, patchedOffset);
+            updateIndexOrOffset(this.newToPatchedIndexMap, index, newOffset, index, patchedOffset);
+
+            patchedOffset += getItemSize(oldItem);
+        }
+
+        this.patchedSectionSize = SizeOf.roundToTimesOfFour(patchedOffset - baseOffset);
+    }
+
     public void simulatePatchOperation(int baseOffset) {
+        if (this.isSectionUnchanged) {
+            simulateUnchangedSection(baseOffset);
+            return;
+        }
         boolean isNeedToMakeAlign = getTocSection(this.oldDex).isElementFourByteAligned;
         int oldIndex = 0;
         int patchedIndex = 0;
         int patchedOffset = baseOffset;
         while (oldIndex < this.oldItemCount || patchedIndex < this.newItemCount) {
-            if (this.indexToAddOperationMap.containsKey(patchedIndex)) {
-                PatchOperation<T> patchOperation = this.indexToAddOperationMap.get(patchedIndex);
-                if (isNeedToMakeAlign) {
-                    patchedOffset = SizeOf.roundToTimesOfFour(patchedOffset);
-                }
-                T newItem = patchOperation.newItem;
-                int itemSize = getItemSize(newItem);
-                updateIndexOrOffset(
-                        this.newToPatchedIndexMap,
-                        0,
-                        getItemOffsetOrIndex(patchOperation.index, newItem),
-                        0,
-                        patchedOffset
-                );
-                ++patchedIndex;
-                patchedOffset += itemSize;
-            } else
-            if (this.indexToReplaceOperationMap.containsKey(patchedIndex)) {
-                PatchOperation<T> patchOperation = this.indexToReplaceOperationMap.get(patchedIndex);
+            PatchOperation<T> patchOperation = this.indexToAddOperationMap.get(patchedIndex);
+            if (patchOperation == null) {
+                patchOperation = this.indexToReplaceOperationMap.get(patchedIndex);
+            }
+            if (patchOperation != null) {
                 if (isNeedToMakeAlign) {
                     patchedOffset = SizeOf.roundToTimesOfFour(patchedOffset);
                 }
@@ -421,7 +617,7 @@ public abstract class DexSectionDiffAlgorithm<T extends Comparable<T>> {
                     patchedOffset = SizeOf.roundToTimesOfFour(patchedOffset);
                 }
 
-                T oldItem = this.adjustedOldIndexedItemsWithOrigOrder[oldIndex].getValue();
+                T oldItem = this.adjustedOldItemsWithOrigOrder[oldIndex];
                 int itemSize = getItemSize(oldItem);
 
                 int oldOffset = getItemOffsetOrIndex(oldIndex, oldItem);
@@ -434,15 +630,8 @@ public abstract class DexSectionDiffAlgorithm<T extends Comparable<T>> {
                         patchedOffset
                 );
 
-                int newIndex = oldIndex;
-                if (this.oldIndexToNewIndexMap.containsKey(oldIndex)) {
-                    newIndex = this.oldIndexToNewIndexMap.get(oldIndex);
-                }
-
-                int newOffset = oldOffset;
-                if (this.oldOffsetToNewOffsetMap.containsKey(oldOffset)) {
-                    newOffset = this.oldOffsetToNewOffsetMap.get(oldOffset);
-                }
+                int newIndex = this.oldIndexToNewIndexMap.get(oldIndex, oldIndex);
+                int newOffset = this.oldOffsetToNewOffsetMap.get(oldOffset, oldOffset);
 
                 updateIndexOrOffset(
                         this.newToPatchedIndexMap,
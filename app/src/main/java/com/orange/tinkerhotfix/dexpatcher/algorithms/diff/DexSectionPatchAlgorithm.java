@@ -20,6 +20,7 @@ package com.orange.tinkerhotfix.dexpatcher.algorithms.diff;
 import com.orange.tinkerhotfix.common.AbstractIndexMap;
 import com.orange.tinkerhotfix.common.SparseIndexMap;
 import com.orange.tinkerhotfix.party.Dex;
+import com.orange.tinkerhotfix.party.SizeOf;
 import com.orange.tinkerhotfix.party.TableOfContents;
 import com.orange.tinkerhotfix.party.io.DexDataBuffer;
 import com.orange.tinkerhotfix.struct.DexPatchFile;
@@ -39,10 +40,44 @@ public abstract class DexSectionPatchAlgorithm<T extends Comparable<T>> {
      */
     private final SparseIndexMap oldToPatchedIndexMap;
 
+    /**
+     * Section of this kind in patched dex and its {@link TableOfContents.Section}, null if
+     * the subclass writes patched items somewhere else. Unchanged old items are copied here
+     * as raw bytes, see {@link #doFullPatch}.
+     */
+    protected final TableOfContents.Section patchedTocSec;
+    protected final Dex.Section patchedSection;
+
+    /**
+     * Offsets in old section of items in current run of unchanged items, see {@link #doFullPatch}.
+     */
+    private int[] runItemOffsets = new int[16];
+    private int runItemCount = 0;
+    private int runFirstOldIndex = 0;
+    private int runFirstPatchedIndex = 0;
+    private int runEndOffset = 0;
+    private boolean isRunOfOffsetItems = false;
+
     public DexSectionPatchAlgorithm(DexPatchFile patchFile, Dex oldDex, SparseIndexMap oldToPatchedIndexMap) {
         this.patchFile = patchFile;
         this.oldDex = oldDex;
         this.oldToPatchedIndexMap = oldToPatchedIndexMap;
+        this.patchedTocSec = null;
+        this.patchedSection = null;
+    }
+
+    /**
+     * Patched items are written to {@code patchedTocSec} of {@code patchedDex}.
+     */
+    public DexSectionPatchAlgorithm(
+            DexPatchFile patchFile, Dex oldDex, Dex patchedDex,
+            TableOfContents.Section patchedTocSec, SparseIndexMap oldToPatchedIndexMap
+    ) {
+        this.patchFile = patchFile;
+        this.oldDex = oldDex;
+        this.oldToPatchedIndexMap = oldToPatchedIndexMap;
+        this.patchedTocSec = patchedTocSec;
+        this.patchedSection = patchedDex.openSection(patchedTocSec);
     }
 
     /**
@@ -166,16 +201,23 @@ public abstract class DexSectionPatchAlgorithm<T extends Comparable<T>> {
         int addActionCursor = 0;
         int replaceActionCursor = 0;
 
+        // Unchanged old items whose encoding in old dex is exactly what writePatchedItem
+        // would write are copied in runs of raw bytes instead of being re-encoded one by one.
+        final boolean isRawCopyAllowed = (oldSection != null && this.patchedSection != null);
+        this.runItemCount = 0;
+
         int oldIndex = 0;
         int patchedIndex = 0;
         while (oldIndex < oldItemCount || patchedIndex < newItemCount) {
             if (addActionCursor < addedItemCount && addedIndices[addActionCursor] == patchedIndex) {
+                flushRawItemRun(oldSection);
                 T addedItem = nextItem(patchFile.getBuffer());
                 int patchedOffset = writePatchedItem(addedItem);
                 ++addActionCursor;
                 ++patchedIndex;
             } else
             if (replaceActionCursor < replacedItemCount && replacedIndices[replaceActionCursor] == patchedIndex) {
+                flushRawItemRun(oldSection);
                 T replacedItem = nextItem(patchFile.getBuffer());
                 int patchedOffset = writePatchedItem(replacedItem);
                 ++replaceActionCursor;
@@ -201,22 +243,36 @@ public abstract class DexSectionPatchAlgorithm<T extends Comparable<T>> {
                 ++oldIndex;
             } else
             if (oldIndex < oldItemCount) {
-                T oldItem = adjustItem(this.oldToPatchedIndexMap, nextItem(oldSection));
+                int posBeforeItem = oldSection.position();
+                T rawOldItem = nextItem(oldSection);
+                T oldItem = adjustItem(this.oldToPatchedIndexMap, rawOldItem);
 
-                int patchedOffset = writePatchedItem(oldItem);
+                int itemOffset = (rawOldItem instanceof TableOfContents.Section.Item
+                        ? ((TableOfContents.Section.Item<?>) rawOldItem).off : posBeforeItem);
+                if (isRawCopyAllowed
+                        && oldItem.compareTo(rawOldItem) == 0
+                        && getItemSize(oldItem) == oldSection.position() - itemOffset) {
+                    this.isRunOfOffsetItems = (rawOldItem instanceof TableOfContents.Section.Item);
+                    appendToRawItemRun(oldSection, oldIndex, patchedIndex, itemOffset, oldSection.position());
+                } else {
+                    flushRawItemRun(oldSection);
 
-                updateIndexOrOffset(
-                        this.oldToPatchedIndexMap,
-                        oldIndex,
-                        getItemOffsetOrIndex(oldIndex, oldItem),
-                        patchedIndex,
-                        patchedOffset
-                );
+                    int patchedOffset = writePatchedItem(oldItem);
+
+                    updateIndexOrOffset(
+                            this.oldToPatchedIndexMap,
+                            oldIndex,
+                            getItemOffsetOrIndex(oldIndex, oldItem),
+                            patchedIndex,
+                            patchedOffset
+                    );
+                }
 
                 ++oldIndex;
                 ++patchedIndex;
             }
         }
+        flushRawItemRun(oldSection);
 
         if (addActionCursor != addedItemCount || deletedItemCounter != deletedItemCount
                 || replaceActionCursor != replacedItemCount
@@ -236,4 +292,53 @@ public abstract class DexSectionPatchAlgorithm<T extends Comparable<T>> {
             );
         }
     }
+
+    private void appendToRawItemRun(Dex.Section oldSection, int oldIndex, int patchedIndex, int itemOffset, int itemEndOffset) {
+        if (this.runItemCount > 0) {
+            // Items must be adjacent in old dex, except for the padding which aligns the next item.
+            int expectedOffset = (getTocSection(this.oldDex).isElementFourByteAligned
+                    ? SizeOf.roundToTimesOfFour(this.runEndOffset) : this.runEndOffset);
+            if (itemOffset != expectedOffset) {
+                flushRawItemRun(oldSection);
+            }
+        }
+        if (this.runItemCount == 0) {
+            this.runFirstOldIndex = oldIndex;
+            this.runFirstPatchedIndex = patchedIndex;
+        }
+        if (this.runItemCount == this.runItemOffsets.length) {
+            this.runItemOffsets = Arrays.copyOf(this.runItemOffsets, this.runItemCount << 1);
+        }
+        this.runItemOffsets[this.runItemCount++] = itemOffset;
+        this.runEndOffset = itemEndOffset;
+    }
+
+    /**
+     * Copy current run of unchanged old items to patched section and update index or offset
+     * mappings of them. Padding inside the run is copied as is, which is fine since dex
+     * verifier requires every padding byte to be zero, just like what writePatchedItem writes.
+     */
+    private void flushRawItemRun(Dex.Section oldSection) {
+        if (this.runItemCount == 0) {
+            return;
+        }
+        if (this.patchedTocSec.isElementFourByteAligned) {
+            this.patchedSection.alignToFourBytesWithZeroFill();
+        }
+        final int runStartOffset = this.runItemOffsets[0];
+        final int patchedRunStartOffset = this.patchedSection.position();
+        this.patchedSection.write(oldSection, runStartOffset, this.runEndOffset - runStartOffset);
+        this.patchedTocSec.size += this.runItemCount;
+        for (int i = 0; i < this.runItemCount; ++i) {
+            final int itemOffset = this.runItemOffsets[i];
+            updateIndexOrOffset(
+                    this.oldToPatchedIndexMap,
+                    this.runFirstOldIndex + i,
+                    (this.isRunOfOffsetItems ? itemOffset : this.runFirstOldIndex + i),
+                    this.runFirstPatchedIndex + i,
+                    patchedRunStartOffset + (itemOffset - runStartOffset)
+            );
+        }
+        this.runItemCount = 0;
+    }
 }
@@ -38,6 +38,11 @@ public class FieldIdSectionDiffAlgorithm extends DexSectionDiffAlgorithm<FieldId
         return dex.getTableOfContents().fieldIds;
     }
 
+    @Override
+    protected int getReferencedIndexKinds() {
+        return SparseIndexMap.KIND_STRING_IDS | SparseIndexMap.KIND_TYPE_IDS;
+    }
+
     @Override
     protected FieldId nextItem(DexDataBuffer section) {
         return section.readFieldId();
@@ -29,21 +29,13 @@ import com.orange.tinkerhotfix.struct.DexPatchFile;
  * Created by tangyinsheng on 2016/7/4.
  */
 public class FieldIdSectionPatchAlgorithm extends DexSectionPatchAlgorithm<FieldId> {
-    private TableOfContents.Section patchedFieldIdTocSec = null;
-    private Dex.Section patchedFieldIdSec = null;
-
     public FieldIdSectionPatchAlgorithm(
             DexPatchFile patchFile,
             Dex oldDex,
             Dex patchedDex,
             SparseIndexMap oldToPatchedIndexMap
     ) {
-        super(patchFile, oldDex, oldToPatchedIndexMap);
-
-        if (patchedDex != null) {
-            this.patchedFieldIdTocSec = patchedDex.getTableOfContents().fieldIds;
-            this.patchedFieldIdSec = patchedDex.openSection(this.patchedFieldIdTocSec);
-        }
+        super(patchFile, oldDex, patchedDex, patchedDex.getTableOfContents().fieldIds, oldToPatchedIndexMap);
     }
 
     @Override
@@ -68,8 +60,8 @@ public class FieldIdSectionPatchAlgorithm extends DexSectionPatchAlgorithm<Field
 
     @Override
     protected int writePatchedItem(FieldId patchedItem) {
-        ++this.patchedFieldIdTocSec.size;
-        return this.patchedFieldIdSec.writeFieldId(patchedItem);
+        ++this.patchedTocSec.size;
+        return this.patchedSection.writeFieldId(patchedItem);
     }
 
     @Override
@@ -38,6 +38,11 @@ public class MethodIdSectionDiffAlgorithm extends DexSectionDiffAlgorithm<Method
         return dex.getTableOfContents().methodIds;
     }
 
+    @Override
+    protected int getReferencedIndexKinds() {
+        return SparseIndexMap.KIND_STRING_IDS | SparseIndexMap.KIND_TYPE_IDS | SparseIndexMap.KIND_PROTO_IDS;
+    }
+
     @Override
     protected MethodId nextItem(DexDataBuffer section) {
         return section.readMethodId();
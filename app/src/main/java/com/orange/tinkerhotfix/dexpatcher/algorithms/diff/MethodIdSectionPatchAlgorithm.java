@@ -29,21 +29,13 @@ import com.orange.tinkerhotfix.struct.DexPatchFile;
  * Created by tangyinsheng on 2016/7/4.
  */
 public class MethodIdSectionPatchAlgorithm extends DexSectionPatchAlgorithm<MethodId> {
-    private TableOfContents.Section patchedMethodIdTocSec = null;
-    private Dex.Section patchedMethodIdSec = null;
-
     public MethodIdSectionPatchAlgorithm(
             DexPatchFile patchFile,
             Dex oldDex,
             Dex patchedDex,
             SparseIndexMap oldToPatchedIndexMap
     ) {
-        super(patchFile, oldDex, oldToPatchedIndexMap);
-
-        if (patchedDex != null) {
-            this.patchedMethodIdTocSec = patchedDex.getTableOfContents().methodIds;
-            this.patchedMethodIdSec = patchedDex.openSection(this.patchedMethodIdTocSec);
-        }
+        super(patchFile, oldDex, patchedDex, patchedDex.getTableOfContents().methodIds, oldToPatchedIndexMap);
     }
 
     @Override
@@ -68,8 +60,8 @@ public class MethodIdSectionPatchAlgorithm extends DexSectionPatchAlgorithm<Meth
 
     @Override
     protected int writePatchedItem(MethodId patchedItem) {
-        ++this.patchedMethodIdTocSec.size;
-        return this.patchedMethodIdSec.writeMethodId(patchedItem);
+        ++this.patchedTocSec.size;
+        return this.patchedSection.writeMethodId(patchedItem);
     }
 
     @Override
@@ -38,6 +38,11 @@ public class ProtoIdSectionDiffAlgorithm extends DexSectionDiffAlgorithm<ProtoId
         return dex.getTableOfContents().protoIds;
     }
 
+    @Override
+    protected int getReferencedIndexKinds() {
+        return SparseIndexMap.KIND_STRING_IDS | SparseIndexMap.KIND_TYPE_IDS | SparseIndexMap.KIND_TYPE_LIST_OFFSETS;
+    }
+
     @Override
     protected ProtoId nextItem(DexDataBuffer section) {
         return section.readProtoId();
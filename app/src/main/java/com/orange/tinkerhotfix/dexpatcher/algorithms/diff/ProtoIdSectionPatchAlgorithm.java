@@ -29,21 +29,13 @@ import com.orange.tinkerhotfix.struct.DexPatchFile;
  * Created by tangyinsheng on 2016/7/4.
  */
 public class ProtoIdSectionPatchAlgorithm extends DexSectionPatchAlgorithm<ProtoId> {
-    private TableOfContents.Section patchedProtoIdTocSec = null;
-    private Dex.Section patchedProtoIdSec = null;
-
     public ProtoIdSectionPatchAlgorithm(
             DexPatchFile patchFile,
             Dex oldDex,
             Dex patchedDex,
             SparseIndexMap oldToPatchedIndexMap
     ) {
-        super(patchFile, oldDex, oldToPatchedIndexMap);
-
-        if (patchedDex != null) {
-            this.patchedProtoIdTocSec = patchedDex.getTableOfContents().protoIds;
-            this.patchedProtoIdSec = patchedDex.openSection(this.patchedProtoIdTocSec);
-        }
+        super(patchFile, oldDex, patchedDex, patchedDex.getTableOfContents().protoIds, oldToPatchedIndexMap);
     }
 
     @Override
@@ -68,8 +60,8 @@ public class ProtoIdSectionPatchAlgorithm extends DexSectionPatchAlgorithm<Proto
 
     @Override
     protected int writePatchedItem(ProtoId patchedItem) {
-        ++this.patchedProtoIdTocSec.size;
-        return this.patchedProtoIdSec.writeProtoId(patchedItem);
+        ++this.patchedTocSec.size;
+        return this.patchedSection.writeProtoId(patchedItem);
     }
 
     @Override
@@ -37,6 +37,12 @@ public class StaticValueSectionDiffAlgorithm extends DexSectionDiffAlgorithm<Enc
         return dex.getTableOfContents().encodedArrays;
     }
 
+    @Override
+    protected int getReferencedIndexKinds() {
+        return SparseIndexMap.KIND_STRING_IDS | SparseIndexMap.KIND_TYPE_IDS
+                | SparseIndexMap.KIND_FIELD_IDS | SparseIndexMap.KIND_METHOD_IDS;
+    }
+
     @Override
     protected EncodedValue nextItem(DexDataBuffer section) {
         return section.readEncodedArray();
@@ -29,21 +29,13 @@ import com.orange.tinkerhotfix.struct.DexPatchFile;
  * Created by tangyinsheng on 2016/7/4.
  */
 public class StaticValueSectionPatchAlgorithm extends DexSectionPatchAlgorithm<EncodedValue> {
-    private TableOfContents.Section patchedEncodedValueTocSec = null;
-    private Dex.Section patchedEncodedValueSec = null;
-
     public StaticValueSectionPatchAlgorithm(
             DexPatchFile patchFile,
             Dex oldDex,
             Dex patchedDex,
             SparseIndexMap oldToPatchedIndexMap
     ) {
-        super(patchFile, oldDex, oldToPatchedIndexMap);
-
-        if (patchedDex != null) {
-            this.patchedEncodedValueTocSec = patchedDex.getTableOfContents().encodedArrays;
-            this.patchedEncodedValueSec = patchedDex.openSection(this.patchedEncodedValueTocSec);
-        }
+        super(patchFile, oldDex, patchedDex, patchedDex.getTableOfContents().encodedArrays, oldToPatchedIndexMap);
     }
 
     @Override
@@ -68,8 +60,8 @@ public class StaticValueSectionPatchAlgorithm extends DexSectionPatchAlgorithm<E
 
     @Override
     protected int writePatchedItem(EncodedValue patchedItem) {
-        ++this.patchedEncodedValueTocSec.size;
-        return this.patchedEncodedValueSec.writeEncodedArray(patchedItem);
+        ++this.patchedTocSec.size;
+        return this.patchedSection.writeEncodedArray(patchedItem);
     }
 
     @Override
@@ -36,6 +36,11 @@ public class StringDataSectionDiffAlgorithm extends DexSectionDiffAlgorithm<Stri
         return dex.getTableOfContents().stringDatas;
     }
 
+    @Override
+    protected int getReferencedIndexKinds() {
+        return 0;
+    }
+
     @Override
     protected StringData nextItem(DexDataBuffer section) {
         return section.readStringData();
@@ -37,6 +37,11 @@ public class TypeIdSectionDiffAlgorithm extends DexSectionDiffAlgorithm<Integer>
         return dex.getTableOfContents().typeIds;
     }
 
+    @Override
+    protected int getReferencedIndexKinds() {
+        return SparseIndexMap.KIND_STRING_IDS;
+    }
+
     @Override
     protected Integer nextItem(DexDataBuffer section) {
         return section.readInt();
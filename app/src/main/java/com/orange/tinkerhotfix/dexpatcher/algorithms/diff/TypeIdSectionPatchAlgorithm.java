@@ -29,21 +29,13 @@ import com.orange.tinkerhotfix.struct.DexPatchFile;
  * Created by tangyinsheng on 2016/7/4.
  */
 public class TypeIdSectionPatchAlgorithm extends DexSectionPatchAlgorithm<Integer> {
-    private TableOfContents.Section patchedTypeIdTocSec = null;
-    private Dex.Section patchedTypeIdSec = null;
-
     public TypeIdSectionPatchAlgorithm(
             DexPatchFile patchFile,
             Dex oldDex,
             Dex patchedDex,
             SparseIndexMap oldToPatchedIndexMap
     ) {
-        super(patchFile, oldDex, oldToPatchedIndexMap);
-
-        if (patchedDex != null) {
-            this.patchedTypeIdTocSec = patchedDex.getTableOfContents().typeIds;
-            this.patchedTypeIdSec = patchedDex.openSection(this.patchedTypeIdTocSec);
-        }
+        super(patchFile, oldDex, patchedDex, patchedDex.getTableOfContents().typeIds, oldToPatchedIndexMap);
     }
 
     @Override
@@ -68,9 +60,9 @@ public class TypeIdSectionPatchAlgorithm extends DexSectionPatchAlgorithm<Intege
 
     @Override
     protected int writePatchedItem(Integer patchedItem) {
-        int off = this.patchedTypeIdSec.position();
-        this.patchedTypeIdSec.writeInt(patchedItem);
-        ++this.patchedTypeIdTocSec.size;
+        int off = this.patchedSection.position();
+        this.patchedSection.writeInt(patchedItem);
+        ++this.patchedTocSec.size;
         return off;
     }
 
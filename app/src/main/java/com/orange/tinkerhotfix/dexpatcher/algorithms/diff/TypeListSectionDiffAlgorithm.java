@@ -37,6 +37,11 @@ public class TypeListSectionDiffAlgorithm extends DexSectionDiffAlgorithm<TypeLi
         return dex.getTableOfContents().typeLists;
     }
 
+    @Override
+    protected int getReferencedIndexKinds() {
+        return SparseIndexMap.KIND_TYPE_IDS;
+    }
+
     @Override
     protected TypeList nextItem(DexDataBuffer section) {
         return section.readTypeList();
@@ -29,21 +29,13 @@ import com.orange.tinkerhotfix.struct.DexPatchFile;
  * Created by tangyinsheng on 2016/7/4.
  */
 public class TypeListSectionPatchAlgorithm extends DexSectionPatchAlgorithm<TypeList> {
-    private TableOfContents.Section patchedTypeListTocSec = null;
-    private Dex.Section patchedTypeListSec = null;
-
     public TypeListSectionPatchAlgorithm(
             DexPatchFile patchFile,
             Dex oldDex,
             Dex patchedDex,
             SparseIndexMap oldToPatchedIndexMap
     ) {
-        super(patchFile, oldDex, oldToPatchedIndexMap);
-
-        if (patchedDex != null) {
-            this.patchedTypeListTocSec = patchedDex.getTableOfContents().typeLists;
-            this.patchedTypeListSec = patchedDex.openSection(this.patchedTypeListTocSec);
-        }
+        super(patchFile, oldDex, patchedDex, patchedDex.getTableOfContents().typeLists, oldToPatchedIndexMap);
     }
 
     @Override
@@ -68,8 +60,8 @@ public class TypeListSectionPatchAlgorithm extends DexSectionPatchAlgorithm<Type
 
     @Override
     protected int writePatchedItem(TypeList patchedItem) {
-        ++this.patchedTypeListTocSec.size;
-        return this.patchedTypeListSec.writeTypeList(patchedItem);
+        ++this.patchedTocSec.size;
+        return this.patchedSection.writeTypeList(patchedItem);
     }
 
     @Override
@@ -0,0 +1,192 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.tinkerhotfix.dexpatcher.util;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a small graph of dependent tasks. A task is started only after every task
+ * it depends on has finished.
+ *
+ * Tasks must be added after all of their dependencies, so the adding order is always
+ * a valid serial order. {@link #executeSerially()} simply follows it while
+ * {@link #execute(ForkJoinPool)} starts every task as soon as it becomes ready.
+ *
+ * Once a task fails, no more tasks are started and {@link #execute(ForkJoinPool)} waits
+ * for the running ones before it rethrows, so nothing is still writing into shared state
+ * when the caller sees the failure.
+ *
+ * A scheduler instance can only be executed by one thread at a time.
+ */
+public final class DiffTaskScheduler {
+    private final List<Task> tasks = new ArrayList<>();
+
+    public <T extends Task> T addTask(T task) {
+        this.tasks.add(task);
+        return task;
+    }
+
+    public void executeSerially() {
+        checkTaskOrder();
+        for (Task task : this.tasks) {
+            task.run();
+        }
+    }
+
+    public void execute(ForkJoinPool pool) {
+        checkTaskOrder();
+        if (this.tasks.isEmpty()) {
+            return;
+        }
+
+        ExecutionState state = new ExecutionState();
+        List<Task> readyTasks = new ArrayList<>();
+        for (Task task : this.tasks) {
+            task.pendingDependencyCount.set(task.dependencies.size());
+            if (task.dependencies.isEmpty()) {
+                readyTasks.add(task);
+            }
+        }
+        // Count all of them in before any can finish, otherwise the first finished one may
+        // take the count down to zero while others are not submitted yet.
+        state.inFlightActionCount.set(readyTasks.size());
+        for (Task task : readyTasks) {
+            pool.execute(new TaskAction(task, state));
+        }
+
+        try {
+            state.doneSignal.await();
+        } catch (InterruptedException e) {
+            state.isCancelled = true;
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for diff tasks.", e);
+        }
+
+        Throwable failure = state.failures.poll();
+        if (failure == null) {
+            return;
+        }
+        for (Throwable otherFailure = state.failures.poll(); otherFailure != null; otherFailure = state.failures.poll()) {
+            failure.addSuppressed(otherFailure);
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else {
+            throw new IllegalStateException(failure);
+        }
+    }
+
+    private void checkTaskOrder() {
+        Set<Task> addedTasks = new HashSet<>();
+        for (Task task : this.tasks) {
+            for (Task dependency : task.dependencies) {
+                if (!addedTasks.contains(dependency)) {
+                    throw new IllegalStateException(
+                            "task [" + task + "] is added before its dependency [" + dependency + "]."
+                    );
+                }
+            }
+            addedTasks.add(task);
+        }
+    }
+
+    public abstract static class Task {
+        private final String name;
+        private final List<Task> dependencies = new ArrayList<>();
+        private final List<Task> dependents = new ArrayList<>();
+        private final AtomicInteger pendingDependencyCount = new AtomicInteger();
+
+        protected Task(String name) {
+            this.name = name;
+        }
+
+        public final Task dependsOn(Task... tasks) {
+            for (Task task : tasks) {
+                if (!this.dependencies.contains(task)) {
+                    this.dependencies.add(task);
+                    task.dependents.add(this);
+                }
+            }
+            return this;
+        }
+
+        protected abstract void run();
+
+        @Override
+        public String toString() {
+            return this.name;
+        }
+    }
+
+    private static final class ExecutionState {
+        /** Actions submitted to the pool and not finished yet, no matter whether their tasks run. */
+        final AtomicInteger inFlightActionCount = new AtomicInteger();
+        final ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<>();
+        final CountDownLatch doneSignal = new CountDownLatch(1);
+        volatile boolean isCancelled = false;
+    }
+
+    private static final class TaskAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Task task;
+        private final ExecutionState state;
+
+        TaskAction(Task task, ExecutionState state) {
+            this.task = task;
+            this.state = state;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                if (this.state.isCancelled) {
+                    // Some task has failed, pending ones are skipped.
+                    return;
+                }
+                try {
+                    this.task.run();
+                } catch (Throwable e) {
+                    // Tasks depending on the failed one will never be started.
+                    this.state.failures.add(e);
+                    this.state.isCancelled = true;
+                    return;
+                }
+                for (Task dependent : this.task.dependents) {
+                    if (dependent.pendingDependencyCount.decrementAndGet() == 0 && !this.state.isCancelled) {
+                        this.state.inFlightActionCount.incrementAndGet();
+                        new TaskAction(dependent, this.state).fork();
+                    }
+                }
+            } finally {
+                if (this.state.inFlightActionCount.decrementAndGet() == 0) {
+                    this.state.doneSignal.countDown();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,634 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.tinkerhotfix.dx.instruction;
+
+import com.orange.tinkerhotfix.dx.instruction.util.Hex;
+import com.orange.tinkerhotfix.party.DexException;
+
+import java.io.EOFException;
+import java.util.Arrays;
+
+/**
+ * *** This file is NOT a part of AOSP. ***
+ *
+ * Instructions of one method decoded once into parallel arrays, one slot per instruction
+ * in address order, using {@link InstructionTable} instead of per-opcode switches.
+ *
+ * Fields are filled the same way {@link InstructionReader} passes them to visitors. For payload
+ * pseudo-instructions the target slot holds the base address their switch targets are relative to,
+ * payload contents are read from the code units on demand.
+ *
+ * Instances are not thread-safe but can be reused across methods to avoid reallocation.
+ */
+public final class DecodedInstructions {
+    private static final int[] EMPTY_INTS = new int[0];
+    private static final long[] EMPTY_LONGS = new long[0];
+
+    private short[] insns = null;
+    private int count = 0;
+
+    private int[] slotsByAddress = EMPTY_INTS;
+    private int[] payloadBaseAddresses = EMPTY_INTS;
+
+    private int[] addresses = EMPTY_INTS;
+    private int[] opcodes = EMPTY_INTS;
+    private int[] formats = EMPTY_INTS;
+    private int[] indices = EMPTY_INTS;
+    private int[] targets = EMPTY_INTS;
+    private long[] literals = EMPTY_LONGS;
+    private int[] registerCounts = EMPTY_INTS;
+    private int[] registersA = EMPTY_INTS;
+    private int[] registersB = EMPTY_INTS;
+    private int[] registersC = EMPTY_INTS;
+    private int[] registersD = EMPTY_INTS;
+    private int[] registersE = EMPTY_INTS;
+
+    /**
+     * Decodes {@code insns}, dropping whatever was decoded before.
+     *
+     * Throws {@link EOFException} if the last instruction is truncated, in which case
+     * the instructions before it are still available.
+     */
+    public void decode(short[] insns) throws EOFException {
+        final int length = insns.length;
+        ensureCapacity(length);
+        this.insns = insns;
+        this.count = 0;
+        Arrays.fill(this.slotsByAddress, 0, length, -1);
+        // Base addresses are reset only when some switch needs them.
+        boolean isPayloadBaseAddressesReset = false;
+
+        int address = 0;
+        while (address < length) {
+            final int opcodeUnit = insns[address] & 0xffff;
+            final int opcode = Opcodes.extractOpcodeFromUnit(opcodeUnit);
+            final int format = InstructionTable.getFormat(opcode);
+            final int slot = this.count;
+
+            int width = InstructionTable.getFormatWidth(format);
+            if (width == 0) {
+                width = getPayloadWidth(insns, address, format, opcode);
+            }
+            if (address + width > length) {
+                throw new EOFException();
+            }
+
+            this.addresses[slot] = address;
+            this.opcodes[slot] = opcode;
+            this.formats[slot] = format;
+            int index = 0;
+            int target = 0;
+            long literal = 0L;
+            int registerCount = 0;
+            int a = 0;
+            int b = 0;
+            int c = 0;
+            int d = 0;
+            int e = 0;
+
+            switch (format) {
+                case InstructionCodec.INSN_FORMAT_10T: {
+                    target = address + (byte) InstructionCodec.byte1(opcodeUnit);
+                    break;
+                }
+                case InstructionCodec.INSN_FORMAT_10X: {
+                    literal = InstructionCodec.byte1(opcodeUnit);
+                    break;
+                }
+                case InstructionCodec.INSN_FORMAT_11N: {
+                    registerCount = 1;
+                    a = InstructionCodec.nibble2(opcodeUnit);
+                    literal = (InstructionCodec.nibble3(opcodeUnit) << 28) >> 28;
+                    break;
+                }
+                case InstructionCodec.INSN_FORMAT_11X: {
+                    registerCount = 1;
+                    a = InstructionCodec.byte1(opcodeUnit);
+                    break;
+                }
+                case InstructionCodec.INSN_FORMAT_12X: {
+                    registerCount = 2;
+                    a = InstructionCodec.nibble2(opcodeUnit);
+                    b = InstructionCodec.nibble3(opcodeUnit);
+                    break;
+                }
+                case InstructionCodec.INSN_FORMAT_20T: {
+                    literal = InstructionCodec.byte1(opcodeUnit);
+                    target = address + insns[address + 1];
+                    break;
+                }
+                case InstructionCodec.INSN_FORMAT_21C: {
+                    registerCount = 1;
+                    a = InstructionCodec.byte1(opcodeUnit);
+                    index = insns[address + 1] & 0xffff;
+                    break;
+                }
+                case InstructionCodec.INSN_FORMAT_21H: {
+                    registerCount = 1;
+                    a = InstructionCodec.byte1(opcodeUnit);
+                    literal = (long) insns[address + 1] << ((opcode == Opcodes.CONST_HIGH16) ? 16 : 48);
+                    break;
+                }
+                case InstructionCodec.INSN_FORMAT_21S: {
+                    registerCount = 1;
+                    a = InstructionCodec.byte1(opcodeUnit);
+                    literal = insns[address + 1];
+                    break;
+                }
+                case InstructionCodec.INSN_FORMAT_21T: {
+                    registerCount = 1;
+                    a = InstructionCodec.byte1(opcodeUnit);
+                    target = address + insns[address + 1];
+                    break;
+                }
+                case InstructionCodec.INSN_FORMAT_22B: {
+                    registerCount = 2;
+                    a = InstructionCodec.byte1(opcodeUnit);
+                    int bc = insns[address + 1] & 0xffff;
+                    b = InstructionCodec.byte0(bc);
+                    literal = (byte) InstructionCodec.byte1(bc);
+                    break;
+                }
+                case InstructionCodec.INSN_FORMAT_22C: {
+                    registerCount = 2;
+                    a = InstructionCodec.nibble2(opcodeUnit);
+                    b = InstructionCodec.nibble3(opcodeUnit);
+                    index = insns[address + 1] & 0xffff;
+                    break;
+                }
+                case InstructionCodec.INSN_FORMAT_22S: {
+                    registerCount = 2;
+                    a = InstructionCodec.nibble2(opcodeUnit);
+                    b = InstructionCodec.nibble3(opcodeUnit);
+                    literal = insns[address + 1];
+                    break;
+                }
+                case InstructionCodec.INSN_FORMAT_22T: {
+                    registerCount = 2;
+                    a = InstructionCodec.nibble2(opcodeUnit);
+                    b = InstructionCodec.nibble3(opcodeUnit);
+                    target = address + insns[address + 1];
+                    break;
+                }
+                case InstructionCodec.INSN_FORMAT_22X: {
+                    registerCount = 2;
+                    a = InstructionCodec.byte1(opcodeUnit);
+                    b = insns[address + 1] & 0xffff;
+                    break;
+                }
+                case InstructionCodec.INSN_FORMAT_23X: {
+                    registerCount = 3;
+                    a = InstructionCodec.byte1(opcodeUnit);
+                    int bc = insns[address + 1] & 0xffff;
+                    b = InstructionCodec.byte0(bc);
+                    c = InstructionCodec.byte1(bc);
+                    break;
+                }
+                case InstructionCodec.INSN_FORMAT_30T: {
+                    literal = InstructionCodec.byte1(opcodeUnit);
+                    target = address + readInt(insns, address + 1);
+                    break;
+                }
+                case InstructionCodec.INSN_FORMAT_31C: {
+                    registerCount = 1;
+                    a = InstructionCodec.byte1(opcodeUnit);
+                    index = readInt(insns, address + 1);
+                    break;
+                }
+                case InstructionCodec.INSN_FORMAT_31I: {
+                    registerCount = 1;
+                    a = InstructionCodec.byte1(opcodeUnit);
+                    literal = readInt(insns, address + 1);
+                    break;
+                }
+                case InstructionCodec.INSN_FORMAT_31T: {
+                    registerCount = 1;
+                    a = InstructionCodec.byte1(opcodeUnit);
+                    target = address + readInt(insns, address + 1);
+                    if ((opcode == Opcodes.PACKED_SWITCH || opcode == Opcodes.SPARSE_SWITCH)
+                            && target >= 0 && target < length) {
+                        if (!isPayloadBaseAddressesReset) {
+                            Arrays.fill(this.payloadBaseAddresses, 0, length, -1);
+                            isPayloadBaseAddressesReset = true;
+                        }
+                        // Switch instructions "forward" their addresses to their payloads.
+                        this.payloadBaseAddresses[target] = address;
+                    }
+                    break;
+                }
+                case InstructionCodec.INSN_FORMAT_32X: {
+                    registerCount = 2;
+                    literal = InstructionCodec.byte1(opcodeUnit);
+                    a = insns[address + 1] & 0xffff;
+                    b = insns[address + 2] & 0xffff;
+                    break;
+                }
+                case InstructionCodec.INSN_FORMAT_35C: {
+                    registerCount = InstructionCodec.nibble3(opcodeUnit);
+                    if (registerCount > 5) {
+                        throw new DexException("bogus registerCount: " + Hex.uNibble(registerCount));
+                    }
+                    e = InstructionCodec.nibble2(opcodeUnit);
+                    index = insns[address + 1] & 0xffff;
+                    int abcd = insns[address + 2] & 0xffff;
+                    a = InstructionCodec.nibble0(abcd);
+                    b = InstructionCodec.nibble1(abcd);
+                    c = InstructionCodec.nibble2(abcd);
+                    d = InstructionCodec.nibble3(abcd);
+                    break;
+                }
+                case InstructionCodec.INSN_FORMAT_3RC: {
+                    registerCount = InstructionCodec.byte1(opcodeUnit);
+                    index = insns[address + 1] & 0xffff;
+                    a = insns[address + 2] & 0xffff;
+                    break;
+                }
+                case InstructionCodec.INSN_FORMAT_51L: {
+                    registerCount = 1;
+                    a = InstructionCodec.byte1(opcodeUnit);
+                    literal = readLong(insns, address + 1);
+                    break;
+                }
+                case InstructionCodec.INSN_FORMAT_PACKED_SWITCH_PAYLOAD:
+                case InstructionCodec.INSN_FORMAT_SPARSE_SWITCH_PAYLOAD: {
+                    int baseAddress = (isPayloadBaseAddressesReset ? this.payloadBaseAddresses[address] : -1);
+                    // Same as InstructionReader, which looks the base address up after the opcode unit is read.
+                    target = (baseAddress >= 0 ? baseAddress : address + 1);
+                    break;
+                }
+                default: {
+                    break;
+                }
+            }
+
+            this.indices[slot] = index;
+            this.targets[slot] = target;
+            this.literals[slot] = literal;
+            this.registerCounts[slot] = registerCount;
+            this.registersA[slot] = a;
+            this.registersB[slot] = b;
+            this.registersC[slot] = c;
+            this.registersD[slot] = d;
+            this.registersE[slot] = e;
+            this.slotsByAddress[address] = slot;
+            ++this.count;
+
+            address += width;
+        }
+    }
+
+    private static int getPayloadWidth(short[] insns, int address, int format, int opcode) throws EOFException {
+        final int length = insns.length;
+        switch (format) {
+            case InstructionCodec.INSN_FORMAT_PACKED_SWITCH_PAYLOAD: {
+                if (address + 1 >= length) {
+                    throw new EOFException();
+                }
+                return 4 + (insns[address + 1] & 0xffff) * 2;
+            }
+            case InstructionCodec.INSN_FORMAT_SPARSE_SWITCH_PAYLOAD: {
+                if (address + 1 >= length) {
+                    throw new EOFException();
+                }
+                return 2 + (insns[address + 1] & 0xffff) * 4;
+            }
+            case InstructionCodec.INSN_FORMAT_FILL_ARRAY_DATA_PAYLOAD: {
+                if (address + 3 >= length) {
+                    throw new EOFException();
+                }
+                int elementWidth = insns[address + 1] & 0xffff;
+                if (elementWidth != 1 && elementWidth != 2 && elementWidth != 4 && elementWidth != 8) {
+                    throw new DexException("bogus element_width: " + Hex.u2(elementWidth));
+                }
+                long size = readInt(insns, address + 2) & 0xffffffffL;
+                long width = 4 + (size * elementWidth + 1) / 2;
+                if (address + width > length) {
+                    throw new EOFException();
+                }
+                return (int) width;
+            }
+            default: {
+                throw new IllegalStateException("Unknown opcode: " + Hex.u4(opcode));
+            }
+        }
+    }
+
+    private void ensureCapacity(int length) {
+        if (this.slotsByAddress.length >= length) {
+            return;
+        }
+        this.slotsByAddress = new int[length];
+        this.payloadBaseAddresses = new int[length];
+        this.addresses = new int[length];
+        this.opcodes = new int[length];
+        this.formats = new int[length];
+        this.indices = new int[length];
+        this.targets = new int[length];
+        this.literals = new long[length];
+        this.registerCounts = new int[length];
+        this.registersA = new int[length];
+        this.registersB = new int[length];
+        this.registersC = new int[length];
+        this.registersD = new int[length];
+        this.registersE = new int[length];
+    }
+
+    private static int readInt(short[] insns, int offset) {
+        return (insns[offset] & 0xffff) | (insns[offset + 1] << 16);
+    }
+
+    private static long readLong(short[] insns, int offset) {
+        return (insns[offset] & 0xffffL)
+                | ((insns[offset + 1] & 0xffffL) << 16)
+                | ((insns[offset + 2] & 0xffffL) << 32)
+                | ((insns[offset + 3] & 0xffffL) << 48);
+    }
+
+    /**
+     * Returns the code units decoded last time.
+     */
+    public short[] getInstructions() {
+        return this.insns;
+    }
+
+    public int size() {
+        return this.count;
+    }
+
+    /**
+     * Returns the slot of instruction starting at {@code address}, or -1 if no instruction starts there.
+     */
+    public int getSlot(int address) {
+        if (address < 0 || address >= this.insns.length) {
+            return -1;
+        }
+        return this.slotsByAddress[address];
+    }
+
+    public int getAddress(int slot) {
+        return this.addresses[slot];
+    }
+
+    public int getOpcode(int slot) {
+        return this.opcodes[slot];
+    }
+
+    public int getFormat(int slot) {
+        return this.formats[slot];
+    }
+
+    public int getIndexType(int slot) {
+        return InstructionTable.getIndexType(this.opcodes[slot]);
+    }
+
+    public int getIndex(int slot) {
+        return this.indices[slot];
+    }
+
+    /**
+     * Replaces the index of instruction in {@code slot}, the code units are left untouched.
+     */
+    public void setIndex(int slot, int index) {
+        this.indices[slot] = index;
+    }
+
+    public int getTarget(int slot) {
+        return this.targets[slot];
+    }
+
+    public long getLiteral(int slot) {
+        return this.literals[slot];
+    }
+
+    public int getRegisterCount(int slot) {
+        return this.registerCounts[slot];
+    }
+
+    public int getA(int slot) {
+        return this.registersA[slot];
+    }
+
+    public int getB(int slot) {
+        return this.registersB[slot];
+    }
+
+    public int getC(int slot) {
+        return this.registersC[slot];
+    }
+
+    public int getD(int slot) {
+        return this.registersD[slot];
+    }
+
+    public int getE(int slot) {
+        return this.registersE[slot];
+    }
+
+    /**
+     * Returns code units taken by instruction in {@code slot}.
+     */
+    public int getWidth(int slot) {
+        int nextAddress = (slot + 1 < this.count ? this.addresses[slot + 1] : this.insns.length);
+        return nextAddress - this.addresses[slot];
+    }
+
+    /**
+     * Returns entry count of switch payload, or element count of fill-array-data payload in {@code slot}.
+     */
+    public int getPayloadSize(int slot) {
+        final int address = this.addresses[slot];
+        if (this.formats[slot] == InstructionCodec.INSN_FORMAT_FILL_ARRAY_DATA_PAYLOAD) {
+            return readInt(this.insns, address + 2);
+        } else {
+            return this.insns[address + 1] & 0xffff;
+        }
+    }
+
+    public int getPackedSwitchFirstKey(int slot) {
+        return readInt(this.insns, this.addresses[slot] + 2);
+    }
+
+    public int getSparseSwitchKey(int slot, int i) {
+        return readInt(this.insns, this.addresses[slot] + 2 + i * 2);
+    }
+
+    /**
+     * Returns the absolute address of the {@code i}-th target of switch payload in {@code slot}.
+     */
+    public int getSwitchTarget(int slot, int i) {
+        final int address = this.addresses[slot];
+        if (this.formats[slot] == InstructionCodec.INSN_FORMAT_PACKED_SWITCH_PAYLOAD) {
+            return this.targets[slot] + readInt(this.insns, address + 4 + i * 2);
+        } else {
+            int size = this.insns[address + 1] & 0xffff;
+            return this.targets[slot] + readInt(this.insns, address + 2 + size * 2 + i * 2);
+        }
+    }
+
+    public int getFillArrayElementWidth(int slot) {
+        return this.insns[this.addresses[slot] + 1] & 0xffff;
+    }
+
+    /**
+     * Returns whether fill-array-data payloads in {@code slot} and in {@code otherSlot} of
+     * {@code other} have the same element width and elements.
+     */
+    public boolean isSameFillArrayData(int slot, DecodedInstructions other, int otherSlot) {
+        final int elementWidth = getFillArrayElementWidth(slot);
+        final int size = getPayloadSize(slot);
+        if (elementWidth != other.getFillArrayElementWidth(otherSlot) || size != other.getPayloadSize(otherSlot)) {
+            return false;
+        }
+        final long byteCount = (size & 0xffffffffL) * elementWidth;
+        final int unitCount = (int) (byteCount >> 1);
+        final int dataAddress = this.addresses[slot] + 4;
+        final int otherDataAddress = other.addresses[otherSlot] + 4;
+        for (int i = 0; i < unitCount; ++i) {
+            if (this.insns[dataAddress + i] != other.insns[otherDataAddress + i]) {
+                return false;
+            }
+        }
+        if ((byteCount & 1) != 0) {
+            // The high byte of the last unit is padding.
+            return (this.insns[dataAddress + unitCount] & 0xff) == (other.insns[otherDataAddress + unitCount] & 0xff);
+        }
+        return true;
+    }
+
+    /**
+     * Replays decoded instructions to {@code iv} with the same calls {@link InstructionReader} makes.
+     */
+    public void accept(InstructionVisitor iv) {
+        for (int slot = 0; slot < this.count; ++slot) {
+            final int address = this.addresses[slot];
+            final int opcode = this.opcodes[slot];
+            final int format = this.formats[slot];
+            switch (format) {
+                case InstructionCodec.INSN_FORMAT_PACKED_SWITCH_PAYLOAD: {
+                    int size = getPayloadSize(slot);
+                    int[] switchTargets = new int[size];
+                    for (int i = 0; i < size; ++i) {
+                        switchTargets[i] = getSwitchTarget(slot, i);
+                    }
+                    iv.visitPackedSwitchPayloadInsn(address, opcode, getPackedSwitchFirstKey(slot), switchTargets);
+                    break;
+                }
+                case InstructionCodec.INSN_FORMAT_SPARSE_SWITCH_PAYLOAD: {
+                    int size = getPayloadSize(slot);
+                    int[] keys = new int[size];
+                    int[] switchTargets = new int[size];
+                    for (int i = 0; i < size; ++i) {
+                        keys[i] = getSparseSwitchKey(slot, i);
+                        switchTargets[i] = getSwitchTarget(slot, i);
+                    }
+                    iv.visitSparseSwitchPayloadInsn(address, opcode, keys, switchTargets);
+                    break;
+                }
+                case InstructionCodec.INSN_FORMAT_FILL_ARRAY_DATA_PAYLOAD: {
+                    int elementWidth = getFillArrayElementWidth(slot);
+                    int size = getPayloadSize(slot);
+                    iv.visitFillArrayDataPayloadInsn(address, opcode, readFillArrayData(address + 4, size, elementWidth), size, elementWidth);
+                    break;
+                }
+                case InstructionCodec.INSN_FORMAT_3RC: {
+                    iv.visitRegisterRangeInsn(address, opcode, this.indices[slot], getIndexType(slot),
+                            this.targets[slot], this.literals[slot], this.registersA[slot], this.registerCounts[slot]);
+                    break;
+                }
+                default: {
+                    acceptRegisterInsn(iv, slot, address, opcode, format);
+                    break;
+                }
+            }
+        }
+    }
+
+    private void acceptRegisterInsn(InstructionVisitor iv, int slot, int address, int opcode, int format) {
+        final int index = this.indices[slot];
+        final int indexType = (format == InstructionCodec.INSN_FORMAT_21C
+                || format == InstructionCodec.INSN_FORMAT_22C
+                || format == InstructionCodec.INSN_FORMAT_31C
+                || format == InstructionCodec.INSN_FORMAT_35C
+                ? getIndexType(slot) : InstructionCodec.INDEX_TYPE_NONE);
+        final int target = this.targets[slot];
+        final long literal = this.literals[slot];
+        switch (this.registerCounts[slot]) {
+            case 0: {
+                iv.visitZeroRegisterInsn(address, opcode, index, indexType, target, literal);
+                break;
+            }
+            case 1: {
+                iv.visitOneRegisterInsn(address, opcode, index, indexType, target, literal,
+                        this.registersA[slot]);
+                break;
+            }
+            case 2: {
+                iv.visitTwoRegisterInsn(address, opcode, index, indexType, target, literal,
+                        this.registersA[slot], this.registersB[slot]);
+                break;
+            }
+            case 3: {
+                iv.visitThreeRegisterInsn(address, opcode, index, indexType, target, literal,
+                        this.registersA[slot], this.registersB[slot], this.registersC[slot]);
+                break;
+            }
+            case 4: {
+                iv.visitFourRegisterInsn(address, opcode, index, indexType, target, literal,
+                        this.registersA[slot], this.registersB[slot], this.registersC[slot], this.registersD[slot]);
+                break;
+            }
+            default: {
+                iv.visitFiveRegisterInsn(address, opcode, index, indexType, target, literal,
+                        this.registersA[slot], this.registersB[slot], this.registersC[slot], this.registersD[slot],
+                        this.registersE[slot]);
+                break;
+            }
+        }
+    }
+
+    private Object readFillArrayData(int dataAddress, int size, int elementWidth) {
+        switch (elementWidth) {
+            case 1: {
+                byte[] array = new byte[size];
+                for (int i = 0; i < size; ++i) {
+                    int value = this.insns[dataAddress + (i >> 1)];
+                    array[i] = (byte) ((i & 1) == 0 ? value : value >> 8);
+                }
+                return array;
+            }
+            case 2: {
+                short[] array = new short[size];
+                System.arraycopy(this.insns, dataAddress, array, 0, size);
+                return array;
+            }
+            case 4: {
+                int[] array = new int[size];
+                for (int i = 0; i < size; ++i) {
+                    array[i] = readInt(this.insns, dataAddress + i * 2);
+                }
+                return array;
+            }
+            default: {
+                long[] array = new long[size];
+                for (int i = 0; i < size; ++i) {
+                    array[i] = readLong(this.insns, dataAddress + i * 4);
+                }
+                return array;
+            }
+        }
+    }
+}
@@ -17,10 +17,6 @@
 package com.orange.tinkerhotfix.dx.instruction;
 
 
-import com.orange.tinkerhotfix.dx.instruction.util.Hex;
-import com.orange.tinkerhotfix.party.DexException;
-import com.orange.tinkerhotfix.party.util.CompareUtils;
-
 import java.io.EOFException;
 import java.util.HashSet;
 import java.util.Set;
@@ -31,8 +27,8 @@ import java.util.Set;
  * Created by tangyinsheng on 2016/7/12.
  */
 public abstract class InstructionComparator {
-    private final InstructionHolder[] insnHolders1;
-    private final InstructionHolder[] insnHolders2;
+    private final DecodedInstructions decodedInsns1;
+    private final DecodedInstructions decodedInsns2;
     private final Set<String> visitedInsnAddrPairs;
     private final short[] insns1;
     private final short[] insns2;
@@ -42,217 +38,96 @@ public abstract class InstructionComparator {
         this.insns2 = insns2;
 
         if (insns1 != null) {
-            ShortArrayCodeInput codeIn1 = new ShortArrayCodeInput(insns1);
-            this.insnHolders1 = readInstructionsIntoHolders(codeIn1, insns1.length);
+            this.decodedInsns1 = decodeInstructions(insns1);
         } else {
-            this.insnHolders1 = null;
+            this.decodedInsns1 = null;
         }
         if (insns2 != null) {
-            ShortArrayCodeInput codeIn2 = new ShortArrayCodeInput(insns2);
-            this.insnHolders2 = readInstructionsIntoHolders(codeIn2, insns2.length);
+            this.decodedInsns2 = decodeInstructions(insns2);
         } else {
-            this.insnHolders2 = null;
+            this.decodedInsns2 = null;
         }
         visitedInsnAddrPairs = new HashSet<>();
     }
 
-    private InstructionHolder[] readInstructionsIntoHolders(ShortArrayCodeInput in, int length) {
-        in.reset();
-        final InstructionHolder[] result = new InstructionHolder[length];
-        InstructionReader ir = new InstructionReader(in);
+    private static DecodedInstructions decodeInstructions(short[] insns) {
+        DecodedInstructions result = new DecodedInstructions();
         try {
-            ir.accept(new InstructionVisitor(null) {
-                public void visitZeroRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal) {
-                    if (opcode != Opcodes.NOP) {
-                        InstructionHolder insnHolder = new InstructionHolder();
-                        insnHolder.insnFormat = InstructionCodec.getInstructionFormat(opcode);
-                        insnHolder.address = currentAddress;
-                        insnHolder.opcode = opcode;
-                        insnHolder.index = index;
-                        insnHolder.target = target;
-                        insnHolder.literal = literal;
-                        result[currentAddress] = insnHolder;
-                    }
-                }
-
-                public void visitOneRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a) {
-                    InstructionHolder insnHolder = new InstructionHolder();
-                    insnHolder.insnFormat = InstructionCodec.getInstructionFormat(opcode);
-                    insnHolder.address = currentAddress;
-                    insnHolder.opcode = opcode;
-                    insnHolder.index = index;
-                    insnHolder.target = target;
-                    insnHolder.literal = literal;
-                    insnHolder.registerCount = 1;
-                    insnHolder.a = a;
-                    result[currentAddress] = insnHolder;
-                }
-
-                public void visitTwoRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a, int b) {
-                    InstructionHolder insnHolder = new InstructionHolder();
-                    insnHolder.insnFormat = InstructionCodec.getInstructionFormat(opcode);
-                    insnHolder.address = currentAddress;
-                    insnHolder.opcode = opcode;
-                    insnHolder.index = index;
-                    insnHolder.target = target;
-                    insnHolder.literal = literal;
-                    insnHolder.registerCount = 2;
-                    insnHolder.a = a;
-                    insnHolder.b = b;
-                    result[currentAddress] = insnHolder;
-                }
-
-                public void visitThreeRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a, int b, int c) {
-                    InstructionHolder insnHolder = new InstructionHolder();
-                    insnHolder.insnFormat = InstructionCodec.getInstructionFormat(opcode);
-                    insnHolder.address = currentAddress;
-                    insnHolder.opcode = opcode;
-                    insnHolder.index = index;
-                    insnHolder.target = target;
-                    insnHolder.literal = literal;
-                    insnHolder.registerCount = 3;
-                    insnHolder.a = a;
-                    insnHolder.b = b;
-                    insnHolder.c = c;
-                    result[currentAddress] = insnHolder;
-                }
-
-                public void visitFourRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a, int b, int c, int d) {
-                    InstructionHolder insnHolder = new InstructionHolder();
-                    insnHolder.insnFormat = InstructionCodec.getInstructionFormat(opcode);
-                    insnHolder.address = currentAddress;
-                    insnHolder.opcode = opcode;
-                    insnHolder.index = index;
-                    insnHolder.target = target;
-                    insnHolder.literal = literal;
-                    insnHolder.registerCount = 4;
-                    insnHolder.a = a;
-                    insnHolder.b = b;
-                    insnHolder.c = c;
-                    insnHolder.d = d;
-                    result[currentAddress] = insnHolder;
-                }
-
-                public void visitFiveRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a, int b, int c, int d, int e) {
-                    InstructionHolder insnHolder = new InstructionHolder();
-                    insnHolder.insnFormat = InstructionCodec.getInstructionFormat(opcode);
-                    insnHolder.address = currentAddress;
-                    insnHolder.opcode = opcode;
-                    insnHolder.index = index;
-                    insnHolder.target = target;
-                    insnHolder.literal = literal;
-                    insnHolder.registerCount = 5;
-                    insnHolder.a = a;
-                    insnHolder.b = b;
-                    insnHolder.c = c;
-                    insnHolder.d = d;
-                    insnHolder.e = e;
-                    result[currentAddress] = insnHolder;
-                }
-
-                public void visitRegisterRangeInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a, int registerCount) {
-                    InstructionHolder insnHolder = new InstructionHolder();
-                    insnHolder.insnFormat = InstructionCodec.getInstructionFormat(opcode);
-                    insnHolder.address = currentAddress;
-                    insnHolder.opcode = opcode;
-                    insnHolder.index = index;
-                    insnHolder.target = target;
-                    insnHolder.literal = literal;
-                    insnHolder.registerCount = registerCount;
-                    insnHolder.a = a;
-                    result[currentAddress] = insnHolder;
-                }
-
-                public void visitSparseSwitchPayloadInsn(int currentAddress, int opcode, int[] keys, int[] targets) {
-                    SparseSwitchPayloadInsntructionHolder insnHolder = new SparseSwitchPayloadInsntructionHolder();
-                    insnHolder.insnFormat = InstructionCodec.getInstructionFormat(opcode);
-                    insnHolder.address = currentAddress;
-                    insnHolder.opcode = opcode;
-                    insnHolder.keys = keys;
-                    insnHolder.targets = targets;
-                    result[currentAddress] = insnHolder;
-                }
-
-                public void visitPackedSwitchPayloadInsn(int currentAddress, int opcode, int firstKey, int[] targets) {
-                    PackedSwitchPayloadInsntructionHolder insnHolder = new PackedSwitchPayloadInsntructionHolder();
-                    insnHolder.insnFormat = InstructionCodec.getInstructionFormat(opcode);
-                    insnHolder.address = currentAddress;
-                    insnHolder.opcode = opcode;
-                    insnHolder.firstKey = firstKey;
-                    insnHolder.targets = targets;
-                    result[currentAddress] = insnHolder;
-                }
-
-                public void visitFillArrayDataPayloadInsn(int currentAddress, int opcode, Object data, int size, int elementWidth) {
-                    FillArrayDataPayloadInstructionHolder insnHolder = new FillArrayDataPayloadInstructionHolder();
-                    insnHolder.insnFormat = InstructionCodec.getInstructionFormat(opcode);
-                    insnHolder.address = currentAddress;
-                    insnHolder.opcode = opcode;
-                    insnHolder.data = data;
-                    insnHolder.size = size;
-                    insnHolder.elementWidth = elementWidth;
-                    result[currentAddress] = insnHolder;
-                }
-            });
+            result.decode(insns);
         } catch (EOFException e) {
             throw new RuntimeException(e);
         }
         return result;
     }
 
+    /**
+     * Nop instructions are not compared, so that alignment paddings before payloads
+     * do not make two methods different.
+     */
+    private static boolean isComparable(DecodedInstructions decodedInsns, int slot) {
+        return decodedInsns.getOpcode(slot) != Opcodes.NOP;
+    }
+
     public final boolean compare() {
         this.visitedInsnAddrPairs.clear();
 
-        if (this.insnHolders1 == null && this.insnHolders2 == null) {
+        if (this.decodedInsns1 == null && this.decodedInsns2 == null) {
             return true;
         }
 
-        if (this.insnHolders1 == null || this.insnHolders2 == null) {
+        if (this.decodedInsns1 == null || this.decodedInsns2 == null) {
             return false;
         }
 
-        int currAddress1 = 0;
-        int currAddress2 = 0;
-        int insnHolderCount1 = 0;
-        int insnHolderCount2 = 0;
-        while (currAddress1 < insnHolders1.length && currAddress2 < insnHolders2.length) {
-            InstructionHolder insnHolder1 = null;
-            InstructionHolder insnHolder2 = null;
-            while (currAddress1 < insnHolders1.length && insnHolder1 == null) {
-                insnHolder1 = insnHolders1[currAddress1++];
+        final int slotCount1 = decodedInsns1.size();
+        final int slotCount2 = decodedInsns2.size();
+        int currSlot1 = 0;
+        int currSlot2 = 0;
+        int insnCount1 = 0;
+        int insnCount2 = 0;
+        while (currSlot1 < slotCount1 && currSlot2 < slotCount2) {
+            int slot1 = -1;
+            int slot2 = -1;
+            while (currSlot1 < slotCount1 && slot1 < 0) {
+                if (isComparable(decodedInsns1, currSlot1)) {
+                    slot1 = currSlot1;
+                }
+                ++currSlot1;
             }
-            if (insnHolder1 != null) {
-                ++insnHolderCount1;
+            if (slot1 >= 0) {
+                ++insnCount1;
             } else {
                 break;
             }
-            while (currAddress2 < insnHolders2.length && insnHolder2 == null) {
-                insnHolder2 = insnHolders2[currAddress2++];
+            while (currSlot2 < slotCount2 && slot2 < 0) {
+                if (isComparable(decodedInsns2, currSlot2)) {
+                    slot2 = currSlot2;
+                }
+                ++currSlot2;
             }
-            if (insnHolder2 != null) {
-                ++insnHolderCount2;
+            if (slot2 >= 0) {
+                ++insnCount2;
             } else {
                 break;
             }
-            if (!isSameInstruction(insnHolder1, insnHolder2)) {
+            if (!isSameInstructionInSlots(slot1, slot2)) {
                 return false;
             }
         }
-        while (currAddress1 < insnHolders1.length) {
-            if (insnHolders1[currAddress1++] != null) {
+        while (currSlot1 < slotCount1) {
+            if (isComparable(decodedInsns1, currSlot1++)) {
                 return false;
             }
         }
-        while (currAddress2 < insnHolders2.length) {
-            if (insnHolders2[currAddress2++] != null) {
+        while (currSlot2 < slotCount2) {
+            if (isComparable(decodedInsns2, currSlot2++)) {
                 return false;
             }
         }
-        return insnHolderCount1 == insnHolderCount2;
+        return insnCount1 == insnCount2;
     }
 
-    private int getPromotedOpCodeOnDemand(InstructionHolder insn) {
-        final int opcode = insn.opcode;
+    private static int getPromotedOpCodeOnDemand(int opcode) {
         if (opcode == Opcodes.CONST_STRING || opcode == Opcodes.CONST_STRING_JUMBO) {
             return Opcodes.CONST_STRING_JUMBO;
         } else if (opcode == Opcodes.GOTO || opcode == Opcodes.GOTO_16 || opcode == Opcodes.GOTO_32) {
@@ -261,24 +136,34 @@ public abstract class InstructionComparator {
         return opcode;
     }
 
-    public boolean isSameInstruction(int insnAddress1, int insnAddress2) {
-        InstructionHolder insnHolder1 = this.insnHolders1[insnAddress1];
-        InstructionHolder insnHolder2 = this.insnHolders2[insnAddress2];
-        return isSameInstruction(insnHolder1, insnHolder2);
+    private static int getComparableSlot(DecodedInstructions decodedInsns, int insnAddress) {
+        int slot = decodedInsns.getSlot(insnAddress);
+        if (slot >= 0 && !isComparable(decodedInsns, slot)) {
+            return -1;
+        }
+        return slot;
     }
 
-    public boolean isSameInstruction(InstructionHolder insnHolder1, InstructionHolder insnHolder2) {
-        if (insnHolder1 == null && insnHolder2 == null) {
+    public boolean isSameInstruction(int insnAddress1, int insnAddress2) {
+        int slot1 = getComparableSlot(this.decodedInsns1, insnAddress1);
+        int slot2 = getComparableSlot(this.decodedInsns2, insnAddress2);
+        if (slot1 < 0 && slot2 < 0) {
             return true;
         }
-        if (insnHolder1 == null || insnHolder2 == null) {
+        if (slot1 < 0 || slot2 < 0) {
             return false;
         }
-        if (getPromotedOpCodeOnDemand(insnHolder1) != getPromotedOpCodeOnDemand(insnHolder2)) {
+        return isSameInstructionInSlots(slot1, slot2);
+    }
+
+    private boolean isSameInstructionInSlots(int slot1, int slot2) {
+        final DecodedInstructions insns1 = this.decodedInsns1;
+        final DecodedInstructions insns2 = this.decodedInsns2;
+        int opcode = insns1.getOpcode(slot1);
+        if (getPromotedOpCodeOnDemand(opcode) != getPromotedOpCodeOnDemand(insns2.getOpcode(slot2))) {
             return false;
         }
-        int opcode = insnHolder1.opcode;
-        int insnFormat = insnHolder1.insnFormat;
+        int insnFormat = insns1.getFormat(slot1);
         switch (insnFormat) {
             case InstructionCodec.INSN_FORMAT_10T:
             case InstructionCodec.INSN_FORMAT_20T:
@@ -286,11 +171,11 @@ public abstract class InstructionComparator {
             case InstructionCodec.INSN_FORMAT_22T:
             case InstructionCodec.INSN_FORMAT_30T:
             case InstructionCodec.INSN_FORMAT_31T: {
-                final String addrPairStr = insnHolder1.address + "-" + insnHolder2.address;
+                final String addrPairStr = insns1.getAddress(slot1) + "-" + insns2.getAddress(slot2);
                 if (this.visitedInsnAddrPairs.add(addrPairStr)) {
                     // If we haven't compared target insns, following the control flow
                     // and do further compare.
-                    return isSameInstruction(insnHolder1.target, insnHolder2.target);
+                    return isSameInstruction(insns1.getTarget(slot1), insns2.getTarget(slot2));
                 } else {
                     // If we have already compared target insns, here we can return
                     // true directly.
@@ -302,99 +187,63 @@ public abstract class InstructionComparator {
             case InstructionCodec.INSN_FORMAT_31C:
             case InstructionCodec.INSN_FORMAT_35C:
             case InstructionCodec.INSN_FORMAT_3RC: {
-                return compareIndex(opcode, insnHolder1.index, insnHolder2.index);
+                return compareIndex(opcode, insns1.getIndex(slot1), insns2.getIndex(slot2));
             }
             case InstructionCodec.INSN_FORMAT_PACKED_SWITCH_PAYLOAD: {
-                PackedSwitchPayloadInsntructionHolder specInsnHolder1 = (PackedSwitchPayloadInsntructionHolder) insnHolder1;
-                PackedSwitchPayloadInsntructionHolder specInsnHolder2 = (PackedSwitchPayloadInsntructionHolder) insnHolder2;
-                if (specInsnHolder1.firstKey != specInsnHolder2.firstKey) {
+                if (insns1.getPackedSwitchFirstKey(slot1) != insns2.getPackedSwitchFirstKey(slot2)) {
                     return false;
                 }
-                if (specInsnHolder1.targets.length != specInsnHolder2.targets.length) {
+                if (insns1.getPayloadSize(slot1) != insns2.getPayloadSize(slot2)) {
                     return false;
                 }
-                int targetCount = specInsnHolder1.targets.length;
+                int targetCount = insns1.getPayloadSize(slot1);
                 for (int i = 0; i < targetCount; ++i) {
-                    if (!isSameInstruction(specInsnHolder1.targets[i], specInsnHolder2.targets[i])) {
+                    if (!isSameInstruction(insns1.getSwitchTarget(slot1, i), insns2.getSwitchTarget(slot2, i))) {
                         return false;
                     }
                 }
                 return true;
             }
             case InstructionCodec.INSN_FORMAT_SPARSE_SWITCH_PAYLOAD: {
-                SparseSwitchPayloadInsntructionHolder specInsnHolder1 = (SparseSwitchPayloadInsntructionHolder) insnHolder1;
-                SparseSwitchPayloadInsntructionHolder specInsnHolder2 = (SparseSwitchPayloadInsntructionHolder) insnHolder2;
-                if (CompareUtils.uArrCompare(specInsnHolder1.keys, specInsnHolder2.keys) != 0) {
+                if (insns1.getPayloadSize(slot1) != insns2.getPayloadSize(slot2)) {
                     return false;
                 }
-                if (specInsnHolder1.targets.length != specInsnHolder2.targets.length) {
-                    return false;
+                int targetCount = insns1.getPayloadSize(slot1);
+                for (int i = 0; i < targetCount; ++i) {
+                    if (insns1.getSparseSwitchKey(slot1, i) != insns2.getSparseSwitchKey(slot2, i)) {
+                        return false;
+                    }
                 }
-                int targetCount = specInsnHolder1.targets.length;
                 for (int i = 0; i < targetCount; ++i) {
-                    if (!isSameInstruction(specInsnHolder1.targets[i], specInsnHolder2.targets[i])) {
+                    if (!isSameInstruction(insns1.getSwitchTarget(slot1, i), insns2.getSwitchTarget(slot2, i))) {
                         return false;
                     }
                 }
                 return true;
             }
             case InstructionCodec.INSN_FORMAT_FILL_ARRAY_DATA_PAYLOAD: {
-                FillArrayDataPayloadInstructionHolder specInsnHolder1 = (FillArrayDataPayloadInstructionHolder) insnHolder1;
-                FillArrayDataPayloadInstructionHolder specInsnHolder2 = (FillArrayDataPayloadInstructionHolder) insnHolder2;
-                if (specInsnHolder1.elementWidth != specInsnHolder2.elementWidth) {
-                    return false;
-                }
-                if (specInsnHolder1.size != specInsnHolder2.size) {
-                    return false;
-                }
-
-                int elementWidth = specInsnHolder1.elementWidth;
-                switch (elementWidth) {
-                    case 1: {
-                        byte[] array1 = (byte[]) specInsnHolder1.data;
-                        byte[] array2 = (byte[]) specInsnHolder2.data;
-                        return CompareUtils.uArrCompare(array1, array2) == 0;
-                    }
-                    case 2: {
-                        short[] array1 = (short[]) specInsnHolder1.data;
-                        short[] array2 = (short[]) specInsnHolder2.data;
-                        return CompareUtils.uArrCompare(array1, array2) == 0;
-                    }
-                    case 4: {
-                        int[] array1 = (int[]) specInsnHolder1.data;
-                        int[] array2 = (int[]) specInsnHolder2.data;
-                        return CompareUtils.uArrCompare(array1, array2) == 0;
-                    }
-                    case 8: {
-                        long[] array1 = (long[]) specInsnHolder1.data;
-                        long[] array2 = (long[]) specInsnHolder2.data;
-                        return CompareUtils.sArrCompare(array1, array2) == 0;
-                    }
-                    default: {
-                        throw new DexException("bogus element_width: " + Hex.u2(elementWidth));
-                    }
-                }
+                return insns1.isSameFillArrayData(slot1, insns2, slot2);
             }
             default: {
-                if (insnHolder1.literal != insnHolder2.literal) {
+                if (insns1.getLiteral(slot1) != insns2.getLiteral(slot2)) {
                     return false;
                 }
-                if (insnHolder1.registerCount != insnHolder2.registerCount) {
+                if (insns1.getRegisterCount(slot1) != insns2.getRegisterCount(slot2)) {
                     return false;
                 }
-                if (insnHolder1.a != insnHolder2.a) {
+                if (insns1.getA(slot1) != insns2.getA(slot2)) {
                     return false;
                 }
-                if (insnHolder1.b != insnHolder2.b) {
+                if (insns1.getB(slot1) != insns2.getB(slot2)) {
                     return false;
                 }
-                if (insnHolder1.c != insnHolder2.c) {
+                if (insns1.getC(slot1) != insns2.getC(slot2)) {
                     return false;
                 }
-                if (insnHolder1.d != insnHolder2.d) {
+                if (insns1.getD(slot1) != insns2.getD(slot2)) {
                     return false;
                 }
-                if (insnHolder1.e != insnHolder2.e) {
+                if (insns1.getE(slot1) != insns2.getE(slot2)) {
                     return false;
                 }
                 return true;
@@ -403,7 +252,7 @@ public abstract class InstructionComparator {
     }
 
     private boolean compareIndex(int opcode, int index1, int index2) {
-        switch (InstructionCodec.getInstructionIndexType(opcode)) {
+        switch (InstructionTable.getIndexType(opcode)) {
             case InstructionCodec.INDEX_TYPE_STRING_REF: {
                 return compareString(index1, index2);
             }
@@ -429,35 +278,4 @@ public abstract class InstructionComparator {
     protected abstract boolean compareField(int fieldIndex1, int fieldIndex2);
 
     protected abstract boolean compareMethod(int methodIndex1, int methodIndex2);
-
-    private static class InstructionHolder {
-        int insnFormat = InstructionCodec.INSN_FORMAT_UNKNOWN;
-        int address = -1;
-        int opcode = -1;
-        int index = 0;
-        int target = 0;
-        long literal = 0L;
-        int registerCount = 0;
-        int a = 0;
-        int b = 0;
-        int c = 0;
-        int d = 0;
-        int e = 0;
-    }
-
-    private static class SparseSwitchPayloadInsntructionHolder extends InstructionHolder {
-        int[] keys = null;
-        int[] targets = null;
-    }
-
-    private static class PackedSwitchPayloadInsntructionHolder extends InstructionHolder {
-        int firstKey = 0;
-        int[] targets = null;
-    }
-
-    private static class FillArrayDataPayloadInstructionHolder extends InstructionHolder {
-        Object data = null;
-        int size = 0;
-        int elementWidth = 0;
-    }
 }
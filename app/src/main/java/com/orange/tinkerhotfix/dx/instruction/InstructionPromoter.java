@@ -56,6 +56,54 @@ public final class InstructionPromoter extends InstructionVisitor {
         return addressMap.size();
     }
 
+    /**
+     * Collects address mappings for all instructions in {@code decodedInsns}, with the same
+     * result as visiting them one by one. Only gotos and const-strings may change their widths,
+     * the others simply take as many code units as they do in {@code decodedInsns}.
+     */
+    public void visitDecodedInstructions(DecodedInstructions decodedInsns) {
+        final int count = decodedInsns.size();
+        for (int slot = 0; slot < count; ++slot) {
+            mapAddressIfNeeded(decodedInsns.getAddress(slot));
+            switch (decodedInsns.getOpcode(slot)) {
+                case Opcodes.GOTO: {
+                    int relativeTarget = InstructionCodec.getTarget(decodedInsns.getTarget(slot), this.currentPromotedAddress);
+                    if (relativeTarget != (byte) relativeTarget) {
+                        if (relativeTarget != (short) relativeTarget) {
+                            this.currentPromotedAddress += 3;
+                        } else {
+                            this.currentPromotedAddress += 2;
+                        }
+                    } else {
+                        this.currentPromotedAddress += 1;
+                    }
+                    break;
+                }
+                case Opcodes.GOTO_16: {
+                    int relativeTarget = InstructionCodec.getTarget(decodedInsns.getTarget(slot), this.currentPromotedAddress);
+                    if (relativeTarget != (short) relativeTarget) {
+                        this.currentPromotedAddress += 3;
+                    } else {
+                        this.currentPromotedAddress += 2;
+                    }
+                    break;
+                }
+                case Opcodes.CONST_STRING: {
+                    if (decodedInsns.getIndex(slot) > 0xFFFF) {
+                        this.currentPromotedAddress += 3;
+                    } else {
+                        this.currentPromotedAddress += 2;
+                    }
+                    break;
+                }
+                default: {
+                    this.currentPromotedAddress += decodedInsns.getWidth(slot);
+                    break;
+                }
+            }
+        }
+    }
+
     @Override
     public void visitZeroRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal) {
         mapAddressIfNeeded(currentAddress);
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.tinkerhotfix.dx.instruction;
+
+/**
+ * *** This file is NOT a part of AOSP. ***
+ *
+ * Per-opcode format, index type and width, computed once from {@link InstructionCodec}
+ * so that decoding passes do not have to go through its switch statements for every instruction.
+ */
+public final class InstructionTable {
+    /**
+     * Opcodes extracted by {@link Opcodes#extractOpcodeFromUnit(int)} below this value
+     * are looked up in the tables, which covers all real opcodes and the payload pseudo-opcodes.
+     */
+    private static final int OPCODE_TABLE_SIZE = Opcodes.FILL_ARRAY_DATA_PAYLOAD + 1;
+
+    private static final byte[] FORMATS = new byte[OPCODE_TABLE_SIZE];
+    private static final byte[] INDEX_TYPES = new byte[OPCODE_TABLE_SIZE];
+
+    /** Code units taken by each fixed size format, 0 for payloads and unknown formats. */
+    private static final byte[] FORMAT_WIDTHS = new byte[InstructionCodec.INSN_FORMAT_SPARSE_SWITCH_PAYLOAD + 1];
+
+    static {
+        for (int opcode = 0; opcode < OPCODE_TABLE_SIZE; ++opcode) {
+            FORMATS[opcode] = (byte) InstructionCodec.getInstructionFormat(opcode);
+            INDEX_TYPES[opcode] = (byte) InstructionCodec.getInstructionIndexType(opcode);
+        }
+
+        FORMAT_WIDTHS[InstructionCodec.INSN_FORMAT_10T] = 1;
+        FORMAT_WIDTHS[InstructionCodec.INSN_FORMAT_10X] = 1;
+        FORMAT_WIDTHS[InstructionCodec.INSN_FORMAT_11N] = 1;
+        FORMAT_WIDTHS[InstructionCodec.INSN_FORMAT_11X] = 1;
+        FORMAT_WIDTHS[InstructionCodec.INSN_FORMAT_12X] = 1;
+        FORMAT_WIDTHS[InstructionCodec.INSN_FORMAT_20T] = 2;
+        FORMAT_WIDTHS[InstructionCodec.INSN_FORMAT_21C] = 2;
+        FORMAT_WIDTHS[InstructionCodec.INSN_FORMAT_21H] = 2;
+        FORMAT_WIDTHS[InstructionCodec.INSN_FORMAT_21S] = 2;
+        FORMAT_WIDTHS[InstructionCodec.INSN_FORMAT_21T] = 2;
+        FORMAT_WIDTHS[InstructionCodec.INSN_FORMAT_22B] = 2;
+        FORMAT_WIDTHS[InstructionCodec.INSN_FORMAT_22C] = 2;
+        FORMAT_WIDTHS[InstructionCodec.INSN_FORMAT_22S] = 2;
+        FORMAT_WIDTHS[InstructionCodec.INSN_FORMAT_22T] = 2;
+        FORMAT_WIDTHS[InstructionCodec.INSN_FORMAT_22X] = 2;
+        FORMAT_WIDTHS[InstructionCodec.INSN_FORMAT_23X] = 2;
+        FORMAT_WIDTHS[InstructionCodec.INSN_FORMAT_30T] = 3;
+        FORMAT_WIDTHS[InstructionCodec.INSN_FORMAT_31C] = 3;
+        FORMAT_WIDTHS[InstructionCodec.INSN_FORMAT_31I] = 3;
+        FORMAT_WIDTHS[InstructionCodec.INSN_FORMAT_31T] = 3;
+        FORMAT_WIDTHS[InstructionCodec.INSN_FORMAT_32X] = 3;
+        FORMAT_WIDTHS[InstructionCodec.INSN_FORMAT_35C] = 3;
+        FORMAT_WIDTHS[InstructionCodec.INSN_FORMAT_3RC] = 3;
+        FORMAT_WIDTHS[InstructionCodec.INSN_FORMAT_51L] = 5;
+    }
+
+    /**
+     * This class is uninstantiable.
+     */
+    private InstructionTable() {
+        // This space intentionally left blank.
+    }
+
+    /**
+     * Returns the format of {@code opcode}, which should be the result of
+     * {@link Opcodes#extractOpcodeFromUnit(int)}.
+     */
+    public static int getFormat(int opcode) {
+        if (opcode < 0 || opcode >= OPCODE_TABLE_SIZE) {
+            return InstructionCodec.INSN_FORMAT_UNKNOWN;
+        }
+        return FORMATS[opcode];
+    }
+
+    /**
+     * Returns the index type of {@code opcode}, which should be the result of
+     * {@link Opcodes#extractOpcodeFromUnit(int)}.
+     */
+    public static int getIndexType(int opcode) {
+        if (opcode < 0 || opcode >= OPCODE_TABLE_SIZE) {
+            return InstructionCodec.INDEX_TYPE_UNKNOWN;
+        }
+        return INDEX_TYPES[opcode];
+    }
+
+    /**
+     * Returns code units taken by instructions in {@code format}, or 0 if the
+     * width depends on the payload or the format is unknown.
+     */
+    public static int getFormatWidth(int format) {
+        return FORMAT_WIDTHS[format];
+    }
+
+    /**
+     * Returns code units taken by the instruction at {@code address}, or -1 if the instruction
+     * is unknown, or its payload header is truncated or malformed.
+     */
+    public static int getWidth(short[] insns, int address) {
+        final int opcode = Opcodes.extractOpcodeFromUnit(insns[address] & 0xffff);
+        final int format = getFormat(opcode);
+        final int width = FORMAT_WIDTHS[format];
+        if (width != 0) {
+            return width;
+        }
+        switch (format) {
+            case InstructionCodec.INSN_FORMAT_PACKED_SWITCH_PAYLOAD: {
+                if (address + 1 >= insns.length) {
+                    return -1;
+                }
+                int size = insns[address + 1] & 0xffff;
+                return 4 + size * 2;
+            }
+            case InstructionCodec.INSN_FORMAT_SPARSE_SWITCH_PAYLOAD: {
+                if (address + 1 >= insns.length) {
+                    return -1;
+                }
+                int size = insns[address + 1] & 0xffff;
+                return 2 + size * 4;
+            }
+            case InstructionCodec.INSN_FORMAT_FILL_ARRAY_DATA_PAYLOAD: {
+                if (address + 3 >= insns.length) {
+                    return -1;
+                }
+                int elementWidth = insns[address + 1] & 0xffff;
+                if (elementWidth != 1 && elementWidth != 2 && elementWidth != 4 && elementWidth != 8) {
+                    return -1;
+                }
+                long size = (insns[address + 2] & 0xffffL) | ((insns[address + 3] & 0xffffL) << 16);
+                long payloadWidth = 4 + (size * elementWidth + 1) / 2;
+                return (payloadWidth > insns.length ? -1 : (int) payloadWidth);
+            }
+            default: {
+                return -1;
+            }
+        }
+    }
+}
@@ -18,6 +18,7 @@ package com.orange.tinkerhotfix.party;
 
 
 import com.orange.tinkerhotfix.party.util.CompareUtils;
+import com.orange.tinkerhotfix.party.util.FingerprintHelper;
 import com.orange.tinkerhotfix.party.util.HashCodeHelper;
 
 public final class ClassData extends TableOfContents.Section.Item<ClassData> {
@@ -58,6 +59,36 @@ public final class ClassData extends TableOfContents.Section.Item<ClassData> {
         return HashCodeHelper.hash(staticFields, instanceFields, directMethods, virtualMethods);
     }
 
+    /**
+     * 64-bit hash of everything {@link #compareTo} looks at, equal class data have the same fingerprint.
+     */
+    public long fingerprint() {
+        long h = FingerprintHelper.SEED;
+        h = mixFields(h, staticFields);
+        h = mixFields(h, instanceFields);
+        h = mixMethods(h, directMethods);
+        return mixMethods(h, virtualMethods);
+    }
+
+    private static long mixFields(long h, Field[] fields) {
+        h = FingerprintHelper.mix(h, fields.length);
+        for (Field field : fields) {
+            h = FingerprintHelper.mix(h, field.fieldIndex);
+            h = FingerprintHelper.mix(h, field.accessFlags);
+        }
+        return h;
+    }
+
+    private static long mixMethods(long h, Method[] methods) {
+        h = FingerprintHelper.mix(h, methods.length);
+        for (Method method : methods) {
+            h = FingerprintHelper.mix(h, method.methodIndex);
+            h = FingerprintHelper.mix(h, method.accessFlags);
+            h = FingerprintHelper.mix(h, method.codeOffset);
+        }
+        return h;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (!(obj instanceof ClassData)) {
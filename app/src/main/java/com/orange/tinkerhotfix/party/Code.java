@@ -18,6 +18,7 @@ package com.orange.tinkerhotfix.party;
 
 
 import com.orange.tinkerhotfix.party.util.CompareUtils;
+import com.orange.tinkerhotfix.party.util.FingerprintHelper;
 import com.orange.tinkerhotfix.party.util.HashCodeHelper;
 
 public final class Code extends TableOfContents.Section.Item<Code> {
@@ -76,6 +77,31 @@ public final class Code extends TableOfContents.Section.Item<Code> {
                 insSize, outsSize, debugInfoOffset, instructions, tries, catchHandlers);
     }
 
+    /**
+     * 64-bit hash of everything {@link #compareTo} looks at, equal codes have the same fingerprint.
+     */
+    public long fingerprint() {
+        long h = FingerprintHelper.SEED;
+        h = FingerprintHelper.mix(h, registersSize);
+        h = FingerprintHelper.mix(h, insSize);
+        h = FingerprintHelper.mix(h, outsSize);
+        h = FingerprintHelper.mix(h, debugInfoOffset);
+        h = FingerprintHelper.mix(h, instructions);
+        h = FingerprintHelper.mix(h, tries.length);
+        for (Try tryItem : tries) {
+            h = FingerprintHelper.mix(h, tryItem.startAddress);
+            h = FingerprintHelper.mix(h, tryItem.instructionCount);
+            h = FingerprintHelper.mix(h, tryItem.catchHandlerIndex);
+        }
+        h = FingerprintHelper.mix(h, catchHandlers.length);
+        for (CatchHandler catchHandler : catchHandlers) {
+            h = FingerprintHelper.mix(h, catchHandler.typeIndexes);
+            h = FingerprintHelper.mix(h, catchHandler.addresses);
+            h = FingerprintHelper.mix(h, catchHandler.catchAllAddress);
+        }
+        return h;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (!(obj instanceof Code)) {
@@ -16,6 +16,7 @@
 
 package com.orange.tinkerhotfix.party;
 import com.orange.tinkerhotfix.party.util.CompareUtils;
+import com.orange.tinkerhotfix.party.util.FingerprintHelper;
 import com.orange.tinkerhotfix.party.util.HashCodeHelper;
 
 /**
@@ -67,6 +68,16 @@ public class DebugInfoItem extends TableOfContents.Section.Item<DebugInfoItem> {
         return HashCodeHelper.hash(lineStart, parameterNames, infoSTM);
     }
 
+    /**
+     * 64-bit hash of everything {@link #compareTo} looks at, equal items have the same fingerprint.
+     */
+    public long fingerprint() {
+        long h = FingerprintHelper.SEED;
+        h = FingerprintHelper.mix(h, lineStart);
+        h = FingerprintHelper.mix(h, parameterNames);
+        return FingerprintHelper.mix(h, infoSTM);
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (!(obj instanceof DebugInfoItem)) {
@@ -20,6 +20,8 @@ package com.orange.tinkerhotfix.party;
 
 import com.orange.tinkerhotfix.party.io.DexDataBuffer;
 import com.orange.tinkerhotfix.party.util.FileUtils;
+import com.orange.tinkerhotfix.patch.ziputils.TinkerZipEntry;
+import com.orange.tinkerhotfix.patch.ziputils.TinkerZipFile;
 
 import org.jf.util.Hex;
 
@@ -31,14 +33,19 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.AbstractList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.RandomAccess;
 import java.util.zip.Adler32;
@@ -66,6 +73,12 @@ public final class Dex {
     private ByteBuffer data;
     private int nextSectionStart = 0;
     private byte[] signature = null;
+    /**
+     * Decoded strings indexed by string index, null if string cache is not enabled.
+     * Slots are filled by {@code StringTable} on first access.
+     */
+    private volatile String[] cachedStrings = null;
+    private volatile Map<String, Integer> descriptorToTypeIndexMap = null;
 
     /**
      * Creates a new dex that reads from {@code data}. It is an error to modify
@@ -85,11 +98,41 @@ public final class Dex {
      * Creates a new empty dex of the specified size.
      */
     public Dex(int byteCount) {
-        this.data = ByteBuffer.wrap(new byte[byteCount]);
+        this(ByteBuffer.wrap(new byte[byteCount]), byteCount);
+    }
+
+    private Dex(ByteBuffer emptyData, int byteCount) {
+        this.data = emptyData;
         this.data.order(ByteOrder.LITTLE_ENDIAN);
         this.tableOfContents.fileSize = byteCount;
     }
 
+    /**
+     * Creates a new empty dex of the specified size backed by a writable memory mapping
+     * of {@code file}, so bytes written to its sections go to {@code file} directly instead
+     * of a copy in heap. Previous content of {@code file} is discarded.
+     *
+     * Call {@link #flush()} after all things are written.
+     */
+    public static Dex createMapped(File file, int byteCount) throws IOException {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            // Truncate first so that unwritten gaps between sections are filled with zero.
+            raf.setLength(0);
+            raf.setLength(byteCount);
+            return new Dex(raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, byteCount), byteCount);
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (Exception e) {
+                    // ignored.
+                }
+            }
+        }
+    }
+
     /**
      * Creates a new dex buffer of the dex in {@code in}, and closes {@code in}.
      */
@@ -156,6 +199,88 @@ public final class Dex {
         }
     }
 
+    /**
+     * Creates a new dex backed by a read-only memory mapping of the dex file {@code file}
+     * instead of a copy in heap. If {@code file} is an archive, its
+     * {@link DexFormat#DEX_IN_JAR_NAME} entry is used.
+     *
+     * @see #mapFrom(File, String)
+     */
+    public static Dex mapFrom(File file) throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException("file is null.");
+        }
+        if (FileUtils.hasArchiveSuffix(file.getName())) {
+            return mapFrom(file, DexFormat.DEX_IN_JAR_NAME);
+        } else if (file.getName().endsWith(".dex")) {
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(file, "r");
+                return new Dex(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+            } finally {
+                if (raf != null) {
+                    try {
+                        raf.close();
+                    } catch (Exception e) {
+                        // ignored.
+                    }
+                }
+            }
+        } else {
+            throw new DexException("unknown output extension: " + file);
+        }
+    }
+
+    /**
+     * Creates a new dex of entry {@code entryName} in archive {@code archiveFile}. A
+     * {@code STORED} entry is mapped into memory directly, while a compressed one
+     * is inflated into heap as {@link #Dex(File)} does.
+     *
+     * Notice: a mapped dex is read-only, and the mapped file should not be modified
+     * while the dex is in use.
+     */
+    public static Dex mapFrom(File archiveFile, String entryName) throws IOException {
+        TinkerZipFile zipFile = null;
+        try {
+            zipFile = new TinkerZipFile(archiveFile);
+            TinkerZipEntry entry = zipFile.getEntry(entryName);
+            if (entry == null) {
+                throw new DexException("Expected " + entryName + " in " + archiveFile);
+            }
+            if (entry.getMethod() == TinkerZipEntry.STORED) {
+                return new Dex(zipFile.mapStoredEntry(entry));
+            }
+        } finally {
+            if (zipFile != null) {
+                try {
+                    zipFile.close();
+                } catch (Exception e) {
+                    // ignored.
+                }
+            }
+        }
+
+        ZipFile inflatingZipFile = null;
+        InputStream inputStream = null;
+        try {
+            inflatingZipFile = new ZipFile(archiveFile);
+            ZipEntry entry = inflatingZipFile.getEntry(entryName);
+            inputStream = inflatingZipFile.getInputStream(entry);
+            return new Dex(inputStream, (int) entry.getSize());
+        } finally {
+            if (inputStream != null) {
+                inputStream.close();
+            }
+            if (inflatingZipFile != null) {
+                try {
+                    inflatingZipFile.close();
+                } catch (Exception e) {
+                    // ignored.
+                }
+            }
+        }
+    }
+
     private static void checkBounds(int index, int length) {
         if (index < 0 || index >= length) {
             throw new IndexOutOfBoundsException("index:" + index + ", length=" + length);
@@ -173,9 +298,30 @@ public final class Dex {
         this.tableOfContents.readFrom(this);
     }
 
+    /**
+     * Forces changes of a dex created by {@link #createMapped(File, int)} to be written
+     * to its file. Does nothing for other dexes.
+     */
+    public void flush() {
+        if (data instanceof MappedByteBuffer && !data.isReadOnly()) {
+            ((MappedByteBuffer) data).force();
+        }
+    }
+
     public void writeTo(OutputStream out) throws IOException {
-        byte[] rawData = data.array();
-        out.write(rawData);
+        if (data.hasArray()) {
+            out.write(data.array(), data.arrayOffset(), data.capacity());
+        } else {
+            // Mapped dex has no backing array.
+            byte[] buffer = new byte[8192];
+            ByteBuffer data = this.data.duplicate();
+            data.clear();
+            while (data.hasRemaining()) {
+                int count = Math.min(buffer.length, data.remaining());
+                data.get(buffer, 0, count);
+                out.write(buffer, 0, count);
+            }
+        }
         out.flush();
     }
 
@@ -266,6 +412,47 @@ public final class Dex {
         return result;
     }
 
+    /**
+     * Returns the array holding exactly the bytes of this dex without copying them, or null
+     * if this dex is not kept in such an array, e.g. it is memory mapped.
+     *
+     * The returned array is shared with this dex and must not be modified.
+     */
+    public byte[] getBackingArray() {
+        if (data.hasArray() && data.arrayOffset() == 0 && data.array().length == data.capacity()) {
+            return data.array();
+        }
+        return null;
+    }
+
+    /**
+     * Keep decoded strings in memory so that repeated lookups by {@link #strings()},
+     * {@link #typeNames()} and {@link #findTypeIndex(String)} won't decode MUTF-8 again.
+     *
+     * Strings are decoded on first access, or all at once if {@code decodeEagerly} is true.
+     * Notice: it makes no sense to enable string cache on a dex being written.
+     */
+    public synchronized void enableStringCache(boolean decodeEagerly) {
+        String[] cache = cachedStrings;
+        if (cache == null) {
+            cache = new String[tableOfContents.stringIds.size];
+        }
+        if (decodeEagerly && tableOfContents.stringIds.exists()) {
+            Section stringIdsSec = openSection(tableOfContents.stringIds);
+            for (int i = 0; i < cache.length; ++i) {
+                int stringOff = stringIdsSec.readInt();
+                if (cache[i] == null) {
+                    cache[i] = openSection(stringOff).readStringData().value;
+                }
+            }
+        }
+        cachedStrings = cache;
+    }
+
+    public boolean isStringCacheEnabled() {
+        return cachedStrings != null;
+    }
+
     public List<String> strings() {
         return strings;
     }
@@ -373,8 +560,73 @@ public final class Dex {
      * writes them to the file.
      */
     public void writeHashes() throws IOException {
-        openSection(SIGNATURE_OFFSET).write(computeSignature(true));
-        openSection(CHECKSUM_OFFSET).writeInt(computeChecksum());
+        // Signature covers bytes after itself while checksum covers the signature as well.
+        // So we digest bytes after signature for both of them in one pass, then combine
+        // checksum of the new signature with checksum of these bytes.
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError();
+        }
+        Adler32 adler32AfterSignature = new Adler32();
+        byte[] buffer = new byte[8192];
+        ByteBuffer data = this.data.duplicate(); // positioned ByteBuffers aren't thread safe
+        data.limit(data.capacity());
+        data.position(SIGNATURE_OFFSET + SizeOf.SIGNATURE);
+        int byteCountAfterSignature = data.remaining();
+        while (data.hasRemaining()) {
+            int count = Math.min(buffer.length, data.remaining());
+            data.get(buffer, 0, count);
+            digest.update(buffer, 0, count);
+            adler32AfterSignature.update(buffer, 0, count);
+        }
+        this.signature = digest.digest();
+
+        Adler32 adler32OfSignature = new Adler32();
+        adler32OfSignature.update(this.signature);
+        int checksum = combineAdler32(
+                adler32OfSignature.getValue(), adler32AfterSignature.getValue(), byteCountAfterSignature
+        );
+
+        openSection(SIGNATURE_OFFSET).write(this.signature);
+        openSection(CHECKSUM_OFFSET).writeInt(checksum);
+    }
+
+    /**
+     * Returns Adler32 of sequence A + B from Adler32 of A, Adler32 of B and length of B,
+     * the same as adler32_combine in zlib.
+     */
+    private static int combineAdler32(long adler1, long adler2, long len2) {
+        final long base = 65521;
+        long rem = len2 % base;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (rem * sum1) % base;
+        sum1 += (adler2 & 0xffff) + base - 1;
+        sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + base - rem;
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum2 >= (base << 1)) {
+            sum2 -= (base << 1);
+        }
+        if (sum2 >= base) {
+            sum2 -= base;
+        }
+        return (int) (sum1 | (sum2 << 16));
+    }
+
+    /**
+     * Look up a field id declaring class index from a field index. Cheaper than:
+     * {@code fieldIds().get(fieldDexIndex).getDeclaringClassIndex();}
+     */
+    public int declaringClassIndexFromFieldIndex(int fieldIndex) {
+        checkBounds(fieldIndex, tableOfContents.fieldIds.size);
+        int position = tableOfContents.fieldIds.off + (SizeOf.MEMBER_ID_ITEM * fieldIndex);
+        return data.getShort(position) & 0xFFFF;  // declaringClassIndex
     }
 
     /**
@@ -394,9 +646,33 @@ public final class Dex {
     }
 
     public int findTypeIndex(String descriptor) {
+        if (cachedStrings != null) {
+            Integer typeIndex = getDescriptorToTypeIndexMap().get(descriptor);
+            if (typeIndex != null) {
+                return typeIndex;
+            }
+        }
         return Collections.binarySearch(typeNames, descriptor);
     }
 
+    private Map<String, Integer> getDescriptorToTypeIndexMap() {
+        Map<String, Integer> result = descriptorToTypeIndexMap;
+        if (result == null) {
+            synchronized (this) {
+                result = descriptorToTypeIndexMap;
+                if (result == null) {
+                    int typeIdCount = tableOfContents.typeIds.size;
+                    result = new HashMap<>(typeIdCount * 4 / 3 + 1);
+                    for (int i = 0; i < typeIdCount; ++i) {
+                        result.put(typeNames.get(i), i);
+                    }
+                    descriptorToTypeIndexMap = result;
+                }
+            }
+        }
+        return result;
+    }
+
     public int findFieldIndex(FieldId fieldId) {
         return Collections.binarySearch(fieldIds, fieldId);
     }
@@ -883,8 +1159,17 @@ public final class Dex {
     private final class StringTable extends AbstractList<String> implements RandomAccess {
         @Override public String get(int index) {
             checkBounds(index, tableOfContents.stringIds.size);
-            int stringOff = openSection(tableOfContents.stringIds.off + (index * SizeOf.STRING_ID_ITEM)).readInt();
-            return openSection(stringOff).readStringData().value;
+            String[] cache = cachedStrings;
+            if (cache != null && cache[index] != null) {
+                return cache[index];
+            }
+            int stringOff = data.getInt(tableOfContents.stringIds.off + (index * SizeOf.STRING_ID_ITEM));
+            String result = openSection(stringOff).readStringData().value;
+            if (cache != null) {
+                // Racing threads may decode the same string, which is harmless.
+                cache[index] = result;
+            }
+            return result;
         }
         @Override public int size() {
             return tableOfContents.stringIds.size;
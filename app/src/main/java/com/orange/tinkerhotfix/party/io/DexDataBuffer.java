@@ -584,6 +584,35 @@ public class DexDataBuffer implements ByteInput, ByteOutput {
         }
     }
 
+    /**
+     * Returns true if {@code byteCount} bytes starting at {@code offset} of this buffer are
+     * the same as those starting at {@code otherOffset} of {@code other}.
+     */
+    public boolean contentEquals(int offset, DexDataBuffer other, int otherOffset, int byteCount) {
+        ByteBuffer thisData = this.data.duplicate();
+        thisData.limit(offset + byteCount);
+        thisData.position(offset);
+        ByteBuffer otherData = other.data.duplicate();
+        otherData.limit(otherOffset + byteCount);
+        otherData.position(otherOffset);
+        return thisData.equals(otherData);
+    }
+
+    /**
+     * Copies {@code byteCount} bytes starting at {@code srcOffset} of {@code src} to current
+     * position of this buffer. Position of {@code src} is not changed.
+     */
+    public void write(DexDataBuffer src, int srcOffset, int byteCount) {
+        ensureBufferSize(byteCount * SizeOf.UBYTE);
+        ByteBuffer srcData = src.data.duplicate();
+        srcData.limit(srcOffset + byteCount);
+        srcData.position(srcOffset);
+        this.data.put(srcData);
+        if (this.data.position() > this.dataBound) {
+            this.dataBound = this.data.position();
+        }
+    }
+
     public void write(short[] shorts) {
         ensureBufferSize(shorts.length * SizeOf.USHORT);
         for (short s : shorts) {
@@ -0,0 +1,66 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.tinkerhotfix.party.util;
+
+/**
+ * *** This file is NOT a part of AOSP. ***
+ *
+ * Helpers for building 64-bit fingerprints of dex items. Unlike {@link HashCodeHelper}
+ * nothing is boxed, so it is cheap enough to fingerprint every item of a large section.
+ */
+public final class FingerprintHelper {
+    public static final long SEED = 0xCBF29CE484222325L;
+
+    private static final long MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    public static long mix(long h, int value) {
+        h = (h ^ (value & 0xFFFFFFFFL)) * MULTIPLIER;
+        return h ^ (h >>> 29);
+    }
+
+    public static long mix(long h, byte[] values) {
+        h = mix(h, values.length);
+        for (byte value : values) {
+            h = mix(h, value);
+        }
+        return h;
+    }
+
+    public static long mix(long h, short[] values) {
+        h = mix(h, values.length);
+        int i = 0;
+        for (; i + 1 < values.length; i += 2) {
+            h = mix(h, (values[i] & 0xFFFF) | (values[i + 1] << 16));
+        }
+        if (i < values.length) {
+            h = mix(h, values[i]);
+        }
+        return h;
+    }
+
+    public static long mix(long h, int[] values) {
+        h = mix(h, values.length);
+        for (int value : values) {
+            h = mix(h, value);
+        }
+        return h;
+    }
+
+    private FingerprintHelper() {
+        throw new UnsupportedOperationException();
+    }
+}
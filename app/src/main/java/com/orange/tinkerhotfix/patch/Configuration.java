@@ -18,8 +18,10 @@ package com.orange.tinkerhotfix.patch;
 
 
 
+import com.orange.tinkerhotfix.patch.util.BaselineIndex;
 import com.orange.tinkerhotfix.patch.util.FileOperation;
 import com.orange.tinkerhotfix.patch.util.IOHelper;
+import com.orange.tinkerhotfix.patch.util.ParsedDexRegistry;
 import com.orange.tinkerhotfix.patch.util.TypedValue;
 import com.orange.tinkerhotfix.patch.util.Utils;
 
@@ -35,8 +37,11 @@ import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.regex.Pattern;
 
 import javax.xml.parsers.DocumentBuilder;
@@ -47,7 +52,7 @@ import javax.xml.parsers.ParserConfigurationException;
  * @author zhangshaowen
  *         do not use Logger here
  */
-public class Configuration {
+public class Configuration implements Cloneable {
 
     protected static final String TAG_ISSUE = "issue";
     protected static final String DEX_ISSUE = "dex";
@@ -70,11 +75,15 @@ public class Configuration {
     protected static final String ATTR_SUPPORT_HOTPLUG_COMPONENT = "supportHotplugComponent";
     protected static final String ATTR_USE_SIGN                  = "useSign";
     protected static final String ATTR_SEVEN_ZIP_PATH            = "sevenZipPath";
+    protected static final String ATTR_BSDIFF_USE_SAIS           = "bsDiffUseSais";
+    protected static final String ATTR_BSDIFF_WINDOW_SIZE        = "bsDiffWindowSize";
+    protected static final String ATTR_BASELINE_INDEX_DIR        = "baselineIndexDir";
     protected static final String ATTR_DEX_MODE                  = "dexMode";
     protected static final String ATTR_PATTERN                   = "pattern";
     protected static final String ATTR_IGNORE_CHANGE             = "ignoreChange";
     protected static final String ATTR_IGNORE_CHANGE_WARNING     = "ignoreChangeWarning";
     protected static final String ATTR_RES_LARGE_MOD             = "largeModSize";
+    protected static final String ATTR_DIFF_THREAD_COUNT         = "diffThreadCount";
 
     protected static final String ATTR_ARKHOT_PATH = "path";
     protected static final String ATTR_ARKHOT_NAME = "name";
@@ -94,11 +103,33 @@ public class Configuration {
     public String  mOutFolder;
     public File    mOldApkFile;
     public File    mNewApkFile;
+    /**
+     * every old apk to generate a patch against, starts with mOldApkFile.
+     * with more than one, each patch goes to its own folder under mOutFolder
+     */
+    public List<File> mOldApkFiles;
     public boolean mIgnoreWarning;
     public boolean mAllowLoaderInAnyDex;
     public boolean mIsProtectedApp;
     public boolean mRemoveLoaderForAllDex;
     public boolean mSupportHotplugComponent;
+    /**
+     * build the bsdiff suffix array with SA-IS instead of qsufsort, the patch stays the same
+     */
+    public boolean mBsDiffUseSais;
+    /**
+     * files larger than it are split into windows of this size (kb) and bsdiff-ed concurrently
+     * into a multi segment patch, 0 means never
+     */
+    public int     mBsDiffWindowSize;
+    /**
+     * directory of the saved per-entry md5 and crc of old apks, null means never save or reuse them
+     */
+    public File    mBaselineIndexDir;
+    /**
+     * index of the old apk, loaded by ApkDecoder if mBaselineIndexDir is set
+     */
+    public BaselineIndex mBaselineIndex;
     /**
      * lib config
      */
@@ -111,6 +142,10 @@ public class Configuration {
     public HashSet<String>  mDexIgnoreWarningLoaderPattern;
 
     public boolean          mDexRaw;
+    /**
+     * max worker threads used to diff dex pairs, their sections and bsdiff windows, default is the number of cores
+     */
+    public int              mDexDiffThreadCount;
     /**
      * resource config
      */
@@ -143,6 +178,14 @@ public class Configuration {
     public File mTempResultDir;
     public File mTempUnzipOldDir;
     public File mTempUnzipNewDir;
+    /**
+     * mTempUnzipNewDir is already filled and shared with other baselines, do not unzip again
+     */
+    public boolean mNewApkUnzipped;
+    /**
+     * parsed dexes shared by all baselines of one run, null means the dex decoder keeps its own
+     */
+    public ParsedDexRegistry mParsedDexRegistry;
 
     public boolean mUsingGradle;
 
@@ -168,12 +211,16 @@ public class Configuration {
 
         mOldApkFile = oldApkFile;
         mOldApkPath = oldApkFile.getAbsolutePath();
+        mOldApkFiles = new ArrayList<>();
+        mOldApkFiles.add(oldApkFile);
 
         mNewApkFile = newApkFile;
         mNewApkPath = newApkFile.getAbsolutePath();
 
         mLargeModSize = 100;
 
+        mDexDiffThreadCount = Runtime.getRuntime().availableProcessors();
+
         readXmlConfig(config);
 
         createTempDirectory();
@@ -213,9 +260,21 @@ public class Configuration {
         if (param.dexMode.equals("raw")) {
             mDexRaw = true;
         }
+        if (param.dexDiffThreadCount > 0) {
+            mDexDiffThreadCount = param.dexDiffThreadCount;
+        } else {
+            mDexDiffThreadCount = Runtime.getRuntime().availableProcessors();
+        }
 
         mOldApkPath = param.oldApk;
         mOldApkFile = new File(mOldApkPath);
+        mOldApkFiles = new ArrayList<>();
+        mOldApkFiles.add(mOldApkFile);
+        if (param.extraOldApks != null) {
+            for (String extraOldApk : param.extraOldApks) {
+                mOldApkFiles.add(new File(extraOldApk));
+            }
+        }
 
         mNewApkPath = param.newApk;
         mNewApkFile = new File(mNewApkPath);
@@ -232,6 +291,12 @@ public class Configuration {
 
         mSupportHotplugComponent = param.supportHotplugComponent;
 
+        mBsDiffUseSais = param.bsDiffUseSais;
+        mBsDiffWindowSize = Math.max(param.bsDiffWindowSize, 0);
+        if (param.baselineIndexDir != null && param.baselineIndexDir.trim().length() > 0) {
+            mBaselineIndexDir = new File(param.baselineIndexDir.trim());
+        }
+
         mSevenZipPath = param.sevenZipPath;
         mPackageFields = param.configFields;
 
@@ -253,12 +318,18 @@ public class Configuration {
         StringBuffer sb = new StringBuffer();
         sb.append("configuration: \n");
         sb.append("oldApk:" + mOldApkPath + "\n");
+        if (mOldApkFiles.size() > 1) {
+            sb.append("oldApks:" + mOldApkFiles + "\n");
+        }
         sb.append("newApk:" + mNewApkPath + "\n");
         sb.append("outputFolder:" + mOutFolder + "\n");
         sb.append("isIgnoreWarning:" + mIgnoreWarning + "\n");
         sb.append("isAllowLoaderClassInAnyDex:" + mAllowLoaderInAnyDex + "\n");
         sb.append("isRemoveLoaderForAllDex:" + mRemoveLoaderForAllDex + "\n");
         sb.append("isProtectedApp:" + mIsProtectedApp + "\n");
+        sb.append("bsDiffUseSais:" + mBsDiffUseSais + "\n");
+        sb.append("bsDiffWindowSize:" + mBsDiffWindowSize + "kb\n");
+        sb.append("baselineIndexDir:" + (mBaselineIndexDir != null ? mBaselineIndexDir.getAbsolutePath() : null) + "\n");
         sb.append("7-ZipPath:" + mSevenZipPath + "\n");
         sb.append("useSignAPk:" + mUseSignAPk + "\n");
 
@@ -274,6 +345,7 @@ public class Configuration {
         } else {
             sb.append("dexMode: jar" + "\n");
         }
+        sb.append("dexDiffThreadCount:" + mDexDiffThreadCount + "\n");
         for (Pattern name : mDexFilePattern) {
             sb.append("dexPattern:" + name.toString() + "\n");
         }
@@ -297,6 +369,43 @@ public class Configuration {
         return sb.toString();
     }
 
+    /**
+     * Copy of this configuration which generates the patch against one of mOldApkFiles into
+     * outputFile, reading the new apk from the already unzipped newApkDir.
+     */
+    public Configuration forBaseline(File oldApkFile, File outputFile, File newApkDir) throws TinkerPatchException {
+        Configuration config;
+        try {
+            config = (Configuration) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new TinkerPatchException(e);
+        }
+        // clone() is shallow, the copy gets its own collections since they are modified per patch.
+        config.mSoFilePattern = copyOf(mSoFilePattern);
+        config.mDexFilePattern = copyOf(mDexFilePattern);
+        config.mDexLoaderPattern = copyOf(mDexLoaderPattern);
+        config.mDexIgnoreWarningLoaderPattern = copyOf(mDexIgnoreWarningLoaderPattern);
+        config.mPackageFields = (mPackageFields != null ? new HashMap<>(mPackageFields) : null);
+
+        config.mOutFolder = outputFile.getAbsolutePath();
+        FileOperation.cleanDir(outputFile);
+        outputFile.mkdirs();
+
+        config.mOldApkFile = oldApkFile;
+        config.mOldApkPath = oldApkFile.getAbsolutePath();
+        config.mOldApkFiles = Collections.singletonList(oldApkFile);
+        config.mBaselineIndex = null;
+
+        config.createTempDirectory();
+        config.mTempUnzipNewDir = newApkDir;
+        config.mNewApkUnzipped = true;
+        return config;
+    }
+
+    private static <T> HashSet<T> copyOf(HashSet<T> set) {
+        return (set != null ? new HashSet<>(set) : null);
+    }
+
     private void createTempDirectory() throws TinkerPatchException {
         mTempResultDir = new File(mOutFolder + File.separator + TypedValue.PATH_PATCH_FILES);
         FileOperation.deleteDir(mTempResultDir);
@@ -445,6 +554,20 @@ public class Configuration {
                         mSupportHotplugComponent = value.equals("true");
                     } else if (tagName.equals(ATTR_USE_SIGN)) {
                         mUseSignAPk = value.equals("true");
+                    } else if (tagName.equals(ATTR_BSDIFF_USE_SAIS)) {
+                        mBsDiffUseSais = value.equals("true");
+                    } else if (tagName.equals(ATTR_BSDIFF_WINDOW_SIZE)) {
+                        int windowSize;
+                        try {
+                            windowSize = Integer.parseInt(value.trim());
+                        } catch (NumberFormatException e) {
+                            throw new IOException(
+                                String.format("Invalid config file: %s must be an integer, yours %s\n", ATTR_BSDIFF_WINDOW_SIZE, value)
+                            );
+                        }
+                        mBsDiffWindowSize = Math.max(windowSize, 0);
+                    } else if (tagName.equals(ATTR_BASELINE_INDEX_DIR)) {
+                        mBaselineIndexDir = new File(value.trim());
                     } else if (tagName.equals(ATTR_SEVEN_ZIP_PATH)) {
                         File sevenZipFile = new File(value);
                         if (sevenZipFile.exists()) {
@@ -548,6 +671,18 @@ public class Configuration {
                         mDexLoaderPattern.add(value);
                     } else if (tagName.equals(ATTR_IGNORE_CHANGE)) {
                         mDexIgnoreWarningLoaderPattern.add(value);
+                    } else if (tagName.equals(ATTR_DIFF_THREAD_COUNT)) {
+                        int threadCount;
+                        try {
+                            threadCount = Integer.parseInt(value.trim());
+                        } catch (NumberFormatException e) {
+                            throw new IOException(
+                                String.format("Invalid config file: %s must be an integer, yours %s\n", ATTR_DIFF_THREAD_COUNT, value)
+                            );
+                        }
+                        if (threadCount > 0) {
+                            mDexDiffThreadCount = threadCount;
+                        }
                     } else {
                         System.err.println("unknown dex tag " + tagName);
                     }
@@ -40,6 +40,17 @@ public class InputParam {
     public final boolean isProtectedApp;
     public final boolean supportHotplugComponent;
     public final boolean useSign;
+    public final boolean bsDiffUseSais;
+    public final int     bsDiffWindowSize;
+    /**
+     * tinkerPatch baselineIndexDir, null means never save or reuse an index of the old apk
+     */
+    public final String  baselineIndexDir;
+    /**
+     * tinkerPatch extraOldApks, more old apks to generate patches against in the same run,
+     * every patch goes to outFolder/name of its old apk
+     */
+    public final ArrayList<String> extraOldApks;
 
     /**
      * tinkerPatch.dex
@@ -49,6 +60,10 @@ public class InputParam {
     public final ArrayList<String> dexIgnoreWarningLoaderPattern;
 
     public final String                  dexMode;
+    /**
+     * tinkerPatch.dex diffThreadCount, 0 means the number of cores
+     */
+    public final int                     dexDiffThreadCount;
     /**
      * tinkerPatch.lib
      */
@@ -102,12 +117,17 @@ public class InputParam {
             boolean isProtectedApp,
             boolean supportHotplugComponent,
             boolean useSign,
+            boolean bsDiffUseSais,
+            int bsDiffWindowSize,
+            String baselineIndexDir,
+            ArrayList<String> extraOldApks,
 
             ArrayList<String> dexFilePattern,
             ArrayList<String> dexLoaderPattern,
             ArrayList<String> dexIgnoreChangeLoaderPattern,
 
             String dexMode,
+            int dexDiffThreadCount,
             ArrayList<String> soFilePattern,
             ArrayList<String> resourceFilePattern,
             ArrayList<String> resourceIgnoreChangePattern,
@@ -133,11 +153,16 @@ public class InputParam {
         this.isProtectedApp = isProtectedApp;
         this.supportHotplugComponent = supportHotplugComponent;
         this.useSign = useSign;
+        this.bsDiffUseSais = bsDiffUseSais;
+        this.bsDiffWindowSize = bsDiffWindowSize;
+        this.baselineIndexDir = baselineIndexDir;
+        this.extraOldApks = extraOldApks;
 
         this.dexFilePattern = dexFilePattern;
         this.dexLoaderPattern = dexLoaderPattern;
         this.dexIgnoreWarningLoaderPattern = dexIgnoreChangeLoaderPattern;
         this.dexMode = dexMode;
+        this.dexDiffThreadCount = dexDiffThreadCount;
 
         this.soFilePattern = soFilePattern;
         this.resourceFilePattern = resourceFilePattern;
@@ -170,6 +195,10 @@ public class InputParam {
         private boolean isProtectedApp;
         private boolean isComponentHotplugSupported;
         private boolean useSign;
+        private boolean bsDiffUseSais;
+        private int     bsDiffWindowSize;
+        private String  baselineIndexDir;
+        private ArrayList<String> extraOldApks;
 
         /**
          * tinkerPatch.dex
@@ -179,6 +208,7 @@ public class InputParam {
         private ArrayList<String> dexIgnoreWarningLoaderPattern;
 
         private String                  dexMode;
+        private int                     dexDiffThreadCount;
         /**
          * tinkerPatch.lib
          */
@@ -332,6 +362,11 @@ public class InputParam {
             return this;
         }
 
+        public Builder setDexDiffThreadCount(int dexDiffThreadCount) {
+            this.dexDiffThreadCount = dexDiffThreadCount;
+            return this;
+        }
+
         public Builder setConfigFields(HashMap<String, String> configFields) {
             this.configFields = configFields;
             return this;
@@ -347,6 +382,26 @@ public class InputParam {
             return this;
         }
 
+        public Builder setBsDiffUseSais(boolean bsDiffUseSais) {
+            this.bsDiffUseSais = bsDiffUseSais;
+            return this;
+        }
+
+        public Builder setBsDiffWindowSize(int bsDiffWindowSize) {
+            this.bsDiffWindowSize = bsDiffWindowSize;
+            return this;
+        }
+
+        public Builder setBaselineIndexDir(String baselineIndexDir) {
+            this.baselineIndexDir = baselineIndexDir;
+            return this;
+        }
+
+        public Builder setExtraOldApks(ArrayList<String> extraOldApks) {
+            this.extraOldApks = extraOldApks;
+            return this;
+        }
+
         public Builder setArkHotPath(String path) {
             this.arkHotPatchPath = path;
             return this;
@@ -372,10 +427,15 @@ public class InputParam {
                     isProtectedApp,
                     isComponentHotplugSupported,
                     useSign,
+                    bsDiffUseSais,
+                    bsDiffWindowSize,
+                    baselineIndexDir,
+                    extraOldApks,
                     dexFilePattern,
                     dexLoaderPattern,
                     dexIgnoreWarningLoaderPattern,
                     dexMode,
+                    dexDiffThreadCount,
                     soFilePattern,
                     resourceFilePattern,
                     resourceIgnoreChangePattern,
@@ -16,6 +16,7 @@
 
 package com.orange.tinkerhotfix.patch;
 
+import com.orange.tinkerhotfix.patch.builder.MultiBaselinePatcher;
 import com.orange.tinkerhotfix.patch.builder.PatchBuilder;
 import com.orange.tinkerhotfix.patch.decode.ApkDecoder;
 import com.orange.tinkerhotfix.patch.info.PatchInfo;
@@ -33,15 +34,15 @@ public class Runner {
 
     private final boolean mIsGradleEnv;
 
-    protected static long          mBeginTime;
-    protected        Configuration mConfig;
+    protected final long          mBeginTime;
+    protected       Configuration mConfig;
 
     public Runner(boolean isGradleEnv) {
         mIsGradleEnv = isGradleEnv;
+        mBeginTime = System.currentTimeMillis();
     }
 
     public static void gradleRun(InputParam inputParam) {
-        mBeginTime = System.currentTimeMillis();
         Runner m = new Runner(true);
         m.run(inputParam);
     }
@@ -72,19 +73,17 @@ public class Runner {
 
         Logger.d(mConfig.toString());
         try {
-            //gen patch
-            ApkDecoder decoder = new ApkDecoder(mConfig);
-            decoder.onAllPatchesStart();
-            decoder.patch(mConfig.mOldApkFile, mConfig.mNewApkFile);
-            decoder.onAllPatchesEnd();
+            if (mConfig.mOldApkFiles.size() > 1) {
+                new MultiBaselinePatcher(mConfig).patch();
+            } else {
+                decodeApks();
 
-            //gen meta file and version file
-//            PatchInfo info = new PatchInfo(mConfig);
-//            info.gen();
+                //gen meta file and version file
+//                PatchInfo info = new PatchInfo(mConfig);
+//                info.gen();
 
-            //build patch
-            PatchBuilder builder = new PatchBuilder(mConfig);
-            builder.buildPatch();
+                buildPatch();
+            }
 
         } catch (Throwable e) {
             goToError(e, ERRNO_USAGE);
@@ -95,6 +94,24 @@ public class Runner {
         Logger.d("-----------------------Tinker patch end-------------------------");
     }
 
+    /**
+     * gen patch files of dex and others into the temp result dir
+     */
+    protected void decodeApks() throws Exception {
+        ApkDecoder decoder = new ApkDecoder(mConfig);
+        decoder.onAllPatchesStart();
+        decoder.patch(mConfig.mOldApkFile, mConfig.mNewApkFile);
+        decoder.onAllPatchesEnd();
+    }
+
+    /**
+     * pack the temp result dir into the patch apk
+     */
+    protected void buildPatch() throws Exception {
+        PatchBuilder builder = new PatchBuilder(mConfig);
+        builder.buildPatch();
+    }
+
     private void loadConfigFromGradle(InputParam inputParam) {
         try {
             mConfig = new Configuration(inputParam);
@@ -29,6 +29,9 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import javax.xml.parsers.ParserConfigurationException;
 
 /**
@@ -41,6 +44,7 @@ public class CliMain extends Runner {
     private static final String ARG_CONFIG = "-config";
     private static final String ARG_OLD    = "-old";
     private static final String ARG_NEW    = "-new";
+    private static final String ARG_DAEMON = "-daemon";
 
     protected static String mRunningLocation;
 
@@ -53,7 +57,10 @@ public class CliMain extends Runner {
      * @param args
      */
     public static void main(String[] args) {
-        mBeginTime = System.currentTimeMillis();
+        if (args.length > 0 && args[0].equals(ARG_DAEMON)) {
+            PatchDaemon.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
         CliMain m = new CliMain(false);
         setRunningLocation(m);
         m.run(args);
@@ -79,6 +86,9 @@ public class CliMain extends Runner {
         out.println();
         out.println();
         out.println("Usage: java -jar " + command + " " + ARG_OLD + " old.apk " + ARG_NEW + " new.apk " + ARG_OUT + " output_path");
+        out.println("   or: java -jar " + command + " " + ARG_OLD + " old1.apk " + ARG_OLD + " old2.apk ... " + ARG_NEW + " new.apk " + ARG_OUT + " output_path");
+        out.println("   or: java -jar " + command + " " + ARG_DAEMON + " [" + PatchDaemon.ARG_PORT + " port] [" + PatchDaemon.ARG_JOBS + " count]"
+                + " [" + PatchDaemon.ARG_OUT_ROOT + " dir] [" + PatchDaemon.ARG_TOKEN_FILE + " file]");
         out.println("others please contact us");
     }
 
@@ -98,18 +108,25 @@ public class CliMain extends Runner {
             File outputFile = readArgs.getOutputFile();
             File oldApkFile = readArgs.getOldApkFile();
             File newApkFile = readArgs.getNewApkFile();
+            List<File> extraOldApkFiles = readArgs.getExtraOldApkFiles();
 
             if (oldApkFile == null || newApkFile == null) {
                 goToError(new IllegalArgumentException("Missing old apk or new apk file argument"), ERRNO_ERRORS);
             } else if (!oldApkFile.exists() || !newApkFile.exists()) {
                 goToError(new IOException("Old apk or new apk file does not exist"), ERRNO_ERRORS);
             }
+            for (File extraOldApkFile : extraOldApkFiles) {
+                if (!extraOldApkFile.exists()) {
+                    goToError(new IOException("Old apk file " + extraOldApkFile + " does not exist"), ERRNO_ERRORS);
+                }
+            }
 
             if (outputFile == null) {
                 outputFile = new File(mRunningLocation, TypedValue.PATH_DEFAULT_OUTPUT);
             }
 
             loadConfigFromXml(configFile,outputFile, oldApkFile, newApkFile);
+            mConfig.mOldApkFiles.addAll(extraOldApkFiles);
             Logger.initLogger(mConfig);
             tinkerPatch();
         } catch (IOException e) {
@@ -136,6 +153,7 @@ public class CliMain extends Runner {
         private File     outputFile;
         private File     oldApkFile;
         private File     newApkFile;
+        private List<File> extraOldApkFiles = new ArrayList<>();
 
         ReadArgs(String[] args) {
             this.args = args;
@@ -157,6 +175,10 @@ public class CliMain extends Runner {
             return newApkFile;
         }
 
+        public List<File> getExtraOldApkFiles() {
+            return extraOldApkFiles;
+        }
+
         public ReadArgs invoke() {
             for (int index = 0; index < args.length; index++) {
                 String arg = args[index];
@@ -186,7 +208,11 @@ public class CliMain extends Runner {
                     if (index == args.length - 1) {
                         goToError(new IllegalArgumentException("Missing old apk file argument"), ERRNO_USAGE);
                     }
-                    oldApkFile = new File(args[++index]);
+                    if (oldApkFile == null) {
+                        oldApkFile = new File(args[++index]);
+                    } else {
+                        extraOldApkFiles.add(new File(args[++index]));
+                    }
                 } else if (arg.equals(ARG_NEW)) {
                     if (index == args.length - 1) {
                         goToError(new IllegalArgumentException("Missing new apk file argument"), ERRNO_USAGE);
@@ -0,0 +1,187 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.orange.tinkerhotfix.patch.builder;
+
+import com.orange.tinkerhotfix.patch.Configuration;
+import com.orange.tinkerhotfix.patch.Runner;
+import com.orange.tinkerhotfix.patch.TinkerPatchException;
+import com.orange.tinkerhotfix.patch.util.FileOperation;
+import com.orange.tinkerhotfix.patch.util.Logger;
+import com.orange.tinkerhotfix.patch.util.ParsedDexRegistry;
+import com.orange.tinkerhotfix.patch.util.TypedValue;
+import com.orange.tinkerhotfix.patch.util.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Generates patches of one new apk against every old apk of {@link Configuration#mOldApkFiles}.
+ *
+ * The new apk is unzipped once and its dexes are parsed once into a registry shared by all
+ * baselines. Baselines are then decoded and built concurrently, each one with its own
+ * configuration, log file and output folder, mOutFolder/name of the old apk.
+ */
+public class MultiBaselinePatcher {
+    private final Configuration config;
+
+    public MultiBaselinePatcher(Configuration config) {
+        this.config = config;
+    }
+
+    public void patch() throws IOException, TinkerPatchException {
+        for (File oldApkFile : config.mOldApkFiles) {
+            if (!oldApkFile.exists()) {
+                throw new TinkerPatchException("old apk file does not exist: " + oldApkFile.getAbsolutePath());
+            }
+        }
+
+        final File outDir = new File(config.mOutFolder);
+        final Set<String> usedNames = new HashSet<>();
+        final File newApkDir = new File(outDir, uniqueName(getApkBaseName(config.mNewApkFile) + "-new", usedNames));
+
+        // The result dir of the root configuration is never used, every baseline has its own.
+        FileOperation.deleteDir(config.mTempResultDir);
+
+        Logger.d("UnZipping new apk to %s once for %d baselines", newApkDir.getAbsolutePath(), config.mOldApkFiles.size());
+        FileOperation.unZipAPk(config.mNewApkFile.getAbsolutePath(), newApkDir.getAbsolutePath());
+
+        // Keep the new dexes parsed until the last baseline is done with them.
+        final ParsedDexRegistry dexRegistry = new ParsedDexRegistry();
+        final List<File> newDexFiles = collectDexFiles(newApkDir);
+        for (File newDexFile : newDexFiles) {
+            dexRegistry.retain(newDexFile);
+        }
+
+        final int baselineCount = config.mOldApkFiles.size();
+        final int parallelCount = Math.max(1, Math.min(baselineCount, config.mDexDiffThreadCount));
+        final int threadCountPerBaseline = Math.max(1, config.mDexDiffThreadCount / parallelCount);
+
+        final List<Configuration> baselineConfigs = new ArrayList<>(baselineCount);
+        for (File oldApkFile : config.mOldApkFiles) {
+            File baselineOutDir = new File(outDir, uniqueName(getApkBaseName(oldApkFile), usedNames));
+            Configuration baselineConfig = config.forBaseline(oldApkFile, baselineOutDir, newApkDir);
+            baselineConfig.mParsedDexRegistry = dexRegistry;
+            baselineConfig.mDexDiffThreadCount = threadCountPerBaseline;
+            baselineConfigs.add(baselineConfig);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelCount);
+        try {
+            final List<Future<Long>> futures = new ArrayList<>(baselineCount);
+            for (final Configuration baselineConfig : baselineConfigs) {
+                futures.add(executor.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        return new BaselineRunner(baselineConfig).patch();
+                    }
+                }));
+            }
+
+            final List<String> failedBaselines = new ArrayList<>();
+            for (int i = 0; i < baselineCount; ++i) {
+                final Configuration baselineConfig = baselineConfigs.get(i);
+                try {
+                    long timeCost = futures.get(i).get();
+                    Logger.d("Patch against %s done in %dms, output: %s",
+                            baselineConfig.mOldApkPath, timeCost, baselineConfig.mOutFolder);
+                } catch (ExecutionException e) {
+                    Logger.e("Patch against %s failed: %s", baselineConfig.mOldApkPath, e.getCause());
+                    failedBaselines.add(baselineConfig.mOldApkPath);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new TinkerPatchException("interrupted while waiting for baselines.", e);
+                }
+            }
+            dexRegistry.logStatistics();
+
+            if (!failedBaselines.isEmpty()) {
+                throw new TinkerPatchException("failed to generate patches against " + failedBaselines);
+            }
+        } finally {
+            executor.shutdownNow();
+            for (File newDexFile : newDexFiles) {
+                dexRegistry.release(newDexFile);
+            }
+        }
+    }
+
+    private List<File> collectDexFiles(final File apkDir) throws IOException {
+        final List<File> dexFiles = new ArrayList<>();
+        Files.walkFileTree(apkDir.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                String patternKey = apkDir.toPath().relativize(file).toString().replace("\\", "/");
+                if (attrs.size() > 0 && Utils.checkFileInPattern(config.mDexFilePattern, patternKey)) {
+                    dexFiles.add(file.toFile());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return dexFiles;
+    }
+
+    private static String getApkBaseName(File apkFile) {
+        String name = apkFile.getName();
+        return name.endsWith(TypedValue.FILE_APK) ? name.substring(0, name.length() - TypedValue.FILE_APK.length()) : name;
+    }
+
+    /**
+     * Old apks of different releases are often named the same, and file names are
+     * case-insensitive on windows.
+     */
+    private static String uniqueName(String name, Set<String> usedNames) {
+        String uniqueName = name;
+        for (int i = 2; !usedNames.add(uniqueName.toLowerCase(Locale.US)); ++i) {
+            uniqueName = name + "-" + i;
+        }
+        return uniqueName;
+    }
+
+    private static class BaselineRunner extends Runner {
+        BaselineRunner(Configuration config) {
+            // Errors are thrown instead of exiting the process.
+            super(true);
+            mConfig = config;
+        }
+
+        long patch() throws IOException {
+            Logger.initLogger(mConfig);
+            try {
+                tinkerPatch();
+            } finally {
+                Logger.closeLogger();
+            }
+            return System.currentTimeMillis() - mBeginTime;
+        }
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.tinkerhotfix.patch.builder;
+
+import com.orange.tinkerhotfix.patch.Configuration;
+import com.orange.tinkerhotfix.patch.Runner;
+import com.orange.tinkerhotfix.patch.util.BaselineIndex;
+import com.orange.tinkerhotfix.patch.util.IOHelper;
+import com.orange.tinkerhotfix.patch.util.Logger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps one JVM alive for many patch builds, so class loading, JIT warm-up and loading
+ * of baseline indexes are paid once instead of once per build.
+ *
+ * Usage: java -jar tinker.jar -daemon [-port 9988] [-jobs 2] [-outRoot dir] [-tokenFile file]
+ *
+ * On start the daemon writes a random token to the token file, which only its owner can read,
+ * ~/.tinker_patch_daemon_[port].token by default. Every connection to the loopback port sends
+ * the token in its first line, then submits one job in a second line, the arguments CliMain
+ * takes separated by tabs: "-old old.apk -new new.apk -config config.xml -out out_dir".
+ * The daemon answers with a single line too, either
+ * "OK id=1 config=12ms decode=3400ms build=900ms total=4312ms" or "ERROR id=1 total=15ms reason".
+ * Sending "shutdown" instead stops the daemon after the running jobs are done.
+ * Relative paths are resolved against the working directory of the daemon. Output folders
+ * must be under the output root, which is the working directory by default.
+ *
+ * Jobs run concurrently, each one with its own Configuration, log file and output folder.
+ * Two running jobs can not share an output folder.
+ *
+ * do not use Logger here, it belongs to the jobs.
+ */
+public class PatchDaemon {
+    public static final String ARG_PORT = "-port";
+    public static final String ARG_JOBS = "-jobs";
+    public static final String ARG_OUT_ROOT = "-outRoot";
+    public static final String ARG_TOKEN_FILE = "-tokenFile";
+
+    private static final String ARG_CONFIG = "-config";
+    private static final String ARG_OUT    = "-out";
+    private static final String ARG_OLD    = "-old";
+    private static final String ARG_NEW    = "-new";
+
+    private static final String CMD_SHUTDOWN = "shutdown";
+
+    private static final int DEFAULT_PORT = 9988;
+    private static final int DEFAULT_JOB_COUNT = 2;
+    private static final int REQUEST_READ_TIMEOUT = 30 * 1000;
+    private static final int MAX_CACHED_BASELINE_INDEX_COUNT = 16;
+    private static final int TOKEN_BYTE_COUNT = 32;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final int port;
+    private final String outputRootPath;
+    private final File tokenFile;
+    private final ExecutorService jobExecutor;
+    private final AtomicInteger jobIdGenerator = new AtomicInteger();
+    private final Set<String> runningOutFolders = new HashSet<>();
+    private final Map<String, BaselineIndex> apkDigestToBaselineIndexMap
+            = new BaselineIndexLruCache(MAX_CACHED_BASELINE_INDEX_COUNT);
+
+    private volatile ServerSocket serverSocket;
+    private volatile byte[] token;
+
+    public PatchDaemon(int port, int jobCount, File outputRoot, File tokenFile) throws IOException {
+        this.port = port;
+        this.outputRootPath = outputRoot.getCanonicalPath();
+        this.tokenFile = tokenFile;
+        this.jobExecutor = Executors.newFixedThreadPool(jobCount);
+    }
+
+    public static void main(String[] args) {
+        int port = DEFAULT_PORT;
+        int jobCount = DEFAULT_JOB_COUNT;
+        File outputRoot = new File(".");
+        File tokenFile = null;
+        for (int i = 0; i < args.length; ++i) {
+            if (args[i].equals(ARG_PORT) && i + 1 < args.length) {
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals(ARG_JOBS) && i + 1 < args.length) {
+                jobCount = Math.max(Integer.parseInt(args[++i]), 1);
+            } else if (args[i].equals(ARG_OUT_ROOT) && i + 1 < args.length) {
+                outputRoot = new File(args[++i]);
+            } else if (args[i].equals(ARG_TOKEN_FILE) && i + 1 < args.length) {
+                tokenFile = new File(args[++i]);
+            } else {
+                throw new IllegalArgumentException("unknown daemon argument: " + args[i]);
+            }
+        }
+        if (tokenFile == null) {
+            tokenFile = new File(System.getProperty("user.home"), ".tinker_patch_daemon_" + port + ".token");
+        }
+        try {
+            new PatchDaemon(port, jobCount, outputRoot, tokenFile).serve();
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+            System.exit(Runner.ERRNO_ERRORS);
+        }
+    }
+
+    /**
+     * Accept jobs until a shutdown request arrives.
+     */
+    public void serve() throws IOException {
+        token = createTokenFile(tokenFile);
+        try {
+            serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        } catch (IOException e) {
+            tokenFile.delete();
+            throw e;
+        }
+        System.out.printf("tinker patch daemon is listening on %s:%d, token file: %s, output root: %s\n",
+                serverSocket.getInetAddress().getHostAddress(), serverSocket.getLocalPort(),
+                tokenFile.getAbsolutePath(), outputRootPath);
+        try {
+            while (true) {
+                final Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (SocketException e) {
+                    if (serverSocket.isClosed()) {
+                        break;
+                    }
+                    throw e;
+                }
+                jobExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handleConnection(socket);
+                    }
+                });
+            }
+        } finally {
+            IOHelper.closeQuietly(serverSocket);
+            jobExecutor.shutdown();
+            try {
+                jobExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            tokenFile.delete();
+            System.out.println("tinker patch daemon is stopped.");
+        }
+    }
+
+    private void handleConnection(Socket socket) {
+        try {
+            socket.setSoTimeout(REQUEST_READ_TIMEOUT);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            PrintWriter writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), true);
+            String requestToken = reader.readLine();
+            if (requestToken == null) {
+                return;
+            }
+            if (!MessageDigest.isEqual(token, requestToken.trim().getBytes(UTF_8))) {
+                System.err.println("rejected a connection with a bad token.");
+                writer.println("ERROR bad token");
+                return;
+            }
+            String request = reader.readLine();
+            if (request == null) {
+                return;
+            }
+            request = request.trim();
+            if (request.equals(CMD_SHUTDOWN)) {
+                writer.println("OK shutdown");
+                IOHelper.closeQuietly(serverSocket);
+                return;
+            }
+            String reply = runJob(jobIdGenerator.incrementAndGet(), request.split("\t"));
+            System.out.println(reply);
+            writer.println(reply);
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+        } finally {
+            IOHelper.closeQuietly(socket);
+        }
+    }
+
+    private String runJob(int id, String[] args) {
+        final long beginTime = System.currentTimeMillis();
+        String outFolder = null;
+        try {
+            File configFile = null;
+            File outputFile = null;
+            File oldApkFile = null;
+            File newApkFile = null;
+            for (int i = 0; i < args.length; ++i) {
+                String arg = args[i].trim();
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("missing value of argument " + arg);
+                }
+                if (arg.equals(ARG_CONFIG)) {
+                    configFile = new File(args[++i].trim());
+                } else if (arg.equals(ARG_OUT)) {
+                    outputFile = new File(args[++i].trim());
+                } else if (arg.equals(ARG_OLD)) {
+                    oldApkFile = new File(args[++i].trim());
+                } else if (arg.equals(ARG_NEW)) {
+                    newApkFile = new File(args[++i].trim());
+                } else {
+                    throw new IllegalArgumentException("unknown argument " + arg);
+                }
+            }
+            if (configFile == null || outputFile == null || oldApkFile == null || newApkFile == null) {
+                throw new IllegalArgumentException(
+                        "arguments " + ARG_CONFIG + ", " + ARG_OUT + ", " + ARG_OLD + " and " + ARG_NEW + " are required"
+                );
+            }
+            if (!configFile.exists() || !oldApkFile.exists() || !newApkFile.exists()) {
+                throw new IOException("config file, old apk or new apk file does not exist");
+            }
+
+            outFolder = outputFile.getCanonicalPath();
+            if (!isInOutputRoot(outFolder)) {
+                outFolder = null;
+                throw new IllegalArgumentException("output folder " + outputFile + " is outside of " + outputRootPath);
+            }
+            synchronized (runningOutFolders) {
+                if (!runningOutFolders.add(outFolder)) {
+                    outFolder = null;
+                    throw new IllegalStateException("output folder " + outputFile + " is used by another running job");
+                }
+            }
+
+            Job job = new Job();
+            job.run(configFile, outputFile, oldApkFile, newApkFile);
+            return String.format("OK id=%d config=%dms decode=%dms build=%dms total=%dms",
+                    id, job.configTime, job.decodeTime, job.buildTime, System.currentTimeMillis() - beginTime);
+        } catch (Throwable thr) {
+            Throwable cause = thr;
+            while (cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            return String.format("ERROR id=%d total=%dms %s",
+                    id, System.currentTimeMillis() - beginTime, String.valueOf(cause).replace('\n', ' '));
+        } finally {
+            if (outFolder != null) {
+                synchronized (runningOutFolders) {
+                    runningOutFolders.remove(outFolder);
+                }
+            }
+        }
+    }
+
+    private boolean isInOutputRoot(String canonicalPath) {
+        String rootPrefix = outputRootPath.endsWith(File.separator) ? outputRootPath : outputRootPath + File.separator;
+        return canonicalPath.startsWith(rootPrefix) && canonicalPath.length() > rootPrefix.length();
+    }
+
+    /**
+     * Write a new random token to {@code tokenFile}, which only the owner can read and write.
+     */
+    private static byte[] createTokenFile(File tokenFile) throws IOException {
+        byte[] randomBytes = new byte[TOKEN_BYTE_COUNT];
+        new SecureRandom().nextBytes(randomBytes);
+        StringBuilder sb = new StringBuilder(TOKEN_BYTE_COUNT * 2);
+        for (byte b : randomBytes) {
+            sb.append(String.format("%02x", b & 0xFF));
+        }
+        byte[] tokenBytes = sb.toString().getBytes(UTF_8);
+
+        // Recreate the file, so a file left by others never keeps looser permissions.
+        Files.deleteIfExists(tokenFile.toPath());
+        if (tokenFile.getParentFile() != null) {
+            Files.createDirectories(tokenFile.getParentFile().toPath());
+        }
+        if (Files.getFileStore(tokenFile.getAbsoluteFile().getParentFile().toPath())
+                .supportsFileAttributeView("posix")) {
+            Files.createFile(tokenFile.toPath(), PosixFilePermissions.asFileAttribute(
+                    EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE)));
+        } else {
+            Files.createFile(tokenFile.toPath());
+            if (!tokenFile.setReadable(false, false) || !tokenFile.setReadable(true, true)
+                    || !tokenFile.setWritable(false, false) || !tokenFile.setWritable(true, true)) {
+                tokenFile.delete();
+                throw new IOException("failed to restrict access to token file " + tokenFile.getAbsolutePath());
+            }
+        }
+        Files.write(tokenFile.toPath(), tokenBytes);
+        return tokenBytes;
+    }
+
+    /**
+     * Indexes are cached by apk digest, so a rebuilt base apk at the same path never
+     * reuses a stale one.
+     */
+    private BaselineIndex getBaselineIndex(File oldApkFile, File baselineIndexDir) throws IOException {
+        String apkDigest = BaselineIndex.getApkDigest(oldApkFile);
+        synchronized (apkDigestToBaselineIndexMap) {
+            BaselineIndex index = apkDigestToBaselineIndexMap.get(apkDigest);
+            if (index == null) {
+                index = BaselineIndex.loadOrBuild(oldApkFile, baselineIndexDir);
+                apkDigestToBaselineIndexMap.put(index.getApkDigest(), index);
+            }
+            return index;
+        }
+    }
+
+    private static final class BaselineIndexLruCache extends LinkedHashMap<String, BaselineIndex> {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSize;
+
+        BaselineIndexLruCache(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, BaselineIndex> eldest) {
+            return size() > maxSize;
+        }
+    }
+
+    private class Job extends Runner {
+        long configTime;
+        long decodeTime;
+        long buildTime;
+
+        Job() {
+            // Errors are thrown instead of exiting the process.
+            super(true);
+        }
+
+        void run(File configFile, File outputFile, File oldApkFile, File newApkFile) throws Exception {
+            mConfig = new Configuration(configFile, outputFile, oldApkFile, newApkFile);
+            Logger.initLogger(mConfig);
+            try {
+                if (mConfig.mBaselineIndexDir != null) {
+                    mConfig.mBaselineIndex = getBaselineIndex(oldApkFile, mConfig.mBaselineIndexDir);
+                }
+                configTime = System.currentTimeMillis() - mBeginTime;
+                tinkerPatch();
+            } finally {
+                Logger.closeLogger();
+            }
+        }
+
+        @Override
+        protected void decodeApks() throws Exception {
+            long beginTime = System.currentTimeMillis();
+            super.decodeApks();
+            decodeTime = System.currentTimeMillis() - beginTime;
+        }
+
+        @Override
+        protected void buildPatch() throws Exception {
+            long beginTime = System.currentTimeMillis();
+            super.buildPatch();
+            buildTime = System.currentTimeMillis() - beginTime;
+        }
+    }
+}
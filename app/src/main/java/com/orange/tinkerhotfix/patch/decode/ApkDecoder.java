@@ -20,6 +20,7 @@ package com.orange.tinkerhotfix.patch.decode;
 
 import com.orange.tinkerhotfix.patch.Configuration;
 import com.orange.tinkerhotfix.patch.TinkerPatchException;
+import com.orange.tinkerhotfix.patch.util.BaselineIndex;
 import com.orange.tinkerhotfix.patch.util.FileOperation;
 import com.orange.tinkerhotfix.patch.util.Logger;
 import com.orange.tinkerhotfix.patch.util.TypedValue;
@@ -75,7 +76,9 @@ public class ApkDecoder extends BaseDecoder {
 
     private void unzipApkFiles(File oldFile, File newFile) throws IOException, TinkerPatchException {
         unzipApkFile(oldFile, this.mOldApkDir);
-        unzipApkFile(newFile, this.mNewApkDir);
+        if (!config.mNewApkUnzipped) {
+            unzipApkFile(newFile, this.mNewApkDir);
+        }
     }
 
     @Override
@@ -88,6 +91,11 @@ public class ApkDecoder extends BaseDecoder {
         //check manifest change first
 //        manifestDecoder.patch(oldFile, newFile);
 
+        // The index may have been set by whoever keeps it between builds.
+        if (config.mBaselineIndex == null && config.mBaselineIndexDir != null) {
+            config.mBaselineIndex = BaselineIndex.loadOrBuild(oldFile, config.mBaselineIndexDir);
+        }
+
         unzipApkFiles(oldFile, newFile);
 
         Files.walkFileTree(mNewApkDir.toPath(), new ApkFilesVisitor(mNewApkDir.toPath(), mOldApkDir.toPath(), dexPatchDecoder));
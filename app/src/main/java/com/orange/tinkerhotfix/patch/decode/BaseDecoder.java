@@ -18,6 +18,8 @@ package com.orange.tinkerhotfix.patch.decode;
 
 
 import com.orange.tinkerhotfix.patch.Configuration;
+import com.orange.tinkerhotfix.patch.util.FileOperation;
+import com.orange.tinkerhotfix.patch.util.MD5;
 
 import java.io.File;
 import java.io.IOException;
@@ -70,6 +72,33 @@ public abstract class BaseDecoder {
         return config.mTempUnzipNewDir.toPath().relativize(newFile.getParentFile().toPath()).toString().replace("\\", "/");
     }
 
+    /**
+     * Get md5 of an unzipped file of old apk, the baseline index is used if there is one.
+     */
+    protected String getOldFileMd5(File oldFile) {
+        // MD5.getMD5 returns null for empty files, leave them to it.
+        if (config.mBaselineIndex != null && oldFile.length() > 0) {
+            String md5 = config.mBaselineIndex.getMd5(getRelativePathStringToOldFile(oldFile));
+            if (md5 != null) {
+                return md5;
+            }
+        }
+        return MD5.getMD5(oldFile);
+    }
+
+    /**
+     * Get crc of entry {@code relative} in old apk, the baseline index is used if there is one.
+     */
+    protected String getOldApkEntryCrc(String relative) {
+        if (config.mBaselineIndex != null) {
+            String crc = config.mBaselineIndex.getCrc(relative);
+            if (crc != null) {
+                return crc;
+            }
+        }
+        return FileOperation.getZipEntryCrc(config.mOldApkFile, relative);
+    }
+
     /**
      * 就算前后两个文件都是一样,也会交到这个文件夹
      *
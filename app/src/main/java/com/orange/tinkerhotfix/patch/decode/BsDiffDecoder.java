@@ -24,7 +24,6 @@ import com.orange.tinkerhotfix.patch.util.FileOperation;
 import com.orange.tinkerhotfix.patch.util.Logger;
 import com.orange.tinkerhotfix.patch.util.MD5;
 import com.orange.tinkerhotfix.patch.util.Utils;
-import com.tencent.tinker.bsdiff.BSDiff;
 
 import java.io.File;
 import java.io.IOException;
@@ -85,7 +84,7 @@ public class BsDiffDecoder extends BaseDecoder {
         }
 
         //new add file
-        String oldMd5 = MD5.getMD5(oldFile);
+        String oldMd5 = getOldFileMd5(oldFile);
 
         if (oldMd5.equals(newMd5)) {
             return false;
@@ -94,7 +93,7 @@ public class BsDiffDecoder extends BaseDecoder {
         if (!bsDiffFile.getParentFile().exists()) {
             bsDiffFile.getParentFile().mkdirs();
         }
-        BSDiff.bsdiff(oldFile, newFile, bsDiffFile);
+        Utils.bsDiff(config, oldFile, newFile, bsDiffFile);
 
         if (Utils.checkBsDiffFileSize(bsDiffFile, newFile)) {
             writeLogFiles(newFile, oldFile, bsDiffFile, newMd5);
@@ -129,7 +128,7 @@ public class BsDiffDecoder extends BaseDecoder {
             if (bsDiff == null || oldFile == null) {
                 meta = fileName + "," + parentRelative + "," + newMd5 + "," + 0 + "," + 0;
             } else {
-                String oldCrc = FileOperation.getZipEntryCrc(config.mOldApkFile, relative);
+                String oldCrc = getOldApkEntryCrc(relative);
                 if (oldCrc == null || oldCrc.equals("0")) {
                     throw new TinkerPatchException(
                         String.format("can't find zipEntry %s from old apk file %s", relative, config.mOldApkFile.getPath())
@@ -25,6 +25,7 @@ import com.orange.tinkerhotfix.dexpatcher.util.PatternUtils;
 import com.orange.tinkerhotfix.party.ClassDef;
 import com.orange.tinkerhotfix.party.Dex;
 import com.orange.tinkerhotfix.party.DexFormat;
+import com.orange.tinkerhotfix.struct.DexPatchFile;
 import com.orange.tinkerhotfix.patch.Configuration;
 import com.orange.tinkerhotfix.patch.TinkerPatchException;
 import com.orange.tinkerhotfix.patch.info.InfoWriter;
@@ -32,16 +33,16 @@ import com.orange.tinkerhotfix.patch.util.ChangedClassesDexClassInfoCollector;
 import com.orange.tinkerhotfix.patch.util.DexClassesComparator;
 import com.orange.tinkerhotfix.patch.util.ExcludedClassModifiedChecker;
 import com.orange.tinkerhotfix.patch.util.FileOperation;
+import com.orange.tinkerhotfix.patch.util.IOHelper;
 import com.orange.tinkerhotfix.patch.util.Logger;
 import com.orange.tinkerhotfix.patch.util.MD5;
+import com.orange.tinkerhotfix.patch.util.ParsedDexRegistry;
 import com.orange.tinkerhotfix.patch.util.TypedValue;
 import com.orange.tinkerhotfix.patch.util.Utils;
 
-import org.jf.dexlib2.DexFileFactory;
 import org.jf.dexlib2.Opcodes;
 import org.jf.dexlib2.ReferenceType;
 import org.jf.dexlib2.builder.BuilderMutableMethodImplementation;
-import org.jf.dexlib2.dexbacked.DexBackedDexFile;
 import org.jf.dexlib2.iface.DexFile;
 import org.jf.dexlib2.iface.Field;
 import org.jf.dexlib2.iface.Method;
@@ -56,11 +57,17 @@ import org.jf.dexlib2.util.TypeUtils;
 import org.jf.dexlib2.writer.builder.BuilderField;
 import org.jf.dexlib2.writer.builder.BuilderMethod;
 import org.jf.dexlib2.writer.builder.DexBuilder;
-import org.jf.dexlib2.writer.io.FileDataStore;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -69,6 +76,13 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.jar.JarFile;
 import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
@@ -79,6 +93,8 @@ import java.util.zip.ZipEntry;
 public class DexDiffDecoder extends BaseDecoder {
     private static final String TEST_DEX_NAME = "test.dex";
     private static final String CHANGED_CLASSES_DEX_NAME_PREFIX = "changed_classes";
+    // Opcodes api level of the dexes changed classes are read from.
+    private static final int CHANGED_CLASSES_SOURCE_DEX_API = 20;
 
 //    private final InfoWriter logWriter;
 //    private final InfoWriter metaWriter;
@@ -92,6 +108,7 @@ public class DexDiffDecoder extends BaseDecoder {
 
     private final Map<String, RelatedInfo> dexNameToRelatedInfoMap;
     private boolean hasDexChanged = false;
+    private ForkJoinPool sectionDiffPool = null;
 //    private DexPatcherLoggerBridge dexPatcherLoggerBridge = null;
 
     private final Set<Pattern> loaderClassPatterns;
@@ -100,6 +117,15 @@ public class DexDiffDecoder extends BaseDecoder {
 
     private final List<File> oldDexFiles;
 
+    private final ParsedDexRegistry dexRegistry;
+    private final boolean ownsDexRegistry;
+
+    /**
+     * Dex files retained in {@code dexRegistry} until all patches end, so that every stage
+     * shares the same parsed dex.
+     */
+    private final List<File> retainedDexFiles;
+
     public DexDiffDecoder(Configuration configuration) throws IOException {
         super(configuration);
 
@@ -119,7 +145,12 @@ public class DexDiffDecoder extends BaseDecoder {
 //            this.dexPatcherLoggerBridge = new DexPatcherLoggerBridge(logWriter);
 //        }
 
-        excludedClassModifiedChecker = new ExcludedClassModifiedChecker(config);
+        // Other baselines of the same run may hold entries of a shared registry.
+        ownsDexRegistry = (config.mParsedDexRegistry == null);
+        dexRegistry = ownsDexRegistry ? new ParsedDexRegistry() : config.mParsedDexRegistry;
+        retainedDexFiles = new ArrayList<>();
+
+        excludedClassModifiedChecker = new ExcludedClassModifiedChecker(config, dexRegistry);
 
         addedClassDescToDexNameMap = new HashMap<>();
         deletedClassDescToDexNameMap = new HashMap<>();
@@ -146,6 +177,31 @@ public class DexDiffDecoder extends BaseDecoder {
     public void onAllPatchesStart() throws IOException, TinkerPatchException {
         descOfClassesInApk.clear();
         oldDexFiles.clear();
+        retainedDexFiles.clear();
+        if (ownsDexRegistry) {
+            dexRegistry.clear();
+        }
+    }
+
+    private void retainDexFile(File dexFile) throws IOException {
+        if (dexFile == null || !dexFile.exists() || dexFile.length() == 0) {
+            return;
+        }
+        dexRegistry.retain(dexFile);
+        retainedDexFiles.add(dexFile);
+    }
+
+    private void releaseDexFile(File dexFile) throws IOException {
+        if (retainedDexFiles.remove(dexFile)) {
+            dexRegistry.release(dexFile);
+        }
+    }
+
+    private void releaseAllRetainedDexFiles() throws IOException {
+        for (File dexFile : retainedDexFiles) {
+            dexRegistry.release(dexFile);
+        }
+        retainedDexFiles.clear();
     }
 
     /**
@@ -158,7 +214,12 @@ public class DexDiffDecoder extends BaseDecoder {
 
     private void collectClassesInDex(File dexFile) throws IOException {
         Logger.d("Collect class descriptors in " + dexFile.getName());
-        final DexFile dex = DexFileFactory.loadDexFile(dexFile, Opcodes.forApi(29));
+        final List<String> indexedClassDescs = getOldDexClassDescsFromIndex(dexFile);
+        if (indexedClassDescs != null) {
+            descOfClassesInApk.addAll(indexedClassDescs);
+            return;
+        }
+        final DexFile dex = dexRegistry.getDexFile(dexFile);
         for (org.jf.dexlib2.iface.ClassDef classDef : dex.getClasses()) {
             descOfClassesInApk.add(classDef.getType());
         }
@@ -169,6 +230,9 @@ public class DexDiffDecoder extends BaseDecoder {
     public boolean patch(final File oldFile, final File newFile) throws IOException, TinkerPatchException {
         final String dexName = getRelativeDexName(oldFile, newFile);
 
+        retainDexFile(oldFile);
+        retainDexFile(newFile);
+
         // first of all, we should check input files if excluded classes were modified.
         Logger.d("Check for loader classes in dex: %s", dexName);
 
@@ -190,6 +254,7 @@ public class DexDiffDecoder extends BaseDecoder {
         // If corresponding new dex was completely deleted, just return false.
         // don't process 0 length dex
         if (newFile == null || !newFile.exists() || newFile.length() == 0) {
+            releaseDexFile(oldFile);
             return false;
         }
 
@@ -199,6 +264,7 @@ public class DexDiffDecoder extends BaseDecoder {
         //new add file
         if (oldFile == null || !oldFile.exists() || oldFile.length() == 0) {
             hasDexChanged = true;
+            releaseDexFile(newFile);
             copyNewDexAndLogToDexMeta(newFile, newMd5, dexDiffOut);
             return true;
         }
@@ -207,7 +273,7 @@ public class DexDiffDecoder extends BaseDecoder {
         collectClassesInDex(oldFile);
         oldDexFiles.add(oldFile);
 
-        final String oldMd5 = getRawOrWrappedDexMD5(oldFile);
+        final String oldMd5 = getOldRawOrWrappedDexMD5(oldFile);
 
         if ((oldMd5 != null && !oldMd5.equals(newMd5)) || (oldMd5 == null && newMd5 != null)) {
             hasDexChanged = true;
@@ -230,17 +296,22 @@ public class DexDiffDecoder extends BaseDecoder {
 
     @Override
     public void onAllPatchesEnd() throws Exception {
-        if (!hasDexChanged) {
-            Logger.d("No dexes were changed, nothing needs to be done next.");
-            return;
-        }
+        try {
+            if (!hasDexChanged) {
+                Logger.d("No dexes were changed, nothing needs to be done next.");
+                return;
+            }
 
-        checkIfLoaderClassesReferToNonLoaderClasses();
+            checkIfLoaderClassesReferToNonLoaderClasses();
 
-        if (config.mIsProtectedApp) {
-            generateChangedClassesDexFile();
-        } else {
-            generatePatchInfoFile();
+            if (config.mIsProtectedApp) {
+                generateChangedClassesDexFile();
+            } else {
+                generatePatchInfoFile();
+            }
+        } finally {
+            releaseAllRetainedDexFiles();
+            dexRegistry.logStatistics();
         }
 
 //        addTestDex();
@@ -265,7 +336,7 @@ public class DexDiffDecoder extends BaseDecoder {
         for (File dexFile : oldDexFiles) {
             Logger.d("Check if loader classes in " + dexFile.getName()
                     + " refer to any classes that is not in loader class patterns.");
-            final DexFile dex = DexFileFactory.loadDexFile(dexFile, Opcodes.forApi(29));
+            final DexFile dex = dexRegistry.getDexFile(dexFile);
             for (org.jf.dexlib2.iface.ClassDef classDef : dex.getClasses()) {
                 final String currClassDesc = classDef.getType();
                 if (!Utils.isStringMatchesPatterns(currClassDesc, loaderClassPatterns)) {
@@ -381,33 +452,37 @@ public class DexDiffDecoder extends BaseDecoder {
     private void generateChangedClassesDexFile() throws IOException {
         final String dexMode = config.mDexRaw ? "raw" : "jar";
 
-        List<File> oldDexList = new ArrayList<>();
-        List<File> newDexList = new ArrayList<>();
+        List<Dex> oldDexList = new ArrayList<>();
+        List<Dex> newDexList = new ArrayList<>();
+        Map<Dex, File> dexToFileMap = new HashMap<>();
         for (AbstractMap.SimpleEntry<File, File> oldAndNewDexFilePair : oldAndNewDexFilePairList) {
             File oldDexFile = oldAndNewDexFilePair.getKey();
             File newDexFile = oldAndNewDexFilePair.getValue();
             if (oldDexFile != null) {
-                oldDexList.add(oldDexFile);
+                Dex oldDex = dexRegistry.getDex(oldDexFile);
+                oldDexList.add(oldDex);
+                dexToFileMap.put(oldDex, oldDexFile);
             }
             if (newDexFile != null) {
-                newDexList.add(newDexFile);
+                Dex newDex = dexRegistry.getDex(newDexFile);
+                newDexList.add(newDex);
+                dexToFileMap.put(newDex, newDexFile);
             }
         }
 
-        DexClassesComparator.DexGroup oldDexGroup = DexClassesComparator.DexGroup.wrap(oldDexList);
-        DexClassesComparator.DexGroup newDexGroup = DexClassesComparator.DexGroup.wrap(newDexList);
+        DexClassesComparator.DexGroup oldDexGroup = DexClassesComparator.DexGroup.wrap(oldDexList.toArray(new Dex[0]));
+        DexClassesComparator.DexGroup newDexGroup = DexClassesComparator.DexGroup.wrap(newDexList.toArray(new Dex[0]));
 
         ChangedClassesDexClassInfoCollector collector = new ChangedClassesDexClassInfoCollector();
         collector.setExcludedClassPatterns(config.mDexLoaderPattern);
 //        collector.setLogger(dexPatcherLoggerBridge);
         collector.setIncludeRefererToRefererAffectedClasses(true);
+        collector.setIndexThreadCount(config.mDexDiffThreadCount);
 
         Set<DexClassesComparator.DexClassInfo> classInfosInChangedClassesDex = collector.doCollect(oldDexGroup, newDexGroup);
 
-        Set<Dex> owners = new HashSet<>();
         Map<Dex, Set<String>> ownerToDescOfChangedClassesMap = new HashMap<>();
         for (DexClassesComparator.DexClassInfo classInfo : classInfosInChangedClassesDex) {
-            owners.add(classInfo.owner);
             Set<String> descOfChangedClasses = ownerToDescOfChangedClassesMap.get(classInfo.owner);
             if (descOfChangedClasses == null) {
                 descOfChangedClasses = new HashSet<>();
@@ -416,11 +491,26 @@ public class DexDiffDecoder extends BaseDecoder {
             descOfChangedClasses.add(classInfo.classDesc);
         }
 
-        StringBuilder metaBuilder = new StringBuilder();
+        // Owners are visited in the order of oldAndNewDexFilePairList, so that names of changed classes
+        // dexes and their meta lines never depend on hash order.
+        List<Dex> owners = new ArrayList<>();
+        for (AbstractMap.SimpleEntry<File, File> oldAndNewDexFilePair : oldAndNewDexFilePairList) {
+            for (File dexFile : new File[] {oldAndNewDexFilePair.getKey(), oldAndNewDexFilePair.getValue()}) {
+                if (dexFile == null) {
+                    continue;
+                }
+                Dex dex = dexRegistry.getDex(dexFile);
+                if (ownerToDescOfChangedClassesMap.containsKey(dex) && !owners.contains(dex)) {
+                    owners.add(dex);
+                }
+            }
+        }
+
+        final List<ChangedClassesDexJob> jobs = new ArrayList<>();
         int changedDexId = 1;
         for (Dex dex : owners) {
             Set<String> descOfChangedClassesInCurrDex = ownerToDescOfChangedClassesMap.get(dex);
-            DexFile dexFile = new DexBackedDexFile(org.jf.dexlib2.Opcodes.forApi(20), dex.getBytes());
+            DexFile dexFile = dexRegistry.getDexFile(dexToFileMap.get(dex), CHANGED_CLASSES_SOURCE_DEX_API);
             boolean isCurrentDexHasChangedClass = false;
             for (org.jf.dexlib2.iface.ClassDef classDef : dexFile.getClasses()) {
                 if (descOfChangedClassesInCurrDex.contains(classDef.getType())) {
@@ -431,76 +521,140 @@ public class DexDiffDecoder extends BaseDecoder {
             if (!isCurrentDexHasChangedClass) {
                 continue;
             }
-            DexBuilder dexBuilder = new DexBuilder(Opcodes.forApi(23));
-            for (org.jf.dexlib2.iface.ClassDef classDef : dexFile.getClasses()) {
-                if (!descOfChangedClassesInCurrDex.contains(classDef.getType())) {
-                    continue;
-                }
-
-                Logger.d("Class %s will be added into changed classes dex ...", classDef.getType());
-
-                List<BuilderField> builderFields = new ArrayList<>();
-                for (Field field : classDef.getFields()) {
-                    final BuilderField builderField = dexBuilder.internField(
-                            field.getDefiningClass(),
-                            field.getName(),
-                            field.getType(),
-                            field.getAccessFlags(),
-                            field.getInitialValue(),
-                            field.getAnnotations()
-                    );
-                    builderFields.add(builderField);
-                }
-                List<BuilderMethod> builderMethods = new ArrayList<>();
-
-                for (Method method : classDef.getMethods()) {
-                    MethodImplementation methodImpl = method.getImplementation();
-                    if (methodImpl != null) {
-                        methodImpl = new BuilderMutableMethodImplementation(dexBuilder, methodImpl);
-                    }
-                    BuilderMethod builderMethod = dexBuilder.internMethod(
-                            method.getDefiningClass(),
-                            method.getName(),
-                            method.getParameters(),
-                            method.getReturnType(),
-                            method.getAccessFlags(),
-                            method.getAnnotations(),
-                            methodImpl
-                    );
-                    builderMethods.add(builderMethod);
-                }
-                dexBuilder.internClassDef(
-                        classDef.getType(),
-                        classDef.getAccessFlags(),
-                        classDef.getSuperclass(),
-                        classDef.getInterfaces(),
-                        classDef.getSourceFile(),
-                        classDef.getAnnotations(),
-                        builderFields,
-                        builderMethods
-                );
-            }
-
-            // Write constructed changed classes dex to file and record it in meta file.
             String changedDexName = null;
             if (changedDexId == 1) {
                 changedDexName = "classes.dex";
             } else {
                 changedDexName = "classes" + changedDexId + ".dex";
             }
-            final File dest = new File(config.mTempResultDir + "/" + changedDexName);
-            final FileDataStore fileDataStore = new FileDataStore(dest);
-            dexBuilder.writeTo(fileDataStore);
-            final String md5 = MD5.getMD5(dest);
-            appendMetaLine(metaBuilder, changedDexName, "", md5, md5, 0, 0, 0, dexMode);
+            jobs.add(new ChangedClassesDexJob(dexFile, descOfChangedClassesInCurrDex, new File(config.mTempResultDir + "/" + changedDexName)));
             ++changedDexId;
         }
 
+        final int threadCount = Math.min(config.mDexDiffThreadCount, jobs.size());
+        if (threadCount <= 1) {
+            for (ChangedClassesDexJob job : jobs) {
+                job.md5 = buildChangedClassesDex(job.dexFile, job.descOfChangedClasses, job.dest);
+            }
+        } else {
+            buildChangedClassesDexesConcurrently(jobs, threadCount);
+        }
+
+        // Write meta lines in the order of names whatever order the dexes were built in.
+        StringBuilder metaBuilder = new StringBuilder();
+        for (ChangedClassesDexJob job : jobs) {
+            appendMetaLine(metaBuilder, job.dest.getName(), "", job.md5, job.md5, 0, 0, 0, dexMode);
+        }
+
         final String meta = metaBuilder.toString();
         Logger.d("\nDexDecoder:write changed classes dex meta file data:\n%s", meta);
 //        metaWriter.writeLineToInfoFile(meta);
     }
 
+    private void buildChangedClassesDexesConcurrently(List<ChangedClassesDexJob> jobs, int threadCount) {
+        Logger.d("\nBuild %d changed classes dexes with %d threads.", jobs.size(), threadCount);
+        List<Callable<Void>> tasks = new ArrayList<>(jobs.size());
+        for (final ChangedClassesDexJob job : jobs) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    job.md5 = buildChangedClassesDex(job.dexFile, job.descOfChangedClasses, job.dest);
+                    return null;
+                }
+            });
+        }
+        runConcurrently(tasks, threadCount, "building changed classes dexes");
+    }
+
+    /**
+     * Rebuilds classes in {@code descOfChangedClasses} from {@code dexFile} into {@code dest}
+     * and returns MD5 of {@code dest}, which is computed while the dex is written out.
+     */
+    private String buildChangedClassesDex(DexFile dexFile, Set<String> descOfChangedClasses, File dest) throws IOException {
+        DexBuilder dexBuilder = new DexBuilder(Opcodes.forApi(23));
+        for (org.jf.dexlib2.iface.ClassDef classDef : dexFile.getClasses()) {
+            if (!descOfChangedClasses.contains(classDef.getType())) {
+                continue;
+            }
+
+            Logger.d("Class %s will be added into changed classes dex ...", classDef.getType());
+
+            List<BuilderField> builderFields = new ArrayList<>();
+            for (Field field : classDef.getFields()) {
+                final BuilderField builderField = dexBuilder.internField(
+                        field.getDefiningClass(),
+                        field.getName(),
+                        field.getType(),
+                        field.getAccessFlags(),
+                        field.getInitialValue(),
+                        field.getAnnotations()
+                );
+                builderFields.add(builderField);
+            }
+            List<BuilderMethod> builderMethods = new ArrayList<>();
+
+            for (Method method : classDef.getMethods()) {
+                MethodImplementation methodImpl = method.getImplementation();
+                if (methodImpl != null) {
+                    methodImpl = new BuilderMutableMethodImplementation(dexBuilder, methodImpl);
+                }
+                BuilderMethod builderMethod = dexBuilder.internMethod(
+                        method.getDefiningClass(),
+                        method.getName(),
+                        method.getParameters(),
+                        method.getReturnType(),
+                        method.getAccessFlags(),
+                        method.getAnnotations(),
+                        methodImpl
+                );
+                builderMethods.add(builderMethod);
+            }
+            dexBuilder.internClassDef(
+                    classDef.getType(),
+                    classDef.getAccessFlags(),
+                    classDef.getSuperclass(),
+                    classDef.getInterfaces(),
+                    classDef.getSourceFile(),
+                    classDef.getAnnotations(),
+                    builderFields,
+                    builderMethods
+            );
+        }
+
+        // DexWriter seeks back to fill header, so the dex is built in memory and then
+        // written to dest in one pass with MD5 updated along the way.
+        final MemoryDataStore dataStore = new MemoryDataStore();
+        dexBuilder.writeTo(dataStore);
+        final MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new TinkerPatchException(e);
+        }
+        OutputStream os = null;
+        try {
+            os = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(dest)), md5);
+            os.write(dataStore.getBuffer(), 0, dataStore.getSize());
+            os.flush();
+        } finally {
+            IOHelper.closeQuietly(os);
+        }
+        return MD5.toHexString(md5.digest());
+    }
+
+    private static final class ChangedClassesDexJob {
+        final DexFile dexFile;
+        final Set<String> descOfChangedClasses;
+        final File dest;
+        String md5 = null;
+
+        ChangedClassesDexJob(DexFile dexFile, Set<String> descOfChangedClasses, File dest) {
+            this.dexFile = dexFile;
+            this.descOfChangedClasses = descOfChangedClasses;
+            this.dest = dest;
+        }
+    }
+
     private void appendMetaLine(StringBuilder sb, Object... vals) {
         if (vals == null || vals.length == 0) {
             return;
@@ -594,13 +748,14 @@ public class DexDiffDecoder extends BaseDecoder {
     @SuppressWarnings("NewApi")
     private void generatePatchedDexInfoFile() throws IOException {
         // Generate dex diff out and full patched dex if a pair of dex is different.
+        List<AbstractMap.SimpleEntry<File, File>> changedDexFilePairList = new ArrayList<>();
         for (AbstractMap.SimpleEntry<File, File> oldAndNewDexFilePair : oldAndNewDexFilePairList) {
             File oldFile = oldAndNewDexFilePair.getKey();
             File newFile = oldAndNewDexFilePair.getValue();
             final String dexName = getRelativeDexName(oldFile, newFile);
             RelatedInfo relatedInfo = dexNameToRelatedInfoMap.get(dexName);
             if (!relatedInfo.oldMd5.equals(relatedInfo.newMd5)) {
-                diffDexPairAndFillRelatedInfo(oldFile, newFile, relatedInfo);
+                changedDexFilePairList.add(oldAndNewDexFilePair);
             } else {
                 // In this case newDexFile is the same as oldDexFile, but we still
                 // need to treat it as patched dex file so that the SmallPatchGenerator
@@ -610,6 +765,110 @@ public class DexDiffDecoder extends BaseDecoder {
                 relatedInfo.newOrFullPatchedCRC = FileOperation.getFileCrc32(newFile);
             }
         }
+
+        if (changedDexFilePairList.isEmpty()) {
+            return;
+        }
+
+        // Sections of each dex pair are also diffed concurrently, it helps a lot
+        // when there are fewer changed dexes than threads. Pair workers and section
+        // threads share mDexDiffThreadCount, a serial caller just waits for its sections.
+        int threadCount = Math.min(config.mDexDiffThreadCount, changedDexFilePairList.size());
+        int sectionThreadCount = (threadCount <= 1
+                ? config.mDexDiffThreadCount : config.mDexDiffThreadCount - threadCount);
+        if (sectionThreadCount > 1) {
+            sectionDiffPool = new ForkJoinPool(sectionThreadCount);
+        }
+        try {
+            if (threadCount <= 1) {
+                for (AbstractMap.SimpleEntry<File, File> changedDexFilePair : changedDexFilePairList) {
+                    File oldFile = changedDexFilePair.getKey();
+                    File newFile = changedDexFilePair.getValue();
+                    diffDexPairAndFillRelatedInfo(oldFile, newFile, dexNameToRelatedInfoMap.get(getRelativeDexName(oldFile, newFile)));
+                }
+            } else {
+                diffDexPairsConcurrently(changedDexFilePairList, threadCount);
+            }
+        } finally {
+            if (sectionDiffPool != null) {
+                sectionDiffPool.shutdownNow();
+                sectionDiffPool = null;
+            }
+        }
+    }
+
+    /**
+     * Each dex pair is diffed, verified and MD5ed by its own worker. Workers only fill
+     * the {@code RelatedInfo} of their own pair, dex meta is still logged in the order of
+     * {@code oldAndNewDexFilePairList} after all of them are done.
+     */
+    private void diffDexPairsConcurrently(List<AbstractMap.SimpleEntry<File, File>> dexFilePairList, int threadCount) {
+        Logger.d("\nDiff %d dex pairs with %d threads.", dexFilePairList.size(), threadCount);
+        List<Callable<Void>> tasks = new ArrayList<>(dexFilePairList.size());
+        for (AbstractMap.SimpleEntry<File, File> dexFilePair : dexFilePairList) {
+            final File oldFile = dexFilePair.getKey();
+            final File newFile = dexFilePair.getValue();
+            final RelatedInfo relatedInfo = dexNameToRelatedInfoMap.get(getRelativeDexName(oldFile, newFile));
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    diffDexPairAndFillRelatedInfo(oldFile, newFile, relatedInfo);
+                    return null;
+                }
+            });
+        }
+        runConcurrently(tasks, threadCount, "diffing dex pairs");
+    }
+
+    /**
+     * Runs {@code tasks} on a fixed pool of {@code threadCount} threads. If one of them fails,
+     * the others are cancelled and waited for before its failure is rethrown.
+     */
+    private static void runConcurrently(List<Callable<Void>> tasks, int threadCount, String action) {
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            List<Future<Void>> futures = new ArrayList<>(tasks.size());
+            for (Callable<Void> task : tasks) {
+                futures.add(executor.submit(task));
+            }
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new TinkerPatchException("interrupted while " + action + ".", e);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof TinkerPatchException) {
+                        throw (TinkerPatchException) cause;
+                    }
+                    throw new TinkerPatchException(cause);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            awaitTermination(executor);
+        }
+    }
+
+    /**
+     * Waits until every worker of {@code executor} has returned, so that none of them is
+     * still writing into info files or temp dirs once the caller goes on or rethrows.
+     */
+    private static void awaitTermination(ExecutorService executor) {
+        boolean isInterrupted = false;
+        while (true) {
+            try {
+                if (executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                isInterrupted = true;
+            }
+        }
+        if (isInterrupted) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     private void diffDexPairAndFillRelatedInfo(File oldDexFile, File newDexFile, RelatedInfo relatedInfo) {
@@ -620,8 +879,9 @@ public class DexDiffDecoder extends BaseDecoder {
         ensureDirectoryExist(dexDiffOut.getParentFile());
 
         try {
-            DexPatchGenerator dexPatchGen = new DexPatchGenerator(oldDexFile, newDexFile);
+            DexPatchGenerator dexPatchGen = new DexPatchGenerator(dexRegistry.getDex(oldDexFile), dexRegistry.getDex(newDexFile));
             dexPatchGen.setAdditionalRemovingClassPatterns(config.mDexLoaderPattern);
+            dexPatchGen.setSectionDiffPool(sectionDiffPool);
 
 //            logWriter.writeLineToInfoFile(
 //                    String.format(
@@ -650,14 +910,16 @@ public class DexDiffDecoder extends BaseDecoder {
         }
 
         try {
-            new DexPatchApplier(oldDexFile, dexDiffOut).executeAndSaveTo(tempFullPatchedDexFile);
+            new DexPatchApplier(dexRegistry.getDex(oldDexFile), new DexPatchFile(dexDiffOut)).executeAndStreamTo(tempFullPatchedDexFile);
 
             Logger.d(
                     String.format("Verifying if patched new dex is logically the same as original new dex: %s ...", getRelativeStringBy(newDexFile, config.mTempUnzipNewDir))
             );
 
-            Dex origNewDex = new Dex(newDexFile);
+            Dex origNewDex = dexRegistry.getDex(newDexFile);
+            // Read into heap, a mapping would pin the temporary file until it is collected.
             Dex patchedNewDex = new Dex(tempFullPatchedDexFile);
+            patchedNewDex.enableStringCache(false);
             checkDexChange(origNewDex, patchedNewDex);
 
             relatedInfo.newOrFullPatchedFile = tempFullPatchedDexFile;
@@ -732,12 +994,18 @@ public class DexDiffDecoder extends BaseDecoder {
      * and deleted class descriptor for further analysing in {@code checkCrossDexMovingClasses}.
      */
     private void collectAddedOrDeletedClasses(File oldFile, File newFile) throws IOException {
-        Dex oldDex = new Dex(oldFile);
-        Dex newDex = new Dex(newFile);
+        Dex newDex = dexRegistry.getDex(newFile);
 
-        Set<String> oldClassDescs = new HashSet<>();
-        for (ClassDef oldClassDef : oldDex.classDefs()) {
-            oldClassDescs.add(oldDex.typeNames().get(oldClassDef.typeIndex));
+        Set<String> oldClassDescs;
+        List<String> indexedOldClassDescs = getOldDexClassDescsFromIndex(oldFile);
+        if (indexedOldClassDescs != null) {
+            oldClassDescs = new HashSet<>(indexedOldClassDescs);
+        } else {
+            Dex oldDex = dexRegistry.getDex(oldFile);
+            oldClassDescs = new HashSet<>();
+            for (ClassDef oldClassDef : oldDex.classDefs()) {
+                oldClassDescs.add(oldDex.typeNames().get(oldClassDef.typeIndex));
+            }
         }
 
         Set<String> newClassDescs = new HashSet<>();
@@ -795,6 +1063,7 @@ public class DexDiffDecoder extends BaseDecoder {
     private void checkDexChange(Dex originDex, Dex newDex) {
         DexClassesComparator classesCmptor = new DexClassesComparator("*");
         classesCmptor.setIgnoredRemovedClassDescPattern(config.mDexLoaderPattern);
+        classesCmptor.setComparePool(sectionDiffPool);
         classesCmptor.startCheck(originDex, newDex);
 
         List<DexClassesComparator.DexClassInfo> addedClassInfos = classesCmptor.getAddedClassInfos();
@@ -872,7 +1141,7 @@ public class DexDiffDecoder extends BaseDecoder {
                 oldCrc = "0";
                 Logger.d("DexDecoder:add newly dex file: %s", parentRelative);
             } else {
-                oldCrc = FileOperation.getZipEntryCrc(config.mOldApkFile, relative);
+                oldCrc = getOldApkEntryCrc(relative);
                 if (oldCrc == null || oldCrc.equals("0")) {
                     throw new TinkerPatchException(
                         String.format("can't find zipEntry %s from old apk file %s", relative, config.mOldApkFile.getPath())
@@ -901,6 +1170,23 @@ public class DexDiffDecoder extends BaseDecoder {
 //        logWriter.close();
     }
 
+    private String getOldRawOrWrappedDexMD5(File oldDexOrJarFile) {
+        if (config.mBaselineIndex != null && oldDexOrJarFile.length() > 0) {
+            String md5 = config.mBaselineIndex.getDexMd5(getRelativePathStringToOldFile(oldDexOrJarFile));
+            if (md5 != null) {
+                return md5;
+            }
+        }
+        return getRawOrWrappedDexMD5(oldDexOrJarFile);
+    }
+
+    private List<String> getOldDexClassDescsFromIndex(File oldDexOrJarFile) {
+        if (config.mBaselineIndex == null) {
+            return null;
+        }
+        return config.mBaselineIndex.getDexClassDescs(getRelativePathStringToOldFile(oldDexOrJarFile));
+    }
+
     private String getRawOrWrappedDexMD5(File dexOrJarFile) {
         final String name = dexOrJarFile.getName();
         if (name.endsWith(".dex")) {
@@ -943,7 +1229,8 @@ public class DexDiffDecoder extends BaseDecoder {
 
     private void ensureDirectoryExist(File dir) {
         if (!dir.exists()) {
-            if (!dir.mkdirs()) {
+            // Another dex diff worker may create the same directory at the same time.
+            if (!dir.mkdirs() && !dir.isDirectory()) {
                 throw new TinkerPatchException("failed to create directory: " + dir);
             }
         }
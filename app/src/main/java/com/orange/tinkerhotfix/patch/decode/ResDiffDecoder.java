@@ -26,7 +26,6 @@ import com.orange.tinkerhotfix.patch.util.Logger;
 import com.orange.tinkerhotfix.patch.util.MD5;
 import com.orange.tinkerhotfix.patch.util.TypedValue;
 import com.orange.tinkerhotfix.patch.util.Utils;
-import com.tencent.tinker.bsdiff.BSDiff;
 
 import java.io.File;
 import java.io.IOException;
@@ -195,7 +194,7 @@ public class ResDiffDecoder extends BaseDecoder {
         }
         //new add file
         String newMd5 = MD5.getMD5(newFile);
-        String oldMd5 = MD5.getMD5(oldFile);
+        String oldMd5 = getOldFileMd5(oldFile);
 
         //oldFile or newFile may be 0b length
         if (oldMd5 != null && oldMd5.equals(newMd5)) {
@@ -224,7 +223,7 @@ public class ResDiffDecoder extends BaseDecoder {
             if (!outputFile.getParentFile().exists()) {
                 outputFile.getParentFile().mkdirs();
             }
-            BSDiff.bsdiff(oldFile, newFile, outputFile);
+            Utils.bsDiff(config, oldFile, newFile, outputFile);
             //treat it as normal modify
             if (Utils.checkBsDiffFileSize(outputFile, newFile)) {
                 LargeModeInfo largeModeInfo = new LargeModeInfo();
@@ -368,7 +367,7 @@ public class ResDiffDecoder extends BaseDecoder {
 
         //first, write resource meta first
         //use resources.arsc's base crc to identify base.apk
-        String arscBaseCrc = FileOperation.getZipEntryCrc(config.mOldApkFile, TypedValue.RES_ARSC);
+        String arscBaseCrc = getOldApkEntryCrc(TypedValue.RES_ARSC);
         String arscMd5 = FileOperation.getZipEntryMd5(extractToZip, TypedValue.RES_ARSC);
         if (arscBaseCrc == null || arscMd5 == null) {
             throw new TinkerPatchException("can't find resources.arsc's base crc or md5");
@@ -68,7 +68,7 @@ public class InfoWriter {
         }
     }
 
-    public void writeLineToInfoFile(String line) {
+    public synchronized void writeLineToInfoFile(String line) {
         if (infoPath == null || line == null || line.length() == 0) {
             return;
         }
@@ -89,7 +89,7 @@ public class InfoWriter {
 
     }
 
-    public void close() {
+    public synchronized void close() {
         try {
             if (infoWrite != null) infoWrite.close();
         } catch (IOException e) {
@@ -0,0 +1,367 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.tinkerhotfix.patch.util;
+
+import com.orange.tinkerhotfix.patch.TinkerPatchException;
+import com.orange.tinkerhotfix.party.ClassDef;
+import com.orange.tinkerhotfix.party.Dex;
+import com.orange.tinkerhotfix.party.DexFormat;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Per-entry MD5 and CRC of an old apk, with the class descriptors of each dex, saved to an
+ * index file so that later patch builds against the same base apk don't have to hash its
+ * unzipped files or parse its dexes for them again.
+ *
+ * An index is identified by a digest of the apk's central directory (name, crc and sizes of
+ * every entry), which is cheap to compute and changes whenever any entry does. Index files
+ * of different base apks can share one directory.
+ *
+ * Loaded indexes are immutable and can be shared among decoder workers.
+ */
+public final class BaselineIndex {
+    private static final int MAGIC = 0x54424958; // TBIX
+    private static final int VERSION = 2;
+    private static final String INDEX_FILE_SUFFIX = ".tbi";
+    private static final int MD5_BUFFER_SIZE = 100 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final String apkDigest;
+    private final Map<String, Entry> nameToEntryMap;
+
+    private BaselineIndex(String apkDigest, Map<String, Entry> nameToEntryMap) {
+        this.apkDigest = apkDigest;
+        this.nameToEntryMap = nameToEntryMap;
+    }
+
+    /**
+     * Load the index of {@code oldApk} from {@code indexDir}, or build and save it there if it
+     * doesn't exist yet or is unreadable.
+     */
+    public static BaselineIndex loadOrBuild(File oldApk, File indexDir) throws IOException {
+        final long startTime = System.currentTimeMillis();
+        final String apkDigest = getApkDigest(oldApk);
+        final File indexFile = new File(indexDir, oldApk.getName() + "-" + apkDigest + INDEX_FILE_SUFFIX);
+
+        if (indexFile.isFile()) {
+            try {
+                BaselineIndex index = load(indexFile, apkDigest);
+                Logger.d("Loaded baseline index %s, entries:%d, cost:%dms",
+                        indexFile.getAbsolutePath(), index.nameToEntryMap.size(), System.currentTimeMillis() - startTime);
+                return index;
+            } catch (IOException | RuntimeException e) {
+                Logger.e("Baseline index %s is broken, rebuild it. reason: %s", indexFile.getAbsolutePath(), e.toString());
+            }
+        }
+
+        BaselineIndex index = build(oldApk, apkDigest);
+        index.save(indexFile);
+        Logger.d("Built baseline index %s, entries:%d, cost:%dms",
+                indexFile.getAbsolutePath(), index.nameToEntryMap.size(), System.currentTimeMillis() - startTime);
+        return index;
+    }
+
+    public String getApkDigest() {
+        return apkDigest;
+    }
+
+    /**
+     * Returns MD5 of entry {@code name}, null if the entry is absent.
+     */
+    public String getMd5(String name) {
+        Entry entry = nameToEntryMap.get(name);
+        return (entry != null ? entry.md5 : null);
+    }
+
+    /**
+     * Returns CRC of entry {@code name} as {@link FileOperation#getZipEntryCrc} does,
+     * null if the entry is absent.
+     */
+    public String getCrc(String name) {
+        Entry entry = nameToEntryMap.get(name);
+        return (entry != null ? String.valueOf(entry.crc) : null);
+    }
+
+    /**
+     * Returns MD5 of the dex of entry {@code name}. It is the MD5 of the entry itself for a raw
+     * dex and the one of its 'classes.dex' for a dex jar, null if the entry is absent or no dex.
+     */
+    public String getDexMd5(String name) {
+        Entry entry = nameToEntryMap.get(name);
+        return (entry != null ? entry.dexMd5 : null);
+    }
+
+    /**
+     * Returns descriptors of classes defined in the dex of entry {@code name}, null if the entry
+     * is absent or no dex.
+     */
+    public List<String> getDexClassDescs(String name) {
+        Entry entry = nameToEntryMap.get(name);
+        return (entry != null ? entry.dexClassDescs : null);
+    }
+
+    /**
+     * Returns digest of the central directory of {@code apk}, which identifies its index.
+     */
+    public static String getApkDigest(File apk) throws IOException {
+        List<String> lines = new ArrayList<>();
+        ZipFile zipFile = new ZipFile(apk);
+        try {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                lines.add(entry.getName() + "," + entry.getCrc() + "," + entry.getSize() + "," + entry.getCompressedSize());
+            }
+        } finally {
+            IOHelper.closeQuietly(zipFile);
+        }
+        Collections.sort(lines);
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(apk.length());
+        for (String line : lines) {
+            sb.append('\n').append(line);
+        }
+        return MD5.getMessageDigest(sb.toString().getBytes(UTF_8));
+    }
+
+    private static BaselineIndex build(File apk, String apkDigest) throws IOException {
+        Map<String, Entry> nameToEntryMap = new HashMap<>();
+        ZipFile zipFile = new ZipFile(apk);
+        try {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry zipEntry = entries.nextElement();
+                if (zipEntry.isDirectory()) {
+                    continue;
+                }
+                String name = zipEntry.getName();
+                String md5 = getEntryMd5(zipFile, zipEntry);
+                String dexMd5 = null;
+                List<String> dexClassDescs = null;
+                if (name.endsWith(".dex")) {
+                    dexMd5 = md5;
+                } else if (name.endsWith(".jar")) {
+                    dexMd5 = getWrappedDexMd5(zipFile, zipEntry);
+                }
+                if (md5 == null) {
+                    throw new IOException("failed to calculate md5 of entry " + name);
+                }
+                if (dexMd5 != null) {
+                    dexClassDescs = getDexClassDescs(zipFile, zipEntry);
+                }
+                nameToEntryMap.put(name, new Entry(zipEntry.getCrc(), md5, dexMd5, dexClassDescs));
+            }
+        } finally {
+            IOHelper.closeQuietly(zipFile);
+        }
+        return new BaselineIndex(apkDigest, nameToEntryMap);
+    }
+
+    private static String getEntryMd5(ZipFile zipFile, ZipEntry zipEntry) throws IOException {
+        InputStream is = zipFile.getInputStream(zipEntry);
+        try {
+            return MD5.getMD5(is, MD5_BUFFER_SIZE);
+        } finally {
+            IOHelper.closeQuietly(is);
+        }
+    }
+
+    private static String getWrappedDexMd5(ZipFile zipFile, ZipEntry jarEntry) throws IOException {
+        ZipInputStream zis = new ZipInputStream(zipFile.getInputStream(jarEntry));
+        try {
+            ZipEntry zipEntry;
+            while ((zipEntry = zis.getNextEntry()) != null) {
+                if (DexFormat.DEX_IN_JAR_NAME.equals(zipEntry.getName())) {
+                    return MD5.getMD5(zis, MD5_BUFFER_SIZE);
+                }
+            }
+            return null;
+        } finally {
+            IOHelper.closeQuietly(zis);
+        }
+    }
+
+    /**
+     * Returns null if the dex can't be parsed, callers then read descriptors from the
+     * unzipped file as before.
+     */
+    private static List<String> getDexClassDescs(ZipFile zipFile, ZipEntry zipEntry) throws IOException {
+        InputStream is = zipFile.getInputStream(zipEntry);
+        try {
+            if (zipEntry.getName().endsWith(".jar")) {
+                ZipInputStream zis = new ZipInputStream(is);
+                is = zis;
+                ZipEntry dexEntry;
+                while ((dexEntry = zis.getNextEntry()) != null) {
+                    if (DexFormat.DEX_IN_JAR_NAME.equals(dexEntry.getName())) {
+                        break;
+                    }
+                }
+                if (dexEntry == null) {
+                    return null;
+                }
+            }
+            Dex dex = new Dex(is);
+            List<String> classDescs = new ArrayList<>(dex.getTableOfContents().classDefs.size);
+            for (ClassDef classDef : dex.classDefs()) {
+                classDescs.add(dex.typeNames().get(classDef.typeIndex));
+            }
+            return Collections.unmodifiableList(classDescs);
+        } catch (RuntimeException e) {
+            Logger.e("Failed to read classes of entry %s in baseline index, reason: %s", zipEntry.getName(), e.toString());
+            return null;
+        } finally {
+            IOHelper.closeQuietly(is);
+        }
+    }
+
+    private static BaselineIndex load(File indexFile, String apkDigest) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("bad magic or version.");
+            }
+            String savedApkDigest = readString(buffer);
+            if (!apkDigest.equals(savedApkDigest)) {
+                throw new IOException("index is built for another apk, digest: " + savedApkDigest);
+            }
+            int entryCount = buffer.getInt();
+            Map<String, Entry> nameToEntryMap = new HashMap<>(entryCount * 4 / 3 + 1);
+            for (int i = 0; i < entryCount; ++i) {
+                String name = readString(buffer);
+                long crc = buffer.getLong();
+                String md5 = readString(buffer);
+                String dexMd5 = (buffer.get() != 0 ? readString(buffer) : null);
+                List<String> dexClassDescs = null;
+                int classCount = buffer.getInt();
+                if (classCount >= 0) {
+                    String[] classDescs = new String[classCount];
+                    for (int j = 0; j < classCount; ++j) {
+                        classDescs[j] = readString(buffer);
+                    }
+                    dexClassDescs = Collections.unmodifiableList(Arrays.asList(classDescs));
+                }
+                nameToEntryMap.put(name, new Entry(crc, md5, dexMd5, dexClassDescs));
+            }
+            return new BaselineIndex(apkDigest, nameToEntryMap);
+        } finally {
+            IOHelper.closeQuietly(raf);
+        }
+    }
+
+    private void save(File indexFile) throws IOException {
+        File indexDir = indexFile.getParentFile();
+        if (!indexDir.exists() && !indexDir.mkdirs()) {
+            throw new TinkerPatchException("failed to create baseline index dir: " + indexDir.getAbsolutePath());
+        }
+        // Write to a temp file first, so other builds never see a half written index.
+        File tempFile = File.createTempFile(indexFile.getName(), ".tmp", indexDir);
+        try {
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            try {
+                dos.writeInt(MAGIC);
+                dos.writeInt(VERSION);
+                writeString(dos, apkDigest);
+                dos.writeInt(nameToEntryMap.size());
+                for (Map.Entry<String, Entry> nameAndEntry : nameToEntryMap.entrySet()) {
+                    Entry entry = nameAndEntry.getValue();
+                    writeString(dos, nameAndEntry.getKey());
+                    dos.writeLong(entry.crc);
+                    writeString(dos, entry.md5);
+                    if (entry.dexMd5 != null) {
+                        dos.writeByte(1);
+                        writeString(dos, entry.dexMd5);
+                    } else {
+                        dos.writeByte(0);
+                    }
+                    if (entry.dexClassDescs != null) {
+                        dos.writeInt(entry.dexClassDescs.size());
+                        for (String classDesc : entry.dexClassDescs) {
+                            writeString(dos, classDesc);
+                        }
+                    } else {
+                        dos.writeInt(-1);
+                    }
+                }
+            } finally {
+                IOHelper.closeQuietly(dos);
+            }
+            try {
+                Files.move(tempFile.toPath(), indexFile.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            if (tempFile.exists()) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream dos, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF_8);
+        dos.writeInt(bytes.length);
+        dos.write(bytes);
+    }
+
+    private static String readString(MappedByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static final class Entry {
+        final long crc;
+        final String md5;
+        final String dexMd5;
+        final List<String> dexClassDescs;
+
+        Entry(long crc, String md5, String dexMd5, List<String> dexClassDescs) {
+            this.crc = crc;
+            this.md5 = md5;
+            this.dexMd5 = dexMd5;
+            this.dexClassDescs = dexClassDescs;
+        }
+    }
+}
@@ -17,10 +17,8 @@
 package com.orange.tinkerhotfix.patch.util;
 
 import com.orange.tinkerhotfix.common.DexPatcherLogger;
+import com.orange.tinkerhotfix.dx.instruction.DecodedInstructions;
 import com.orange.tinkerhotfix.dx.instruction.InstructionCodec;
-import com.orange.tinkerhotfix.dx.instruction.InstructionReader;
-import com.orange.tinkerhotfix.dx.instruction.InstructionVisitor;
-import com.orange.tinkerhotfix.dx.instruction.ShortArrayCodeInput;
 import com.orange.tinkerhotfix.party.ClassData;
 import com.orange.tinkerhotfix.party.ClassDef;
 import com.orange.tinkerhotfix.party.Code;
@@ -45,6 +43,7 @@ public class ChangedClassesDexClassInfoCollector {
     private static final DexPatcherLogger LOGGER = new DexPatcherLogger();
     private final Set<String> excludedClassPatterns = new HashSet<>();
     private boolean includeRefererToRefererAffectedClasses = false;
+    private int indexThreadCount = 1;
 
     public ChangedClassesDexClassInfoCollector setExcludedClassPatterns(Collection<String> loaderClassPatterns) {
         this.excludedClassPatterns.clear();
@@ -67,6 +66,14 @@ public class ChangedClassesDexClassInfoCollector {
         return this;
     }
 
+    /**
+     * Threads used to index referrers in old dexes, one dex per thread.
+     */
+    public ChangedClassesDexClassInfoCollector setIndexThreadCount(int threadCount) {
+        this.indexThreadCount = threadCount;
+        return this;
+    }
+
     public Set<DexClassesComparator.DexClassInfo> doCollect(DexClassesComparator.DexGroup oldDexGroup, DexClassesComparator.DexGroup newDexGroup) {
         final Set<String> classDescsInResult = new HashSet<>();
         final Set<DexClassesComparator.DexClassInfo> result = new HashSet<>();
@@ -102,12 +109,21 @@ public class ChangedClassesDexClassInfoCollector {
 
             Set<String> referrerAffectedChangedClassDescs = dexClassCmptor.getChangedClassDescToInfosMap().keySet();
             Set<DexClassesComparator.DexClassInfo> oldClassInfos = oldDexGroup.getClassInfosInDexesWithDuplicateCheck();
+            if (referrerAffectedChangedClassDescs.isEmpty()) {
+                return result;
+            }
 
-            for (DexClassesComparator.DexClassInfo oldClassInfo : oldClassInfos) {
-                if (!classDescsInResult.contains(oldClassInfo.classDesc)
-                        && isClassReferToAnyClasses(oldClassInfo, referrerAffectedChangedClassDescs)) {
-                    LOGGER.i(TAG, "Add class %s in old dex to changed classes dex since it is affected by modified referee.", oldClassInfo.classDesc);
-                    result.add(oldClassInfo);
+            ReferrerIndex referrerIndex = ReferrerIndex.build(oldClassInfos, indexThreadCount);
+
+            for (String refereeClassDesc : referrerAffectedChangedClassDescs) {
+                for (DexClassesComparator.DexClassInfo oldClassInfo : referrerIndex.getReferrers(refereeClassDesc)) {
+                    if (classDescsInResult.add(oldClassInfo.classDesc)) {
+                        if (LOGGER.getLoggerImpl() != null) {
+                            logReferencesToReferees(oldClassInfo, referrerAffectedChangedClassDescs);
+                        }
+                        LOGGER.i(TAG, "Add class %s in old dex to changed classes dex since it is affected by modified referee.", oldClassInfo.classDesc);
+                        result.add(oldClassInfo);
+                    }
                 }
             }
         }
@@ -115,92 +131,44 @@ public class ChangedClassesDexClassInfoCollector {
         return result;
     }
 
-    private boolean isClassReferToAnyClasses(DexClassesComparator.DexClassInfo classInfo, Set<String> refereeClassDescs) {
-        if (classInfo.classDef.classDataOffset == ClassDef.NO_OFFSET) {
-            return false;
-        }
+    /**
+     * Log instructions in the first method of {@code classInfo} that refer to any of
+     * {@code refereeClassDescs}. Only classes found by {@link ReferrerIndex} get here.
+     */
+    private void logReferencesToReferees(DexClassesComparator.DexClassInfo classInfo, Set<String> refereeClassDescs) {
         ClassData classData = classInfo.owner.readClassData(classInfo.classDef);
+        DecodedInstructions decodedInsns = new DecodedInstructions();
         for (ClassData.Method method : classData.directMethods) {
-            if (isMethodReferToAnyClasses(classInfo, method, refereeClassDescs)) {
-                return true;
+            if (logMethodReferencesToReferees(classInfo.owner, method, refereeClassDescs, decodedInsns)) {
+                return;
             }
         }
         for (ClassData.Method method : classData.virtualMethods) {
-            if (isMethodReferToAnyClasses(classInfo, method, refereeClassDescs)) {
-                return true;
+            if (logMethodReferencesToReferees(classInfo.owner, method, refereeClassDescs, decodedInsns)) {
+                return;
             }
         }
-        return false;
     }
 
-    private boolean isMethodReferToAnyClasses(DexClassesComparator.DexClassInfo classInfo, ClassData.Method method, Set<String> refereeClassDescs) {
+    private boolean logMethodReferencesToReferees(Dex owner, ClassData.Method method, Set<String> refereeClassDescs,
+                                                  DecodedInstructions decodedInsns) {
         if (method.codeOffset == ClassDef.NO_OFFSET) {
             return false;
         }
-        Code methodCode = classInfo.owner.readCode(method);
-        InstructionReader ir = new InstructionReader(new ShortArrayCodeInput(methodCode.instructions));
-        ReferToClassesCheckVisitor rtcv = new ReferToClassesCheckVisitor(classInfo.owner, method, refereeClassDescs);
+        Code methodCode = owner.readCode(method);
         try {
-            ir.accept(rtcv);
+            decodedInsns.decode(methodCode.instructions);
         } catch (EOFException e) {
             // Should not be here.
+            return false;
         }
-        return rtcv.isReferToAnyRefereeClasses;
-    }
-
-    private static class ReferToClassesCheckVisitor extends InstructionVisitor {
-        private final Dex owner;
-        private final ClassData.Method method;
-        private final Collection<String> refereeClassDescs;
-
-        private boolean isReferToAnyRefereeClasses = false;
-
-        ReferToClassesCheckVisitor(Dex owner, ClassData.Method method, Collection<String> refereeClassDescs) {
-            super(null);
-            this.owner = owner;
-            this.method = method;
-            this.refereeClassDescs = refereeClassDescs;
-        }
-
-        @Override
-        public void visitZeroRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal) {
-            processIndexByType(index, indexType);
-        }
-
-        @Override
-        public void visitOneRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a) {
-            processIndexByType(index, indexType);
-        }
-
-        @Override
-        public void visitTwoRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a, int b) {
-            processIndexByType(index, indexType);
-        }
-
-        @Override
-        public void visitThreeRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a, int b, int c) {
-            processIndexByType(index, indexType);
-        }
-
-        @Override
-        public void visitFourRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a, int b, int c, int d) {
-            processIndexByType(index, indexType);
-        }
-
-        @Override
-        public void visitFiveRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a, int b, int c, int d, int e) {
-            processIndexByType(index, indexType);
-        }
-
-        @Override
-        public void visitRegisterRangeInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a, int registerCount) {
-            processIndexByType(index, indexType);
-        }
-
-        private void processIndexByType(int index, int indexType) {
+        boolean isReferToAnyRefereeClasses = false;
+        final int count = decodedInsns.size();
+        for (int slot = 0; slot < count; ++slot) {
+            final int index = decodedInsns.getIndex(slot);
             String typeName = null;
             String refInfoInLog = null;
-            switch (indexType) {
+            switch (decodedInsns.getIndexType(slot)) {
                 case InstructionCodec.INDEX_TYPE_TYPE_REF: {
                     typeName = owner.typeNames().get(index);
                     refInfoInLog = "init referrer-affected class";
@@ -215,7 +183,7 @@ public class ChangedClassesDexClassInfoCollector {
                 case InstructionCodec.INDEX_TYPE_METHOD_REF: {
                     final MethodId methodId = owner.methodIds().get(index);
                     typeName = owner.typeNames().get(methodId.declaringClassIndex);
-                    refInfoInLog = "invoking method: " + getMethodProtoTypeStr(methodId);
+                    refInfoInLog = "invoking method: " + getMethodProtoTypeStr(owner, methodId);
                     break;
                 }
                 default: {
@@ -227,7 +195,7 @@ public class ChangedClassesDexClassInfoCollector {
                 LOGGER.i(
                         TAG,
                         "Method %s in class %s referenced referrer-affected class %s by %s",
-                        getMethodProtoTypeStr(methodId),
+                        getMethodProtoTypeStr(owner, methodId),
                         owner.typeNames().get(methodId.declaringClassIndex),
                         typeName,
                         refInfoInLog
@@ -235,18 +203,19 @@ public class ChangedClassesDexClassInfoCollector {
                 isReferToAnyRefereeClasses = true;
             }
         }
+        return isReferToAnyRefereeClasses;
+    }
 
-        private String getMethodProtoTypeStr(MethodId methodId) {
-            StringBuilder strBuilder = new StringBuilder();
-            strBuilder.append(owner.strings().get(methodId.nameIndex));
-            ProtoId protoId = owner.protoIds().get(methodId.protoIndex);
-            strBuilder.append('(');
-            short[] paramTypeIds = owner.parameterTypeIndicesFromMethodId(methodId);
-            for (short typeId : paramTypeIds) {
-                strBuilder.append(owner.typeNames().get(typeId));
-            }
-            strBuilder.append(')').append(owner.typeNames().get(protoId.returnTypeIndex));
-            return strBuilder.toString();
-        }
+    private static String getMethodProtoTypeStr(Dex owner, MethodId methodId) {
+        StringBuilder strBuilder = new StringBuilder();
+        strBuilder.append(owner.strings().get(methodId.nameIndex));
+        ProtoId protoId = owner.protoIds().get(methodId.protoIndex);
+        strBuilder.append('(');
+        short[] paramTypeIds = owner.parameterTypeIndicesFromMethodId(methodId);
+        for (short typeId : paramTypeIds) {
+            strBuilder.append(owner.typeNames().get(typeId));
+        }
+        strBuilder.append(')').append(owner.typeNames().get(protoId.returnTypeIndex));
+        return strBuilder.toString();
     }
 }
@@ -0,0 +1,80 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.orange.tinkerhotfix.patch.util;
+
+import com.orange.tinkerhotfix.party.Dex;
+import com.orange.tinkerhotfix.party.TableOfContents;
+
+import java.util.Arrays;
+
+/**
+ * Remembers which id of a new dex an id of an old dex was found the same as, for string,
+ * type, proto, field and method ids.
+ *
+ * Ids are unique in a dex, so once a match of an old id is known, comparing it with
+ * any id of the new dex becomes an array lookup. Threads racing on the same old id
+ * record the same match, so it is harmless.
+ */
+final class CrossDexIdMap {
+    static final int TYPE_STRING = 0;
+    static final int TYPE_TYPE   = 1;
+    static final int TYPE_PROTO  = 2;
+    static final int TYPE_FIELD  = 3;
+    static final int TYPE_METHOD = 4;
+
+    static final int UNKNOWN = -1;
+
+    private final int[][] oldToNewIdMaps = new int[5][];
+    private final int[] newIdCounts = new int[5];
+
+    CrossDexIdMap(Dex oldDex, Dex newDex) {
+        TableOfContents oldToc = oldDex.getTableOfContents();
+        TableOfContents newToc = newDex.getTableOfContents();
+        init(TYPE_STRING, oldToc.stringIds.size, newToc.stringIds.size);
+        init(TYPE_TYPE, oldToc.typeIds.size, newToc.typeIds.size);
+        init(TYPE_PROTO, oldToc.protoIds.size, newToc.protoIds.size);
+        init(TYPE_FIELD, oldToc.fieldIds.size, newToc.fieldIds.size);
+        init(TYPE_METHOD, oldToc.methodIds.size, newToc.methodIds.size);
+    }
+
+    private void init(int idType, int oldIdCount, int newIdCount) {
+        int[] oldToNewIdMap = new int[oldIdCount];
+        Arrays.fill(oldToNewIdMap, UNKNOWN);
+        oldToNewIdMaps[idType] = oldToNewIdMap;
+        newIdCounts[idType] = newIdCount;
+    }
+
+    /**
+     * Whether both ids are in range of their dexes, matches are only kept for such ids.
+     */
+    boolean isMappable(int idType, int oldIndex, int newIndex) {
+        return oldIndex >= 0 && oldIndex < oldToNewIdMaps[idType].length
+                && newIndex >= 0 && newIndex < newIdCounts[idType];
+    }
+
+    /**
+     * Returns the new id known to be the same as {@code oldIndex}, or {@link #UNKNOWN}.
+     */
+    int getMatch(int idType, int oldIndex) {
+        return oldToNewIdMaps[idType][oldIndex];
+    }
+
+    void putMatch(int idType, int oldIndex, int newIndex) {
+        oldToNewIdMaps[idType][oldIndex] = newIndex;
+    }
+}
@@ -46,9 +46,14 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.regex.Pattern;
 
 /**
@@ -64,12 +69,15 @@ public final class DexClassesComparator {
     private static final int DBG_LINE_BASE   = -4;      // the smallest line number increment
     private static final int DBG_LINE_RANGE  = 15;      // the number of line increments represented
 
+    // Classes compared by one fork-join task at most.
+    private static final int CLASS_COMPARE_BATCH_SIZE = 64;
+
     private int compareMode = COMPARE_MODE_NORMAL;
     private final List<DexClassInfo> addedClassInfoList = new ArrayList<>();
     private final List<DexClassInfo> deletedClassInfoList = new ArrayList<>();
     // classDesc => [oldClassInfo, newClassInfo]
     private final Map<String, DexClassInfo[]> changedClassDescToClassInfosMap = new HashMap<>();
-//    private final Set<Pattern> patternsOfClassDescToCheck = new HashSet<>();
+    private final Set<Pattern> patternsOfClassDescToCheck = new HashSet<>();
     private final Set<Pattern> patternsOfIgnoredRemovedClassDesc = new HashSet<>();
     private final Set<String> oldDescriptorOfClassesToCheck = new HashSet<>();
     private final Set<String> newDescriptorOfClassesToCheck = new HashSet<>();
@@ -78,25 +86,34 @@ public final class DexClassesComparator {
 
     // Record class descriptors whose references key (index or offset) of methods and fields
     // are changed.
-    private final Set<String> refAffectedClassDescs = new HashSet<>();
+    private final Set<String> refAffectedClassDescs
+            = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
     private final DexPatcherLogger logger = new DexPatcherLogger();
 
+    private ForkJoinPool comparePool = null;
+
+    // Id maps of every (old dex, new dex) pair, created on first use while checking.
+    private final Map<Dex, Integer> oldDexToIndexMap = new IdentityHashMap<>();
+    private final Map<Dex, Integer> newDexToIndexMap = new IdentityHashMap<>();
+    private AtomicReferenceArray<CrossDexIdMap> crossDexIdMaps = null;
+    private boolean isCrossDexIdMapEnabled = true;
+
     public DexClassesComparator(String patternStringOfClassDescToCheck) {
-//        patternsOfClassDescToCheck.add(
-//                Pattern.compile(
-//                        PatternUtils.dotClassNamePatternToDescriptorRegEx(patternStringOfClassDescToCheck)
-//                )
-//        );
+        patternsOfClassDescToCheck.add(
+                Pattern.compile(
+                        PatternUtils.dotClassNamePatternToDescriptorRegEx(patternStringOfClassDescToCheck)
+                )
+        );
     }
 
     public DexClassesComparator(String... patternStringsOfClassDescToCheck) {
-//        for (String patternStr : patternStringsOfClassDescToCheck) {
-//            patternsOfClassDescToCheck.add(
-//                    Pattern.compile(
-//                            PatternUtils.dotClassNamePatternToDescriptorRegEx(patternStr)
-//                    )
-//            );
-//        }
+        for (String patternStr : patternStringsOfClassDescToCheck) {
+            patternsOfClassDescToCheck.add(
+                    Pattern.compile(
+                            PatternUtils.dotClassNamePatternToDescriptorRegEx(patternStr)
+                    )
+            );
+        }
     }
 
     public DexClassesComparator() {
@@ -137,6 +154,21 @@ public final class DexClassesComparator {
         this.logger.setLoggerImpl(logger);
     }
 
+    /**
+     * Compare classes concurrently in {@code pool}, null means one by one in the calling thread.
+     * Results are the same either way.
+     */
+    public void setComparePool(ForkJoinPool pool) {
+        this.comparePool = pool;
+    }
+
+    /**
+     * Compare every pair of ids again instead of remembering matches, only for tests.
+     */
+    void setCrossDexIdMapEnabled(boolean enabled) {
+        this.isCrossDexIdMapEnabled = enabled;
+    }
+
     public List<DexClassInfo> getAddedClassInfos() {
         return Collections.unmodifiableList(addedClassInfoList);
     }
@@ -150,7 +182,7 @@ public final class DexClassesComparator {
     }
 
     public void startCheck(File oldDexFile, File newDexFile) throws IOException {
-        startCheck(new Dex(oldDexFile), new Dex(newDexFile));
+        startCheck(mapForCheck(oldDexFile), mapForCheck(newDexFile));
     }
 
     public void startCheck(Dex oldDex, Dex newDex) {
@@ -168,6 +200,16 @@ public final class DexClassesComparator {
         newClassDescriptorToClassInfoMap.clear();
         refAffectedClassDescs.clear();
 
+        oldDexToIndexMap.clear();
+        for (int i = 0; i < oldDexGroup.dexes.length; ++i) {
+            oldDexToIndexMap.put(oldDexGroup.dexes[i], i);
+        }
+        newDexToIndexMap.clear();
+        for (int i = 0; i < newDexGroup.dexes.length; ++i) {
+            newDexToIndexMap.put(newDexGroup.dexes[i], i);
+        }
+        crossDexIdMaps = new AtomicReferenceArray<>(oldDexGroup.dexes.length * newDexGroup.dexes.length);
+
         // Map classDesc and typeIndex to classInfo
         // and collect typeIndex of classes to check in oldDexes.
         for (Dex oldDex : oldDexGroup.dexes) {
@@ -175,6 +217,10 @@ public final class DexClassesComparator {
             for (ClassDef oldClassDef : oldDex.classDefs()) {
                 String desc = oldDex.typeNames().get(oldClassDef.typeIndex);
 
+                if (Utils.isStringMatchesPatterns(desc, patternsOfClassDescToCheck)) {
+                    oldDescriptorOfClassesToCheck.add(desc);
+                }
+
                 DexClassInfo classInfo = new DexClassInfo(desc, classDefIndex, oldClassDef, oldDex);
                 ++classDefIndex;
                 oldClassDescriptorToClassInfoMap.put(desc, classInfo);
@@ -188,6 +234,10 @@ public final class DexClassesComparator {
             for (ClassDef newClassDef : newDex.classDefs()) {
                 String desc = newDex.typeNames().get(newClassDef.typeIndex);
 
+                if (Utils.isStringMatchesPatterns(desc, patternsOfClassDescToCheck)) {
+                    newDescriptorOfClassesToCheck.add(desc);
+                }
+
                 DexClassInfo classInfo = new DexClassInfo(desc, classDefIndex, newClassDef, newDex);
                 ++classDefIndex;
                 newClassDescriptorToClassInfoMap.put(desc, classInfo);
@@ -223,44 +273,65 @@ public final class DexClassesComparator {
         Set<String> mayBeChangedClassDescs = new HashSet<>(oldDescriptorOfClassesToCheck);
         mayBeChangedClassDescs.retainAll(newDescriptorOfClassesToCheck);
 
-        for (String desc : mayBeChangedClassDescs) {
+        // Classes are compared independently, possibly in parallel. Results are
+        // collected in the order of candidates afterwards.
+        final List<String> candidateClassDescs = new ArrayList<>(mayBeChangedClassDescs);
+        final boolean[] changedFlags = new boolean[candidateClassDescs.size()];
+        if (comparePool != null && candidateClassDescs.size() > CLASS_COMPARE_BATCH_SIZE) {
+            comparePool.invoke(new CompareClassesAction(candidateClassDescs, changedFlags, 0, changedFlags.length));
+        } else {
+            compareClasses(candidateClassDescs, changedFlags, 0, changedFlags.length);
+        }
+
+        for (int i = 0; i < changedFlags.length; ++i) {
+            if (!changedFlags[i]) {
+                continue;
+            }
+            String desc = candidateClassDescs.get(i);
+            DexClassInfo oldClassInfo = oldClassDescriptorToClassInfoMap.get(desc);
+            DexClassInfo newClassInfo = newClassDescriptorToClassInfoMap.get(desc);
+            boolean isIgnored = Utils.isStringMatchesPatterns(desc, patternsOfIgnoredRemovedClassDesc);
+            if (compareMode == COMPARE_MODE_NORMAL) {
+                if (isIgnored) {
+                    logger.i(TAG, "Ignored changed class: %s", desc);
+                    continue;
+                }
+                logger.i(TAG, "Changed class: %s", desc);
+            } else {
+                if (isIgnored) {
+                    logger.i(TAG, "Ignored referrer-affected changed class: %s", desc);
+                    continue;
+                }
+                logger.i(TAG, "Referrer-affected change class: %s", desc);
+            }
+            changedClassDescToClassInfosMap.put(
+                    desc, new DexClassInfo[]{oldClassInfo, newClassInfo}
+            );
+        }
+    }
+
+    private void compareClasses(List<String> classDescs, boolean[] changedFlags, int start, int end) {
+        for (int i = start; i < end; ++i) {
+            String desc = classDescs.get(i);
             DexClassInfo oldClassInfo = oldClassDescriptorToClassInfoMap.get(desc);
             DexClassInfo newClassInfo = newClassDescriptorToClassInfoMap.get(desc);
             switch (compareMode) {
                 case COMPARE_MODE_NORMAL: {
-                    if (!isSameClass(
+                    changedFlags[i] = !isSameClass(
                             oldClassInfo.owner,
                             newClassInfo.owner,
                             oldClassInfo.classDef,
                             newClassInfo.classDef
-                    )) {
-                        if (Utils.isStringMatchesPatterns(desc, patternsOfIgnoredRemovedClassDesc)) {
-                            logger.i(TAG, "Ignored changed class: %s", desc);
-                        } else {
-                            logger.i(TAG, "Changed class: %s", desc);
-                            changedClassDescToClassInfosMap.put(
-                                    desc, new DexClassInfo[]{oldClassInfo, newClassInfo}
-                            );
-                        }
-                    }
+                    );
                     break;
                 }
                 case COMPARE_MODE_REFERRER_AFFECTED_CHANGE_ONLY: {
-                    if (isClassChangeAffectedToReferrer(
+                    changedFlags[i] = isClassChangeAffectedToReferrer(
                             oldClassInfo.owner,
                             newClassInfo.owner,
                             oldClassInfo.classDef,
                             newClassInfo.classDef
-                    )) {
-                        if (Utils.isStringMatchesPatterns(desc, patternsOfIgnoredRemovedClassDesc)) {
-                            logger.i(TAG, "Ignored referrer-affected changed class: %s", desc);
-                        } else {
-                            logger.i(TAG, "Referrer-affected change class: %s", desc);
-                            changedClassDescToClassInfosMap.put(
-                                    desc, new DexClassInfo[]{oldClassInfo, newClassInfo}
-                            );
-                        }
-                    }
+                    );
                     break;
                 }
                 default: {
@@ -270,6 +341,39 @@ public final class DexClassesComparator {
         }
     }
 
+    /**
+     * Every comparison reads the dexes through sections of its own, the only state shared
+     * between tasks is {@code refAffectedClassDescs} which merely caches positive results.
+     */
+    private final class CompareClassesAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> classDescs;
+        private final boolean[] changedFlags;
+        private final int start;
+        private final int end;
+
+        CompareClassesAction(List<String> classDescs, boolean[] changedFlags, int start, int end) {
+            this.classDescs = classDescs;
+            this.changedFlags = changedFlags;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= CLASS_COMPARE_BATCH_SIZE) {
+                compareClasses(classDescs, changedFlags, start, end);
+                return;
+            }
+            int middle = (start + end) >>> 1;
+            invokeAll(
+                    new CompareClassesAction(classDescs, changedFlags, start, middle),
+                    new CompareClassesAction(classDescs, changedFlags, middle, end)
+            );
+        }
+    }
+
     private boolean isClassChangeAffectedToReferrer(
             Dex oldDex,
             Dex newDex,
@@ -601,7 +705,69 @@ public final class DexClassesComparator {
         return isSameEncodedValue(oldDex, newDex, oldReader, newReader);
     }
 
+    /**
+     * Returns null if either dex is not in the groups being checked, or id maps are disabled.
+     */
+    private CrossDexIdMap getCrossDexIdMap(Dex oldDex, Dex newDex) {
+        if (!isCrossDexIdMapEnabled) {
+            return null;
+        }
+        Integer oldDexIndex = oldDexToIndexMap.get(oldDex);
+        Integer newDexIndex = newDexToIndexMap.get(newDex);
+        if (oldDexIndex == null || newDexIndex == null) {
+            return null;
+        }
+        int pairIndex = oldDexIndex * newDexToIndexMap.size() + newDexIndex;
+        CrossDexIdMap result = crossDexIdMaps.get(pairIndex);
+        if (result == null) {
+            crossDexIdMaps.compareAndSet(pairIndex, null, new CrossDexIdMap(oldDex, newDex));
+            result = crossDexIdMaps.get(pairIndex);
+        }
+        return result;
+    }
+
+    /**
+     * Compares two ids of {@code idType} and remembers matches in the {@link CrossDexIdMap}
+     * of this dex pair, so the same pair is not compared again.
+     */
+    private boolean isSameId(int idType, Dex oldDex, Dex newDex, int oldId, int newId) {
+        CrossDexIdMap idMap = getCrossDexIdMap(oldDex, newDex);
+        if (idMap == null || !idMap.isMappable(idType, oldId, newId)) {
+            return isSameIdUncached(idType, oldDex, newDex, oldId, newId);
+        }
+        int knownNewId = idMap.getMatch(idType, oldId);
+        if (knownNewId != CrossDexIdMap.UNKNOWN) {
+            return knownNewId == newId;
+        }
+        if (isSameIdUncached(idType, oldDex, newDex, oldId, newId)) {
+            idMap.putMatch(idType, oldId, newId);
+            return true;
+        }
+        return false;
+    }
+
+    private boolean isSameIdUncached(int idType, Dex oldDex, Dex newDex, int oldId, int newId) {
+        switch (idType) {
+            case CrossDexIdMap.TYPE_STRING:
+                return isSameStringUncached(oldDex, newDex, oldId, newId);
+            case CrossDexIdMap.TYPE_TYPE:
+                return isSameClassDescUncached(oldDex, newDex, oldId, newId);
+            case CrossDexIdMap.TYPE_PROTO:
+                return isSameProtoIdUncached(oldDex, newDex, oldId, newId);
+            case CrossDexIdMap.TYPE_FIELD:
+                return isSameFieldIdUncached(oldDex, newDex, oldId, newId);
+            case CrossDexIdMap.TYPE_METHOD:
+                return isSameMethodIdUncached(oldDex, newDex, oldId, newId);
+            default:
+                throw new IllegalStateException("unexpected id type: " + idType);
+        }
+    }
+
     private boolean isSameClassDesc(Dex oldDex, Dex newDex, int oldTypeId, int newTypeId) {
+        return isSameId(CrossDexIdMap.TYPE_TYPE, oldDex, newDex, oldTypeId, newTypeId);
+    }
+
+    private boolean isSameClassDescUncached(Dex oldDex, Dex newDex, int oldTypeId, int newTypeId) {
         String oldClassDesc = oldDex.typeNames().get(oldTypeId);
         String newClassDesc = newDex.typeNames().get(newTypeId);
         return oldClassDesc.equals(newClassDesc);
@@ -617,6 +783,10 @@ public final class DexClassesComparator {
             return false;
         }
 
+        return isSameId(CrossDexIdMap.TYPE_STRING, oldDex, newDex, oldStringId, newStringId);
+    }
+
+    private boolean isSameStringUncached(Dex oldDex, Dex newDex, int oldStringId, int newStringId) {
         return oldDex.strings().get(oldStringId).equals(newDex.strings().get(newStringId));
     }
 
@@ -706,6 +876,10 @@ public final class DexClassesComparator {
     }
 
     private boolean isSameFieldId(Dex oldDex, Dex newDex, int oldFieldIdIdx, int newFieldIdIdx) {
+        return isSameId(CrossDexIdMap.TYPE_FIELD, oldDex, newDex, oldFieldIdIdx, newFieldIdIdx);
+    }
+
+    private boolean isSameFieldIdUncached(Dex oldDex, Dex newDex, int oldFieldIdIdx, int newFieldIdIdx) {
         FieldId oldFieldId = oldDex.fieldIds().get(oldFieldIdIdx);
         FieldId newFieldId = newDex.fieldIds().get(newFieldIdIdx);
 
@@ -727,6 +901,10 @@ public final class DexClassesComparator {
     }
 
     private boolean isSameMethodId(Dex oldDex, Dex newDex, int oldMethodIdIdx, int newMethodIdIdx) {
+        return isSameId(CrossDexIdMap.TYPE_METHOD, oldDex, newDex, oldMethodIdIdx, newMethodIdIdx);
+    }
+
+    private boolean isSameMethodIdUncached(Dex oldDex, Dex newDex, int oldMethodIdIdx, int newMethodIdIdx) {
         MethodId oldMethodId = oldDex.methodIds().get(oldMethodIdIdx);
         MethodId newMethodId = newDex.methodIds().get(newMethodIdIdx);
 
@@ -746,6 +924,10 @@ public final class DexClassesComparator {
     }
 
     private boolean isSameProtoId(Dex oldDex, Dex newDex, int oldProtoIdIdx, int newProtoIdIdx) {
+        return isSameId(CrossDexIdMap.TYPE_PROTO, oldDex, newDex, oldProtoIdIdx, newProtoIdIdx);
+    }
+
+    private boolean isSameProtoIdUncached(Dex oldDex, Dex newDex, int oldProtoIdIdx, int newProtoIdIdx) {
         ProtoId oldProtoId = oldDex.protoIds().get(oldProtoIdIdx);
         ProtoId newProtoId = newDex.protoIds().get(newProtoIdIdx);
 
@@ -1450,6 +1632,16 @@ public final class DexClassesComparator {
         }
     }
 
+    /**
+     * Maps a dex owned by this comparator. Names of strings and types are looked up again
+     * and again while comparing classes, so they are kept decoded.
+     */
+    private static Dex mapForCheck(File dexFile) throws IOException {
+        Dex dex = Dex.mapFrom(dexFile);
+        dex.enableStringCache(false);
+        return dex;
+    }
+
     public static final class DexGroup {
         public final Dex[] dexes;
 
@@ -1467,7 +1659,7 @@ public final class DexClassesComparator {
             }
             this.dexes = new Dex[dexFiles.length];
             for (int i = 0; i < dexFiles.length; ++i) {
-                this.dexes[i] = new Dex(dexFiles[i]);
+                this.dexes[i] = mapForCheck(dexFiles[i]);
             }
         }
 
@@ -1477,7 +1669,7 @@ public final class DexClassesComparator {
             }
             this.dexes = new Dex[dexFileList.size()];
             for (int i = 0; i < this.dexes.length; ++i) {
-                this.dexes[i] = new Dex(dexFileList.get(i));
+                this.dexes[i] = mapForCheck(dexFileList.get(i));
             }
         }
 
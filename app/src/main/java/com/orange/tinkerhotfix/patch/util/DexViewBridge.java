@@ -0,0 +1,72 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.orange.tinkerhotfix.patch.util;
+
+import com.orange.tinkerhotfix.party.Dex;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.dexbacked.DexBuffer;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Converts between {@link Dex} and dexlib2 {@link DexBackedDexFile}, so that the second view
+ * of one dex is built from the bytes of the first one instead of reading the file again.
+ *
+ * dexlib2 reads from a plain byte array only, so a memory mapped {@link Dex}, the usual first
+ * view, is still copied to heap as a whole. A heap {@link Dex} and any
+ * {@link DexBackedDexFile} share one byte array with their second view.
+ */
+public final class DexViewBridge {
+    private static final int FILE_SIZE_OFFSET = 0x20;
+
+    private DexViewBridge() {
+    }
+
+    /**
+     * Returns true if {@link #toDexFile(Dex, Opcodes)} can share the bytes of {@code dex}
+     * without copying them.
+     */
+    public static boolean canShare(Dex dex) {
+        return dex.getBackingArray() != null;
+    }
+
+    public static DexBackedDexFile toDexFile(Dex dex, Opcodes opcodes) {
+        byte[] bytes = dex.getBackingArray();
+        if (bytes == null) {
+            bytes = dex.getBytes();
+        }
+        return new DexBackedDexFile(opcodes, bytes);
+    }
+
+    public static boolean canShare(DexBackedDexFile dexFile) {
+        final DexBuffer buffer = dexFile.getBuffer();
+        return buffer.getBaseOffset() == 0 && buffer.getBuf().length == buffer.readSmallUint(FILE_SIZE_OFFSET);
+    }
+
+    public static Dex toDex(DexBackedDexFile dexFile) throws IOException {
+        final DexBuffer buffer = dexFile.getBuffer();
+        if (canShare(dexFile)) {
+            return new Dex(buffer.getBuf());
+        }
+        final int start = buffer.getBaseOffset();
+        final int end = start + buffer.readSmallUint(FILE_SIZE_OFFSET);
+        return new Dex(Arrays.copyOfRange(buffer.getBuf(), start, end));
+    }
+}
@@ -45,6 +45,7 @@ public final class ExcludedClassModifiedChecker {
     private static final int STMCODE_END                                           = 0x08;
 //    private final Configuration config;
     private final DexClassesComparator dexCmptor;
+    private final ParsedDexRegistry dexRegistry;
     private Dex oldDex                = null;
     private Dex newDex                = null;
     private List<DexClassesComparator.DexClassInfo>          deletedClassInfos     = null;
@@ -61,7 +62,12 @@ public final class ExcludedClassModifiedChecker {
     public Configuration config;
 
     public ExcludedClassModifiedChecker(Configuration config) {
+        this(config, new ParsedDexRegistry());
+    }
+
+    public ExcludedClassModifiedChecker(Configuration config, ParsedDexRegistry dexRegistry) {
         this.config = config;
+        this.dexRegistry = dexRegistry;
         this.mOutFolder = new File(config.mOutFolder);
         this.mOldApkFile = config.mOldApkFile;
         this.mNewApkFile = config.mNewApkFile;
@@ -74,9 +80,23 @@ public final class ExcludedClassModifiedChecker {
             throw new TinkerPatchException("both oldFile and newFile are null.");
         }
 
-        oldDex = (oldFile != null ? new Dex(oldFile) : null);
-        newDex = (newFile != null ? new Dex(newFile) : null);
+        oldDex = null;
+        newDex = null;
+        try {
+            doCheck(oldFile, newFile);
+        } finally {
+            if (oldDex != null) {
+                dexRegistry.release(oldFile);
+                oldDex = null;
+            }
+            if (newDex != null) {
+                dexRegistry.release(newFile);
+                newDex = null;
+            }
+        }
+    }
 
+    private void doCheck(File oldFile, File newFile) throws IOException, TinkerPatchException {
         int stmCode = STMCODE_START;
 
         while (stmCode != STMCODE_END) {
@@ -104,6 +124,8 @@ public final class ExcludedClassModifiedChecker {
                         } else if (newFile == null) {
                             stmCode = STMCODE_ERROR_PRIMARY_NEW_DEX_IS_MISSING;
                         } else {
+                            oldDex = dexRegistry.acquireDex(oldFile);
+                            newDex = dexRegistry.acquireDex(newFile);
                             dexCmptor.startCheck(oldDex, newDex);
                             deletedClassInfos = dexCmptor.getDeletedClassInfos();
                             addedClassInfos = dexCmptor.getAddedClassInfos();
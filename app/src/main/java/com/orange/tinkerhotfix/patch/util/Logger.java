@@ -27,16 +27,22 @@ import java.io.IOException;
  * Created by zhangshaowen on 16/4/7.
  */
 public class Logger {
-    private static InfoWriter logWriter;
+    /**
+     * The log file belongs to the thread which inits the logger and all threads it starts
+     * afterwards, so that concurrent patch jobs never write into each other's log.
+     */
+    private static final InheritableThreadLocal<InfoWriter> logWriter = new InheritableThreadLocal<>();
 
     public static void initLogger(Configuration config) throws IOException {
         String logPath = config.mOutFolder + File.separator + TypedValue.FILE_LOG;
-        logWriter = new InfoWriter(config, logPath);
+        logWriter.set(new InfoWriter(config, logPath));
     }
 
     public static void closeLogger() {
-        if (logWriter != null) {
-            logWriter.close();
+        InfoWriter writer = logWriter.get();
+        if (writer != null) {
+            writer.close();
+            logWriter.remove();
         }
     }
 
@@ -54,7 +60,10 @@ public class Logger {
         System.out.printf(log + "\n");
         System.out.flush();
 
-        logWriter.writeLineToInfoFile(log);
+        InfoWriter writer = logWriter.get();
+        if (writer != null) {
+            writer.writeLineToInfoFile(log);
+        }
     }
 
     public static void e(final String msg) {
@@ -70,7 +79,10 @@ public class Logger {
         System.err.printf(log + "\n");
         System.err.flush();
 
-        logWriter.writeLineToInfoFile(log);
+        InfoWriter writer = logWriter.get();
+        if (writer != null) {
+            writer.writeLineToInfoFile(log);
+        }
     }
 
 }
@@ -60,6 +60,20 @@ public final class MD5 {
         }
     }
 
+    /**
+     * get md5 string of a digest computed elsewhere, e.g. by a {@link java.security.DigestOutputStream}
+     *
+     * @param digest raw md5 digest
+     * @return md5 result in string format
+     */
+    public static String toHexString(byte[] digest) {
+        StringBuilder md5Str = new StringBuilder(32);
+        for (int i = 0; i < digest.length; i++) {
+            md5Str.append(Integer.toString((digest[i] & 0xff) + 0x100, 16).substring(1));
+        }
+        return md5Str.toString();
+    }
+
     /**
      * get md5 in byte array
      *
@@ -0,0 +1,245 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.orange.tinkerhotfix.patch.util;
+
+import com.orange.tinkerhotfix.party.Dex;
+import org.jf.dexlib2.DexFileFactory;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.iface.DexFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Shares parsed dexes among the stages of one patch generating run, so that each dex file
+ * is parsed at most once into a {@link Dex} and at most once per opcodes api level into a
+ * dexlib2 {@link DexFile}.
+ *
+ * Entries are keyed by canonical path and MD5 of the file and are reference counted. A stage
+ * acquires the view it needs and releases the file when it is done, entries are dropped as
+ * soon as nobody holds them any more. Callers that want the views to survive between stages
+ * should {@link #retain(File)} the file first.
+ *
+ * Further views of a file are built from the bytes of the first one by {@link DexViewBridge}
+ * instead of reading the file again. A memory mapped {@link Dex} is still copied to heap once
+ * for a dexlib2 view.
+ *
+ * Parsed views must be treated as read-only since they are shared.
+ */
+public final class ParsedDexRegistry {
+    /**
+     * Opcodes api level of dexlib2 views unless a caller asks for another one.
+     */
+    public static final int DEFAULT_DEX_FILE_API = 29;
+
+    private final Map<String, FileStamp> pathToStampMap = new HashMap<>();
+    private final Map<String, Entry> keyToEntryMap = new HashMap<>();
+
+    private int dexParseCount = 0;
+    private int dexFileParseCount = 0;
+    private int bridgeCount = 0;
+    private int bridgeCopyCount = 0;
+    private int reuseCount = 0;
+    private long bytesSaved = 0;
+
+    public synchronized void retain(File file) throws IOException {
+        final String key = keyOf(file);
+        Entry entry = keyToEntryMap.get(key);
+        if (entry == null) {
+            entry = new Entry(file.length());
+            keyToEntryMap.put(key, entry);
+        }
+        ++entry.refCount;
+    }
+
+    public synchronized void release(File file) throws IOException {
+        final String key = keyOf(file);
+        final Entry entry = keyToEntryMap.get(key);
+        if (entry == null) {
+            throw new IllegalStateException(file + " was not retained.");
+        }
+        if (--entry.refCount == 0) {
+            keyToEntryMap.remove(key);
+        }
+    }
+
+    /**
+     * Retains {@code file} and returns its shared {@link Dex}.
+     */
+    public synchronized Dex acquireDex(File file) throws IOException {
+        retain(file);
+        return getDex(file);
+    }
+
+    /**
+     * Retains {@code file} and returns its shared dexlib2 {@link DexFile}.
+     */
+    public synchronized DexFile acquireDexFile(File file) throws IOException {
+        retain(file);
+        return getDexFile(file, DEFAULT_DEX_FILE_API);
+    }
+
+    /**
+     * Returns the shared {@link Dex} of {@code file} which must have been retained.
+     */
+    public synchronized Dex getDex(File file) throws IOException {
+        final Entry entry = getRetainedEntry(file);
+        if (entry.dex == null) {
+            final DexBackedDexFile dexFile = entry.findDexBackedDexFile();
+            if (dexFile != null) {
+                onBridge(DexViewBridge.canShare(dexFile));
+                entry.dex = DexViewBridge.toDex(dexFile);
+            } else {
+                entry.dex = Dex.mapFrom(file);
+                ++dexParseCount;
+            }
+            // Shared dexes are compared by class names again and again, keep their strings decoded.
+            entry.dex.enableStringCache(false);
+        } else {
+            onReuse(entry);
+        }
+        return entry.dex;
+    }
+
+    /**
+     * Returns the shared dexlib2 {@link DexFile} of {@code file} which must have been retained,
+     * with opcodes of {@link #DEFAULT_DEX_FILE_API}.
+     */
+    public synchronized DexFile getDexFile(File file) throws IOException {
+        return getDexFile(file, DEFAULT_DEX_FILE_API);
+    }
+
+    /**
+     * Returns the shared dexlib2 {@link DexFile} of {@code file} with opcodes of {@code api},
+     * {@code file} must have been retained.
+     */
+    public synchronized DexFile getDexFile(File file, int api) throws IOException {
+        final Entry entry = getRetainedEntry(file);
+        DexFile dexFile = entry.apiToDexFileMap.get(api);
+        if (dexFile == null) {
+            final DexBackedDexFile otherDexFile = entry.findDexBackedDexFile();
+            if (otherDexFile != null) {
+                // Views with other opcodes read the same bytes.
+                onBridge(true);
+                dexFile = new DexBackedDexFile(Opcodes.forApi(api), otherDexFile.getBuffer().getBuf(),
+                        otherDexFile.getBuffer().getBaseOffset());
+            } else if (entry.dex != null) {
+                onBridge(DexViewBridge.canShare(entry.dex));
+                dexFile = DexViewBridge.toDexFile(entry.dex, Opcodes.forApi(api));
+            } else {
+                dexFile = DexFileFactory.loadDexFile(file, Opcodes.forApi(api));
+                ++dexFileParseCount;
+            }
+            entry.apiToDexFileMap.put(api, dexFile);
+        } else {
+            onReuse(entry);
+        }
+        return dexFile;
+    }
+
+    public synchronized void logStatistics() {
+        Logger.d("Parsed dex registry: %d dex parse(s), %d dexlib2 parse(s), %d bridged view(s) (%d copied), %d reuse(s), %d bytes not parsed again.",
+                dexParseCount, dexFileParseCount, bridgeCount, bridgeCopyCount, reuseCount, bytesSaved);
+    }
+
+    public synchronized void clear() {
+        keyToEntryMap.clear();
+        pathToStampMap.clear();
+        dexParseCount = 0;
+        dexFileParseCount = 0;
+        bridgeCount = 0;
+        bridgeCopyCount = 0;
+        reuseCount = 0;
+        bytesSaved = 0;
+    }
+
+    private Entry getRetainedEntry(File file) throws IOException {
+        final Entry entry = keyToEntryMap.get(keyOf(file));
+        if (entry == null) {
+            throw new IllegalStateException(file + " was not retained.");
+        }
+        return entry;
+    }
+
+    private void onBridge(boolean shared) {
+        ++bridgeCount;
+        if (!shared) {
+            ++bridgeCopyCount;
+        }
+    }
+
+    private void onReuse(Entry entry) {
+        ++reuseCount;
+        bytesSaved += entry.fileSize;
+    }
+
+    /**
+     * MD5 of a file is computed again only if its size or modification time differs
+     * from the last time we saw it.
+     */
+    private String keyOf(File file) throws IOException {
+        final String path = file.getCanonicalPath();
+        final long length = file.length();
+        final long lastModified = file.lastModified();
+        FileStamp stamp = pathToStampMap.get(path);
+        if (stamp == null || stamp.length != length || stamp.lastModified != lastModified) {
+            final String md5 = MD5.getMD5(file);
+            if (md5 == null) {
+                throw new IOException("can not compute md5 of " + file);
+            }
+            stamp = new FileStamp(length, lastModified, md5);
+            pathToStampMap.put(path, stamp);
+        }
+        return path + '#' + stamp.md5;
+    }
+
+    private static final class FileStamp {
+        final long length;
+        final long lastModified;
+        final String md5;
+
+        FileStamp(long length, long lastModified, String md5) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.md5 = md5;
+        }
+    }
+
+    private static final class Entry {
+        final long fileSize;
+        int refCount = 0;
+        Dex dex = null;
+        final Map<Integer, DexFile> apiToDexFileMap = new HashMap<>(2);
+
+        Entry(long fileSize) {
+            this.fileSize = fileSize;
+        }
+
+        DexBackedDexFile findDexBackedDexFile() {
+            for (DexFile dexFile : apiToDexFileMap.values()) {
+                if (dexFile.getClass() == DexBackedDexFile.class) {
+                    return (DexBackedDexFile) dexFile;
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.orange.tinkerhotfix.patch.util;
+
+import com.orange.tinkerhotfix.dx.instruction.DecodedInstructions;
+import com.orange.tinkerhotfix.dx.instruction.InstructionCodec;
+import com.orange.tinkerhotfix.party.ClassData;
+import com.orange.tinkerhotfix.party.ClassDef;
+import com.orange.tinkerhotfix.party.Code;
+import com.orange.tinkerhotfix.party.Dex;
+import com.orange.tinkerhotfix.patch.TinkerPatchException;
+
+import java.io.EOFException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reverse reference index of a group of classes: for every class descriptor, the classes whose
+ * code refers to it by a type reference or by a reference to one of its fields or methods.
+ *
+ * The code of every class is decoded once when the index is built, dexes are indexed
+ * concurrently. Looking up referrers afterwards costs a type index search per dex.
+ */
+public final class ReferrerIndex {
+    private final List<DexReferrers> dexReferrersList;
+
+    private ReferrerIndex(List<DexReferrers> dexReferrersList) {
+        this.dexReferrersList = dexReferrersList;
+    }
+
+    public static ReferrerIndex build(Collection<DexClassesComparator.DexClassInfo> classInfos, int threadCount) {
+        final Map<Dex, List<DexClassesComparator.DexClassInfo>> ownerToClassInfosMap = new IdentityHashMap<>();
+        for (DexClassesComparator.DexClassInfo classInfo : classInfos) {
+            List<DexClassesComparator.DexClassInfo> classInfosInDex = ownerToClassInfosMap.get(classInfo.owner);
+            if (classInfosInDex == null) {
+                classInfosInDex = new ArrayList<>();
+                ownerToClassInfosMap.put(classInfo.owner, classInfosInDex);
+            }
+            classInfosInDex.add(classInfo);
+        }
+
+        final List<DexReferrers> dexReferrersList = new ArrayList<>(ownerToClassInfosMap.size());
+        threadCount = Math.min(threadCount, ownerToClassInfosMap.size());
+        if (threadCount <= 1) {
+            for (Map.Entry<Dex, List<DexClassesComparator.DexClassInfo>> entry : ownerToClassInfosMap.entrySet()) {
+                dexReferrersList.add(indexDex(entry.getKey(), entry.getValue()));
+            }
+            return new ReferrerIndex(dexReferrersList);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            List<Future<DexReferrers>> futures = new ArrayList<>(ownerToClassInfosMap.size());
+            for (final Map.Entry<Dex, List<DexClassesComparator.DexClassInfo>> entry : ownerToClassInfosMap.entrySet()) {
+                futures.add(executor.submit(new Callable<DexReferrers>() {
+                    @Override
+                    public DexReferrers call() throws Exception {
+                        return indexDex(entry.getKey(), entry.getValue());
+                    }
+                }));
+            }
+            for (Future<DexReferrers> future : futures) {
+                try {
+                    dexReferrersList.add(future.get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new TinkerPatchException("interrupted while indexing referrers.", e);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new TinkerPatchException(cause);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return new ReferrerIndex(dexReferrersList);
+    }
+
+    /**
+     * Classes referring to {@code classDesc}.
+     */
+    public List<DexClassesComparator.DexClassInfo> getReferrers(String classDesc) {
+        List<DexClassesComparator.DexClassInfo> result = null;
+        for (DexReferrers dexReferrers : dexReferrersList) {
+            int typeIndex = dexReferrers.dex.findTypeIndex(classDesc);
+            if (typeIndex < 0) {
+                continue;
+            }
+            List<DexClassesComparator.DexClassInfo> referrers = dexReferrers.referrersByTypeIndex.get(typeIndex);
+            if (referrers == null) {
+                continue;
+            }
+            if (result == null) {
+                result = new ArrayList<>(referrers.size());
+            }
+            result.addAll(referrers);
+        }
+        return result != null ? result : Collections.<DexClassesComparator.DexClassInfo>emptyList();
+    }
+
+    private static DexReferrers indexDex(Dex dex, List<DexClassesComparator.DexClassInfo> classInfos) {
+        final int typeCount = dex.getTableOfContents().typeIds.size;
+        final List<List<DexClassesComparator.DexClassInfo>> referrersByTypeIndex
+                = new ArrayList<>(Collections.<List<DexClassesComparator.DexClassInfo>>nCopies(typeCount, null));
+        final BitSet referredTypeIndices = new BitSet(typeCount);
+        final ReferredTypeCollector collector = new ReferredTypeCollector(dex, referredTypeIndices);
+
+        for (DexClassesComparator.DexClassInfo classInfo : classInfos) {
+            if (classInfo.classDef.classDataOffset == ClassDef.NO_OFFSET) {
+                continue;
+            }
+            referredTypeIndices.clear();
+            ClassData classData = dex.readClassData(classInfo.classDef);
+            collectReferredTypes(dex, classData.directMethods, collector);
+            collectReferredTypes(dex, classData.virtualMethods, collector);
+
+            for (int typeIndex = referredTypeIndices.nextSetBit(0); typeIndex >= 0;
+                 typeIndex = referredTypeIndices.nextSetBit(typeIndex + 1)) {
+                List<DexClassesComparator.DexClassInfo> referrers = referrersByTypeIndex.get(typeIndex);
+                if (referrers == null) {
+                    referrers = new ArrayList<>(4);
+                    referrersByTypeIndex.set(typeIndex, referrers);
+                }
+                referrers.add(classInfo);
+            }
+        }
+        return new DexReferrers(dex, referrersByTypeIndex);
+    }
+
+    private static void collectReferredTypes(Dex dex, ClassData.Method[] methods, ReferredTypeCollector collector) {
+        for (ClassData.Method method : methods) {
+            if (method.codeOffset == ClassDef.NO_OFFSET) {
+                continue;
+            }
+            Code methodCode = dex.readCode(method);
+            collector.collect(methodCode.instructions);
+        }
+    }
+
+    private static final class DexReferrers {
+        final Dex dex;
+        final List<List<DexClassesComparator.DexClassInfo>> referrersByTypeIndex;
+
+        DexReferrers(Dex dex, List<List<DexClassesComparator.DexClassInfo>> referrersByTypeIndex) {
+            this.dex = dex;
+            this.referrersByTypeIndex = referrersByTypeIndex;
+        }
+    }
+
+    private static final class ReferredTypeCollector {
+        private final Dex owner;
+        private final BitSet referredTypeIndices;
+        private final DecodedInstructions decodedInsns = new DecodedInstructions();
+
+        ReferredTypeCollector(Dex owner, BitSet referredTypeIndices) {
+            this.owner = owner;
+            this.referredTypeIndices = referredTypeIndices;
+        }
+
+        void collect(short[] insns) {
+            try {
+                decodedInsns.decode(insns);
+            } catch (EOFException e) {
+                // Should not be here.
+            }
+            final int count = decodedInsns.size();
+            for (int slot = 0; slot < count; ++slot) {
+                processIndexByType(decodedInsns.getIndex(slot), decodedInsns.getIndexType(slot));
+            }
+        }
+
+        private void processIndexByType(int index, int indexType) {
+            switch (indexType) {
+                case InstructionCodec.INDEX_TYPE_TYPE_REF: {
+                    referredTypeIndices.set(index);
+                    break;
+                }
+                case InstructionCodec.INDEX_TYPE_FIELD_REF: {
+                    referredTypeIndices.set(owner.declaringClassIndexFromFieldIndex(index));
+                    break;
+                }
+                case InstructionCodec.INDEX_TYPE_METHOD_REF: {
+                    referredTypeIndices.set(owner.declaringClassIndexFromMethodIndex(index));
+                    break;
+                }
+                default: {
+                    break;
+                }
+            }
+        }
+    }
+}
@@ -23,6 +23,7 @@ import com.orange.tinkerhotfix.patch.ziputils.TinkerZipEntry;
 import com.orange.tinkerhotfix.patch.ziputils.TinkerZipFile;
 import com.orange.tinkerhotfix.patch.ziputils.TinkerZipOutputStream;
 import com.orange.tinkerhotfix.patch.ziputils.TinkerZipUtil;
+import com.tencent.tinker.bsdiff.BSDiff;
 
 import java.io.BufferedOutputStream;
 import java.io.Closeable;
@@ -203,6 +204,21 @@ public class Utils {
         return TypedValue.RES_OUT + "," + baseCrc + "," + md5;
     }
 
+    /**
+     * bsdiff oldFile and newFile into bsDiffFile as configured, large files are diffed in windows.
+     */
+    public static void bsDiff(Configuration config, File oldFile, File newFile, File bsDiffFile) throws IOException {
+        BSDiff.SuffixSortAlgorithm algorithm = config.mBsDiffUseSais
+            ? BSDiff.SuffixSortAlgorithm.SAIS : BSDiff.SuffixSortAlgorithm.QSUFSORT;
+        long windowSize = config.mBsDiffWindowSize * 1024L;
+        if (windowSize > 0 && windowSize <= Integer.MAX_VALUE && newFile.length() > windowSize) {
+            Logger.d("bsDiff file:%s, size:%dk, in windows of %dk", newFile.getName(), newFile.length() / 1024, config.mBsDiffWindowSize);
+            BSDiff.bsdiffChunked(oldFile, newFile, bsDiffFile, (int) windowSize, config.mDexDiffThreadCount, algorithm);
+        } else {
+            BSDiff.bsdiff(oldFile, newFile, bsDiffFile, algorithm);
+        }
+    }
+
     /**
      * if bsDiff result is too larger, just treat it as newly file
      * @param bsDiffFile
@@ -24,6 +24,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -337,6 +339,36 @@ public class TinkerZipFile implements Closeable, ZipConstants {
             return null;
         }
         // Create an InputStream at the right part of the file.
+        RandomAccessFile localRaf = raf;
+        synchronized (localRaf) {
+            RAFStream rafStream = new RAFStream(localRaf, getEntryDataOffset(entry));
+            /*if (entry.compressionMethod == ZipEntry.STORED) {
+                rafStream.endOffset = rafStream.offset + entry.size;
+                return rafStream;
+            } else {
+                rafStream.endOffset = rafStream.offset + entry.compressedSize;
+                int bufSize = Math.max(1024, (int) Math.min(entry.getSize(), 65535L));
+                return new ZipInflaterInputStream(rafStream, new Inflater(true), bufSize, entry);
+            }*/
+            if (entry.compressionMethod == TinkerZipEntry.STORED) {
+                rafStream.endOffset = rafStream.offset + entry.size;
+            } else {
+                rafStream.endOffset = rafStream.offset + entry.compressedSize;
+            }
+            return rafStream;
+        }
+    }
+
+    /**
+     * Returns the offset in this zip file where the (possibly compressed) data of
+     * {@code entry} starts. For a {@code STORED} entry, bytes in
+     * [offset, offset + entry.getSize()) are exactly the content of the entry.
+     *
+     * @throws IOException
+     *             if an {@code IOException} occurs.
+     * @throws IllegalStateException if this zip file has been closed.
+     */
+    public long getEntryDataOffset(TinkerZipEntry entry) throws IOException {
         RandomAccessFile localRaf = raf;
         synchronized (localRaf) {
             // We don't know the entry data's start position. All we have is the
@@ -361,22 +393,28 @@ public class TinkerZipFile implements Closeable, ZipConstants {
             int extraFieldLength = Short.reverseBytes(is.readShort()) & 0xffff;
             is.close();
             // Skip the variable-size file name and extra field data.
-            rafStream.skip(fileNameLength + extraFieldLength);
-            /*if (entry.compressionMethod == ZipEntry.STORED) {
-                rafStream.endOffset = rafStream.offset + entry.size;
-                return rafStream;
-            } else {
-                rafStream.endOffset = rafStream.offset + entry.compressedSize;
-                int bufSize = Math.max(1024, (int) Math.min(entry.getSize(), 65535L));
-                return new ZipInflaterInputStream(rafStream, new Inflater(true), bufSize, entry);
-            }*/
-            if (entry.compressionMethod == TinkerZipEntry.STORED) {
-                rafStream.endOffset = rafStream.offset + entry.size;
-            } else {
-                rafStream.endOffset = rafStream.offset + entry.compressedSize;
-            }
-            return rafStream;
+            return entry.localHeaderRelOffset + LOCHDR + fileNameLength + extraFieldLength;
+        }
+    }
+
+    /**
+     * Maps content of a {@code STORED} entry into memory as a read-only buffer,
+     * the mapping stays valid after this zip file is closed.
+     *
+     * @return the mapped buffer, or null if {@code entry} is not in this zip file.
+     * @throws ZipException if {@code entry} is compressed.
+     * @throws IOException if an {@code IOException} occurs.
+     */
+    public MappedByteBuffer mapStoredEntry(TinkerZipEntry entry) throws IOException {
+        entry = getEntry(entry.getName());
+        if (entry == null) {
+            return null;
+        }
+        if (entry.compressionMethod != TinkerZipEntry.STORED) {
+            throw new ZipException("Entry " + entry.getName() + " in " + filename + " is not stored.");
         }
+        long dataOffset = getEntryDataOffset(entry);
+        return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, dataOffset, entry.size);
     }
 
     /**
@@ -0,0 +1,56 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.tinkerhotfix.util;
+
+/**
+ * Shared helpers of the open addressing int-keyed maps.
+ */
+final class IntHashing {
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private IntHashing() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Spread bits of {@code key} so that sequential keys, such as indices and
+     * four-byte aligned offsets, won't be clustered in the table.
+     */
+    static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Returns a power of two table size which can hold {@code expectedSize} mappings
+     * under the load factor.
+     */
+    static int tableSizeFor(int expectedSize) {
+        int capacity = 4;
+        while (maxSizeOf(capacity) < expectedSize && capacity < MAX_CAPACITY) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /**
+     * Max mappings a table of {@code capacity} slots can hold, the load factor is 0.75.
+     */
+    static int maxSizeOf(int capacity) {
+        return capacity - (capacity >>> 2);
+    }
+}
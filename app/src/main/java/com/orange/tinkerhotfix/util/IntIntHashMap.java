@@ -0,0 +1,125 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.tinkerhotfix.util;
+
+import java.util.Arrays;
+
+/**
+ * IntIntHashMaps map integers to integers with open addressing. Unlike {@link SparseIntArray}
+ * it does not keep keys in order, but both put and get are O(1) on average, which makes it
+ * suitable for containers holding large numbers of items.
+ *
+ * <p>Neither keys nor values are boxed and no entry object is created for each mapping.</p>
+ */
+public class IntIntHashMap {
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private int[] mKeys;
+    private int[] mValues;
+    private boolean[] mUsed;
+    private int mSize;
+
+    public IntIntHashMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a new IntIntHashMap that can hold {@code expectedSize} mappings without rehashing.
+     */
+    public IntIntHashMap(int expectedSize) {
+        allocate(IntHashing.tableSizeFor(expectedSize));
+    }
+
+    /**
+     * Gets the int mapped from the specified key, or the specified value
+     * if no such mapping has been made.
+     */
+    public int get(int key, int valueIfKeyNotFound) {
+        int slot = findSlot(key);
+        return mUsed[slot] ? mValues[slot] : valueIfKeyNotFound;
+    }
+
+    /**
+     * Returns whether the {@code key} is exists.
+     */
+    public boolean containsKey(int key) {
+        return mUsed[findSlot(key)];
+    }
+
+    /**
+     * Adds a mapping from the specified key to the specified value,
+     * replacing the previous mapping from the specified key if there
+     * was one.
+     */
+    public void put(int key, int value) {
+        int slot = findSlot(key);
+        if (mUsed[slot]) {
+            mValues[slot] = value;
+            return;
+        }
+        mKeys[slot] = key;
+        mValues[slot] = value;
+        mUsed[slot] = true;
+        if (++mSize > IntHashing.maxSizeOf(mKeys.length)) {
+            rehash(mKeys.length << 1);
+        }
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Removes all key-value mappings while keeping the allocated tables.
+     */
+    public void clear() {
+        if (mSize > 0) {
+            Arrays.fill(mUsed, false);
+            mSize = 0;
+        }
+    }
+
+    private int findSlot(int key) {
+        int mask = mKeys.length - 1;
+        int slot = IntHashing.mix(key) & mask;
+        while (mUsed[slot] && mKeys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new int[capacity];
+        mValues = new int[capacity];
+        mUsed = new boolean[capacity];
+    }
+
+    private void rehash(int newCapacity) {
+        int[] oldKeys = mKeys;
+        int[] oldValues = mValues;
+        boolean[] oldUsed = mUsed;
+        allocate(newCapacity);
+        for (int i = 0; i < oldKeys.length; ++i) {
+            if (oldUsed[i]) {
+                int slot = findSlot(oldKeys[i]);
+                mKeys[slot] = oldKeys[i];
+                mValues[slot] = oldValues[i];
+                mUsed[slot] = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.tinkerhotfix.util;
+
+import java.util.Arrays;
+
+/**
+ * IntObjectHashMaps map integers to objects with open addressing. Keys are not
+ * boxed and no entry object is created for each mapping.
+ *
+ * <p>Null values are not supported, {@link #get(int)} returns null if a key is not mapped.</p>
+ */
+public class IntObjectHashMap<V> {
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private int[] mKeys;
+    private Object[] mValues;
+    private int mSize;
+
+    public IntObjectHashMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a new IntObjectHashMap that can hold {@code expectedSize} mappings without rehashing.
+     */
+    public IntObjectHashMap(int expectedSize) {
+        allocate(IntHashing.tableSizeFor(expectedSize));
+    }
+
+    /**
+     * Gets the object mapped from the specified key, or <code>null</code>
+     * if no such mapping has been made.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        return (V) mValues[findSlot(key)];
+    }
+
+    public boolean containsKey(int key) {
+        return mValues[findSlot(key)] != null;
+    }
+
+    /**
+     * Adds a mapping from the specified key to the specified value,
+     * replacing the previous mapping from the specified key if there
+     * was one.
+     */
+    public void put(int key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("null value is not supported.");
+        }
+        int slot = findSlot(key);
+        if (mValues[slot] != null) {
+            mValues[slot] = value;
+            return;
+        }
+        mKeys[slot] = key;
+        mValues[slot] = value;
+        if (++mSize > IntHashing.maxSizeOf(mKeys.length)) {
+            rehash(mKeys.length << 1);
+        }
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Removes all key-value mappings while keeping the allocated tables.
+     */
+    public void clear() {
+        if (mSize > 0) {
+            Arrays.fill(mValues, null);
+            mSize = 0;
+        }
+    }
+
+    private int findSlot(int key) {
+        int mask = mKeys.length - 1;
+        int slot = IntHashing.mix(key) & mask;
+        while (mValues[slot] != null && mKeys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new int[capacity];
+        mValues = new Object[capacity];
+    }
+
+    private void rehash(int newCapacity) {
+        int[] oldKeys = mKeys;
+        Object[] oldValues = mValues;
+        allocate(newCapacity);
+        for (int i = 0; i < oldKeys.length; ++i) {
+            if (oldValues[i] != null) {
+                int slot = findSlot(oldKeys[i]);
+                mKeys[slot] = oldKeys[i];
+                mValues[slot] = oldValues[i];
+            }
+        }
+    }
+}
@@ -38,7 +38,14 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.GZIPOutputStream;
 
 /**
@@ -53,6 +60,21 @@ public class BSDiff {
     private static final byte[] MAGIC_BYTES = new byte[]{0x4D, 0x69, 0x63,
         0x72, 0x6F, 0x4D, 0x73, 0x67};
 
+    /**
+     * How the suffix array of the old file is built. Both algorithms produce the same suffix array,
+     * so the generated patch does not depend on the choice and is always readable by {@link BSPatch}.
+     */
+    public enum SuffixSortAlgorithm {
+        /**
+         * Larsson and Sadakane's qsufsort, O(n log n) and an extra int[oldsize + 1] of work space.
+         */
+        QSUFSORT,
+        /**
+         * Induced sorting, O(n) with no extra work space. Much faster on large files.
+         */
+        SAIS
+    }
+
     private static void split(int[] arrayI, int[] arrayV, int start, int len, int h) {
         final int STM_ENTER = 0x00;
         final int STM_RECURSIVE_CALLSITE1_NEXT = 0x01;
@@ -443,11 +465,15 @@ public class BSDiff {
 
 
     public static void bsdiff(File oldFile, File newFile, File diffFile) throws IOException {
+        bsdiff(oldFile, newFile, diffFile, SuffixSortAlgorithm.QSUFSORT);
+    }
+
+    public static void bsdiff(File oldFile, File newFile, File diffFile, SuffixSortAlgorithm algorithm) throws IOException {
         InputStream oldInputStream = new BufferedInputStream(new FileInputStream(oldFile));
         InputStream newInputStream = new BufferedInputStream(new FileInputStream(newFile));
         OutputStream diffOutputStream = new FileOutputStream(diffFile);
         try {
-            byte[] diffBytes = bsdiff(oldInputStream, (int) oldFile.length(), newInputStream, (int) newFile.length());
+            byte[] diffBytes = bsdiff(oldInputStream, (int) oldFile.length(), newInputStream, (int) newFile.length(), algorithm);
             diffOutputStream.write(diffBytes);
         } finally {
             diffOutputStream.close();
@@ -456,6 +482,12 @@ public class BSDiff {
 
 
     public static byte[] bsdiff(InputStream oldInputStream, int oldsize, InputStream newInputStream, int newsize) throws IOException {
+        return bsdiff(oldInputStream, oldsize, newInputStream, newsize, SuffixSortAlgorithm.QSUFSORT);
+    }
+
+
+    public static byte[] bsdiff(InputStream oldInputStream, int oldsize, InputStream newInputStream, int newsize,
+                                SuffixSortAlgorithm algorithm) throws IOException {
 
         byte[] oldBuf = new byte[oldsize];
 
@@ -466,14 +498,139 @@ public class BSDiff {
         BSUtil.readFromStream(newInputStream, newBuf, 0, newsize);
         newInputStream.close();
 
-        return bsdiff(oldBuf, oldsize, newBuf, newsize);
+        return bsdiff(oldBuf, oldsize, newBuf, newsize, algorithm);
     }
 
 
     public static byte[] bsdiff(byte[] oldBuf, int oldsize, byte[] newBuf, int newsize) throws IOException {
+        return bsdiff(oldBuf, oldsize, newBuf, newsize, SuffixSortAlgorithm.QSUFSORT);
+    }
+
+
+    public static byte[] bsdiff(byte[] oldBuf, int oldsize, byte[] newBuf, int newsize,
+                                SuffixSortAlgorithm algorithm) throws IOException {
+        int[] arrayI = buildSuffixArray(oldBuf, oldsize, algorithm);
+        return diffWindow(arrayI, oldBuf, oldsize, newBuf, 0, newsize);
+    }
+
+    /**
+     * Chunked bsdiff for very large files. The new file is split into windows of windowSize bytes,
+     * which are diffed concurrently against one shared suffix array of the old file, and the result
+     * is written as a multi segment patch, see {@link BSUtil#MULTI_SEGMENT_MAGIC}.
+     *
+     * Matches can not cross window borders, so the patch is usually a bit larger than the one
+     * {@link #bsdiff(File, File, File)} makes. Only a {@link BSPatch} which knows the multi segment
+     * format can apply it.
+     */
+    public static void bsdiffChunked(File oldFile, File newFile, File diffFile, int windowSize, int threadCount,
+                                     SuffixSortAlgorithm algorithm) throws IOException {
+        InputStream oldInputStream = new BufferedInputStream(new FileInputStream(oldFile));
+        InputStream newInputStream = new BufferedInputStream(new FileInputStream(newFile));
+        OutputStream diffOutputStream = new FileOutputStream(diffFile);
+        try {
+            int oldsize = (int) oldFile.length();
+            byte[] oldBuf = new byte[oldsize];
+            BSUtil.readFromStream(oldInputStream, oldBuf, 0, oldsize);
+            int newsize = (int) newFile.length();
+            byte[] newBuf = new byte[newsize];
+            BSUtil.readFromStream(newInputStream, newBuf, 0, newsize);
+
+            byte[] diffBytes = bsdiffChunked(oldBuf, oldsize, newBuf, newsize, windowSize, threadCount, algorithm);
+            diffOutputStream.write(diffBytes);
+        } finally {
+            oldInputStream.close();
+            newInputStream.close();
+            diffOutputStream.close();
+        }
+    }
+
+    public static byte[] bsdiffChunked(final byte[] oldBuf, final int oldsize, final byte[] newBuf, int newsize,
+                                       int windowSize, int threadCount, SuffixSortAlgorithm algorithm) throws IOException {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("windowSize must be larger than 0, yours " + windowSize);
+        }
+        final int[] arrayI = buildSuffixArray(oldBuf, oldsize, algorithm);
+
+        int windowCount = (int) (((long) newsize + windowSize - 1) / windowSize);
+        int[] windowStarts = new int[windowCount + 1];
+        for (int i = 0; i < windowCount; i++) {
+            windowStarts[i] = i * windowSize;
+        }
+        windowStarts[windowCount] = newsize;
+
+        byte[][] segments = new byte[windowCount][];
+        if (threadCount <= 1 || windowCount <= 1) {
+            for (int i = 0; i < windowCount; i++) {
+                segments[i] = diffWindow(arrayI, oldBuf, oldsize, newBuf, windowStarts[i], windowStarts[i + 1]);
+            }
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(threadCount, windowCount));
+            try {
+                List<Future<byte[]>> futures = new ArrayList<>(windowCount);
+                for (int i = 0; i < windowCount; i++) {
+                    final int newStart = windowStarts[i];
+                    final int newEnd = windowStarts[i + 1];
+                    futures.add(executor.submit(new Callable<byte[]>() {
+                        @Override
+                        public byte[] call() throws Exception {
+                            return diffWindow(arrayI, oldBuf, oldsize, newBuf, newStart, newEnd);
+                        }
+                    }));
+                }
+                for (int i = 0; i < windowCount; i++) {
+                    segments[i] = futures.get(i).get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while diffing windows.", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IOException(cause);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
 
+        ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+        DataOutputStream diffOut = new DataOutputStream(byteOut);
+        diffOut.write(BSUtil.MULTI_SEGMENT_MAGIC);
+        diffOut.writeLong(newsize);
+        diffOut.writeInt(windowCount);
+        for (int i = 0; i < windowCount; i++) {
+            diffOut.writeLong(windowStarts[i + 1] - windowStarts[i]);
+            diffOut.writeLong(segments[i].length);
+        }
+        for (int i = 0; i < windowCount; i++) {
+            diffOut.write(segments[i]);
+            segments[i] = null;
+        }
+        diffOut.close();
+        return byteOut.toByteArray();
+    }
+
+    private static int[] buildSuffixArray(byte[] oldBuf, int oldsize, SuffixSortAlgorithm algorithm) {
         int[] arrayI = new int[oldsize + 1];
-        qsufsort(arrayI, new int[oldsize + 1], oldBuf, oldsize);
+        if (algorithm == SuffixSortAlgorithm.SAIS) {
+            SAIS.suffixsort(arrayI, oldBuf, oldsize);
+        } else {
+            qsufsort(arrayI, new int[oldsize + 1], oldBuf, oldsize);
+        }
+        return arrayI;
+    }
+
+    /**
+     * Diffs newBuf[newStart...newEnd) against the whole old file and returns a single segment patch
+     * which rebuilds exactly that window. arrayI is only read, so windows can be diffed concurrently.
+     */
+    private static byte[] diffWindow(int[] arrayI, byte[] oldBuf, int oldsize, byte[] newBuf, int newStart, int newEnd) throws IOException {
+        int newsize = newEnd - newStart;
 
         // diff block
         int diffBLockLen = 0;
@@ -513,28 +670,28 @@ public class BSDiff {
         diffOut.writeLong(newsize);
         diffOut.flush();
 
-        GZIPOutputStream bzip2Out = new GZIPOutputStream(diffOut);
+        BlockGZIPOutputStream bzip2Out = new BlockGZIPOutputStream(diffOut);
         DataOutputStream dataOut = new DataOutputStream(bzip2Out);
 
         int oldscore, scsc;
 
         int overlap, ss, lens;
         int i;
-        int scan = 0;
+        int scan = newStart;
         int matchLen = 0;
-        int lastscan = 0;
+        int lastscan = newStart;
         int lastpos = 0;
-        int lastoffset = 0;
+        int lastoffset = lastpos - lastscan;
 
         IntByRef pos = new IntByRef();
         // int ctrlBlockLen = 0;
 
-        while (scan < newsize) {
+        while (scan < newEnd) {
             oldscore = 0;
 
-            for (scsc = scan += matchLen; scan < newsize; scan++) {
-                //  oldBuf[0...oldsize] newBuf[scan...newSize]. pos.value，scan
-                matchLen = search(arrayI, oldBuf, oldsize, newBuf, newsize, scan, 0, oldsize, pos);
+            for (scsc = scan += matchLen; scan < newEnd; scan++) {
+                //  oldBuf[0...oldsize] newBuf[scan...newEnd]. pos.value，scan
+                matchLen = search(arrayI, oldBuf, oldsize, newBuf, newEnd, scan, 0, oldsize, pos);
 
                 for (; scsc < scan + matchLen; scsc++) {
                     if ((scsc + lastoffset < oldsize) && (oldBuf[scsc + lastoffset] == newBuf[scsc])) {
@@ -551,7 +708,7 @@ public class BSDiff {
                 }
             }
 
-            if ((matchLen != oldscore) || (scan == newsize)) {
+            if ((matchLen != oldscore) || (scan == newEnd)) {
 
                 int equalNum = 0;
                 int sf = 0;
@@ -568,7 +725,7 @@ public class BSDiff {
                 }
 
                 int lenb = 0;
-                if (scan < newsize) {
+                if (scan < newEnd) {
                     equalNum = 0;
                     int sb = 0;
                     for (i = 1; (scan >= lastscan + i) && (pos.value >= i); i++) {
@@ -628,7 +785,7 @@ public class BSDiff {
         } // end while loop
 
         dataOut.flush();
-        bzip2Out.finish();
+        bzip2Out.finishBlock();
 
         // now compressed ctrlBlockLen
         int ctrlBlockLen = diffOut.size() - BSUtil.HEADER_SIZE;
@@ -638,9 +795,9 @@ public class BSDiff {
         /*
          * Write diff block
          */
-        bzip2Out = new GZIPOutputStream(diffOut);
+        bzip2Out = new BlockGZIPOutputStream(diffOut);
         bzip2Out.write(diffBlock, 0, diffBLockLen);
-        bzip2Out.finish();
+        bzip2Out.finishBlock();
         bzip2Out.flush();
         int diffBlockLen = diffOut.size() - ctrlBlockLen - BSUtil.HEADER_SIZE;
         // System.err.println( "Diff: diffBlockLen=" + diffBlockLen );
@@ -648,9 +805,9 @@ public class BSDiff {
         /*
          * Write extra block
          */
-        bzip2Out = new GZIPOutputStream(diffOut);
+        bzip2Out = new BlockGZIPOutputStream(diffOut);
         bzip2Out.write(extraBlock, 0, extraBlockLen);
-        bzip2Out.finish();
+        bzip2Out.finishBlock();
         bzip2Out.flush();
 
         diffOut.close();
@@ -703,4 +860,20 @@ public class BSDiff {
     private static class IntByRef {
         private int value;
     }
+
+    /**
+     * Writes one compressed block into the shared diff stream without closing it. The deflater
+     * is released as soon as the block is finished instead of waiting for finalization, which
+     * matters when many windows are diffed in a row.
+     */
+    private static class BlockGZIPOutputStream extends GZIPOutputStream {
+        BlockGZIPOutputStream(OutputStream out) throws IOException {
+            super(out);
+        }
+
+        void finishBlock() throws IOException {
+            finish();
+            def.end();
+        }
+    }
 }
@@ -39,6 +39,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.zip.GZIPInputStream;
 
 
@@ -69,7 +71,7 @@ public class BSPatch {
 
     /**
      * BSPatch using less memory size.
-     * Memory size = diffFile size + max block size
+     * Memory size = a few fixed size buffers, see {@link #patchStreaming(File, File, File)}
      *
      */
     public static int patchLessMemory(RandomAccessFile oldFile, File newFile, File diffFile, int extLen) throws IOException {
@@ -83,14 +85,241 @@ public class BSPatch {
             return RETURN_DIFF_FILE_ERR;
         }
 
-        byte[] diffBytes = new byte[(int) diffFile.length()];
-        InputStream diffInputStream = new FileInputStream(diffFile);
         try {
-            BSUtil.readFromStream(diffInputStream, diffBytes, 0, diffBytes.length);
+            return patchStreaming(oldFile.getChannel(), newFile, diffFile);
         } finally {
-            diffInputStream.close();
+            oldFile.close();
+        }
+    }
+
+    /**
+     * BSPatch with bounded memory.
+     * The three blocks are inflated straight from the diff file through positioned reads and
+     * the new file is written through a fixed size buffer, so the memory used does not depend
+     * on the size of the old file, the new file or the diff file.
+     */
+    public static int patchStreaming(File oldFile, File newFile, File diffFile) throws IOException {
+        if (oldFile == null || oldFile.length() <= 0) {
+            return RETURN_OLD_FILE_ERR;
+        }
+        if (newFile == null) {
+            return RETURN_NEW_FILE_ERR;
+        }
+        if (diffFile == null || diffFile.length() <= 0) {
+            return RETURN_DIFF_FILE_ERR;
+        }
+
+        RandomAccessFile oldRaf = new RandomAccessFile(oldFile, "r");
+        try {
+            return patchStreaming(oldRaf.getChannel(), newFile, diffFile);
+        } finally {
+            oldRaf.close();
+        }
+    }
+
+    private static int patchStreaming(FileChannel oldChannel, File newFile, File diffFile) throws IOException {
+        RandomAccessFile diffRaf = new RandomAccessFile(diffFile, "r");
+        FileOutputStream newOutputStream = null;
+        try {
+            FileChannel diffChannel = diffRaf.getChannel();
+            long diffFileSize = diffChannel.size();
+
+            newOutputStream = new FileOutputStream(newFile);
+            FileChannel newChannel = newOutputStream.getChannel();
+            byte[] oldBuf = new byte[BSUtil.BUFFER_SIZE];
+            byte[] newBuf = new byte[BSUtil.BUFFER_SIZE];
+
+            ByteBuffer header = ByteBuffer.allocate(BSUtil.MULTI_SEGMENT_HEADER_SIZE);
+            if (diffFileSize < BSUtil.MULTI_SEGMENT_HEADER_SIZE || !readFully(diffChannel, header, 0)
+                || !BSUtil.isMultiSegmentPatch(header.array(), header.limit())) {
+                return patchSegmentStreaming(oldChannel, diffChannel, 0, diffFileSize, -1, newChannel, oldBuf, newBuf);
+            }
+
+            int segmentCount = header.getInt(BSUtil.MULTI_SEGMENT_HEADER_SIZE - 4);
+            long tableEnd = BSUtil.MULTI_SEGMENT_HEADER_SIZE + (long) segmentCount * BSUtil.MULTI_SEGMENT_ENTRY_SIZE;
+            if (segmentCount < 0 || tableEnd > diffFileSize) {
+                return RETURN_DIFF_FILE_ERR;
+            }
+            ByteBuffer table = ByteBuffer.allocate((int) tableEnd);
+            if (!readFully(diffChannel, table, 0)) {
+                return RETURN_DIFF_FILE_ERR;
+            }
+            SegmentTable segmentTable = SegmentTable.read(table, diffFileSize);
+            if (segmentTable == null) {
+                return RETURN_DIFF_FILE_ERR;
+            }
+            for (int i = 0; i < segmentTable.segmentCount; i++) {
+                long segmentStart = segmentTable.segmentStarts[i];
+                int ret = patchSegmentStreaming(oldChannel, diffChannel, segmentStart, segmentStart + segmentTable.segmentSizes[i],
+                    segmentTable.windowSizes[i], newChannel, oldBuf, newBuf);
+                if (ret != RETURN_SUCCESS) {
+                    return ret;
+                }
+            }
+        } finally {
+            closeQuietly(newOutputStream);
+            diffRaf.close();
+        }
+        return RETURN_SUCCESS;
+    }
+
+    /**
+     * Applies the single segment patch in diffChannel[segmentStart...segmentEnd) and appends the
+     * rebuilt bytes to newChannel. expectedNewSize is the size of the window the segment must
+     * rebuild, or -1 if it is not known.
+     */
+    private static int patchSegmentStreaming(FileChannel oldChannel, FileChannel diffChannel, long segmentStart, long segmentEnd,
+                                             long expectedNewSize, FileChannel newChannel, byte[] oldBuf, byte[] newBuf) throws IOException {
+        DataInputStream ctrlBlockIn = null;
+        InputStream diffBlockIn = null;
+        InputStream extraBlockIn = null;
+        try {
+            if (segmentEnd - segmentStart < BSUtil.HEADER_SIZE) {
+                return RETURN_DIFF_FILE_ERR;
+            }
+            ByteBuffer header = ByteBuffer.allocate(BSUtil.HEADER_SIZE);
+            if (!readFully(diffChannel, header, segmentStart)) {
+                return RETURN_DIFF_FILE_ERR;
+            }
+            header.position(8); // skip headerMagic at header offset 0 (length 8 bytes)
+            long ctrlBlockLen = header.getLong(); // ctrlBlockLen after compression at header offset 8 (length 8 bytes)
+            long diffBlockLen = header.getLong(); // diffBlockLen after compression at header offset 16 (length 8 bytes)
+            long newsize = header.getLong(); // size of new file at header offset 24 (length 8 bytes)
+
+            long ctrlBlockStart = segmentStart + BSUtil.HEADER_SIZE;
+            long diffBlockStart = ctrlBlockStart + ctrlBlockLen;
+            long extraBlockStart = diffBlockStart + diffBlockLen;
+            if (ctrlBlockLen < 0 || diffBlockLen < 0 || extraBlockStart > segmentEnd
+                || newsize < 0 || newsize > Integer.MAX_VALUE
+                || (expectedNewSize >= 0 && newsize != expectedNewSize)) {
+                return RETURN_DIFF_FILE_ERR;
+            }
+
+            ctrlBlockIn = new DataInputStream(new GZIPInputStream(
+                new ChannelBlockInputStream(diffChannel, ctrlBlockStart, diffBlockStart), BSUtil.BUFFER_SIZE));
+            diffBlockIn = new GZIPInputStream(
+                new ChannelBlockInputStream(diffChannel, diffBlockStart, extraBlockStart), BSUtil.BUFFER_SIZE);
+            extraBlockIn = new GZIPInputStream(
+                new ChannelBlockInputStream(diffChannel, extraBlockStart, segmentEnd), BSUtil.BUFFER_SIZE);
+
+            long oldsize = oldChannel.size();
+            ByteBuffer oldByteBuf = ByteBuffer.wrap(oldBuf);
+            ByteBuffer newByteBuf = ByteBuffer.wrap(newBuf);
+            int newBufLen = 0;
+
+            long oldpos = 0;
+            long newpos = 0;
+            while (newpos < newsize) {
+                int ctrl0 = ctrlBlockIn.readInt();
+                int ctrl1 = ctrlBlockIn.readInt();
+                int ctrl2 = ctrlBlockIn.readInt();
+
+                if (ctrl0 < 0 || newpos + ctrl0 > newsize) {
+                    return RETURN_DIFF_FILE_ERR;
+                }
+
+                // Read ctrl0 bytes from diffBlock stream and add the old bytes at oldpos to them.
+                int remaining = ctrl0;
+                while (remaining > 0) {
+                    if (newBufLen == newBuf.length) {
+                        writeFully(newChannel, newByteBuf, newBufLen);
+                        newBufLen = 0;
+                    }
+                    int len = Math.min(remaining, newBuf.length - newBufLen);
+                    if (!BSUtil.readFromStream(diffBlockIn, newBuf, newBufLen, len)) {
+                        return RETURN_DIFF_FILE_ERR;
+                    }
+
+                    long oldStart = Math.max(oldpos, 0);
+                    long oldEnd = Math.min(oldpos + len, oldsize);
+                    if (oldStart < oldEnd) {
+                        int oldLen = (int) (oldEnd - oldStart);
+                        oldByteBuf.clear();
+                        oldByteBuf.limit(oldLen);
+                        if (!readFully(oldChannel, oldByteBuf, oldStart)) {
+                            return RETURN_OLD_FILE_ERR;
+                        }
+                        int newOffset = newBufLen + (int) (oldStart - oldpos);
+                        for (int i = 0; i < oldLen; i++) {
+                            newBuf[newOffset + i] += oldBuf[i];
+                        }
+                    }
+
+                    newBufLen += len;
+                    remaining -= len;
+                    newpos += len;
+                    oldpos += len;
+                }
+
+                if (ctrl1 < 0 || newpos + ctrl1 > newsize) {
+                    return RETURN_DIFF_FILE_ERR;
+                }
+
+                // Copy ctrl1 bytes from extraBlock stream.
+                remaining = ctrl1;
+                while (remaining > 0) {
+                    if (newBufLen == newBuf.length) {
+                        writeFully(newChannel, newByteBuf, newBufLen);
+                        newBufLen = 0;
+                    }
+                    int len = Math.min(remaining, newBuf.length - newBufLen);
+                    if (!BSUtil.readFromStream(extraBlockIn, newBuf, newBufLen, len)) {
+                        return RETURN_DIFF_FILE_ERR;
+                    }
+                    newBufLen += len;
+                    remaining -= len;
+                    newpos += len;
+                }
+
+                oldpos += ctrl2;
+            }
+            writeFully(newChannel, newByteBuf, newBufLen);
+        } finally {
+            closeQuietly(ctrlBlockIn);
+            closeQuietly(diffBlockIn);
+            closeQuietly(extraBlockIn);
+        }
+        return RETURN_SUCCESS;
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int bytesRead = channel.read(buf, position);
+            if (bytesRead < 0) {
+                return false;
+            }
+            position += bytesRead;
+        }
+        buf.flip();
+        return true;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, int len) throws IOException {
+        buf.clear();
+        buf.limit(len);
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    private static void closeQuietly(InputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+                // Ignored.
+            }
+        }
+    }
+
+    private static void closeQuietly(OutputStream out) {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ignored) {
+                // Ignored.
+            }
         }
-        return patchLessMemory(oldFile, (int) oldFile.length(), diffBytes, diffBytes.length, newFile, extLen);
     }
 
     /**
@@ -115,7 +344,32 @@ public class BSPatch {
         //     return RETURN_OLD_FILE_ERR;
         // }
 
-        DataInputStream diffIn = new DataInputStream(new ByteArrayInputStream(diffBuf, 0, diffSize));
+        OutputStream outStream = new FileOutputStream(newFile);
+        try {
+            if (!BSUtil.isMultiSegmentPatch(diffBuf, diffSize)) {
+                return patchSegmentLessMemory(oldFile, oldsize, diffBuf, 0, diffSize, -1, outStream);
+            }
+            SegmentTable segmentTable = SegmentTable.read(ByteBuffer.wrap(diffBuf, 0, diffSize), diffSize);
+            if (segmentTable == null) {
+                return RETURN_DIFF_FILE_ERR;
+            }
+            for (int i = 0; i < segmentTable.segmentCount; i++) {
+                int ret = patchSegmentLessMemory(oldFile, oldsize, diffBuf, (int) segmentTable.segmentStarts[i],
+                    (int) segmentTable.segmentSizes[i], segmentTable.windowSizes[i], outStream);
+                if (ret != RETURN_SUCCESS) {
+                    return ret;
+                }
+            }
+            return RETURN_SUCCESS;
+        } finally {
+            oldFile.close();
+            outStream.close();
+        }
+    }
+
+    private static int patchSegmentLessMemory(RandomAccessFile oldFile, int oldsize, byte[] diffBuf, int diffOffset, int diffSize,
+                                              long expectedNewSize, OutputStream outStream) throws IOException {
+        DataInputStream diffIn = new DataInputStream(new ByteArrayInputStream(diffBuf, diffOffset, diffSize));
 
         diffIn.skip(8); // skip headerMagic at header offset 0 (length 8 bytes)
         long ctrlBlockLen = diffIn.readLong(); // ctrlBlockLen after bzip2 compression at heater offset 8 (length 8 bytes)
@@ -124,19 +378,23 @@ public class BSPatch {
 
         diffIn.close();
 
-        InputStream in = new ByteArrayInputStream(diffBuf, 0, diffSize);
+        if (expectedNewSize >= 0 && newsize != expectedNewSize) {
+            return RETURN_DIFF_FILE_ERR;
+        }
+
+        InputStream in = new ByteArrayInputStream(diffBuf, diffOffset, diffSize);
         in.skip(BSUtil.HEADER_SIZE);
         DataInputStream ctrlBlockIn = new DataInputStream(new GZIPInputStream(in));
 
-        in = new ByteArrayInputStream(diffBuf, 0, diffSize);
+        in = new ByteArrayInputStream(diffBuf, diffOffset, diffSize);
         in.skip(ctrlBlockLen + BSUtil.HEADER_SIZE);
         InputStream diffBlockIn = new GZIPInputStream(in);
 
-        in = new ByteArrayInputStream(diffBuf, 0, diffSize);
+        in = new ByteArrayInputStream(diffBuf, diffOffset, diffSize);
         in.skip(diffBlockLen + ctrlBlockLen + BSUtil.HEADER_SIZE);
         InputStream extraBlockIn = new GZIPInputStream(in);
 
-        OutputStream outStream = new FileOutputStream(newFile);
+        oldFile.seek(0);
         try {
             int oldpos = 0;
             int newpos = 0;
@@ -150,20 +408,17 @@ public class BSPatch {
                 }
 
                 if (newpos + ctrl[0] > newsize) {
-                    outStream.close();
                     return RETURN_DIFF_FILE_ERR;
                 }
 
                 // Read ctrl[0] bytes from diffBlock stream
                 byte[] buffer = new byte[ctrl[0]];
                 if (!BSUtil.readFromStream(diffBlockIn, buffer, 0, ctrl[0])) {
-                    outStream.close();
                     return RETURN_DIFF_FILE_ERR;
                 }
 
                 byte[] oldBuffer = new byte[ctrl[0]];
                 if (oldFile.read(oldBuffer, 0, ctrl[0]) < ctrl[0]) {
-                    outStream.close();
                     return RETURN_DIFF_FILE_ERR;
                 }
                 for (int i = 0; i < ctrl[0]; i++) {
@@ -182,13 +437,11 @@ public class BSPatch {
                 oldpos += ctrl[0];
 
                 if (newpos + ctrl[1] > newsize) {
-                    outStream.close();
                     return RETURN_DIFF_FILE_ERR;
                 }
 
                 buffer = new byte[ctrl[1]];
                 if (!BSUtil.readFromStream(extraBlockIn, buffer, 0, ctrl[1])) {
-                    outStream.close();
                     return RETURN_DIFF_FILE_ERR;
                 }
                 outStream.write(buffer);
@@ -198,12 +451,10 @@ public class BSPatch {
                 oldpos += ctrl[2];
                 oldFile.seek(oldpos);
             }
+        } finally {
             ctrlBlockIn.close();
             diffBlockIn.close();
             extraBlockIn.close();
-        } finally {
-            oldFile.close();
-            outStream.close();
         }
         return RETURN_SUCCESS;
     }
@@ -308,7 +559,39 @@ public class BSPatch {
      * Memory size = oldBuf + diffBuf + newBuf
      */
     public static byte[] patchFast(byte[] oldBuf, int oldsize, byte[] diffBuf, int diffSize, int extLen) throws IOException {
-        DataInputStream diffIn = new DataInputStream(new ByteArrayInputStream(diffBuf, 0, diffSize));
+        if (BSUtil.isMultiSegmentPatch(diffBuf, diffSize)) {
+            SegmentTable segmentTable = SegmentTable.read(ByteBuffer.wrap(diffBuf, 0, diffSize), diffSize);
+            if (segmentTable == null || segmentTable.newsize > Integer.MAX_VALUE) {
+                throw new IOException("Corrupt by wrong patch file.");
+            }
+            byte[] newBuf = new byte[(int) segmentTable.newsize];
+            int newpos = 0;
+            for (int i = 0; i < segmentTable.segmentCount; i++) {
+                int windowSize = (int) segmentTable.windowSizes[i];
+                patchSegmentFast(oldBuf, oldsize, diffBuf, (int) segmentTable.segmentStarts[i], (int) segmentTable.segmentSizes[i],
+                    newBuf, newpos, windowSize);
+                newpos += windowSize;
+            }
+            return newBuf;
+        }
+
+        if (diffSize < BSUtil.HEADER_SIZE) {
+            throw new IOException("Corrupt by wrong patch file.");
+        }
+        // size of new file at header offset 24 (length 8 bytes)
+        int newsize = (int) ByteBuffer.wrap(diffBuf, 0, diffSize).getLong(24);
+        byte[] newBuf = new byte[newsize];
+        patchSegmentFast(oldBuf, oldsize, diffBuf, 0, diffSize, newBuf, 0, newsize);
+        return newBuf;
+    }
+
+    /**
+     * Applies the single segment patch in diffBuf[diffOffset...diffOffset + diffSize) and writes
+     * the rebuilt window into newBuf[newOffset...newOffset + expectedNewSize).
+     */
+    private static void patchSegmentFast(byte[] oldBuf, int oldsize, byte[] diffBuf, int diffOffset, int diffSize,
+                                         byte[] newBuf, int newOffset, int expectedNewSize) throws IOException {
+        DataInputStream diffIn = new DataInputStream(new ByteArrayInputStream(diffBuf, diffOffset, diffSize));
 
         diffIn.skip(8); // skip headerMagic at header offset 0 (length 8 bytes)
         long ctrlBlockLen = diffIn.readLong(); // ctrlBlockLen after bzip2 compression at heater offset 8 (length 8 bytes)
@@ -317,21 +600,22 @@ public class BSPatch {
 
         diffIn.close();
 
-        InputStream in = new ByteArrayInputStream(diffBuf, 0, diffSize);
+        if (newsize != expectedNewSize) {
+            throw new IOException("Corrupt by wrong patch file.");
+        }
+
+        InputStream in = new ByteArrayInputStream(diffBuf, diffOffset, diffSize);
         in.skip(BSUtil.HEADER_SIZE);
         DataInputStream ctrlBlockIn = new DataInputStream(new GZIPInputStream(in));
 
-        in = new ByteArrayInputStream(diffBuf, 0, diffSize);
+        in = new ByteArrayInputStream(diffBuf, diffOffset, diffSize);
         in.skip(ctrlBlockLen + BSUtil.HEADER_SIZE);
         InputStream diffBlockIn = new GZIPInputStream(in);
 
-        in = new ByteArrayInputStream(diffBuf, 0, diffSize);
+        in = new ByteArrayInputStream(diffBuf, diffOffset, diffSize);
         in.skip(diffBlockLen + ctrlBlockLen + BSUtil.HEADER_SIZE);
         InputStream extraBlockIn = new GZIPInputStream(in);
 
-        // byte[] newBuf = new byte[newsize + 1];
-        byte[] newBuf = new byte[newsize];
-
         int oldpos = 0;
         int newpos = 0;
         int[] ctrl = new int[3];
@@ -348,13 +632,13 @@ public class BSPatch {
             }
 
             // Read ctrl[0] bytes from diffBlock stream
-            if (!BSUtil.readFromStream(diffBlockIn, newBuf, newpos, ctrl[0])) {
+            if (!BSUtil.readFromStream(diffBlockIn, newBuf, newOffset + newpos, ctrl[0])) {
                 throw new IOException("Corrupt by wrong patch file.");
             }
 
             for (int i = 0; i < ctrl[0]; i++) {
                 if ((oldpos + i >= 0) && (oldpos + i < oldsize)) {
-                    newBuf[newpos + i] += oldBuf[oldpos + i];
+                    newBuf[newOffset + newpos + i] += oldBuf[oldpos + i];
                 }
             }
 
@@ -365,7 +649,7 @@ public class BSPatch {
                 throw new IOException("Corrupt by wrong patch file.");
             }
 
-            if (!BSUtil.readFromStream(extraBlockIn, newBuf, newpos, ctrl[1])) {
+            if (!BSUtil.readFromStream(extraBlockIn, newBuf, newOffset + newpos, ctrl[1])) {
                 throw new IOException("Corrupt by wrong patch file.");
             }
 
@@ -375,8 +659,108 @@ public class BSPatch {
         ctrlBlockIn.close();
         diffBlockIn.close();
         extraBlockIn.close();
+    }
 
-        return newBuf;
+
+    /**
+     * Segment table of a multi segment patch, see {@link BSUtil#MULTI_SEGMENT_MAGIC}.
+     */
+    private static final class SegmentTable {
+        long newsize;
+        int segmentCount;
+        long[] windowSizes;
+        long[] segmentStarts;
+        long[] segmentSizes;
+
+        /**
+         * Reads the table from buf, which starts at the multi segment magic. Returns null if the
+         * table is corrupt, i.e. it does not fit into diffSize bytes or the windows do not add
+         * up to the size of the new file.
+         */
+        static SegmentTable read(ByteBuffer buf, long diffSize) {
+            int base = buf.position();
+            if (buf.remaining() < BSUtil.MULTI_SEGMENT_HEADER_SIZE) {
+                return null;
+            }
+            SegmentTable table = new SegmentTable();
+            table.newsize = buf.getLong(base + BSUtil.MULTI_SEGMENT_MAGIC.length);
+            table.segmentCount = buf.getInt(base + BSUtil.MULTI_SEGMENT_MAGIC.length + 8);
+            long segmentStart = BSUtil.MULTI_SEGMENT_HEADER_SIZE + (long) table.segmentCount * BSUtil.MULTI_SEGMENT_ENTRY_SIZE;
+            if (table.newsize < 0 || table.segmentCount < 0 || segmentStart > buf.remaining()) {
+                return null;
+            }
+            table.windowSizes = new long[table.segmentCount];
+            table.segmentStarts = new long[table.segmentCount];
+            table.segmentSizes = new long[table.segmentCount];
+            long totalWindowSize = 0;
+            int entryPos = base + BSUtil.MULTI_SEGMENT_HEADER_SIZE;
+            for (int i = 0; i < table.segmentCount; i++, entryPos += BSUtil.MULTI_SEGMENT_ENTRY_SIZE) {
+                long windowSize = buf.getLong(entryPos);
+                long segmentSize = buf.getLong(entryPos + 8);
+                if (windowSize < 0 || segmentSize < 0 || segmentStart + segmentSize > diffSize) {
+                    return null;
+                }
+                table.windowSizes[i] = windowSize;
+                table.segmentStarts[i] = segmentStart;
+                table.segmentSizes[i] = segmentSize;
+                totalWindowSize += windowSize;
+                segmentStart += segmentSize;
+            }
+            return (totalWindowSize == table.newsize ? table : null);
+        }
     }
 
-}
\ No newline at end of file
+    /**
+     * Reads the bytes of [start, end) in a file channel through positioned reads,
+     * so several streams can share one channel.
+     */
+    private static final class ChannelBlockInputStream extends InputStream {
+        private final FileChannel channel;
+        private final long end;
+        private long position;
+
+        private final byte[] singleByte = new byte[1];
+        private byte[] lastArray;
+        private ByteBuffer lastBuffer;
+
+        ChannelBlockInputStream(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int bytesRead = read(this.singleByte, 0, 1);
+            return (bytesRead <= 0 ? -1 : this.singleByte[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (this.position >= this.end) {
+                return -1;
+            }
+            if (b != this.lastArray) {
+                this.lastArray = b;
+                this.lastBuffer = ByteBuffer.wrap(b);
+            }
+            this.lastBuffer.clear();
+            this.lastBuffer.position(off);
+            this.lastBuffer.limit(off + (int) Math.min(len, this.end - this.position));
+            int bytesRead = this.channel.read(this.lastBuffer, this.position);
+            if (bytesRead < 0) {
+                return -1;
+            }
+            this.position += bytesRead;
+            return bytesRead;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, this.end - this.position);
+        }
+    }
+}
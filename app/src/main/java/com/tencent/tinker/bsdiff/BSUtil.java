@@ -44,6 +44,38 @@ public class BSUtil {
     public static final int HEADER_SIZE = 32;
     public static final int BUFFER_SIZE = 8192;
 
+    /**
+     * Multi segment patch, written by {@link BSDiff#bsdiffChunked}:
+     *
+     * Header:
+     * Offset 0, length 8 bytes: file magic "MicroMsS"
+     * Offset 8, length 8 bytes: length of new file
+     * Offset 16, length 4 bytes: segment count
+     *
+     * Followed by one entry per segment (16 bytes each):
+     * length 8 bytes: length of the new file window the segment rebuilds
+     * length 8 bytes: length of the segment patch
+     *
+     * Followed by the segment patches, each of them a normal single segment patch of its window
+     * against the whole old file. Windows are consecutive and start at offset 0 of the new file.
+     */
+    public static final byte[] MULTI_SEGMENT_MAGIC = new byte[]{0x4D, 0x69, 0x63,
+        0x72, 0x6F, 0x4D, 0x73, 0x53};
+    public static final int MULTI_SEGMENT_HEADER_SIZE = 20;
+    public static final int MULTI_SEGMENT_ENTRY_SIZE = 16;
+
+    public static boolean isMultiSegmentPatch(byte[] buf, int len) {
+        if (len < MULTI_SEGMENT_HEADER_SIZE) {
+            return false;
+        }
+        for (int i = 0; i < MULTI_SEGMENT_MAGIC.length; i++) {
+            if (buf[i] != MULTI_SEGMENT_MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
 
     /**
      * Read from input stream and fill the given buffer from the given offset up
@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company.
+ * Copyright (c) 2008-2010 Yuta Mori All Rights Reserved.
+ * All rights reserved
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted providing that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+ * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.tencent.tinker.bsdiff;
+
+/**
+ * Linear time suffix sorting by induced sorting (SA-IS). See Ge Nong, Sen Zhang and Wai Hong Chan,
+ * "Two Efficient Algorithms for Linear Time Suffix Array Construction". Follows the layout of
+ * Yuta Mori's sais-lite, which reuses the free tail of the suffix array as work space, so apart
+ * from the suffix array itself only a few bucket tables are allocated.
+ */
+final class SAIS {
+    private static final int BYTE_ALPHABET_SIZE = 256;
+
+    private SAIS() {
+        // Do nothing.
+    }
+
+    /**
+     * Fills arrayI[0...size] with the same ordering {@link BSDiff} gets from qsufsort,
+     * i.e. arrayI[0] is the empty suffix and arrayI[1...size] are the sorted suffixes of buf[0...size).
+     */
+    static void suffixsort(int[] arrayI, byte[] buf, int size) {
+        if (arrayI.length < size + 1) {
+            throw new IllegalArgumentException("arrayI is too small, expected at least " + (size + 1));
+        }
+        if (size == 1) {
+            arrayI[0] = 0;
+        } else if (size > 1) {
+            sais(new ByteText(buf), arrayI, arrayI.length - size, size, BYTE_ALPHABET_SIZE);
+        }
+        // The empty suffix is smaller than any other one.
+        System.arraycopy(arrayI, 0, arrayI, 1, size);
+        arrayI[0] = size;
+    }
+
+    private static void getCounts(Text text, Text counts, int n, int k) {
+        for (int i = 0; i < k; ++i) {
+            counts.set(i, 0);
+        }
+        for (int i = 0; i < n; ++i) {
+            counts.update(text.get(i), 1);
+        }
+    }
+
+    private static void getBuckets(Text counts, Text buckets, int k, boolean end) {
+        int sum = 0;
+        if (end) {
+            for (int i = 0; i < k; ++i) {
+                sum += counts.get(i);
+                buckets.set(i, sum);
+            }
+        } else {
+            for (int i = 0; i < k; ++i) {
+                int count = counts.get(i);
+                buckets.set(i, sum);
+                sum += count;
+            }
+        }
+    }
+
+    /**
+     * Induces the order of L-type suffixes from the sorted LMS suffixes, then the order of
+     * S-type suffixes from the L-type ones.
+     */
+    private static void induceSA(Text text, int[] sa, Text counts, Text buckets, int n, int k) {
+        int b;
+        int j;
+        int c0;
+        int c1;
+
+        if (counts == buckets) {
+            getCounts(text, counts, n, k);
+        }
+        // Starts of buckets.
+        getBuckets(counts, buckets, k, false);
+        j = n - 1;
+        c1 = text.get(j);
+        b = buckets.get(c1);
+        sa[b++] = ((0 < j) && (text.get(j - 1) < c1)) ? ~j : j;
+        for (int i = 0; i < n; ++i) {
+            j = sa[i];
+            sa[i] = ~j;
+            if (0 < j) {
+                c0 = text.get(--j);
+                if (c0 != c1) {
+                    buckets.set(c1, b);
+                    c1 = c0;
+                    b = buckets.get(c1);
+                }
+                sa[b++] = ((0 < j) && (text.get(j - 1) < c1)) ? ~j : j;
+            }
+        }
+
+        if (counts == buckets) {
+            getCounts(text, counts, n, k);
+        }
+        // Ends of buckets.
+        getBuckets(counts, buckets, k, true);
+        c1 = 0;
+        b = buckets.get(c1);
+        for (int i = n - 1; 0 <= i; --i) {
+            j = sa[i];
+            if (0 < j) {
+                c0 = text.get(--j);
+                if (c0 != c1) {
+                    buckets.set(c1, b);
+                    c1 = c0;
+                    b = buckets.get(c1);
+                }
+                sa[--b] = ((j == 0) || (text.get(j - 1) > c1)) ? ~j : j;
+            } else {
+                sa[i] = ~j;
+            }
+        }
+    }
+
+    /**
+     * Sorts the suffixes of text[0...n) whose characters are in [0, k) into sa[0...n).
+     * sa[n...n + fs) is free work space.
+     */
+    private static void sais(Text text, int[] sa, int fs, int n, int k) {
+        Text counts;
+        Text buckets;
+        int i;
+        int j;
+        int c;
+        int m;
+        int p;
+        int q;
+        int plen;
+        int qlen;
+        int name;
+        int c0;
+        int c1;
+
+        // Stage 1: reduce the problem by at least 1/2, sort all the LMS substrings.
+        if (k <= fs) {
+            counts = new IntText(sa, n);
+            buckets = (k <= (fs - k)) ? new IntText(sa, n + k) : counts;
+        } else {
+            counts = new IntText(new int[k], 0);
+            buckets = counts;
+        }
+        getCounts(text, counts, n, k);
+        getBuckets(counts, buckets, k, true);
+        for (i = 0; i < n; ++i) {
+            sa[i] = 0;
+        }
+        c = 0;
+        c1 = text.get(n - 1);
+        for (i = n - 2; 0 <= i; --i, c1 = c0) {
+            c0 = text.get(i);
+            if (c0 < (c1 + c)) {
+                c = 1;
+            } else if (c != 0) {
+                sa[buckets.update(c1, -1)] = i + 1;
+                c = 0;
+            }
+        }
+        induceSA(text, sa, counts, buckets, n, k);
+
+        // Compact all the sorted LMS substrings into the first m items of sa, 2 * m <= n.
+        m = 0;
+        for (i = 0; i < n; ++i) {
+            p = sa[i];
+            if ((0 < p) && (text.get(p - 1) > (c0 = text.get(p)))) {
+                for (j = p + 1; (j < n) && (c0 == (c1 = text.get(j))); ++j) {
+                    // Skip equal characters.
+                }
+                if ((j < n) && (c0 < c1)) {
+                    sa[m++] = p;
+                }
+            }
+        }
+        j = m + (n >> 1);
+        for (i = m; i < j; ++i) {
+            sa[i] = 0;
+        }
+        // Store the length of all LMS substrings.
+        j = n;
+        c = 0;
+        c1 = text.get(n - 1);
+        for (i = n - 2; 0 <= i; --i, c1 = c0) {
+            c0 = text.get(i);
+            if (c0 < (c1 + c)) {
+                c = 1;
+            } else if (c != 0) {
+                sa[m + ((i + 1) >> 1)] = j - i - 1;
+                j = i + 1;
+                c = 0;
+            }
+        }
+        // Find the lexicographic names of all LMS substrings.
+        name = 0;
+        q = n;
+        qlen = 0;
+        for (i = 0; i < m; ++i) {
+            p = sa[i];
+            plen = sa[m + (p >> 1)];
+            boolean diff = true;
+            if (plen == qlen) {
+                for (j = 0; (j < plen) && (text.get(p + j) == text.get(q + j)); ++j) {
+                    // Compare the substrings.
+                }
+                if (j == plen) {
+                    diff = false;
+                }
+            }
+            if (diff) {
+                ++name;
+                q = p;
+                qlen = plen;
+            }
+            sa[m + (p >> 1)] = name;
+        }
+
+        // Stage 2: solve the reduced problem, recurse if names are not yet unique.
+        if (name < m) {
+            Text reduced = new IntText(sa, n + fs - m);
+            for (i = m + (n >> 1) - 1, j = m - 1; m <= i; --i) {
+                if (sa[i] != 0) {
+                    reduced.set(j--, sa[i] - 1);
+                }
+            }
+            sais(reduced, sa, fs + n - m * 2, m, name);
+            j = m - 1;
+            c = 0;
+            c1 = text.get(n - 1);
+            for (i = n - 2; 0 <= i; --i, c1 = c0) {
+                c0 = text.get(i);
+                if (c0 < (c1 + c)) {
+                    c = 1;
+                } else if (c != 0) {
+                    reduced.set(j--, i + 1);
+                    c = 0;
+                }
+            }
+            // Map the reduced indices back to positions in text.
+            for (i = 0; i < m; ++i) {
+                sa[i] = reduced.get(sa[i]);
+            }
+        }
+
+        // Stage 3: induce the result for the original problem.
+        if (k <= fs) {
+            counts = new IntText(sa, n);
+            buckets = (k <= (fs - k)) ? new IntText(sa, n + k) : counts;
+        } else {
+            counts = new IntText(new int[k], 0);
+            buckets = counts;
+        }
+        // Put all the LMS suffixes into their buckets.
+        getCounts(text, counts, n, k);
+        getBuckets(counts, buckets, k, true);
+        for (i = m; i < n; ++i) {
+            sa[i] = 0;
+        }
+        for (i = m - 1; 0 <= i; --i) {
+            j = sa[i];
+            sa[i] = 0;
+            sa[buckets.update(text.get(j), -1)] = j;
+        }
+        induceSA(text, sa, counts, buckets, n, k);
+    }
+
+    private interface Text {
+        int get(int i);
+
+        void set(int i, int value);
+
+        /**
+         * Adds delta to the i-th item and returns the new value.
+         */
+        int update(int i, int delta);
+    }
+
+    private static final class ByteText implements Text {
+        private final byte[] buf;
+
+        ByteText(byte[] buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int get(int i) {
+            return this.buf[i] & 0xff;
+        }
+
+        @Override
+        public void set(int i, int value) {
+            throw new UnsupportedOperationException("input buffer is read only.");
+        }
+
+        @Override
+        public int update(int i, int delta) {
+            throw new UnsupportedOperationException("input buffer is read only.");
+        }
+    }
+
+    private static final class IntText implements Text {
+        private final int[] array;
+        private final int offset;
+
+        IntText(int[] array, int offset) {
+            this.array = array;
+            this.offset = offset;
+        }
+
+        @Override
+        public int get(int i) {
+            return this.array[this.offset + i];
+        }
+
+        @Override
+        public void set(int i, int value) {
+            this.array[this.offset + i] = value;
+        }
+
+        @Override
+        public int update(int i, int delta) {
+            return this.array[this.offset + i] += delta;
+        }
+    }
+}
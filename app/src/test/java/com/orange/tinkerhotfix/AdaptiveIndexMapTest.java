@@ -0,0 +1,169 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.orange.tinkerhotfix;
+
+import com.orange.tinkerhotfix.common.AdaptiveIndexMap;
+import com.orange.tinkerhotfix.common.SparseIndexMap;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link AdaptiveIndexMap} maps and adjusts indices exactly like {@link SparseIndexMap}.
+ */
+public class AdaptiveIndexMapTest {
+    private static final int ID_COUNT = 64;
+
+    // Probes reach past the dense range so that the sparse fallback is checked too.
+    private static final int MIN_PROBE = -2;
+    private static final int MAX_PROBE = ID_COUNT + 16;
+
+    private static final int[] ID_KINDS = {
+            SparseIndexMap.KIND_STRING_IDS,
+            SparseIndexMap.KIND_TYPE_IDS,
+            SparseIndexMap.KIND_PROTO_IDS,
+            SparseIndexMap.KIND_FIELD_IDS,
+            SparseIndexMap.KIND_METHOD_IDS,
+            SparseIndexMap.KIND_CODE_OFFSETS
+    };
+
+    @Test
+    public void newMapIsIdentity() {
+        AdaptiveIndexMap adaptive = new AdaptiveIndexMap(ID_COUNT, ID_COUNT, ID_COUNT, ID_COUNT, ID_COUNT);
+        assertTrue(adaptive.isIdentity());
+        for (int kind : ID_KINDS) {
+            for (int i = MIN_PROBE; i < MAX_PROBE; ++i) {
+                assertEquals(i, adjust(adaptive, kind, i));
+            }
+        }
+    }
+
+    @Test
+    public void randomMappingsAdjustLikeSparseIndexMap() {
+        for (int seed = 0; seed < 20; ++seed) {
+            Random random = new Random(seed);
+            SparseIndexMap sparse = new SparseIndexMap();
+            AdaptiveIndexMap adaptive = new AdaptiveIndexMap(ID_COUNT, ID_COUNT, ID_COUNT, ID_COUNT, ID_COUNT);
+            for (int step = 0; step < 200; ++step) {
+                int kind = ID_KINDS[random.nextInt(ID_KINDS.length)];
+                int oldIndex = MIN_PROBE + random.nextInt(MAX_PROBE - MIN_PROBE);
+                if (random.nextInt(3) == 0) {
+                    markDeleted(sparse, kind, oldIndex);
+                    markDeleted(adaptive, kind, oldIndex);
+                } else {
+                    int newIndex = random.nextInt(MAX_PROBE);
+                    map(sparse, kind, oldIndex, newIndex);
+                    map(adaptive, kind, oldIndex, newIndex);
+                }
+                if (step % 20 == 0) {
+                    assertSameMaps("seed " + seed + " step " + step, sparse, adaptive);
+                }
+            }
+            assertSameMaps("seed " + seed, sparse, adaptive);
+        }
+    }
+
+    @Test
+    public void identityOfOneKindIgnoresOtherKinds() {
+        AdaptiveIndexMap adaptive = new AdaptiveIndexMap(ID_COUNT, ID_COUNT, ID_COUNT, ID_COUNT, ID_COUNT);
+        adaptive.mapTypeIds(1, 2);
+        adaptive.markMethodIdDeleted(ID_COUNT + 1);
+        assertFalse(adaptive.isIdentityFor(SparseIndexMap.KIND_TYPE_IDS));
+        assertFalse(adaptive.isIdentityFor(SparseIndexMap.KIND_METHOD_IDS));
+        assertTrue(adaptive.isIdentityFor(SparseIndexMap.KIND_STRING_IDS | SparseIndexMap.KIND_FIELD_IDS));
+        assertFalse(adaptive.isIdentity());
+    }
+
+    private static void assertSameMaps(String message, SparseIndexMap expected, SparseIndexMap actual) {
+        assertEquals(message, expected.isIdentity(), actual.isIdentity());
+        for (int kind : ID_KINDS) {
+            assertEquals(message + " kind " + kind, expected.isIdentityFor(kind), actual.isIdentityFor(kind));
+            for (int i = MIN_PROBE; i < MAX_PROBE; ++i) {
+                assertEquals(message + " kind " + kind + " index " + i, adjust(expected, kind, i), adjust(actual, kind, i));
+            }
+        }
+    }
+
+    private static void map(SparseIndexMap indexMap, int kind, int oldIndex, int newIndex) {
+        switch (kind) {
+            case SparseIndexMap.KIND_STRING_IDS:
+                indexMap.mapStringIds(oldIndex, newIndex);
+                break;
+            case SparseIndexMap.KIND_TYPE_IDS:
+                indexMap.mapTypeIds(oldIndex, newIndex);
+                break;
+            case SparseIndexMap.KIND_PROTO_IDS:
+                indexMap.mapProtoIds(oldIndex, newIndex);
+                break;
+            case SparseIndexMap.KIND_FIELD_IDS:
+                indexMap.mapFieldIds(oldIndex, newIndex);
+                break;
+            case SparseIndexMap.KIND_METHOD_IDS:
+                indexMap.mapMethodIds(oldIndex, newIndex);
+                break;
+            default:
+                indexMap.mapCodeOffset(oldIndex, newIndex);
+                break;
+        }
+    }
+
+    private static void markDeleted(SparseIndexMap indexMap, int kind, int index) {
+        switch (kind) {
+            case SparseIndexMap.KIND_STRING_IDS:
+                indexMap.markStringIdDeleted(index);
+                break;
+            case SparseIndexMap.KIND_TYPE_IDS:
+                indexMap.markTypeIdDeleted(index);
+                break;
+            case SparseIndexMap.KIND_PROTO_IDS:
+                indexMap.markProtoIdDeleted(index);
+                break;
+            case SparseIndexMap.KIND_FIELD_IDS:
+                indexMap.markFieldIdDeleted(index);
+                break;
+            case SparseIndexMap.KIND_METHOD_IDS:
+                indexMap.markMethodIdDeleted(index);
+                break;
+            default:
+                indexMap.markCodeDeleted(index);
+                break;
+        }
+    }
+
+    private static int adjust(SparseIndexMap indexMap, int kind, int index) {
+        switch (kind) {
+            case SparseIndexMap.KIND_STRING_IDS:
+                return indexMap.adjustStringIndex(index);
+            case SparseIndexMap.KIND_TYPE_IDS:
+                return indexMap.adjustTypeIdIndex(index);
+            case SparseIndexMap.KIND_PROTO_IDS:
+                return indexMap.adjustProtoIdIndex(index);
+            case SparseIndexMap.KIND_FIELD_IDS:
+                return indexMap.adjustFieldIdIndex(index);
+            case SparseIndexMap.KIND_METHOD_IDS:
+                return indexMap.adjustMethodIdIndex(index);
+            default:
+                return indexMap.adjustCodeOffset(index);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.orange.tinkerhotfix;
+
+import com.tencent.tinker.bsdiff.BSDiff;
+import com.tencent.tinker.bsdiff.BSPatch;
+import com.tencent.tinker.bsdiff.BSUtil;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that multi segment patches made by {@link BSDiff#bsdiffChunked} are applied right by
+ * every {@link BSPatch} method, and that broken ones are rejected.
+ */
+public class BSDiffChunkedTest {
+    private static final int CLASS_COUNT = 200;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void everyPatchMethodRestoresChunkedPatch() throws IOException {
+        byte[] oldBuf = SyntheticDexFactory.createOldDex(CLASS_COUNT);
+        byte[] newBuf = SyntheticDexFactory.createNewDex(CLASS_COUNT);
+        // Windows smaller than the streaming buffer, larger ones, one which divides the new
+        // file and one larger than the whole new file.
+        int[] windowSizes = {1000, 3 * BSUtil.BUFFER_SIZE, newBuf.length / 4, newBuf.length + 1};
+        for (int windowSize : windowSizes) {
+            byte[] diff = BSDiff.bsdiffChunked(oldBuf, oldBuf.length, newBuf, newBuf.length, windowSize, 4,
+                    BSDiff.SuffixSortAlgorithm.SAIS);
+            assertTrue(BSUtil.isMultiSegmentPatch(diff, diff.length));
+            assertAllPatchMethodsRestore(oldBuf, newBuf, diff);
+        }
+    }
+
+    @Test
+    public void chunkedPatchDoesNotDependOnThreadCount() throws IOException {
+        byte[] oldBuf = SyntheticDexFactory.createOldDex(CLASS_COUNT);
+        byte[] newBuf = SyntheticDexFactory.createNewDex(CLASS_COUNT);
+        byte[] serialDiff = BSDiff.bsdiffChunked(oldBuf, oldBuf.length, newBuf, newBuf.length, 5000, 1,
+                BSDiff.SuffixSortAlgorithm.QSUFSORT);
+        byte[] concurrentDiff = BSDiff.bsdiffChunked(oldBuf, oldBuf.length, newBuf, newBuf.length, 5000, 4,
+                BSDiff.SuffixSortAlgorithm.QSUFSORT);
+        assertArrayEquals(serialDiff, concurrentDiff);
+    }
+
+    @Test
+    public void chunkedFileDiffRestores() throws IOException {
+        byte[] oldBuf = SyntheticDexFactory.createOldDex(CLASS_COUNT);
+        byte[] newBuf = SyntheticDexFactory.createNewDex(CLASS_COUNT);
+        File diffFile = tempFolder.newFile("diff");
+        BSDiff.bsdiffChunked(writeFile("old", oldBuf), writeFile("new", newBuf), diffFile, 7000, 2,
+                BSDiff.SuffixSortAlgorithm.SAIS);
+        assertAllPatchMethodsRestore(oldBuf, newBuf, readFile(diffFile));
+    }
+
+    @Test
+    public void rejectsWindowsNotAddingUpToNewSize() throws IOException {
+        byte[] oldBuf = SyntheticDexFactory.createOldDex(CLASS_COUNT);
+        byte[] newBuf = SyntheticDexFactory.createNewDex(CLASS_COUNT);
+        byte[] diff = BSDiff.bsdiffChunked(oldBuf, oldBuf.length, newBuf, newBuf.length, 5000, 2,
+                BSDiff.SuffixSortAlgorithm.SAIS);
+        // Last byte of the window size of the first segment.
+        ++diff[BSUtil.MULTI_SEGMENT_HEADER_SIZE + 7];
+
+        try {
+            BSPatch.patchFast(oldBuf, oldBuf.length, diff, diff.length, 0);
+            fail("corrupt segment table is accepted by patchFast.");
+        } catch (IOException e) {
+            assertEquals("Corrupt by wrong patch file.", e.getMessage());
+        }
+        File oldFile = writeFile("old", oldBuf);
+        File diffFile = writeFile("diff", diff);
+        assertEquals(BSPatch.RETURN_DIFF_FILE_ERR,
+                BSPatch.patchStreaming(oldFile, tempFolder.newFile("streamed"), diffFile));
+        assertEquals(BSPatch.RETURN_DIFF_FILE_ERR, BSPatch.patchLessMemory(new RandomAccessFile(oldFile, "r"),
+                oldBuf.length, diff, diff.length, tempFolder.newFile("lessMemory"), 0));
+    }
+
+    @Test
+    public void patchFastRejectsPatchShorterThanHeader() throws IOException {
+        byte[] oldBuf = SyntheticDexFactory.createOldDex(10);
+        byte[] diff = BSDiff.bsdiff(oldBuf, oldBuf.length, oldBuf, oldBuf.length);
+        try {
+            BSPatch.patchFast(oldBuf, oldBuf.length, diff, BSUtil.HEADER_SIZE - 1, 0);
+            fail("patch shorter than the header is accepted by patchFast.");
+        } catch (IOException e) {
+            assertEquals("Corrupt by wrong patch file.", e.getMessage());
+        }
+    }
+
+    private void assertAllPatchMethodsRestore(byte[] oldBuf, byte[] newBuf, byte[] diff) throws IOException {
+        assertArrayEquals(newBuf, BSPatch.patchFast(oldBuf, oldBuf.length, diff, diff.length, 0));
+
+        File oldFile = writeFile("patchOld", oldBuf);
+        File diffFile = writeFile("patchDiff", diff);
+        File newFile = new File(tempFolder.getRoot(), "patchNew");
+
+        assertEquals(BSPatch.RETURN_SUCCESS, BSPatch.patchFast(oldFile, newFile, diffFile, 0));
+        assertArrayEquals(newBuf, readFile(newFile));
+
+        assertEquals(BSPatch.RETURN_SUCCESS, BSPatch.patchStreaming(oldFile, newFile, diffFile));
+        assertArrayEquals(newBuf, readFile(newFile));
+
+        assertEquals(BSPatch.RETURN_SUCCESS,
+                BSPatch.patchLessMemory(new RandomAccessFile(oldFile, "r"), newFile, diffFile, 0));
+        assertArrayEquals(newBuf, readFile(newFile));
+
+        assertEquals(BSPatch.RETURN_SUCCESS, BSPatch.patchLessMemory(new RandomAccessFile(oldFile, "r"),
+                oldBuf.length, diff, diff.length, newFile, 0));
+        assertArrayEquals(newBuf, readFile(newFile));
+    }
+
+    private File writeFile(String name, byte[] content) throws IOException {
+        File file = new File(tempFolder.getRoot(), name);
+        OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(content);
+        } finally {
+            os.close();
+        }
+        return file;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] result = new byte[(int) raf.length()];
+            raf.readFully(result);
+            return result;
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.orange.tinkerhotfix;
+
+import com.tencent.tinker.bsdiff.BSDiff;
+import com.tencent.tinker.bsdiff.BSPatch;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Checks that bsdiff makes the same patch with SA-IS as with qsufsort, and that the patch
+ * restores the new file.
+ */
+public class BSDiffSuffixSortTest {
+
+    @Test
+    public void sameDiffOnDexes() throws IOException {
+        assertSameDiff(SyntheticDexFactory.createOldDex(100), SyntheticDexFactory.createNewDex(100));
+    }
+
+    @Test
+    public void sameDiffOnRandomBytes() throws IOException {
+        Random random = new Random(0);
+        for (int i = 0; i < 10; ++i) {
+            byte[] oldBuf = new byte[1 + random.nextInt(4096)];
+            random.nextBytes(oldBuf);
+            byte[] newBuf = mutate(oldBuf, random);
+            assertSameDiff(oldBuf, newBuf);
+        }
+    }
+
+    @Test
+    public void sameDiffOnRepetitiveBytes() throws IOException {
+        // Long runs and periods are the worst cases of both suffix sorts.
+        byte[] zeros = new byte[5000];
+        byte[] moreZeros = new byte[5003];
+        assertSameDiff(zeros, moreZeros);
+
+        byte[] periodic = new byte[6000];
+        for (int i = 0; i < periodic.length; ++i) {
+            periodic[i] = (byte) "abcab".charAt(i % 5);
+        }
+        byte[] shiftedPeriodic = Arrays.copyOfRange(periodic, 3, periodic.length);
+        assertSameDiff(periodic, shiftedPeriodic);
+    }
+
+    @Test
+    public void sameDiffOnTinyInputs() throws IOException {
+        assertSameDiff(new byte[] {1}, new byte[] {1});
+        assertSameDiff(new byte[] {1}, new byte[0]);
+        assertSameDiff(new byte[] {1, 2}, new byte[] {2, 1, 2});
+    }
+
+    private static void assertSameDiff(byte[] oldBuf, byte[] newBuf) throws IOException {
+        byte[] qsufsortDiff = BSDiff.bsdiff(oldBuf, oldBuf.length, newBuf, newBuf.length,
+                BSDiff.SuffixSortAlgorithm.QSUFSORT);
+        byte[] saisDiff = BSDiff.bsdiff(oldBuf, oldBuf.length, newBuf, newBuf.length,
+                BSDiff.SuffixSortAlgorithm.SAIS);
+        assertArrayEquals(qsufsortDiff, saisDiff);
+        assertArrayEquals(newBuf, BSPatch.patchFast(oldBuf, oldBuf.length, saisDiff, saisDiff.length, 0));
+    }
+
+    private static byte[] mutate(byte[] buf, Random random) {
+        byte[] result = Arrays.copyOf(buf, buf.length + random.nextInt(64));
+        for (int i = 0; i < result.length / 50 + 1; ++i) {
+            result[random.nextInt(result.length)] = (byte) random.nextInt();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.orange.tinkerhotfix;
+
+import com.tencent.tinker.bsdiff.BSDiff;
+import com.tencent.tinker.bsdiff.BSPatch;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that {@link BSPatch#patchStreaming} restores the new file exactly like
+ * {@link BSPatch#patchFast}, and rejects broken patches.
+ */
+public class BSPatchStreamingTest {
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void restoresDex() throws IOException {
+        assertStreamingRestores(SyntheticDexFactory.createOldDex(200), SyntheticDexFactory.createNewDex(200));
+    }
+
+    @Test
+    public void restoresFilesLargerThanBuffers() throws IOException {
+        // Several times the size of the streaming buffers, with moved, changed and added bytes.
+        Random random = new Random(0);
+        byte[] oldBuf = new byte[200 * 1024];
+        random.nextBytes(oldBuf);
+        byte[] newBuf = new byte[oldBuf.length + 5000];
+        System.arraycopy(oldBuf, 70000, newBuf, 0, 60000);
+        System.arraycopy(oldBuf, 0, newBuf, 60000, 70000);
+        byte[] extra = new byte[5000];
+        random.nextBytes(extra);
+        System.arraycopy(extra, 0, newBuf, 130000, extra.length);
+        System.arraycopy(oldBuf, 130000, newBuf, 135000, oldBuf.length - 130000);
+        for (int i = 0; i < 300; ++i) {
+            newBuf[random.nextInt(newBuf.length)] = (byte) random.nextInt();
+        }
+        assertStreamingRestores(oldBuf, newBuf);
+    }
+
+    @Test
+    public void restoresEmptyAndTinyFiles() throws IOException {
+        assertStreamingRestores(new byte[] {1, 2, 3}, new byte[0]);
+        assertStreamingRestores(new byte[] {1}, new byte[] {1});
+        assertStreamingRestores(new byte[] {1, 2}, new byte[] {2, 1, 2});
+    }
+
+    @Test
+    public void lessMemoryPatchStreamsTheSameWay() throws IOException {
+        byte[] oldBuf = SyntheticDexFactory.createOldDex(100);
+        byte[] newBuf = SyntheticDexFactory.createNewDex(100);
+        File oldFile = writeFile("old", oldBuf);
+        File diffFile = writeFile("diff", BSDiff.bsdiff(oldBuf, oldBuf.length, newBuf, newBuf.length));
+        File newFile = tempFolder.newFile("new");
+        assertEquals(BSPatch.RETURN_SUCCESS,
+                BSPatch.patchLessMemory(new RandomAccessFile(oldFile, "r"), newFile, diffFile, 0));
+        assertArrayEquals(newBuf, readFile(newFile));
+    }
+
+    @Test
+    public void rejectsBrokenPatches() throws IOException {
+        byte[] oldBuf = SyntheticDexFactory.createOldDex(50);
+        byte[] newBuf = SyntheticDexFactory.createNewDex(50);
+        byte[] diff = BSDiff.bsdiff(oldBuf, oldBuf.length, newBuf, newBuf.length);
+        File oldFile = writeFile("old", oldBuf);
+        File newFile = tempFolder.newFile("new");
+
+        assertEquals(BSPatch.RETURN_DIFF_FILE_ERR,
+                BSPatch.patchStreaming(oldFile, newFile, writeFile("empty", new byte[0])));
+        assertEquals(BSPatch.RETURN_DIFF_FILE_ERR,
+                BSPatch.patchStreaming(oldFile, newFile, writeFile("header", Arrays.copyOf(diff, 20))));
+        assertEquals(BSPatch.RETURN_OLD_FILE_ERR,
+                BSPatch.patchStreaming(writeFile("emptyOld", new byte[0]), newFile, writeFile("diff", diff)));
+
+        // Blocks end before the new file is rebuilt.
+        byte[] truncated = Arrays.copyOf(diff, diff.length / 2);
+        try {
+            int ret = BSPatch.patchStreaming(oldFile, newFile, writeFile("truncated", truncated));
+            assertEquals(BSPatch.RETURN_DIFF_FILE_ERR, ret);
+        } catch (IOException e) {
+            // Inflating a cut gzip stream may fail first, which is fine as well.
+        }
+    }
+
+    private void assertStreamingRestores(byte[] oldBuf, byte[] newBuf) throws IOException {
+        byte[] diff = BSDiff.bsdiff(oldBuf, oldBuf.length, newBuf, newBuf.length);
+        File oldFile = writeFile("old", oldBuf);
+        File diffFile = writeFile("diff", diff);
+        File newFile = tempFolder.newFile("new");
+        try {
+            assertEquals(BSPatch.RETURN_SUCCESS, BSPatch.patchStreaming(oldFile, newFile, diffFile));
+            assertArrayEquals(newBuf, readFile(newFile));
+            assertArrayEquals(BSPatch.patchFast(oldBuf, oldBuf.length, diff, diff.length, 0), readFile(newFile));
+        } finally {
+            oldFile.delete();
+            diffFile.delete();
+            newFile.delete();
+        }
+    }
+
+    private File writeFile(String name, byte[] content) throws IOException {
+        File file = new File(tempFolder.getRoot(), name);
+        OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(content);
+        } finally {
+            os.close();
+        }
+        return file;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] result = new byte[(int) raf.length()];
+            raf.readFully(result);
+            return result;
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.orange.tinkerhotfix;
+
+import com.orange.tinkerhotfix.party.ClassDef;
+import com.orange.tinkerhotfix.party.Dex;
+import com.orange.tinkerhotfix.patch.util.BaselineIndex;
+import com.orange.tinkerhotfix.patch.util.MD5;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Builds, saves, loads and rebuilds {@link BaselineIndex} of a generated apk and checks it
+ * always describes the entries of the apk.
+ */
+public class BaselineIndexTest {
+    private static final byte[] RESOURCE_BYTES = "resource".getBytes();
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private byte[] dexBytes;
+    private byte[] wrappedDexBytes;
+    private byte[] wrappedJarBytes;
+    private File indexDir;
+
+    @Before
+    public void setUp() throws IOException {
+        dexBytes = SyntheticDexFactory.createOldDex(20);
+        wrappedDexBytes = SyntheticDexFactory.createNewDex(10);
+        // Zipped once, entry times would make the jar differ from one second to the next.
+        wrappedJarBytes = zip("classes.dex", wrappedDexBytes);
+        indexDir = new File(tempFolder.getRoot(), "index");
+    }
+
+    @Test
+    public void builtIndexDescribesEntries() throws IOException {
+        File apk = writeApk("old.apk", RESOURCE_BYTES);
+        assertDescribes(BaselineIndex.loadOrBuild(apk, indexDir), RESOURCE_BYTES);
+        assertEquals(1, indexDir.listFiles().length);
+    }
+
+    @Test
+    public void savedIndexIsLoadedAgain() throws IOException {
+        File apk = writeApk("old.apk", RESOURCE_BYTES);
+        BaselineIndex builtIndex = BaselineIndex.loadOrBuild(apk, indexDir);
+        File indexFile = indexDir.listFiles()[0];
+        byte[] savedBytes = readFile(indexFile);
+
+        BaselineIndex loadedIndex = BaselineIndex.loadOrBuild(apk, indexDir);
+        assertEquals(builtIndex.getApkDigest(), loadedIndex.getApkDigest());
+        assertDescribes(loadedIndex, RESOURCE_BYTES);
+        // Loading does not write the index again.
+        assertArrayEquals(savedBytes, readFile(indexFile));
+    }
+
+    @Test
+    public void brokenIndexIsRebuiltAndReplaced() throws IOException {
+        File apk = writeApk("old.apk", RESOURCE_BYTES);
+        BaselineIndex.loadOrBuild(apk, indexDir);
+        File indexFile = indexDir.listFiles()[0];
+        byte[] savedBytes = readFile(indexFile);
+
+        byte[] brokenBytes = new byte[savedBytes.length / 2];
+        System.arraycopy(savedBytes, 0, brokenBytes, 0, brokenBytes.length);
+        writeFile(indexFile, brokenBytes);
+
+        assertDescribes(BaselineIndex.loadOrBuild(apk, indexDir), RESOURCE_BYTES);
+        assertArrayEquals(savedBytes, readFile(indexFile));
+        assertEquals(1, indexDir.listFiles().length);
+    }
+
+    @Test
+    public void changedApkGetsIndexOfItsOwn() throws IOException {
+        File oldApk = writeApk("old.apk", RESOURCE_BYTES);
+        BaselineIndex oldIndex = BaselineIndex.loadOrBuild(oldApk, indexDir);
+
+        byte[] changedResourceBytes = "changed resource".getBytes();
+        File changedApk = writeApk("old.apk", changedResourceBytes);
+        BaselineIndex changedIndex = BaselineIndex.loadOrBuild(changedApk, indexDir);
+        assertNotEquals(oldIndex.getApkDigest(), changedIndex.getApkDigest());
+        assertDescribes(changedIndex, changedResourceBytes);
+        assertEquals(2, indexDir.listFiles().length);
+    }
+
+    private void assertDescribes(BaselineIndex index, byte[] resourceBytes) throws IOException {
+        assertEquals(MD5.getMessageDigest(dexBytes), index.getMd5("classes.dex"));
+        assertEquals(crcOf(dexBytes), index.getCrc("classes.dex"));
+        assertEquals(MD5.getMessageDigest(dexBytes), index.getDexMd5("classes.dex"));
+        assertEquals(classDescsOf(dexBytes), index.getDexClassDescs("classes.dex"));
+
+        assertEquals(MD5.getMessageDigest(wrappedJarBytes), index.getMd5("lib/wrapped.jar"));
+        assertEquals(MD5.getMessageDigest(wrappedDexBytes), index.getDexMd5("lib/wrapped.jar"));
+        assertEquals(classDescsOf(wrappedDexBytes), index.getDexClassDescs("lib/wrapped.jar"));
+
+        assertEquals(MD5.getMessageDigest(resourceBytes), index.getMd5("res/raw/a.txt"));
+        assertEquals(crcOf(resourceBytes), index.getCrc("res/raw/a.txt"));
+        assertNull(index.getDexMd5("res/raw/a.txt"));
+        assertNull(index.getDexClassDescs("res/raw/a.txt"));
+
+        assertNull(index.getMd5("res/raw/"));
+        assertNull(index.getMd5("absent"));
+        assertNull(index.getCrc("absent"));
+    }
+
+    private File writeApk(String name, byte[] resourceBytes) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ZipOutputStream zos = new ZipOutputStream(bos);
+        try {
+            putEntry(zos, "classes.dex", dexBytes);
+            putEntry(zos, "lib/wrapped.jar", wrappedJarBytes);
+            zos.putNextEntry(new ZipEntry("res/raw/"));
+            zos.closeEntry();
+            putEntry(zos, "res/raw/a.txt", resourceBytes);
+        } finally {
+            zos.close();
+        }
+        File apk = new File(tempFolder.getRoot(), name);
+        writeFile(apk, bos.toByteArray());
+        return apk;
+    }
+
+    private static byte[] zip(String entryName, byte[] content) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ZipOutputStream zos = new ZipOutputStream(bos);
+        try {
+            putEntry(zos, entryName, content);
+        } finally {
+            zos.close();
+        }
+        return bos.toByteArray();
+    }
+
+    private static void putEntry(ZipOutputStream zos, String name, byte[] content) throws IOException {
+        zos.putNextEntry(new ZipEntry(name));
+        zos.write(content);
+        zos.closeEntry();
+    }
+
+    private static String crcOf(byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        return String.valueOf(crc.getValue());
+    }
+
+    private static List<String> classDescsOf(byte[] dexBytes) throws IOException {
+        Dex dex = new Dex(dexBytes);
+        List<String> result = new ArrayList<>();
+        for (ClassDef classDef : dex.classDefs()) {
+            result.add(dex.typeNames().get(classDef.typeIndex));
+        }
+        return result;
+    }
+
+    private static void writeFile(File file, byte[] content) throws IOException {
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(content);
+        } finally {
+            fos.close();
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] result = new byte[(int) raf.length()];
+            raf.readFully(result);
+            return result;
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.tinkerhotfix;
+
+import com.orange.tinkerhotfix.patch.Configuration;
+import com.orange.tinkerhotfix.patch.util.TypedValue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks every {@link Configuration#forBaseline} copy owns its collections and output folders,
+ * so patches against several baselines never see each other's changes.
+ */
+public class ConfigurationForBaselineTest {
+    private static final String CONFIG_XML = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<tinkerPatch>\n"
+            + "    <issue id=\"dex\">\n"
+            + "        <dexMode value=\"jar\"/>\n"
+            + "        <pattern value=\"classes*.dex\"/>\n"
+            + "        <loader value=\"com.example.Loader\"/>\n"
+            + "        <ignoreChange value=\"com.example.Ignored\"/>\n"
+            + "    </issue>\n"
+            + "    <issue id=\"packageConfig\">\n"
+            + "        <configField name=\"TINKER_ID\" value=\"1.0\"/>\n"
+            + "    </issue>\n"
+            + "</tinkerPatch>\n";
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private Configuration config;
+    private File firstOldApk;
+    private File secondOldApk;
+    private File newApkDir;
+
+    @Before
+    public void setUp() throws Exception {
+        File configFile = tempFolder.newFile("config.xml");
+        writeFile(configFile, CONFIG_XML.getBytes("UTF-8"));
+        firstOldApk = tempFolder.newFile("first.apk");
+        secondOldApk = tempFolder.newFile("second.apk");
+        File newApk = tempFolder.newFile("new.apk");
+        newApkDir = tempFolder.newFolder("new-unzipped");
+
+        config = new Configuration(configFile, tempFolder.newFolder("out"), firstOldApk, newApk);
+        config.mOldApkFiles.add(secondOldApk);
+    }
+
+    @Test
+    public void copiesOwnTheirCollections() throws Exception {
+        Configuration first = config.forBaseline(firstOldApk, new File(tempFolder.getRoot(), "out-first"), newApkDir);
+        Configuration second = config.forBaseline(secondOldApk, new File(tempFolder.getRoot(), "out-second"), newApkDir);
+
+        first.mDexFilePattern.add(Pattern.compile("lib/.*"));
+        first.mDexLoaderPattern.add("com.example.FirstLoader");
+        first.mDexIgnoreWarningLoaderPattern.add("com.example.FirstIgnored");
+        first.mPackageFields.put("TINKER_ID", "first");
+
+        for (Configuration other : Arrays.asList(config, second)) {
+            assertEquals(1, other.mDexFilePattern.size());
+            assertEquals(1, other.mDexLoaderPattern.size());
+            assertEquals(1, other.mDexIgnoreWarningLoaderPattern.size());
+            assertEquals("1.0", other.mPackageFields.get("TINKER_ID"));
+        }
+        assertEquals(2, first.mDexFilePattern.size());
+        assertEquals("first", first.mPackageFields.get("TINKER_ID"));
+        assertNull(first.mSoFilePattern);
+    }
+
+    @Test
+    public void copiesOwnTheirBaselineAndOutput() throws Exception {
+        File firstOut = new File(tempFolder.getRoot(), "out-first");
+        File secondOut = new File(tempFolder.getRoot(), "out-second");
+        File staleFile = new File(firstOut, "stale");
+        firstOut.mkdirs();
+        writeFile(staleFile, new byte[] {1});
+
+        Configuration first = config.forBaseline(firstOldApk, firstOut, newApkDir);
+        Configuration second = config.forBaseline(secondOldApk, secondOut, newApkDir);
+
+        assertFalse(staleFile.exists());
+        assertCopyOf(first, firstOldApk, firstOut);
+        assertCopyOf(second, secondOldApk, secondOut);
+        assertNotSame(first.mTempResultDir, second.mTempResultDir);
+
+        assertEquals(2, config.mOldApkFiles.size());
+        assertSame(firstOldApk, config.mOldApkFile);
+        assertEquals(new File(tempFolder.getRoot(), "out").getAbsolutePath(), config.mOutFolder);
+        assertFalse(config.mNewApkUnzipped);
+    }
+
+    private void assertCopyOf(Configuration copy, File oldApk, File outputFile) {
+        assertSame(oldApk, copy.mOldApkFile);
+        assertEquals(oldApk.getAbsolutePath(), copy.mOldApkPath);
+        assertEquals(Arrays.asList(oldApk), copy.mOldApkFiles);
+        assertNull(copy.mBaselineIndex);
+        assertEquals(outputFile.getAbsolutePath(), copy.mOutFolder);
+        assertEquals(new File(outputFile, TypedValue.PATH_PATCH_FILES), copy.mTempResultDir);
+        assertTrue(copy.mTempResultDir.isDirectory());
+        assertSame(newApkDir, copy.mTempUnzipNewDir);
+        assertTrue(copy.mNewApkUnzipped);
+    }
+
+    private static void writeFile(File file, byte[] data) throws IOException {
+        FileOutputStream os = new FileOutputStream(file);
+        try {
+            os.write(data);
+        } finally {
+            os.close();
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.orange.tinkerhotfix;
+
+import com.orange.tinkerhotfix.dx.instruction.DecodedInstructions;
+import com.orange.tinkerhotfix.dx.instruction.InstructionReader;
+import com.orange.tinkerhotfix.dx.instruction.InstructionVisitor;
+import com.orange.tinkerhotfix.dx.instruction.ShortArrayCodeInput;
+import com.orange.tinkerhotfix.party.ClassData;
+import com.orange.tinkerhotfix.party.ClassDef;
+import com.orange.tinkerhotfix.party.Dex;
+
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that {@link DecodedInstructions} replays the same visits as {@link InstructionReader}.
+ */
+public class DecodedInstructionsTest {
+
+    @Test
+    public void replaysSameVisitsAsInstructionReader() throws IOException {
+        DecodedInstructions decoded = new DecodedInstructions();
+        int methodCount = 0;
+        for (byte[] dexBytes : Arrays.asList(SyntheticDexFactory.createOldDex(50), SyntheticDexFactory.createNewDex(50))) {
+            Dex dex = new Dex(dexBytes);
+            for (ClassDef classDef : dex.classDefs()) {
+                if (classDef.classDataOffset == ClassDef.NO_OFFSET) {
+                    continue;
+                }
+                ClassData classData = dex.readClassData(classDef);
+                List<ClassData.Method> methods = new ArrayList<>(Arrays.asList(classData.directMethods));
+                methods.addAll(Arrays.asList(classData.virtualMethods));
+                for (ClassData.Method method : methods) {
+                    if (method.codeOffset == ClassDef.NO_OFFSET) {
+                        continue;
+                    }
+                    short[] insns = dex.readCode(method).instructions;
+                    // The same instance is reused for every method on purpose.
+                    decoded.decode(insns);
+                    assertEquals(readVisits(insns), replayVisits(decoded));
+                    assertSlotsMatchAddresses(decoded);
+                    ++methodCount;
+                }
+            }
+        }
+        assertTrue(methodCount > 0);
+    }
+
+    @Test
+    public void truncatedInstructionFailsLikeInstructionReader() throws IOException {
+        // nop, const-wide v0 with the last two code units cut off.
+        short[] insns = {0x0000, 0x0018, 0x5678, 0x1234};
+        try {
+            readVisits(insns);
+            fail("InstructionReader accepted truncated instruction.");
+        } catch (EOFException e) {
+            // Expected.
+        }
+        DecodedInstructions decoded = new DecodedInstructions();
+        try {
+            decoded.decode(insns);
+            fail("DecodedInstructions accepted truncated instruction.");
+        } catch (EOFException e) {
+            // Expected.
+        }
+        assertEquals(1, decoded.size());
+        assertEquals(0, decoded.getAddress(0));
+    }
+
+    private static void assertSlotsMatchAddresses(DecodedInstructions decoded) {
+        int address = 0;
+        for (int slot = 0; slot < decoded.size(); ++slot) {
+            assertEquals(address, decoded.getAddress(slot));
+            assertEquals(slot, decoded.getSlot(address));
+            for (int i = 1; i < decoded.getWidth(slot); ++i) {
+                assertEquals(-1, decoded.getSlot(address + i));
+            }
+            address += decoded.getWidth(slot);
+        }
+        assertEquals(decoded.getInstructions().length, address);
+    }
+
+    private static List<String> readVisits(short[] insns) throws EOFException {
+        RecordingVisitor visitor = new RecordingVisitor();
+        new InstructionReader(new ShortArrayCodeInput(insns)).accept(visitor);
+        return visitor.visits;
+    }
+
+    private static List<String> replayVisits(DecodedInstructions decoded) {
+        RecordingVisitor visitor = new RecordingVisitor();
+        decoded.accept(visitor);
+        return visitor.visits;
+    }
+
+    private static final class RecordingVisitor extends InstructionVisitor {
+        final List<String> visits = new ArrayList<>();
+
+        RecordingVisitor() {
+            super(null);
+        }
+
+        private void record(Object... args) {
+            visits.add(Arrays.deepToString(args));
+        }
+
+        @Override
+        public void visitZeroRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal) {
+            record(0, currentAddress, opcode, index, indexType, target, literal);
+        }
+
+        @Override
+        public void visitOneRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a) {
+            record(1, currentAddress, opcode, index, indexType, target, literal, a);
+        }
+
+        @Override
+        public void visitTwoRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a, int b) {
+            record(2, currentAddress, opcode, index, indexType, target, literal, a, b);
+        }
+
+        @Override
+        public void visitThreeRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a, int b, int c) {
+            record(3, currentAddress, opcode, index, indexType, target, literal, a, b, c);
+        }
+
+        @Override
+        public void visitFourRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a, int b, int c, int d) {
+            record(4, currentAddress, opcode, index, indexType, target, literal, a, b, c, d);
+        }
+
+        @Override
+        public void visitFiveRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a, int b, int c, int d, int e) {
+            record(5, currentAddress, opcode, index, indexType, target, literal, a, b, c, d, e);
+        }
+
+        @Override
+        public void visitRegisterRangeInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a, int registerCount) {
+            record("range", currentAddress, opcode, index, indexType, target, literal, a, registerCount);
+        }
+
+        @Override
+        public void visitSparseSwitchPayloadInsn(int currentAddress, int opcode, int[] keys, int[] targets) {
+            record("sparse", currentAddress, opcode, keys, targets);
+        }
+
+        @Override
+        public void visitPackedSwitchPayloadInsn(int currentAddress, int opcode, int firstKey, int[] targets) {
+            record("packed", currentAddress, opcode, firstKey, targets);
+        }
+
+        @Override
+        public void visitFillArrayDataPayloadInsn(int currentAddress, int opcode, Object data, int size, int elementWidth) {
+            record("array", currentAddress, opcode, new Object[] {data}, size, elementWidth);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.orange.tinkerhotfix;
+
+import com.orange.tinkerhotfix.common.DexPatchApplier;
+import com.orange.tinkerhotfix.dexpatcher.DexPatchGenerator;
+import com.orange.tinkerhotfix.party.Dex;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Diffs generated dex pairs, applies the patches to the old dexes and checks the results
+ * have the same content as the new dexes.
+ */
+public class DexPatchRoundTripTest {
+    private static final int CLASS_COUNT = 300;
+
+    private static byte[] oldDexBytes;
+    private static byte[] newDexBytes;
+    private static ForkJoinPool pool;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        oldDexBytes = SyntheticDexFactory.createOldDex(CLASS_COUNT);
+        newDexBytes = SyntheticDexFactory.createNewDex(CLASS_COUNT);
+        pool = new ForkJoinPool(4);
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        pool.shutdown();
+    }
+
+    @Test
+    public void dexesUnderTestDiffer() throws IOException {
+        assertFalse(Arrays.equals(
+                SyntheticDexFactory.normalize(oldDexBytes), SyntheticDexFactory.normalize(newDexBytes)));
+    }
+
+    @Test
+    public void patchedDexEqualsNewDexWhenDiffedSerially() throws IOException {
+        byte[] patch = generatePatch(oldDexBytes, newDexBytes, null);
+        assertSameDexContent(newDexBytes, applyPatch(oldDexBytes, patch));
+    }
+
+    @Test
+    public void patchedDexEqualsNewDexWhenDiffedInPool() throws IOException {
+        byte[] patch = generatePatch(oldDexBytes, newDexBytes, pool);
+        assertSameDexContent(newDexBytes, applyPatch(oldDexBytes, patch));
+    }
+
+    @Test
+    public void pooledDiffMakesSamePatchAsSerialDiff() throws IOException {
+        assertArrayEquals(generatePatch(oldDexBytes, newDexBytes, null), generatePatch(oldDexBytes, newDexBytes, pool));
+    }
+
+    @Test
+    public void streamedPatchedDexEqualsPatchedDexInHeap() throws IOException {
+        byte[] patch = generatePatch(oldDexBytes, newDexBytes, null);
+        File oldDexFile = writeTempFile("old.dex", oldDexBytes);
+        File patchFile = writeTempFile("patch.dex", patch);
+        File patchedDexFile = new File(tempFolder.getRoot(), "patched.dex");
+        new DexPatchApplier(oldDexFile, patchFile).executeAndStreamTo(patchedDexFile);
+        assertArrayEquals(applyPatch(oldDexBytes, patch), readFile(patchedDexFile));
+    }
+
+    @Test
+    public void patchOfSameDexesRestoresOldDex() throws IOException {
+        byte[] patch = generatePatch(oldDexBytes, oldDexBytes, pool);
+        assertSameDexContent(oldDexBytes, applyPatch(oldDexBytes, patch));
+    }
+
+    @Test
+    public void reversePatchRestoresOldDex() throws IOException {
+        byte[] patch = generatePatch(newDexBytes, oldDexBytes, pool);
+        assertSameDexContent(oldDexBytes, applyPatch(newDexBytes, patch));
+    }
+
+    private static byte[] generatePatch(byte[] oldDex, byte[] newDex, ForkJoinPool sectionDiffPool) throws IOException {
+        DexPatchGenerator generator = new DexPatchGenerator(new Dex(oldDex), new Dex(newDex));
+        generator.setSectionDiffPool(sectionDiffPool);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        generator.executeAndSaveTo(bos);
+        return bos.toByteArray();
+    }
+
+    private static byte[] applyPatch(byte[] oldDex, byte[] patch) throws IOException {
+        DexPatchApplier applier = new DexPatchApplier(new ByteArrayInputStream(oldDex), new ByteArrayInputStream(patch));
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        applier.executeAndSaveTo(bos);
+        return bos.toByteArray();
+    }
+
+    /**
+     * Patched dexes are laid out by the patch applier rather than by dx, so they are compared
+     * after both are rewritten with dexlib2.
+     */
+    private static void assertSameDexContent(byte[] expected, byte[] actual) throws IOException {
+        assertArrayEquals(SyntheticDexFactory.normalize(expected), SyntheticDexFactory.normalize(actual));
+    }
+
+    private File writeTempFile(String name, byte[] data) throws IOException {
+        File file = tempFolder.newFile(name);
+        OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(data);
+        } finally {
+            os.close();
+        }
+        return file;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            return data;
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.orange.tinkerhotfix;
+
+import com.orange.tinkerhotfix.util.IntIntHashMap;
+import com.orange.tinkerhotfix.util.IntObjectHashMap;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks {@link IntIntHashMap} and {@link IntObjectHashMap} against {@link HashMap}.
+ */
+public class IntHashMapTest {
+    private static final int OPERATION_COUNT = 20000;
+
+    // Keys which collide in small tables and keys at the ends of the int range.
+    private static final int[] SPECIAL_KEYS = {
+            0, -1, 1, 16, 32, 64, 1 << 16, 1 << 30, Integer.MIN_VALUE, Integer.MAX_VALUE
+    };
+
+    @Test
+    public void intIntHashMapBehavesLikeHashMap() {
+        Random random = new Random(0);
+        IntIntHashMap map = new IntIntHashMap(1);
+        Map<Integer, Integer> expected = new HashMap<>();
+        for (int i = 0; i < OPERATION_COUNT; ++i) {
+            int key = nextKey(random);
+            if (random.nextInt(3) == 0) {
+                int value = random.nextInt();
+                map.put(key, value);
+                expected.put(key, value);
+            } else {
+                Integer expectedValue = expected.get(key);
+                assertEquals(expectedValue != null, map.containsKey(key));
+                assertEquals(expectedValue != null ? expectedValue : -42, map.get(key, -42));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+            assertEquals((int) entry.getValue(), map.get(entry.getKey(), entry.getValue() + 1));
+        }
+    }
+
+    @Test
+    public void intIntHashMapIsEmptyAfterClear() {
+        IntIntHashMap map = new IntIntHashMap();
+        for (int key : SPECIAL_KEYS) {
+            map.put(key, key + 1);
+        }
+        assertEquals(SPECIAL_KEYS.length, map.size());
+        map.clear();
+        assertEquals(0, map.size());
+        for (int key : SPECIAL_KEYS) {
+            assertFalse(map.containsKey(key));
+            assertEquals(7, map.get(key, 7));
+        }
+        map.put(Integer.MIN_VALUE, 0);
+        assertEquals(1, map.size());
+        assertEquals(0, map.get(Integer.MIN_VALUE, 7));
+    }
+
+    @Test
+    public void intObjectHashMapBehavesLikeHashMap() {
+        Random random = new Random(1);
+        IntObjectHashMap<String> map = new IntObjectHashMap<>(1);
+        Map<Integer, String> expected = new HashMap<>();
+        for (int i = 0; i < OPERATION_COUNT; ++i) {
+            int key = nextKey(random);
+            if (random.nextInt(3) == 0) {
+                String value = "v" + random.nextInt();
+                map.put(key, value);
+                expected.put(key, value);
+            } else {
+                assertEquals(expected.containsKey(key), map.containsKey(key));
+                assertSame(expected.get(key), map.get(key));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        for (Map.Entry<Integer, String> entry : expected.entrySet()) {
+            assertSame(entry.getValue(), map.get(entry.getKey()));
+        }
+    }
+
+    @Test
+    public void intObjectHashMapIsEmptyAfterClear() {
+        IntObjectHashMap<Integer> map = new IntObjectHashMap<>();
+        for (int key : SPECIAL_KEYS) {
+            map.put(key, key);
+        }
+        assertEquals(SPECIAL_KEYS.length, map.size());
+        map.clear();
+        assertEquals(0, map.size());
+        for (int key : SPECIAL_KEYS) {
+            assertFalse(map.containsKey(key));
+            assertNull(map.get(key));
+        }
+        map.put(0, 3);
+        assertTrue(map.containsKey(0));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void intObjectHashMapRejectsNullValues() {
+        IntObjectHashMap<String> map = new IntObjectHashMap<>();
+        try {
+            map.put(1, null);
+            fail("null value is accepted.");
+        } catch (IllegalArgumentException e) {
+            assertEquals(0, map.size());
+        }
+    }
+
+    private static int nextKey(Random random) {
+        switch (random.nextInt(4)) {
+            case 0:
+                return SPECIAL_KEYS[random.nextInt(SPECIAL_KEYS.length)];
+            case 1:
+                // Many keys sharing low bits.
+                return random.nextInt(64) << 12;
+            case 2:
+                return random.nextInt();
+            default:
+                return random.nextInt(4096) - 2048;
+        }
+    }
+}
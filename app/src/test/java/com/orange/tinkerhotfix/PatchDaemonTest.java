@@ -0,0 +1,177 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.tinkerhotfix;
+
+import com.orange.tinkerhotfix.patch.builder.PatchDaemon;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Starts a {@link PatchDaemon} on the loopback port and checks it rejects connections with a
+ * bad token and jobs writing outside of its output root.
+ */
+public class PatchDaemonTest {
+    private static final int CONNECT_RETRY_COUNT = 100;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private int port;
+    private File outputRoot;
+    private File tokenFile;
+    private Thread serveThread;
+    private String token;
+
+    @Before
+    public void setUp() throws Exception {
+        ServerSocket probe = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        port = probe.getLocalPort();
+        probe.close();
+
+        outputRoot = tempFolder.newFolder("out");
+        tokenFile = new File(tempFolder.getRoot(), "daemon.token");
+        final PatchDaemon daemon = new PatchDaemon(port, 1, outputRoot, tokenFile);
+        serveThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    daemon.serve();
+                } catch (IOException e) {
+                    e.printStackTrace(System.err);
+                }
+            }
+        });
+        serveThread.start();
+        waitUntilListening();
+        token = new String(Files.readAllBytes(tokenFile.toPath()), "UTF-8");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (serveThread.isAlive()) {
+            request(token, "shutdown");
+        }
+        serveThread.join(10000);
+    }
+
+    @Test
+    public void tokenFileIsOwnerOnly() throws Exception {
+        assertEquals(64, token.length());
+        assertTrue(tokenFile.canRead());
+        if (Files.getFileStore(tokenFile.toPath()).supportsFileAttributeView("posix")) {
+            assertEquals("rw-------", PosixFilePermissions.toString(
+                    Files.getPosixFilePermissions(tokenFile.toPath())));
+        }
+    }
+
+    @Test
+    public void badTokenIsRejected() throws Exception {
+        assertEquals("ERROR bad token", request(badTokenOf(token), "shutdown"));
+        assertEquals("ERROR bad token", request("", "shutdown"));
+        assertTrue(serveThread.isAlive());
+    }
+
+    @Test
+    public void outputOutsideOfRootIsRejected() throws Exception {
+        File config = tempFolder.newFile("config.xml");
+        File oldApk = tempFolder.newFile("old.apk");
+        File newApk = tempFolder.newFile("new.apk");
+
+        String[] rejectedOutputs = {
+                outputRoot.getAbsolutePath(),
+                tempFolder.getRoot().getAbsolutePath(),
+                outputRoot.getAbsolutePath() + "2" + File.separator + "job",
+                outputRoot.getAbsolutePath() + File.separator + ".." + File.separator + "job"
+        };
+        for (String output : rejectedOutputs) {
+            String reply = request(token, jobOf(config, oldApk, newApk, output));
+            assertTrue(reply, reply.startsWith("ERROR") && reply.contains("is outside of"));
+        }
+        assertFalse(new File(tempFolder.getRoot(), "job").exists());
+
+        String reply = request(token, jobOf(config, oldApk, newApk,
+                outputRoot.getAbsolutePath() + File.separator + "job"));
+        assertTrue(reply, reply.startsWith("ERROR"));
+        assertFalse(reply, reply.contains("is outside of"));
+    }
+
+    @Test
+    public void shutdownDeletesTokenFile() throws Exception {
+        assertEquals("OK shutdown", request(token, "shutdown"));
+        serveThread.join(10000);
+        assertFalse(serveThread.isAlive());
+        assertFalse(tokenFile.exists());
+    }
+
+    private static String badTokenOf(String token) {
+        char first = token.charAt(0);
+        return (first == '0' ? '1' : '0') + token.substring(1);
+    }
+
+    private static String jobOf(File config, File oldApk, File newApk, String output) {
+        return "-config\t" + config.getAbsolutePath() + "\t-old\t" + oldApk.getAbsolutePath()
+                + "\t-new\t" + newApk.getAbsolutePath() + "\t-out\t" + output;
+    }
+
+    private String request(String requestToken, String request) throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        try {
+            PrintWriter writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), true);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            writer.println(requestToken);
+            writer.println(request);
+            return reader.readLine();
+        } finally {
+            socket.close();
+        }
+    }
+
+    private void waitUntilListening() throws Exception {
+        for (int i = 0; i < CONNECT_RETRY_COUNT; ++i) {
+            if (tokenFile.exists()) {
+                try {
+                    new Socket(InetAddress.getLoopbackAddress(), port).close();
+                    return;
+                } catch (IOException ignored) {
+                    // Not bound yet.
+                }
+            }
+            Thread.sleep(50);
+        }
+        throw new IllegalStateException("patch daemon is not listening on port " + port);
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.orange.tinkerhotfix;
+
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.AnnotationVisibility;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.builder.Label;
+import org.jf.dexlib2.builder.MutableMethodImplementation;
+import org.jf.dexlib2.builder.SwitchLabelElement;
+import org.jf.dexlib2.builder.instruction.BuilderArrayPayload;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction10t;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction10x;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction11n;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction21c;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction21t;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction22c;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction31t;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction35c;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction3rc;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction51l;
+import org.jf.dexlib2.builder.instruction.BuilderPackedSwitchPayload;
+import org.jf.dexlib2.builder.instruction.BuilderSparseSwitchPayload;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.iface.Annotation;
+import org.jf.dexlib2.iface.MethodParameter;
+import org.jf.dexlib2.immutable.ImmutableAnnotation;
+import org.jf.dexlib2.immutable.ImmutableAnnotationElement;
+import org.jf.dexlib2.immutable.ImmutableMethodParameter;
+import org.jf.dexlib2.immutable.reference.ImmutableFieldReference;
+import org.jf.dexlib2.immutable.reference.ImmutableMethodReference;
+import org.jf.dexlib2.immutable.value.ImmutableIntEncodedValue;
+import org.jf.dexlib2.immutable.value.ImmutableStringEncodedValue;
+import org.jf.dexlib2.writer.builder.BuilderField;
+import org.jf.dexlib2.writer.builder.BuilderMethod;
+import org.jf.dexlib2.writer.builder.DexBuilder;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Builds synthetic old/new dex pairs of a given size with dexlib2's {@link DexBuilder}.
+ * Shared by unit tests and the benchmark module.
+ *
+ * The new dex deletes, adds and modifies a fixed fraction of classes, so the diff
+ * touches most sections the way a real hotfix does. Every class also has a method with
+ * switches, fill-array-data, range invokes and wide literals.
+ */
+public final class SyntheticDexFactory {
+    private static final int API_LEVEL = 19;
+    private static final int METHODS_PER_CLASS = 6;
+
+    private static final String CLASS_NAME_PREFIX = "Lcom/orange/synthetic/C";
+    private static final String STRING_TYPE = "Ljava/lang/String;";
+    private static final int PUBLIC_STATIC = AccessFlags.PUBLIC.getValue() | AccessFlags.STATIC.getValue();
+
+    private SyntheticDexFactory() {
+        // Do nothing.
+    }
+
+    public static byte[] createOldDex(int classCount) throws IOException {
+        return createDex(classCount, false, 0, 1);
+    }
+
+    public static byte[] createNewDex(int classCount) throws IOException {
+        return createDex(classCount, true, 0, 1);
+    }
+
+    /**
+     * Same classes as {@link #createOldDex(int)} spread over {@code dexCount} dexes, so that
+     * classes refer to classes in other dexes.
+     */
+    public static byte[][] createOldDexes(int classCount, int dexCount) throws IOException {
+        return createDexes(classCount, false, dexCount);
+    }
+
+    public static byte[][] createNewDexes(int classCount, int dexCount) throws IOException {
+        return createDexes(classCount, true, dexCount);
+    }
+
+    /**
+     * Rewrites {@code dexBytes} with dexlib2, so that dexes with the same content compare
+     * equal no matter how their sections are laid out.
+     */
+    public static byte[] normalize(byte[] dexBytes) throws IOException {
+        MemoryDataStore dataStore = new MemoryDataStore();
+        DexPool.writeTo(dataStore, new DexBackedDexFile(Opcodes.forApi(API_LEVEL), dexBytes));
+        return Arrays.copyOf(dataStore.getBuffer(), dataStore.getSize());
+    }
+
+    private static byte[][] createDexes(int classCount, boolean isNewDex, int dexCount) throws IOException {
+        byte[][] result = new byte[dexCount][];
+        for (int dexIndex = 0; dexIndex < dexCount; ++dexIndex) {
+            result[dexIndex] = createDex(classCount, isNewDex, dexIndex, dexCount);
+        }
+        return result;
+    }
+
+    /**
+     * Builds the classes whose index modulo {@code dexCount} is {@code dexIndex}, the added
+     * class goes into the last dex.
+     */
+    private static byte[] createDex(int classCount, boolean isNewDex, int dexIndex, int dexCount) throws IOException {
+        DexBuilder builder = new DexBuilder(Opcodes.forApi(API_LEVEL));
+        for (int classIndex = dexIndex; classIndex < classCount; classIndex += dexCount) {
+            if (isNewDex && classIndex % 17 == 5) {
+                // Deleted class.
+                continue;
+            }
+            String type = getClassType(classIndex);
+
+            List<BuilderField> fields = new ArrayList<>();
+            String initialValue = "init" + classIndex + (isNewDex && classIndex % 19 == 1 ? "_changed" : "");
+            fields.add(builder.internField(type, "f0", STRING_TYPE, PUBLIC_STATIC,
+                    new ImmutableStringEncodedValue(initialValue), null));
+            fields.add(builder.internField(type, "f1", "I", PUBLIC_STATIC,
+                    new ImmutableIntEncodedValue(classIndex), null));
+
+            List<BuilderMethod> methods = new ArrayList<>();
+            for (int methodIndex = 0; methodIndex < METHODS_PER_CLASS; ++methodIndex) {
+                boolean isChanged = isNewDex && classIndex % 7 == 3 && methodIndex == 1;
+                // Refers to another class which exists in both dexes.
+                boolean isRetargeted = isNewDex && classIndex % 11 == 6 && methodIndex == 2;
+                methods.add(createMethod(builder, classCount, classIndex, methodIndex, isChanged, isRetargeted));
+            }
+            boolean isBranchesChanged = isNewDex && classIndex % 5 == 2;
+            methods.add(builder.internMethod(type, "branches", Collections.<MethodParameter>emptyList(),
+                    "V", PUBLIC_STATIC, null, createBranchesImpl(builder, classIndex, isBranchesChanged)));
+            if (isNewDex && classIndex % 13 == 4) {
+                MutableMethodImplementation impl = new MutableMethodImplementation(1);
+                impl.addInstruction(new BuilderInstruction10x(Opcode.RETURN_VOID));
+                methods.add(builder.internMethod(type, "added", Collections.<MethodParameter>emptyList(),
+                        "V", PUBLIC_STATIC, null, impl));
+            }
+
+            List<String> interfaces = (classIndex % 2 == 0 ? Arrays.asList("Ljava/lang/Runnable;") : null);
+            builder.internClassDef(type, AccessFlags.PUBLIC.getValue(), "Ljava/lang/Object;", interfaces,
+                    "C" + classIndex + ".java", null, fields, methods);
+        }
+        if (isNewDex && dexIndex == dexCount - 1) {
+            builder.internClassDef("Lcom/orange/synthetic/Added;", AccessFlags.PUBLIC.getValue(),
+                    "Ljava/lang/Object;", null, null, null, null, null);
+        }
+
+        MemoryDataStore dataStore = new MemoryDataStore();
+        builder.writeTo(dataStore);
+        return Arrays.copyOf(dataStore.getBuffer(), dataStore.getSize());
+    }
+
+    private static BuilderMethod createMethod(
+            DexBuilder builder, int classCount, int classIndex, int methodIndex,
+            boolean isChanged, boolean isRetargeted
+    ) {
+        String type = getClassType(classIndex);
+        String constString = "str_" + classIndex + "_" + methodIndex + (isChanged ? "_changed" : "");
+        List<String> parameterTypes = Arrays.asList(STRING_TYPE);
+        ImmutableMethodReference callee = new ImmutableMethodReference(
+                getClassType((classIndex + 1) % classCount),
+                "m" + ((methodIndex + 1) % METHODS_PER_CLASS),
+                parameterTypes,
+                "V"
+        );
+
+        MutableMethodImplementation impl = new MutableMethodImplementation(2);
+        impl.addInstruction(new BuilderInstruction21c(Opcode.CONST_STRING, 0,
+                builder.internStringReference(constString)));
+        impl.addInstruction(new BuilderInstruction35c(Opcode.INVOKE_STATIC, 1, 0, 0, 0, 0, 0,
+                builder.internMethodReference(callee)));
+        impl.addInstruction(new BuilderInstruction21c(Opcode.NEW_INSTANCE, 0,
+                builder.internTypeReference(getClassType((classIndex + (isRetargeted ? 4 : 3)) % classCount))));
+        impl.addInstruction(new BuilderInstruction21c(Opcode.SGET_OBJECT, 0,
+                builder.internFieldReference(new ImmutableFieldReference(type, "f0", STRING_TYPE))));
+        impl.addInstruction(new BuilderInstruction10x(Opcode.RETURN_VOID));
+
+        Set<Annotation> annotations = null;
+        if (methodIndex == 0) {
+            annotations = Collections.<Annotation>singleton(new ImmutableAnnotation(
+                    AnnotationVisibility.RUNTIME, "Lcom/orange/synthetic/Anno;",
+                    Collections.singleton(new ImmutableAnnotationElement(
+                            "value", new ImmutableStringEncodedValue("a" + classIndex)))));
+        }
+
+        List<MethodParameter> parameters = new ArrayList<>();
+        parameters.add(new ImmutableMethodParameter(STRING_TYPE, null, null));
+        return builder.internMethod(type, "m" + methodIndex, parameters, "V", PUBLIC_STATIC, annotations, impl);
+    }
+
+    private static MutableMethodImplementation createBranchesImpl(
+            DexBuilder builder, int classIndex, boolean isChanged
+    ) {
+        String type = getClassType(classIndex);
+        int keyShift = (isChanged ? 1 : 0);
+
+        MutableMethodImplementation impl = new MutableMethodImplementation(6);
+        impl.addInstruction(new BuilderInstruction11n(Opcode.CONST_4, 0, classIndex & 7));
+        impl.addInstruction(new BuilderInstruction51l(Opcode.CONST_WIDE, 2, 0x123456789abcL * (classIndex + 1)));
+        impl.addInstruction(new BuilderInstruction22c(Opcode.IGET, 1, 0,
+                builder.internFieldReference(new ImmutableFieldReference(type, "f1", "I"))));
+        impl.addInstruction(new BuilderInstruction3rc(Opcode.INVOKE_STATIC_RANGE, 0, 3,
+                builder.internMethodReference(new ImmutableMethodReference(
+                        type, "range", Arrays.asList("I", "J"), "V"))));
+        impl.addInstruction(new BuilderInstruction10x(Opcode.RETURN_VOID));
+
+        // Labels can only be made for instructions which already exist, so payloads are
+        // added first and the instructions referring to them are inserted afterwards.
+        Label afterWide = impl.newLabelForIndex(2);
+        Label returnVoid = impl.newLabelForIndex(4);
+        impl.addInstruction(new BuilderPackedSwitchPayload(-1 + keyShift, Arrays.asList(afterWide, returnVoid)));
+        impl.addInstruction(new BuilderSparseSwitchPayload(Arrays.asList(
+                new SwitchLabelElement(-70000, afterWide), new SwitchLabelElement(3 + keyShift, returnVoid))));
+        impl.addInstruction(new BuilderArrayPayload(4, Arrays.<Number>asList(1, -2, 3 + classIndex)));
+        impl.addInstruction(new BuilderArrayPayload(1, Arrays.<Number>asList((byte) 7, (byte) -8, (byte) 9)));
+        Label packedPayload = impl.newLabelForIndex(5);
+        Label sparsePayload = impl.newLabelForIndex(6);
+        Label intArrayPayload = impl.newLabelForIndex(7);
+        Label byteArrayPayload = impl.newLabelForIndex(8);
+
+        impl.addInstruction(4, new BuilderInstruction10t(Opcode.GOTO, returnVoid));
+        impl.addInstruction(4, new BuilderInstruction21t(Opcode.IF_EQZ, 0, afterWide));
+        impl.addInstruction(1, new BuilderInstruction31t(Opcode.FILL_ARRAY_DATA, 5, byteArrayPayload));
+        impl.addInstruction(1, new BuilderInstruction31t(Opcode.FILL_ARRAY_DATA, 4, intArrayPayload));
+        impl.addInstruction(1, new BuilderInstruction31t(Opcode.SPARSE_SWITCH, 0, sparsePayload));
+        impl.addInstruction(1, new BuilderInstruction31t(Opcode.PACKED_SWITCH, 0, packedPayload));
+        return impl;
+    }
+
+    private static String getClassType(int classIndex) {
+        return CLASS_NAME_PREFIX + classIndex + ";";
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.orange.tinkerhotfix.patch.util;
+
+import com.orange.tinkerhotfix.SyntheticDexFactory;
+import com.orange.tinkerhotfix.party.Dex;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares generated dex groups with {@link DexClassesComparator} and checks classes are
+ * compared the same way in a pool as on the calling thread, and with remembered id matches
+ * as without them.
+ */
+public class DexClassesComparatorTest {
+    // Enough classes for several compare batches.
+    private static final int CLASS_COUNT = 900;
+    private static final int DEX_COUNT = 3;
+
+    private static byte[][] oldDexBytes;
+    private static byte[][] newDexBytes;
+    private static ForkJoinPool pool;
+
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        oldDexBytes = SyntheticDexFactory.createOldDexes(CLASS_COUNT, DEX_COUNT);
+        newDexBytes = SyntheticDexFactory.createNewDexes(CLASS_COUNT, DEX_COUNT);
+        pool = new ForkJoinPool(4);
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        pool.shutdown();
+    }
+
+    @Test
+    public void findsDeletedAndAddedClasses() throws IOException {
+        Set<String> expectedDeletedClassDescs = new TreeSet<>();
+        for (int classIndex = 0; classIndex < CLASS_COUNT; ++classIndex) {
+            if (classIndex % 17 == 5) {
+                expectedDeletedClassDescs.add("Lcom/orange/synthetic/C" + classIndex + ";");
+            }
+        }
+
+        CheckResult result = check(null, DexClassesComparator.COMPARE_MODE_NORMAL);
+        assertEquals(expectedDeletedClassDescs, result.deletedClassDescs);
+        assertEquals(Collections.singleton("Lcom/orange/synthetic/Added;"), result.addedClassDescs);
+        assertFalse(result.changedClassDescs.isEmpty());
+    }
+
+    @Test
+    public void sameDexesHaveNoChangedClasses() throws IOException {
+        DexClassesComparator comparator = new DexClassesComparator("*");
+        comparator.setComparePool(pool);
+        comparator.startCheck(toDexGroup(oldDexBytes), toDexGroup(oldDexBytes));
+        assertTrue(comparator.getAddedClassInfos().isEmpty());
+        assertTrue(comparator.getDeletedClassInfos().isEmpty());
+        assertTrue(comparator.getChangedClassDescToInfosMap().isEmpty());
+    }
+
+    @Test
+    public void pooledCompareMatchesSerialCompare() throws IOException {
+        assertEquals(check(null, DexClassesComparator.COMPARE_MODE_NORMAL),
+                check(pool, DexClassesComparator.COMPARE_MODE_NORMAL));
+    }
+
+    @Test
+    public void pooledReferrerAffectedCompareMatchesSerialCompare() throws IOException {
+        assertEquals(check(null, DexClassesComparator.COMPARE_MODE_REFERRER_AFFECTED_CHANGE_ONLY),
+                check(pool, DexClassesComparator.COMPARE_MODE_REFERRER_AFFECTED_CHANGE_ONLY));
+    }
+
+    @Test
+    public void rememberedIdMatchesGiveSameResultAsComparingIdsAgain() throws IOException {
+        assertEquals(check(null, DexClassesComparator.COMPARE_MODE_NORMAL, false),
+                check(null, DexClassesComparator.COMPARE_MODE_NORMAL));
+        assertEquals(check(null, DexClassesComparator.COMPARE_MODE_REFERRER_AFFECTED_CHANGE_ONLY, false),
+                check(null, DexClassesComparator.COMPARE_MODE_REFERRER_AFFECTED_CHANGE_ONLY));
+    }
+
+    @Test
+    public void pooledRememberedIdMatchesGiveSameResultAsComparingIdsAgain() throws IOException {
+        assertEquals(check(null, DexClassesComparator.COMPARE_MODE_NORMAL, false),
+                check(pool, DexClassesComparator.COMPARE_MODE_NORMAL));
+    }
+
+    private static CheckResult check(ForkJoinPool comparePool, int compareMode) throws IOException {
+        return check(comparePool, compareMode, true);
+    }
+
+    private static CheckResult check(
+            ForkJoinPool comparePool, int compareMode, boolean isCrossDexIdMapEnabled
+    ) throws IOException {
+        DexClassesComparator comparator = new DexClassesComparator("*");
+        comparator.setCompareMode(compareMode);
+        comparator.setComparePool(comparePool);
+        comparator.setCrossDexIdMapEnabled(isCrossDexIdMapEnabled);
+        comparator.startCheck(toDexGroup(oldDexBytes), toDexGroup(newDexBytes));
+        return new CheckResult(comparator);
+    }
+
+    private static DexClassesComparator.DexGroup toDexGroup(byte[][] dexBytes) throws IOException {
+        Dex[] dexes = new Dex[dexBytes.length];
+        for (int i = 0; i < dexBytes.length; ++i) {
+            dexes[i] = new Dex(dexBytes[i]);
+        }
+        return DexClassesComparator.DexGroup.wrap(dexes);
+    }
+
+    private static final class CheckResult {
+        final Set<String> addedClassDescs;
+        final Set<String> deletedClassDescs;
+        final Set<String> changedClassDescs;
+
+        CheckResult(DexClassesComparator comparator) {
+            addedClassDescs = classDescsOf(comparator.getAddedClassInfos());
+            deletedClassDescs = classDescsOf(comparator.getDeletedClassInfos());
+            changedClassDescs = new TreeSet<>(comparator.getChangedClassDescToInfosMap().keySet());
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof CheckResult)) {
+                return false;
+            }
+            CheckResult other = (CheckResult) obj;
+            return addedClassDescs.equals(other.addedClassDescs)
+                    && deletedClassDescs.equals(other.deletedClassDescs)
+                    && changedClassDescs.equals(other.changedClassDescs);
+        }
+
+        @Override
+        public int hashCode() {
+            return changedClassDescs.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return "added=" + addedClassDescs + ", deleted=" + deletedClassDescs + ", changed=" + changedClassDescs;
+        }
+
+        private static Set<String> classDescsOf(Collection<DexClassesComparator.DexClassInfo> classInfos) {
+            Set<String> result = new TreeSet<>();
+            for (DexClassesComparator.DexClassInfo classInfo : classInfos) {
+                result.add(classInfo.classDesc);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.tinkerhotfix.patch.util;
+
+import com.orange.tinkerhotfix.SyntheticDexFactory;
+import com.orange.tinkerhotfix.dx.instruction.InstructionCodec;
+import com.orange.tinkerhotfix.dx.instruction.InstructionReader;
+import com.orange.tinkerhotfix.dx.instruction.InstructionVisitor;
+import com.orange.tinkerhotfix.dx.instruction.ShortArrayCodeInput;
+import com.orange.tinkerhotfix.party.ClassData;
+import com.orange.tinkerhotfix.party.ClassDef;
+import com.orange.tinkerhotfix.party.Code;
+import com.orange.tinkerhotfix.party.Dex;
+
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link ReferrerIndex} finds the same referrers as scanning the code of every class for
+ * references to the referee, which is how referrers were found before the index existed.
+ */
+public class ReferrerIndexTest {
+    private static final int CLASS_COUNT = 300;
+    private static final int DEX_COUNT = 3;
+
+    @Test
+    public void oldDexReferrersMatchPerClassScan() throws IOException {
+        assertMatchesPerClassScan(SyntheticDexFactory.createOldDexes(CLASS_COUNT, DEX_COUNT));
+    }
+
+    @Test
+    public void newDexReferrersMatchPerClassScan() throws IOException {
+        assertMatchesPerClassScan(SyntheticDexFactory.createNewDexes(CLASS_COUNT, DEX_COUNT));
+    }
+
+    @Test
+    public void referrersOfSyntheticClass() throws IOException {
+        Set<DexClassesComparator.DexClassInfo> classInfos
+                = toDexGroup(SyntheticDexFactory.createOldDexes(CLASS_COUNT, DEX_COUNT)).getClassInfosInDexesWithDuplicateCheck();
+        ReferrerIndex index = ReferrerIndex.build(classInfos, DEX_COUNT);
+
+        Set<String> expected = new TreeSet<>();
+        // C10 calls into C11, C8 instantiates C11, C11 reads its own fields.
+        expected.add("Lcom/orange/synthetic/C8;");
+        expected.add("Lcom/orange/synthetic/C10;");
+        expected.add("Lcom/orange/synthetic/C11;");
+        assertEquals(expected, classDescsOf(index.getReferrers("Lcom/orange/synthetic/C11;")));
+        assertTrue(index.getReferrers("Lcom/orange/synthetic/Absent;").isEmpty());
+    }
+
+    private static void assertMatchesPerClassScan(byte[][] dexBytes) throws IOException {
+        DexClassesComparator.DexGroup dexGroup = toDexGroup(dexBytes);
+        Set<DexClassesComparator.DexClassInfo> classInfos = dexGroup.getClassInfosInDexesWithDuplicateCheck();
+
+        Set<String> refereeClassDescs = new TreeSet<>();
+        for (Dex dex : dexGroup.dexes) {
+            refereeClassDescs.addAll(dex.typeNames());
+        }
+        refereeClassDescs.add("Lcom/orange/synthetic/Absent;");
+
+        ReferrerIndex serialIndex = ReferrerIndex.build(classInfos, 1);
+        ReferrerIndex concurrentIndex = ReferrerIndex.build(classInfos, DEX_COUNT);
+        int referenceCount = 0;
+        for (String refereeClassDesc : refereeClassDescs) {
+            Set<String> expected = new TreeSet<>();
+            for (DexClassesComparator.DexClassInfo classInfo : classInfos) {
+                if (isClassReferToClass(classInfo, refereeClassDesc)) {
+                    expected.add(classInfo.classDesc);
+                }
+            }
+            referenceCount += expected.size();
+
+            List<DexClassesComparator.DexClassInfo> serialReferrers = serialIndex.getReferrers(refereeClassDesc);
+            assertEquals(refereeClassDesc, expected, classDescsOf(serialReferrers));
+            assertEquals(refereeClassDesc, expected.size(), serialReferrers.size());
+            assertEquals(refereeClassDesc, expected, classDescsOf(concurrentIndex.getReferrers(refereeClassDesc)));
+        }
+        assertTrue(referenceCount > CLASS_COUNT);
+    }
+
+    private static boolean isClassReferToClass(DexClassesComparator.DexClassInfo classInfo, String refereeClassDesc) {
+        if (classInfo.classDef.classDataOffset == ClassDef.NO_OFFSET) {
+            return false;
+        }
+        ClassData classData = classInfo.owner.readClassData(classInfo.classDef);
+        List<ClassData.Method> methods = new ArrayList<>();
+        for (ClassData.Method method : classData.directMethods) {
+            methods.add(method);
+        }
+        for (ClassData.Method method : classData.virtualMethods) {
+            methods.add(method);
+        }
+        for (ClassData.Method method : methods) {
+            if (method.codeOffset == ClassDef.NO_OFFSET) {
+                continue;
+            }
+            Code methodCode = classInfo.owner.readCode(method);
+            ReferToClassCheckVisitor visitor = new ReferToClassCheckVisitor(classInfo.owner, refereeClassDesc);
+            try {
+                new InstructionReader(new ShortArrayCodeInput(methodCode.instructions)).accept(visitor);
+            } catch (EOFException e) {
+                throw new IllegalStateException(e);
+            }
+            if (visitor.isReferToRefereeClass) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static DexClassesComparator.DexGroup toDexGroup(byte[][] dexBytes) throws IOException {
+        Dex[] dexes = new Dex[dexBytes.length];
+        for (int i = 0; i < dexBytes.length; ++i) {
+            dexes[i] = new Dex(dexBytes[i]);
+        }
+        return DexClassesComparator.DexGroup.wrap(dexes);
+    }
+
+    private static Set<String> classDescsOf(Collection<DexClassesComparator.DexClassInfo> classInfos) {
+        Set<String> result = new TreeSet<>();
+        for (DexClassesComparator.DexClassInfo classInfo : classInfos) {
+            result.add(classInfo.classDesc);
+        }
+        return result;
+    }
+
+    private static final class ReferToClassCheckVisitor extends InstructionVisitor {
+        private final Dex owner;
+        private final String refereeClassDesc;
+
+        private boolean isReferToRefereeClass = false;
+
+        ReferToClassCheckVisitor(Dex owner, String refereeClassDesc) {
+            super(null);
+            this.owner = owner;
+            this.refereeClassDesc = refereeClassDesc;
+        }
+
+        @Override
+        public void visitZeroRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal) {
+            processIndexByType(index, indexType);
+        }
+
+        @Override
+        public void visitOneRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a) {
+            processIndexByType(index, indexType);
+        }
+
+        @Override
+        public void visitTwoRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a, int b) {
+            processIndexByType(index, indexType);
+        }
+
+        @Override
+        public void visitThreeRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a, int b, int c) {
+            processIndexByType(index, indexType);
+        }
+
+        @Override
+        public void visitFourRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a, int b, int c, int d) {
+            processIndexByType(index, indexType);
+        }
+
+        @Override
+        public void visitFiveRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a, int b, int c, int d, int e) {
+            processIndexByType(index, indexType);
+        }
+
+        @Override
+        public void visitRegisterRangeInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a, int registerCount) {
+            processIndexByType(index, indexType);
+        }
+
+        private void processIndexByType(int index, int indexType) {
+            String typeName;
+            switch (indexType) {
+                case InstructionCodec.INDEX_TYPE_TYPE_REF: {
+                    typeName = owner.typeNames().get(index);
+                    break;
+                }
+                case InstructionCodec.INDEX_TYPE_FIELD_REF: {
+                    typeName = owner.typeNames().get(owner.fieldIds().get(index).declaringClassIndex);
+                    break;
+                }
+                case InstructionCodec.INDEX_TYPE_METHOD_REF: {
+                    typeName = owner.typeNames().get(owner.methodIds().get(index).declaringClassIndex);
+                    break;
+                }
+                default: {
+                    return;
+                }
+            }
+            if (refereeClassDesc.equals(typeName)) {
+                isReferToRefereeClass = true;
+            }
+        }
+    }
+}
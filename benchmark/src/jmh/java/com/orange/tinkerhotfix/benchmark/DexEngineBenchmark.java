@@ -0,0 +1,80 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.orange.tinkerhotfix.benchmark;
+
+import com.orange.tinkerhotfix.common.DexPatchApplier;
+import com.orange.tinkerhotfix.dexpatcher.DexPatchGenerator;
+import com.orange.tinkerhotfix.party.Dex;
+import com.orange.tinkerhotfix.patch.util.DexClassesComparator;
+import com.orange.tinkerhotfix.struct.DexPatchFile;
+import com.tencent.tinker.bsdiff.BSDiff;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the dex diff/patch engine entry points on {@link DexPairState} inputs.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DexEngineBenchmark {
+
+    @Benchmark
+    public byte[] generatePatch(DexPairState state) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(state.patchBytes.length);
+        new DexPatchGenerator(new Dex(state.oldDexBytes), new Dex(state.newDexBytes)).executeAndSaveTo(out);
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] applyPatch(DexPairState state) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(state.newDexBytes.length);
+        DexPatchFile patchFile = new DexPatchFile(new ByteArrayInputStream(state.patchBytes));
+        new DexPatchApplier(new Dex(state.oldDexBytes), patchFile).executeAndSaveTo(out);
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public DexClassesComparator compareClasses(DexPairState state) throws IOException {
+        DexClassesComparator comparator = new DexClassesComparator("*");
+        comparator.startCheck(new Dex(state.oldDexBytes), new Dex(state.newDexBytes));
+        return comparator;
+    }
+
+    @Benchmark
+    public byte[] bsdiff(DexPairState state) throws IOException {
+        return BSDiff.bsdiff(
+                state.oldDexBytes, state.oldDexBytes.length, state.newDexBytes, state.newDexBytes.length
+        );
+    }
+
+    @Benchmark
+    public byte[] bsdiffSais(DexPairState state) throws IOException {
+        return BSDiff.bsdiff(
+                state.oldDexBytes, state.oldDexBytes.length, state.newDexBytes, state.newDexBytes.length,
+                BSDiff.SuffixSortAlgorithm.SAIS
+        );
+    }
+}
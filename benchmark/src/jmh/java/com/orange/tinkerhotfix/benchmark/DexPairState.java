@@ -0,0 +1,56 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.orange.tinkerhotfix.benchmark;
+
+import com.orange.tinkerhotfix.SyntheticDexFactory;
+import com.orange.tinkerhotfix.dexpatcher.DexPatchGenerator;
+import com.orange.tinkerhotfix.party.Dex;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Synthetic old/new dex pair shared by the benchmarks, together with the dex patch between them.
+ * Everything is prepared once per trial, benchmarks only wrap the bytes into fresh {@link Dex}
+ * instances so that no cached state leaks between invocations.
+ */
+@State(Scope.Benchmark)
+public class DexPairState {
+    @Param({"200", "2000", "8000"})
+    public int classCount;
+
+    byte[] oldDexBytes;
+    byte[] newDexBytes;
+    byte[] patchBytes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        this.oldDexBytes = SyntheticDexFactory.createOldDex(this.classCount);
+        this.newDexBytes = SyntheticDexFactory.createNewDex(this.classCount);
+
+        ByteArrayOutputStream patchOut = new ByteArrayOutputStream();
+        new DexPatchGenerator(new Dex(this.oldDexBytes), new Dex(this.newDexBytes)).executeAndSaveTo(patchOut);
+        this.patchBytes = patchOut.toByteArray();
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.orange.tinkerhotfix.benchmark;
+
+import com.orange.tinkerhotfix.SyntheticDexFactory;
+import com.orange.tinkerhotfix.dx.instruction.DecodedInstructions;
+import com.orange.tinkerhotfix.dx.instruction.InstructionPromoter;
+import com.orange.tinkerhotfix.dx.instruction.InstructionReader;
+import com.orange.tinkerhotfix.dx.instruction.InstructionVisitor;
+import com.orange.tinkerhotfix.dx.instruction.ShortArrayCodeInput;
+import com.orange.tinkerhotfix.party.ClassData;
+import com.orange.tinkerhotfix.party.ClassDef;
+import com.orange.tinkerhotfix.party.Dex;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding every method of a synthetic dex through {@link InstructionReader} visitors against
+ * decoding it into a reused {@link DecodedInstructions}, both alone and followed by the promoter
+ * pass of instruction transformation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class InstructionDecodeBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class MethodCodeState {
+        @Param({"200", "2000", "8000"})
+        public int classCount;
+
+        short[][] methodInsns;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            Dex dex = new Dex(SyntheticDexFactory.createNewDex(this.classCount));
+            List<short[]> insnsList = new ArrayList<>();
+            for (ClassDef classDef : dex.classDefs()) {
+                if (classDef.classDataOffset == ClassDef.NO_OFFSET) {
+                    continue;
+                }
+                ClassData classData = dex.readClassData(classDef);
+                addMethodInsns(dex, classData.directMethods, insnsList);
+                addMethodInsns(dex, classData.virtualMethods, insnsList);
+            }
+            this.methodInsns = insnsList.toArray(new short[insnsList.size()][]);
+        }
+
+        private static void addMethodInsns(Dex dex, ClassData.Method[] methods, List<short[]> insnsList) {
+            for (ClassData.Method method : methods) {
+                if (method.codeOffset != ClassDef.NO_OFFSET) {
+                    insnsList.add(dex.readCode(method).instructions);
+                }
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class DecoderState {
+        final DecodedInstructions decodedInsns = new DecodedInstructions();
+    }
+
+    @Benchmark
+    public long visitorDecode(MethodCodeState state) throws EOFException {
+        IndexSumVisitor visitor = new IndexSumVisitor();
+        for (short[] insns : state.methodInsns) {
+            new InstructionReader(new ShortArrayCodeInput(insns)).accept(visitor);
+        }
+        return visitor.indexSum;
+    }
+
+    @Benchmark
+    public long tableDecode(MethodCodeState state, DecoderState decoder) throws EOFException {
+        final DecodedInstructions decodedInsns = decoder.decodedInsns;
+        long indexSum = 0;
+        for (short[] insns : state.methodInsns) {
+            decodedInsns.decode(insns);
+            for (int slot = 0; slot < decodedInsns.size(); ++slot) {
+                indexSum += decodedInsns.getIndex(slot);
+            }
+        }
+        return indexSum;
+    }
+
+    @Benchmark
+    public int visitorPromote(MethodCodeState state) throws EOFException {
+        int promotedCount = 0;
+        for (short[] insns : state.methodInsns) {
+            InstructionPromoter promoter = new InstructionPromoter();
+            new InstructionReader(new ShortArrayCodeInput(insns)).accept(promoter);
+            promotedCount += promoter.getPromotedAddressCount();
+        }
+        return promotedCount;
+    }
+
+    @Benchmark
+    public int tablePromote(MethodCodeState state, DecoderState decoder) throws EOFException {
+        final DecodedInstructions decodedInsns = decoder.decodedInsns;
+        int promotedCount = 0;
+        for (short[] insns : state.methodInsns) {
+            decodedInsns.decode(insns);
+            InstructionPromoter promoter = new InstructionPromoter();
+            promoter.visitDecodedInstructions(decodedInsns);
+            promotedCount += promoter.getPromotedAddressCount();
+        }
+        return promotedCount;
+    }
+
+    private static final class IndexSumVisitor extends InstructionVisitor {
+        long indexSum = 0;
+
+        IndexSumVisitor() {
+            super(null);
+        }
+
+        @Override
+        public void visitZeroRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal) {
+            indexSum += index;
+        }
+
+        @Override
+        public void visitOneRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a) {
+            indexSum += index;
+        }
+
+        @Override
+        public void visitTwoRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a, int b) {
+            indexSum += index;
+        }
+
+        @Override
+        public void visitThreeRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a, int b, int c) {
+            indexSum += index;
+        }
+
+        @Override
+        public void visitFourRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a, int b, int c, int d) {
+            indexSum += index;
+        }
+
+        @Override
+        public void visitFiveRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a, int b, int c, int d, int e) {
+            indexSum += index;
+        }
+
+        @Override
+        public void visitRegisterRangeInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a, int registerCount) {
+            indexSum += index;
+        }
+    }
+}
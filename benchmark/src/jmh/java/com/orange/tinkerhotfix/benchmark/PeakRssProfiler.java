@@ -0,0 +1,92 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.orange.tinkerhotfix.benchmark;
+
+import com.orange.tinkerhotfix.patch.util.IOHelper;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.ScalarResult;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Reports the peak resident set size (VmHWM in /proc/self/status) of the benchmark vm
+ * after each iteration. Since the value never drops, the last iteration of a fork is the
+ * peak of the whole trial. Nothing is reported on platforms without procfs.
+ */
+public class PeakRssProfiler implements InternalProfiler {
+    private static final File PROC_STATUS_FILE = new File("/proc/self/status");
+    private static final String PEAK_RSS_KEY = "VmHWM:";
+
+    @Override
+    public String getDescription() {
+        return "Peak resident set size of the benchmark vm, read from " + PROC_STATUS_FILE;
+    }
+
+    @Override
+    public void beforeIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams) {
+        // Do nothing.
+    }
+
+    @Override
+    public Collection<? extends Result> afterIteration(
+            BenchmarkParams benchmarkParams, IterationParams iterationParams, IterationResult result
+    ) {
+        long peakRssKb = readPeakRssKb();
+        if (peakRssKb < 0) {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(
+                new ScalarResult("\u00b7rss.peak", peakRssKb / 1024.0, "MB", AggregationPolicy.MAX)
+        );
+    }
+
+    private static long readPeakRssKb() {
+        if (!PROC_STATUS_FILE.canRead()) {
+            return -1;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(PROC_STATUS_FILE));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(PEAK_RSS_KEY)) {
+                    // Looks like "VmHWM:   123456 kB".
+                    String value = line.substring(PEAK_RSS_KEY.length()).trim();
+                    int spacePos = value.indexOf(' ');
+                    return Long.parseLong(spacePos < 0 ? value : value.substring(0, spacePos));
+                }
+            }
+            return -1;
+        } catch (IOException | NumberFormatException e) {
+            return -1;
+        } finally {
+            IOHelper.closeQuietly(reader);
+        }
+    }
+}